@@ -0,0 +1,221 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.io.IOException;
+import java.util.function.Supplier;
+
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * Latest-value-wins mailbox. Keyed messages are written in a shared hash table with one slot per key
+ * instead of being appended to the task queue : a new message replace the unread message of the same key
+ * in place, so the memory is bounded by the number of keys and not by the update rate.
+ *
+ * Each slot is protected by a sequence lock. Writers take the lock with a CAS on the sequence, readers
+ * copy the slot and retry if the sequence moved. When a slot become dirty, the writer queue a small
+ * ConflationNotice in the task queue, so the task is woken up by the usual receive path and get the
+ * freshest message of the slot. At most one notice per key is waiting in the queue.
+ *
+ * Layout : header (INT slotCount, INT slotSize, INT recordSize), then for each slot :
+ * LONG sequence, LONG key, INT state, INT dirty, INT type, padding, message (record size).
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class ConflatingMailbox {
+
+	/**
+	 * Returned by offer.
+	 */
+	public static final int NO_NOTICE = -1;
+	public static final int FULL = -2;
+
+	private static final int HEADER_SIZE = 64;
+	private static final int SEQ_OFFSET = 0;
+	private static final int KEY_OFFSET = 8;
+	private static final int STATE_OFFSET = 16;
+	private static final int DIRTY_OFFSET = 20;
+	private static final int TYPE_OFFSET = 24;
+	private static final int MESSAGE_OFFSET = 32;
+
+	/**
+	 * Slot states.
+	 */
+	private static final int EMPTY = 0;
+	private static final int CLAIMING = 1;
+	private static final int USED = 2;
+
+	/**
+	 * Atomic view and message view of the same file.
+	 */
+	private final SharedMemory m_memory;
+	private final MemoryMappedFile m_file;
+
+	private final int m_slotCount;
+	private final int m_slotSize;
+
+	/**
+	 * Reader side : sequence of the last message delivered from each slot. Null for a writer.
+	 */
+	private long[] m_delivered;
+
+	/**
+	 * Create the mailbox file. Called by the receiving process.
+	 * @param pPath File path.
+	 * @param pKeyCount Number of distinct keys expected.
+	 * @param pRecordSize Largest message size.
+	 * @return Mailbox.
+	 * @throws IOException
+	 */
+	public static ConflatingMailbox create(String pPath, int pKeyCount, int pRecordSize) throws IOException {
+		// Half full at most, so the probes stay short
+		int slotCount = Integer.highestOneBit(Math.max(1, pKeyCount) * 2 - 1) << 1;
+		// One cache line at least, neighbour slots are written by different senders
+		int slotSize = (int)((MESSAGE_OFFSET + pRecordSize + 63) & ~63L);
+		long size = SharedMemoryConfig.align(HEADER_SIZE + (long)slotCount * slotSize);
+
+		SharedMemoryConfig.preallocate(pPath, size, false);
+		SharedMemory memory = new SharedMemory(pPath, size);
+		memory.putInt(0, slotCount);
+		memory.putInt(4, slotSize);
+		memory.putIntVolatile(8, pRecordSize);
+
+		ConflatingMailbox box = new ConflatingMailbox(pPath, memory);
+		box.m_delivered = new long[slotCount];
+		return box;
+	}
+
+	/**
+	 * Open an existing mailbox. Called by the sending processes.
+	 * @param pPath File path.
+	 * @return Mailbox.
+	 * @throws IOException
+	 */
+	public static ConflatingMailbox open(String pPath) throws IOException {
+		SharedMemory header = new SharedMemory(pPath, HEADER_SIZE);
+		long size = SharedMemoryConfig.align(HEADER_SIZE + (long)header.getInt(0) * header.getInt(4));
+		return new ConflatingMailbox(pPath, new SharedMemory(pPath, size));
+	}
+
+	private ConflatingMailbox(String pPath, SharedMemory pMemory) throws IOException {
+		m_memory = pMemory;
+		m_slotCount = pMemory.getInt(0);
+		m_slotSize = pMemory.getInt(4);
+		try {
+			m_file = new MemoryMappedFile(pPath, pMemory.getSize());
+		} catch (Exception e) {
+			throw new IOException("Failed to map " + pPath + " : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return Number of keys the mailbox can hold.
+	 */
+	public int getSlotCount() {
+		return m_slotCount;
+	}
+
+	/**
+	 * Write a message in the slot of its key.
+	 * @param pMsg Message.
+	 * @param pKey Conflation key.
+	 * @return The slot if it became dirty (a notice must be queued), NO_NOTICE if a notice is already
+	 * waiting, or FULL if there is no slot left for a new key.
+	 */
+	public int offer(Message pMsg, long pKey) {
+		int slot = findSlot(pKey);
+		if (slot < 0) {
+			return FULL;
+		}
+		long base = slotBase(slot);
+
+		long seq;
+		while (true) {
+			seq = m_memory.getLongVolatile(base + SEQ_OFFSET);
+			if ((seq & 1) == 0 && m_memory.compareAndSwapLong(base + SEQ_OFFSET, seq, seq + 1)) {
+				break;
+			}
+			Thread.yield(); // Another sender is writing the same key
+		}
+		m_memory.putInt(base + TYPE_OFFSET, pMsg.getTid());
+		pMsg.write(m_file, base + MESSAGE_OFFSET);
+		m_memory.putLongVolatile(base + SEQ_OFFSET, seq + 2);
+
+		return m_memory.compareAndSwapInt(base + DIRTY_OFFSET, 0, 1) ? slot : NO_NOTICE;
+	}
+
+	/**
+	 * Read the latest message of a slot. Called by the receiving task when it get a notice.
+	 * @param pSlot Slot of the notice.
+	 * @param pTypes Message factories, by type id.
+	 * @return The message, or null if it was already delivered or its type is unknown.
+	 */
+	Message poll(int pSlot, Supplier<? extends Message>[] pTypes) {
+		long base = slotBase(pSlot);
+
+		// Clear first, an update after this point queue a new notice
+		m_memory.compareAndSwapInt(base + DIRTY_OFFSET, 1, 0);
+
+		while (true) {
+			long seq = m_memory.getLongVolatile(base + SEQ_OFFSET);
+			if ((seq & 1) != 0) {
+				Thread.yield();
+				continue;
+			}
+			if (seq == m_delivered[pSlot]) {
+				return null; // Already read with the previous notice
+			}
+
+			int type = m_memory.getInt(base + TYPE_OFFSET);
+			if (type < 0 || type >= pTypes.length || pTypes[type] == null) {
+				System.err.println("ConflatingMailbox, unknown message type " + type);
+				m_delivered[pSlot] = seq;
+				return null;
+			}
+			Message msg = pTypes[type].get();
+			msg.read(m_file, base + MESSAGE_OFFSET);
+
+			SharedMemory.loadFence();
+			if (m_memory.getLongVolatile(base + SEQ_OFFSET) == seq) {
+				m_delivered[pSlot] = seq;
+				return msg;
+			}
+		}
+	}
+
+	/**
+	 * Find the slot of a key, or claim an empty one. Open addressing with linear probing, keys are never
+	 * removed.
+	 * @param pKey
+	 * @return Slot, or -1 if the table is full.
+	 */
+	private int findSlot(long pKey) {
+		int mask = m_slotCount - 1;
+		int slot = (int)((pKey * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+
+		for (int probe = 0; probe < m_slotCount; ) {
+			long base = slotBase(slot);
+			int state = m_memory.getIntVolatile(base + STATE_OFFSET);
+			if (state == USED) {
+				if (m_memory.getLong(base + KEY_OFFSET) == pKey) {
+					return slot;
+				}
+			} else if (state == EMPTY) {
+				if (m_memory.compareAndSwapInt(base + STATE_OFFSET, EMPTY, CLAIMING)) {
+					m_memory.putLong(base + KEY_OFFSET, pKey);
+					m_memory.putIntVolatile(base + STATE_OFFSET, USED);
+					return slot;
+				}
+				continue; // Lost the race, look at the slot again
+			} else {
+				Thread.yield(); // Key being written
+				continue;
+			}
+			slot = (slot + 1) & mask;
+			probe++;
+		}
+		return -1;
+	}
+
+	private long slotBase(int pSlot) {
+		return HEADER_SIZE + (long)pSlot * m_slotSize;
+	}
+}
@@ -0,0 +1,310 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * Mailbox with one single producer lane per sending thread, for a task fed by many clients. With the
+ * task queue every sender CAS the same limit word, and under a high fan-in the senders spend their time
+ * fighting for that cache line. Here a sender claim a lane on its first send and is then the only writer
+ * of the lane tail : a send is a plain record write and an ordered store, without any CAS.
+ *
+ * The receiver poll the lanes round-robin. It read up to BATCH messages from a lane before moving to the
+ * next one, so a busy client can not starve the others. The messages of one sender arrive in order, there
+ * is no order between senders.
+ *
+ * Only the scalar NORMAL messages take the lane. Array messages, HIGH and CONTROL messages and the keyed
+ * messages to a conflating task go through the task queue : they stay in order among themselves, but a
+ * message sent on the queue can be read before or after a lane message sent earlier by the same thread.
+ * A sender that need one order for everything send its array or priority messages to another task, or
+ * use a regular mailbox.
+ *
+ * A lane is released when the task thread that claimed it end (see Task.run). A thread that find no free
+ * lane send through the task queue as usual. A sender wait at most
+ * OFFER_TIMEOUT_PROPERTY on a full lane, then the message is dropped. When the task is deleted or move
+ * while a sender wait, the message go through the task queue.
+ *
+ * Layout : header (INT laneCount, INT capacity, INT slotSize, INT recordSize, INT claimed lanes), then for
+ * each lane : INT state, LONG tail and LONG head each on its own cache line, then the ring of the lanes,
+ * capacity slots each : INT type, padding, message (record size).
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class FanInMailbox {
+
+	/**
+	 * Messages read from a lane before the receiver move to the next one.
+	 */
+	public static final int BATCH = 16;
+
+	/**
+	 * Default number of slots of a lane.
+	 */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/**
+	 * Longest wait in milliseconds of a sender on a full lane (default 5000). The receiver may be dead,
+	 * the message is then dropped and reported.
+	 */
+	public static final String OFFER_TIMEOUT_PROPERTY = "mpitaskframework.fanInTimeout";
+
+	static final long OFFER_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong(OFFER_TIMEOUT_PROPERTY, 5000L));
+
+	private static final int HEADER_SIZE = 64;
+	private static final int HIGH_OFFSET = 16;
+	private static final int CONTROL_SIZE = 192;
+	private static final int STATE_OFFSET = 0;
+	private static final int TAIL_OFFSET = 64;
+	private static final int HEAD_OFFSET = 128;
+	private static final int TYPE_OFFSET = 0;
+	private static final int MESSAGE_OFFSET = 8;
+
+	/**
+	 * Lane states.
+	 */
+	private static final int FREE = 0;
+	private static final int CLAIMED = 1;
+
+	/**
+	 * Sender side of a lane, owned by one thread.
+	 */
+	public class Lane {
+
+		private final int m_index;
+		private final long m_control;
+		private final long m_ring;
+		private long m_tail;
+		private long m_cachedHead;
+
+		private Lane(int pIndex) {
+			m_index = pIndex;
+			m_control = controlBase(pIndex);
+			m_ring = ringBase(pIndex);
+			// Left by the previous owner
+			m_tail = m_memory.getLongVolatile(m_control + TAIL_OFFSET);
+			m_cachedHead = m_memory.getLongVolatile(m_control + HEAD_OFFSET);
+		}
+
+		/**
+		 * @return Lane index.
+		 */
+		public int getIndex() {
+			return m_index;
+		}
+
+		/**
+		 * Append a message. The head of the receiver is only read when the cached one say the lane is full.
+		 * @param pMsg Message.
+		 * @return False if the lane is full.
+		 */
+		public boolean offer(Message pMsg) {
+			long position = claim(pMsg.getTid());
+			if (position < 0) {
+				return false;
+			}
+			pMsg.write(m_file, position);
+			commit();
+			return true;
+		}
+
+		/**
+		 * Reserve the slot at the tail. The receiver does not see it until commit, a claim not committed
+		 * is simply reused by the next one.
+		 * @param pType Message type id.
+		 * @return Offset of the message in the mailbox file, -1 if the lane is full.
+		 */
+		long claim(int pType) {
+			if (m_tail - m_cachedHead >= m_capacity) {
+				m_cachedHead = m_memory.getLongVolatile(m_control + HEAD_OFFSET);
+				if (m_tail - m_cachedHead >= m_capacity) {
+					return -1;
+				}
+			}
+
+			long slot = m_ring + (m_tail & m_mask) * m_slotSize;
+			m_memory.putInt(slot + TYPE_OFFSET, pType);
+			return slot + MESSAGE_OFFSET;
+		}
+
+		/**
+		 * Publish the claimed slot.
+		 */
+		void commit() {
+			m_memory.putLongOrdered(m_control + TAIL_OFFSET, ++m_tail);
+		}
+
+		/**
+		 * @return Message view of the mailbox file.
+		 */
+		MemoryMappedFile getFile() {
+			return m_file;
+		}
+
+		/**
+		 * Give the lane back, the messages not read yet are still delivered.
+		 */
+		public void release() {
+			m_memory.putIntVolatile(m_control + STATE_OFFSET, FREE);
+		}
+	}
+
+	/**
+	 * Atomic view and message view of the same file.
+	 */
+	private final SharedMemory m_memory;
+	private final MemoryMappedFile m_file;
+
+	private final int m_laneCount;
+	private final int m_capacity;
+	private final long m_mask;
+	private final int m_slotSize;
+
+	/**
+	 * Reader side : lane being read and messages left in its batch.
+	 */
+	private int m_current;
+	private int m_batchLeft;
+
+	/**
+	 * Create the mailbox file. Called by the receiving process.
+	 * @param pPath File path.
+	 * @param pLaneCount Number of lanes, the number of sending threads served without contention.
+	 * @param pCapacity Slots of each lane, rounded up to a power of 2.
+	 * @param pRecordSize Largest message size.
+	 * @return Mailbox.
+	 * @throws IOException
+	 */
+	public static FanInMailbox create(String pPath, int pLaneCount, int pCapacity, int pRecordSize) throws IOException {
+		int capacity = Integer.highestOneBit(Math.max(2, pCapacity) * 2 - 1);
+		int slotSize = (int)((MESSAGE_OFFSET + pRecordSize + 7) & ~7L);
+		long size = SharedMemoryConfig.align(getSize(pLaneCount, capacity, slotSize));
+
+		SharedMemoryConfig.preallocate(pPath, size, false);
+		SharedMemory memory = new SharedMemory(pPath, size);
+		memory.putInt(0, pLaneCount);
+		memory.putInt(4, capacity);
+		memory.putInt(8, slotSize);
+		memory.putInt(12, pRecordSize);
+		memory.putIntVolatile(HIGH_OFFSET, 0);
+
+		return new FanInMailbox(pPath, memory);
+	}
+
+	/**
+	 * Open an existing mailbox. Called by the sending processes.
+	 * @param pPath File path.
+	 * @return Mailbox.
+	 * @throws IOException
+	 */
+	public static FanInMailbox open(String pPath) throws IOException {
+		SharedMemory header = new SharedMemory(pPath, HEADER_SIZE);
+		long size = SharedMemoryConfig.align(getSize(header.getInt(0), header.getInt(4), header.getInt(8)));
+		return new FanInMailbox(pPath, new SharedMemory(pPath, size));
+	}
+
+	private FanInMailbox(String pPath, SharedMemory pMemory) throws IOException {
+		m_memory = pMemory;
+		m_laneCount = pMemory.getInt(0);
+		m_capacity = pMemory.getInt(4);
+		m_mask = m_capacity - 1;
+		m_slotSize = pMemory.getInt(8);
+		try {
+			m_file = new MemoryMappedFile(pPath, pMemory.getSize());
+		} catch (Exception e) {
+			throw new IOException("Failed to map " + pPath + " : " + e.getMessage());
+		}
+	}
+
+	private static long getSize(int pLaneCount, int pCapacity, int pSlotSize) {
+		return HEADER_SIZE + (long)pLaneCount * (CONTROL_SIZE + (long)pCapacity * pSlotSize);
+	}
+
+	/**
+	 * @return Number of lanes.
+	 */
+	public int getLaneCount() {
+		return m_laneCount;
+	}
+
+	/**
+	 * Claim a free lane for the calling thread.
+	 * @return The lane, or null if every lane is taken.
+	 */
+	public Lane claimLane() {
+		for (int i = 0; i < m_laneCount; i++) {
+			if (m_memory.compareAndSwapInt(controlBase(i) + STATE_OFFSET, FREE, CLAIMED)) {
+				// Lanes are claimed from the lowest, the receiver only scan up to the highest claimed
+				int high;
+				while ((high = m_memory.getIntVolatile(HIGH_OFFSET)) <= i) {
+					m_memory.compareAndSwapInt(HIGH_OFFSET, high, i + 1);
+				}
+				return new Lane(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Read the next message, round-robin over the lanes. Called by the receiving task only.
+	 * @param pTypes Message factories, by type id.
+	 * @return The message, or null if every lane is empty. An unknown type is skipped.
+	 */
+	Message poll(Supplier<? extends Message>[] pTypes) {
+		int high = m_memory.getIntVolatile(HIGH_OFFSET);
+		// One more step than lanes, to come back to the current lane when its batch is done
+		for (int scanned = 0; scanned <= high; scanned++) {
+			if (m_current >= high) {
+				m_current = 0;
+			}
+			long control = controlBase(m_current);
+			long head = m_memory.getLong(control + HEAD_OFFSET);
+			if (m_batchLeft > 0 && m_memory.getLongVolatile(control + TAIL_OFFSET) != head) {
+				long slot = ringBase(m_current) + (head & m_mask) * m_slotSize;
+				int type = m_memory.getInt(slot + TYPE_OFFSET);
+				Message msg = null;
+				if (type >= 0 && type < pTypes.length && pTypes[type] != null) {
+					msg = pTypes[type].get();
+					msg.read(m_file, slot + MESSAGE_OFFSET);
+				} else {
+					System.err.println("FanInMailbox, unknown message type " + type);
+				}
+				m_memory.putLongOrdered(control + HEAD_OFFSET, head + 1);
+				m_batchLeft--;
+				if (msg != null) {
+					return msg;
+				}
+				continue;
+			}
+
+			// Empty or batch done, next lane
+			m_current++;
+			m_batchLeft = BATCH;
+		}
+		return null;
+	}
+
+	/**
+	 * @return True if every lane is empty.
+	 */
+	public boolean isEmpty() {
+		int high = m_memory.getIntVolatile(HIGH_OFFSET);
+		for (int i = 0; i < high; i++) {
+			long control = controlBase(i);
+			if (m_memory.getLongVolatile(control + TAIL_OFFSET) != m_memory.getLongVolatile(control + HEAD_OFFSET)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long controlBase(int pLane) {
+		return HEADER_SIZE + (long)pLane * CONTROL_SIZE;
+	}
+
+	private long ringBase(int pLane) {
+		return HEADER_SIZE + (long)m_laneCount * CONTROL_SIZE + (long)pLane * m_capacity * m_slotSize;
+	}
+}
@@ -0,0 +1,405 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Always-on recorder of the messaging events : send, receive, park, wakeup and queue full, with a
+ * nanosecond timestamp. Each thread write in its own ring of the process recorder file, without lock
+ * and without allocation, the oldest events are overwritten. The file is in the shared root, the main of
+ * this class dump it, so a latency spike can be looked at after the fact. The file is deleted when the
+ * process destroy the system (unless mpitaskframework.recorder.keep is true). After a crash it stay until
+ * the next system is created, the creator delete the files of the processes that are gone.
+ *
+ * A task thread give its ring back when it end, the ring is then reused by a new thread and the events
+ * of the ended thread are lost. Threads beyond the ring count record nothing until a ring is free.
+ *
+ * Layout : header (INT magic, INT ringCount, INT ringEvents, INT processId), then for each ring :
+ * LONG position, LONG threadId, INT nameLength, name, then the events (LONG timestamp, LONG data).
+ * data = type (8 bits) | task id (16 bits) | argument (40 bits).
+ *
+ * Properties : mpitaskframework.recorder (default true), mpitaskframework.recorder.events (events per
+ * thread, default 4096), mpitaskframework.recorder.threads (rings, default 256), mpitaskframework.recorder.jfr
+ * (also emit JFR events, default false), mpitaskframework.recorder.keep (keep the file, default false).
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class FlightRecorder {
+
+	public static final String PROPERTY = "mpitaskframework.recorder";
+	public static final String EVENTS_PROPERTY = "mpitaskframework.recorder.events";
+	public static final String THREADS_PROPERTY = "mpitaskframework.recorder.threads";
+	public static final String JFR_PROPERTY = "mpitaskframework.recorder.jfr";
+	public static final String KEEP_PROPERTY = "mpitaskframework.recorder.keep";
+
+	/**
+	 * Event types. The argument is the message type id for SEND, RECEIVE and QUEUE_FULL, and the parked
+	 * time in nanoseconds for WAKEUP.
+	 */
+	public static final int SEND = 1;
+	public static final int RECEIVE = 2;
+	public static final int PARK = 3;
+	public static final int WAKEUP = 4;
+	public static final int QUEUE_FULL = 5;
+
+	private static final String[] NAMES = { "?", "SEND", "RECEIVE", "PARK", "WAKEUP", "QUEUE_FULL" };
+
+	/**
+	 * Prefix of the recorder files, followed by the process id.
+	 */
+	public static final String FILE_PREFIX = "TS_FLIGHT_";
+
+	private static final int MAGIC = 0x46524543;
+	private static final int HEADER_SIZE = 64;
+	private static final int RING_HEADER_SIZE = 64;
+	private static final int NAME_OFFSET = 20;
+	private static final int MAX_NAME_LENGTH = RING_HEADER_SIZE - NAME_OFFSET;
+	private static final int EVENT_SIZE = 16;
+
+	private static final int TYPE_SHIFT = 56;
+	private static final int TASK_SHIFT = 40;
+	private static final long ARG_MASK = (1L << TASK_SHIFT) - 1;
+
+	private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(PROPERTY, "true"));
+	private static final boolean JFR = Boolean.getBoolean(JFR_PROPERTY);
+
+	/**
+	 * Path of the recorder file of this process, null until it is mapped.
+	 */
+	private static volatile String s_path = null;
+
+	/**
+	 * Recorder file of this process, mapped on the first event so the dump tool does not create one.
+	 * Null if the recorder is disabled or the file can't be mapped.
+	 */
+	private static class Output {
+		static final SharedMemory MEMORY;
+		static final int RING_COUNT;
+		static final long RING_MASK;
+		static final long RING_SIZE;
+
+		static {
+			int events = Integer.highestOneBit(Math.max(16, Integer.getInteger(EVENTS_PROPERTY, 4096)));
+			RING_COUNT = Integer.getInteger(THREADS_PROPERTY, 256);
+			RING_MASK = events - 1;
+			RING_SIZE = RING_HEADER_SIZE + (long)events * EVENT_SIZE;
+
+			SharedMemory memory = null;
+			if (ENABLED) {
+				int processId = TaskRouter.currentProcessId();
+				String path = TaskSystem.SHARED_ROOT + "/" + FILE_PREFIX + processId;
+				try {
+					new File(path).delete();
+					memory = new SharedMemory(path, SharedMemoryConfig.align(HEADER_SIZE + RING_COUNT * RING_SIZE));
+					memory.putInt(4, RING_COUNT);
+					memory.putInt(8, events);
+					memory.putInt(12, processId);
+					memory.putIntVolatile(0, MAGIC);
+					s_path = path;
+				} catch (IOException e) {
+					System.err.println("FlightRecorder, failed to map " + path + " : " + e.getMessage());
+					memory = null;
+				}
+			}
+			MEMORY = memory;
+		}
+	}
+
+	/**
+	 * Next ring never used, and rings given back by ended threads.
+	 */
+	private static final AtomicInteger s_nextRing = new AtomicInteger();
+	private static final ConcurrentLinkedQueue<Long> s_freeRings = new ConcurrentLinkedQueue<Long>();
+
+	/**
+	 * Ring of a thread, only written by its thread.
+	 */
+	private static class Ring {
+		final long m_base;
+		long m_position;
+
+		Ring(long pBase) {
+			m_base = pBase;
+		}
+	}
+
+	private static final ThreadLocal<Ring> s_ring = ThreadLocal.withInitial(FlightRecorder::claimRing);
+
+	/**
+	 * Record an event of the current thread.
+	 * @param pType Event type.
+	 * @param pTaskId Task.
+	 * @param pArgument Argument, see the event types.
+	 */
+	public static void record(int pType, int pTaskId, long pArgument) {
+		SharedMemory memory = Output.MEMORY;
+		if (memory == null) {
+			return;
+		}
+		Ring ring = s_ring.get();
+		if (ring.m_base < 0) {
+			// More threads than rings, look for a ring given back
+			ring = claimRing();
+			if (ring.m_base < 0) {
+				return;
+			}
+			s_ring.set(ring);
+		}
+
+		long position = ring.m_position++;
+		long event = ring.m_base + RING_HEADER_SIZE + (position & Output.RING_MASK) * EVENT_SIZE;
+		memory.putLong(event, System.nanoTime());
+		memory.putLong(event + 8, ((long)pType << TYPE_SHIFT) | ((long)(pTaskId & 0xFFFF) << TASK_SHIFT)
+				| (pArgument & ARG_MASK));
+		memory.putLongOrdered(ring.m_base, position + 1);
+
+		if (JFR) {
+			FlightRecorderEvents.commit(NAMES[pType], pTaskId, pArgument);
+		}
+	}
+
+	/**
+	 * @return True if the events are recorded.
+	 */
+	public static boolean isEnabled() {
+		return Output.MEMORY != null;
+	}
+
+	private static Ring claimRing() {
+		long base;
+		Long free = s_freeRings.poll();
+		if (free != null) {
+			base = free;
+			// The events of the previous thread are dropped, they would be shown with the new name
+			Output.MEMORY.putLongVolatile(base, 0);
+		} else {
+			if (s_nextRing.get() >= Output.RING_COUNT) {
+				return new Ring(-1);
+			}
+			int index = s_nextRing.getAndIncrement();
+			if (index >= Output.RING_COUNT) {
+				return new Ring(-1);
+			}
+			base = HEADER_SIZE + index * Output.RING_SIZE;
+		}
+
+		Thread thread = Thread.currentThread();
+		byte[] name = thread.getName().getBytes(StandardCharsets.UTF_8);
+		int length = Math.min(name.length, MAX_NAME_LENGTH);
+		Output.MEMORY.putLong(base + 8, thread.getId());
+		Output.MEMORY.putInt(base + 16, length);
+		Output.MEMORY.putBytes(base + NAME_OFFSET, name, 0, length);
+		return new Ring(base);
+	}
+
+	/**
+	 * Give the ring of the calling thread back, called when a task thread end.
+	 */
+	static void releaseRing() {
+		if (s_path == null) {
+			return; // Nothing recorded in this process
+		}
+		Ring ring = s_ring.get();
+		s_ring.remove();
+		if (ring.m_base >= 0) {
+			s_freeRings.add(ring.m_base);
+		}
+	}
+
+	/**
+	 * Delete the recorder file of this process, unless mpitaskframework.recorder.keep is set. The mapping
+	 * stay valid, the events recorded after are only lost. Called by TaskSystem.destroy.
+	 */
+	static void close() {
+		String path = s_path;
+		if (path != null && !Boolean.getBoolean(KEEP_PROPERTY)) {
+			new File(path).delete();
+		}
+	}
+
+	/**
+	 * Delete the recorder files of the processes that are gone. Called by the system creator, the files of
+	 * a crash must be dumped before the system is created again.
+	 */
+	static void removeStaleFiles() {
+		File[] found = new File(TaskSystem.SHARED_ROOT).listFiles((dir, name) -> name.startsWith(FILE_PREFIX));
+		if (found == null) {
+			return;
+		}
+		for (File f : found) {
+			try {
+				long processId = Long.parseLong(f.getName().substring(FILE_PREFIX.length()));
+				if (processId != TaskRouter.currentProcessId() && !ProcessHandle.of(processId).isPresent()) {
+					f.delete();
+				}
+			} catch (NumberFormatException e) {
+				// Not a recorder file
+			}
+		}
+	}
+
+	/**
+	 * One decoded event.
+	 */
+	private static class Event implements Comparable<Event> {
+		long m_timestamp;
+		long m_data;
+		int m_processId;
+		String m_thread;
+
+		@Override
+		public int compareTo(Event pOther) {
+			return Long.compare(m_timestamp, pOther.m_timestamp);
+		}
+
+		int getType() {
+			int type = (int)(m_data >>> TYPE_SHIFT);
+			return type < NAMES.length ? type : 0;
+		}
+
+		int getTaskId() {
+			return (int)((m_data >>> TASK_SHIFT) & 0xFFFF);
+		}
+
+		long getArgument() {
+			return m_data & ARG_MASK;
+		}
+	}
+
+	/**
+	 * Read the events of a recorder file. The file can be written while read, an event overwritten during
+	 * the copy can be wrong.
+	 * @param pFile Recorder file.
+	 * @param pEvents Decoded events are added here.
+	 * @return Number of events lost (overwritten) in the file.
+	 * @throws IOException
+	 */
+	private static long readFile(File pFile, List<Event> pEvents) throws IOException {
+		SharedMemory header = new SharedMemory(pFile.getPath(), HEADER_SIZE);
+		if (header.getIntVolatile(0) != MAGIC) {
+			throw new IOException("not a recorder file");
+		}
+		int ringCount = header.getInt(4);
+		int events = header.getInt(8);
+		int processId = header.getInt(12);
+		long ringSize = RING_HEADER_SIZE + (long)events * EVENT_SIZE;
+		SharedMemory memory = new SharedMemory(pFile.getPath(), SharedMemoryConfig.align(HEADER_SIZE + ringCount * ringSize));
+
+		long lost = 0;
+		for (int r = 0; r < ringCount; r++) {
+			long base = HEADER_SIZE + r * ringSize;
+			long position = memory.getLongVolatile(base);
+			if (position == 0) {
+				continue;
+			}
+			byte[] name = new byte[Math.min(memory.getInt(base + 16), MAX_NAME_LENGTH)];
+			memory.getBytes(base + NAME_OFFSET, name, 0, name.length);
+			String thread = new String(name, StandardCharsets.UTF_8) + "#" + memory.getLong(base + 8);
+
+			long first = Math.max(0, position - events);
+			lost += first;
+			for (long p = first; p < position; p++) {
+				long event = base + RING_HEADER_SIZE + (p & (events - 1)) * EVENT_SIZE;
+				Event e = new Event();
+				e.m_timestamp = memory.getLong(event);
+				e.m_data = memory.getLong(event + 8);
+				e.m_processId = processId;
+				e.m_thread = thread;
+				pEvents.add(e);
+			}
+		}
+		return lost;
+	}
+
+	/**
+	 * Dump tool. Print the events of the recorder files, all processes merged in time order.
+	 *
+	 * Usage : FlightRecorder [-task id] [-last n] [-parked microseconds] [files]
+	 * Without file, all the recorder files of the shared root are read. -parked only print the wakeups
+	 * after a longer park, and the events of the same task just before them.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int task = -1;
+		int last = Integer.MAX_VALUE;
+		long parked = -1;
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-task") && i + 1 < args.length) {
+				task = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-last") && i + 1 < args.length) {
+				last = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-parked") && i + 1 < args.length) {
+				parked = Long.parseLong(args[++i]) * 1000;
+			} else {
+				files.add(new File(args[i]));
+			}
+		}
+		if (files.isEmpty()) {
+			File[] found = new File(TaskSystem.SHARED_ROOT).listFiles((dir, name) -> name.startsWith(FILE_PREFIX));
+			if (found != null) {
+				Collections.addAll(files, found);
+			}
+		}
+		if (files.isEmpty()) {
+			System.err.println("FlightRecorder, no recorder file in " + TaskSystem.SHARED_ROOT);
+			System.exit(-1);
+		}
+
+		List<Event> events = new ArrayList<Event>();
+		for (File f : files) {
+			try {
+				long lost = readFile(f, events);
+				System.out.println(f.getPath() + (lost > 0 ? " (" + lost + " older events overwritten)" : ""));
+			} catch (IOException e) {
+				System.err.println("FlightRecorder, failed to read " + f.getPath() + " : " + e.getMessage());
+			}
+		}
+		Collections.sort(events);
+
+		// Filter
+		boolean[] keep = new boolean[events.size()];
+		for (int i = 0; i < events.size(); i++) {
+			Event e = events.get(i);
+			if (task >= 0 && e.getTaskId() != task) {
+				continue;
+			}
+			if (parked >= 0) {
+				if (e.getType() != WAKEUP || e.getArgument() < parked) {
+					continue;
+				}
+				// Context : what the task did before parking
+				for (int j = Math.max(0, i - 8); j < i; j++) {
+					keep[j] |= events.get(j).getTaskId() == e.getTaskId();
+				}
+			}
+			keep[i] = true;
+		}
+		List<Event> selected = new ArrayList<Event>();
+		for (int i = 0; i < events.size(); i++) {
+			if (keep[i]) {
+				selected.add(events.get(i));
+			}
+		}
+
+		if (selected.isEmpty()) {
+			System.out.println("No event");
+			return;
+		}
+		selected = selected.subList(Math.max(0, selected.size() - last), selected.size());
+		long origin = selected.get(0).m_timestamp;
+		System.out.format("%-14s %-8s %-24s %-10s %-6s %s%n", "time(us)", "pid", "thread", "event", "task", "argument");
+		for (Event e : selected) {
+			String argument = e.getType() == WAKEUP ? "parked " + (e.getArgument() / 1000) + " us"
+					: e.getType() == PARK ? "" : "type " + e.getArgument();
+			System.out.format("%-14.3f %-8d %-24s %-10s %-6d %s%n", (e.m_timestamp - origin) / 1000.0, e.m_processId,
+					e.m_thread, NAMES[e.getType()], e.getTaskId(), argument);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package com.mpitaskframework.TaskSystem;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR events of the FlightRecorder, kept in their own class so jdk.jfr is only loaded when the JFR
+ * output is enabled (mpitaskframework.recorder.jfr).
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+class FlightRecorderEvents {
+
+	/**
+	 * One messaging event.
+	 */
+	@Name("com.mpitaskframework.TaskEvent")
+	@Label("Task Event")
+	@Category("MpiTaskFramework")
+	@StackTrace(false)
+	static class TaskEvent extends Event {
+
+		@Label("Type")
+		String type;
+
+		@Label("Task Id")
+		int taskId;
+
+		@Label("Argument")
+		long argument;
+	}
+
+	/**
+	 * Commit an event if the JFR recording want it.
+	 * @param pType Event name.
+	 * @param pTaskId Task.
+	 * @param pArgument Argument, see FlightRecorder.
+	 */
+	static void commit(String pType, int pTaskId, long pArgument) {
+		TaskEvent event = new TaskEvent();
+		if (event.isEnabled()) {
+			event.type = pType;
+			event.taskId = pTaskId;
+			event.argument = pArgument;
+			event.commit();
+		}
+	}
+}
@@ -0,0 +1,570 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mpitaskframework.TaskSystem.Messages.IODataMessage;
+import com.mpitaskframework.TaskSystem.Messages.IOMessage;
+
+/**
+ * Sockets and files as message streams, driven by one Selector thread. Each channel has an owner task :
+ * the service send it the events (IOMessage) and the completed reads (IODataMessage, the tag is the
+ * channel id). To write, a task send an IODataMessage to the service id, or use IOTask. A task is never
+ * blocked on a socket, it wait on its mailbox only, so thousands of connections are served by the task
+ * threads and this one.
+ *
+ * A file opened with readFile is read by chunks and sent like a socket, with CLOSED at the end. A file
+ * opened with writeFile is written by the write requests. The service and its channels are local to the
+ * process, the write requests of another process are read on the next poll (see POLL_PROPERTY).
+ *
+ * The reads are paused while the owner is behind : when more than READ_LIMIT_PROPERTY records sent by the
+ * service wait in its mailbox, its sockets stop reading (the peers are held by TCP) and its files stop
+ * being read, until half of them are read. The backlog is counted with the shared received count, an
+ * owner in another system (socket transport) is not paced.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class IOService implements Runnable {
+
+	/**
+	 * Longest select in milliseconds (default 10). Write requests of this process wake the selector up.
+	 */
+	public static final String POLL_PROPERTY = "mpitaskframework.ioPoll";
+
+	/**
+	 * Bytes read at once on a channel (default 65536).
+	 */
+	public static final String READ_SIZE_PROPERTY = "mpitaskframework.ioReadSize";
+
+	/**
+	 * Records sent by the service and not read yet by an owner above which its reads pause (default 4096).
+	 */
+	public static final String READ_LIMIT_PROPERTY = "mpitaskframework.ioReadLimit";
+
+	/**
+	 * Largest channel id, the ids are sent on 24 bits.
+	 */
+	public static final int MAX_CHANNEL_ID = (1 << 24) - 1;
+
+	/**
+	 * A channel and its owner.
+	 */
+	private static class Connection {
+		final int m_id;
+		final int m_owner;
+		final Channel m_channel;
+		final ArrayDeque<ByteBuffer> m_pending = new ArrayDeque<ByteBuffer>();
+		final boolean m_fileReader;
+		SelectionKey m_key;
+		boolean m_closing;
+		boolean m_paused;
+
+		Connection(int pId, int pOwner, Channel pChannel, boolean pFileReader) {
+			m_id = pId;
+			m_owner = pOwner;
+			m_channel = pChannel;
+			m_fileReader = pFileReader;
+		}
+	}
+
+	private final int m_serviceId;
+	private final Selector m_selector;
+	private final long m_pollMillis;
+	private final ByteBuffer m_readBuffer;
+	private final long m_readLimit;
+
+	/**
+	 * Records sent to each owner, and the received count of the owner when the count started. Only used
+	 * by the service thread.
+	 */
+	private final long[] m_ownerSent = new long[TaskSystem.MAX_TASK_COUNT];
+	private final long[] m_ownerBase = new long[TaskSystem.MAX_TASK_COUNT];
+
+	/**
+	 * Every open channel. Registered with the selector by the service thread.
+	 */
+	private final ConcurrentHashMap<Integer, Connection> m_connections = new ConcurrentHashMap<Integer, Connection>();
+	private final ConcurrentLinkedQueue<Connection> m_registering = new ConcurrentLinkedQueue<Connection>();
+
+	/**
+	 * Files being read. Only used by the service thread.
+	 */
+	private final List<Connection> m_fileReaders = new ArrayList<Connection>();
+
+	/**
+	 * Channels not read until their owner catch up. Only used by the service thread.
+	 */
+	private final List<Connection> m_paused = new ArrayList<Connection>();
+
+	private final AtomicInteger m_nextChannel = new AtomicInteger(0);
+	private volatile boolean m_shutdown;
+	private final Thread m_thread;
+
+	/**
+	 * Create the service queue and start its thread. Use TaskSystem.getIOService.
+	 * @throws IOException
+	 */
+	IOService() throws IOException {
+		TaskSystem system = TaskSystem.getInstance();
+		m_serviceId = system.getNextTaskId();
+		system.createMessageQueue(m_serviceId);
+
+		m_selector = Selector.open();
+		m_pollMillis = Math.max(1, Long.getLong(POLL_PROPERTY, 10L));
+		m_readBuffer = ByteBuffer.allocateDirect(Integer.getInteger(READ_SIZE_PROPERTY, 65536));
+		m_readLimit = Math.max(1, Long.getLong(READ_LIMIT_PROPERTY, 4096L));
+		m_shutdown = false;
+
+		m_thread = new Thread(this, "IOService");
+		m_thread.setDaemon(true);
+		m_thread.start();
+	}
+
+	/**
+	 * @return Id to send the write and close requests to.
+	 */
+	public int getServiceId() {
+		return m_serviceId;
+	}
+
+	/**
+	 * Listen on an address. Each accepted connection is a new channel owned by the same task, announced
+	 * with ACCEPTED.
+	 * @param pAddress Address, port 0 for any port (see getLocalAddress).
+	 * @param pOwner Owner task.
+	 * @return Channel id, or -1 if the address can't be bound.
+	 */
+	public int listen(InetSocketAddress pAddress, int pOwner) {
+		try {
+			ServerSocketChannel server = ServerSocketChannel.open();
+			server.configureBlocking(false);
+			server.bind(pAddress);
+			return register(pOwner, server, false);
+		} catch (IOException e) {
+			System.err.println("IOService, failed to listen on " + pAddress + " : " + e.getMessage());
+			return -1;
+		}
+	}
+
+	/**
+	 * Connect to an address. CONNECTED is sent when done, or ERROR and CLOSED.
+	 * @param pAddress Address.
+	 * @param pOwner Owner task.
+	 * @return Channel id, or -1 if the socket can't be opened.
+	 */
+	public int connect(InetSocketAddress pAddress, int pOwner) {
+		try {
+			SocketChannel socket = SocketChannel.open();
+			socket.configureBlocking(false);
+			socket.connect(pAddress);
+			return register(pOwner, socket, false);
+		} catch (IOException e) {
+			System.err.println("IOService, failed to connect to " + pAddress + " : " + e.getMessage());
+			return -1;
+		}
+	}
+
+	/**
+	 * Stream a file to a task, by chunks of the read size, then CLOSED.
+	 * @param pPath File.
+	 * @param pOwner Owner task.
+	 * @return Channel id, or -1 if the file can't be opened.
+	 */
+	public int readFile(Path pPath, int pOwner) {
+		try {
+			return register(pOwner, FileChannel.open(pPath, StandardOpenOption.READ), true);
+		} catch (IOException e) {
+			System.err.println("IOService, failed to open " + pPath + " : " + e.getMessage());
+			return -1;
+		}
+	}
+
+	/**
+	 * Create a file written by the write requests of the channel.
+	 * @param pPath File, truncated if it exists.
+	 * @param pOwner Owner task.
+	 * @return Channel id, or -1 if the file can't be created.
+	 */
+	public int writeFile(Path pPath, int pOwner) {
+		try {
+			return register(pOwner, FileChannel.open(pPath, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING), false);
+		} catch (IOException e) {
+			System.err.println("IOService, failed to create " + pPath + " : " + e.getMessage());
+			return -1;
+		}
+	}
+
+	/**
+	 * @param pChannel Channel id.
+	 * @return Local address of a socket, null for a file or a closed channel.
+	 */
+	public SocketAddress getLocalAddress(int pChannel) {
+		Connection c = m_connections.get(pChannel);
+		try {
+			if (c != null && c.m_channel instanceof ServerSocketChannel) {
+				return ((ServerSocketChannel)c.m_channel).getLocalAddress();
+			}
+			if (c != null && c.m_channel instanceof SocketChannel) {
+				return ((SocketChannel)c.m_channel).getLocalAddress();
+			}
+		} catch (IOException e) {
+			System.err.println("IOService, no address for channel " + pChannel + " : " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * @return Number of open channels.
+	 */
+	public int getChannelCount() {
+		return m_connections.size();
+	}
+
+	/**
+	 * Wake the service thread up, after a write request sent from this process.
+	 */
+	public void wakeup() {
+		m_selector.wakeup();
+	}
+
+	/**
+	 * Stop the service thread and close every channel.
+	 */
+	public void shutdown() {
+		m_shutdown = true;
+		m_selector.wakeup();
+		try {
+			m_thread.join();
+		} catch (InterruptedException e) {
+			System.err.println("IOService failed to join");
+			e.printStackTrace();
+		}
+		for (Connection c : m_connections.values()) {
+			closeQuietly(c);
+		}
+		m_connections.clear();
+		try {
+			m_selector.close();
+		} catch (IOException e) {
+			System.err.println("IOService, failed to close the selector : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Service loop.
+	 */
+	@Override
+	public void run() {
+		TaskSystem system = TaskSystem.getInstance();
+		while (!m_shutdown) {
+			try {
+				if (m_fileReaders.isEmpty()) {
+					m_selector.select(m_pollMillis);
+				} else {
+					m_selector.selectNow();
+				}
+			} catch (IOException e) {
+				System.err.println("IOService, select failed : " + e.getMessage());
+				break;
+			}
+
+			Connection registering;
+			while ((registering = m_registering.poll()) != null) {
+				attach(registering);
+			}
+
+			Iterator<SelectionKey> keys = m_selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (key.isValid()) {
+					ready(system, (Connection)key.attachment(), key);
+				}
+			}
+
+			// Write and close requests
+			Message msg;
+			while ((msg = system.receive(m_serviceId)) != null) {
+				request(system, msg);
+			}
+
+			// One chunk of each file, so a large file does not hold the sockets
+			for (int i = m_fileReaders.size() - 1; i >= 0; i--) {
+				readChunk(system, m_fileReaders.get(i));
+			}
+			
+			resume(system);
+		}
+	}
+
+	/**
+	 * Add a channel, the service thread register it with the selector.
+	 */
+	private int register(int pOwner, Channel pChannel, boolean pFileReader) throws IOException {
+		int id = m_nextChannel.incrementAndGet();
+		if (id > MAX_CHANNEL_ID) {
+			pChannel.close();
+			throw new IOException("No channel id left");
+		}
+		Connection c = new Connection(id, pOwner, pChannel, pFileReader);
+		m_connections.put(id, c);
+		m_registering.add(c);
+		m_selector.wakeup();
+		return id;
+	}
+
+	/**
+	 * Register a new channel with the selector. Service thread only.
+	 */
+	private void attach(Connection pConnection) {
+		try {
+			if (pConnection.m_channel instanceof ServerSocketChannel) {
+				pConnection.m_key = ((ServerSocketChannel)pConnection.m_channel).register(m_selector, SelectionKey.OP_ACCEPT, pConnection);
+			} else if (pConnection.m_channel instanceof SocketChannel) {
+				SocketChannel socket = (SocketChannel)pConnection.m_channel;
+				int ops = socket.isConnectionPending() ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ;
+				pConnection.m_key = socket.register(m_selector, ops, pConnection);
+				if (socket.isConnected()) {
+					TaskSystem.getInstance().send(new IOMessage(IOMessage.CONNECTED, pConnection.m_id, 0), pConnection.m_owner);
+				}
+			} else if (pConnection.m_fileReader) {
+				m_fileReaders.add(pConnection);
+			}
+		} catch (IOException e) {
+			failed(TaskSystem.getInstance(), pConnection, e);
+		}
+	}
+
+	/**
+	 * Handle the readiness of a socket.
+	 */
+	private void ready(TaskSystem pSystem, Connection pConnection, SelectionKey pKey) {
+		try {
+			if (pKey.isAcceptable()) {
+				SocketChannel socket;
+				while ((socket = ((ServerSocketChannel)pConnection.m_channel).accept()) != null) {
+					socket.configureBlocking(false);
+					socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					int id = m_nextChannel.incrementAndGet();
+					if (id > MAX_CHANNEL_ID) {
+						System.err.println("IOService, no channel id left, connection refused on channel " + pConnection.m_id);
+						socket.close();
+						continue;
+					}
+					Connection accepted = new Connection(id, pConnection.m_owner, socket, false);
+					accepted.m_key = socket.register(m_selector, SelectionKey.OP_READ, accepted);
+					m_connections.put(id, accepted);
+					pSystem.send(new IOMessage(IOMessage.ACCEPTED, id, pConnection.m_id), pConnection.m_owner);
+				}
+				return;
+			}
+
+			SocketChannel socket = (SocketChannel)pConnection.m_channel;
+			if (pKey.isConnectable()) {
+				socket.finishConnect();
+				socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				updateInterest(pConnection);
+				pSystem.send(new IOMessage(IOMessage.CONNECTED, pConnection.m_id, 0), pConnection.m_owner);
+			}
+			if (pKey.isValid() && pKey.isReadable()) {
+				m_readBuffer.clear();
+				int read = socket.read(m_readBuffer);
+				if (read < 0) {
+					close(pSystem, pConnection);
+					return;
+				}
+				sendRead(pSystem, pConnection);
+			}
+			if (pKey.isValid() && pKey.isWritable()) {
+				flush(pSystem, pConnection);
+			}
+		} catch (IOException e) {
+			failed(pSystem, pConnection, e);
+		}
+	}
+
+	/**
+	 * Handle a request sent to the service.
+	 */
+	private void request(TaskSystem pSystem, Message pMsg) {
+		if (pMsg instanceof IODataMessage) {
+			Connection c = m_connections.get(pMsg.getTag());
+			if (c == null || c.m_closing || c.m_fileReader || c.m_channel instanceof ServerSocketChannel) {
+				System.err.println("IOService, can't write on channel " + pMsg.getTag());
+				return;
+			}
+			c.m_pending.add(((IODataMessage)pMsg).getValues());
+			flush(pSystem, c);
+		} else if (pMsg instanceof IOMessage && pMsg.getTag() == IOMessage.CLOSE) {
+			Connection c = m_connections.get(((IOMessage)pMsg).channel);
+			if (c != null) {
+				c.m_closing = true;
+				if (c.m_pending.isEmpty()) {
+					close(pSystem, c);
+				}
+			}
+		} else {
+			System.err.println("IOService, unsupported request " + pMsg.getClass().getName());
+		}
+	}
+
+	/**
+	 * Write the pending requests of a channel, as much as the socket take.
+	 */
+	private void flush(TaskSystem pSystem, Connection pConnection) {
+		try {
+			while (!pConnection.m_pending.isEmpty()) {
+				ByteBuffer data = pConnection.m_pending.peek();
+				if (pConnection.m_channel instanceof FileChannel) {
+					while (data.hasRemaining()) {
+						((FileChannel)pConnection.m_channel).write(data);
+					}
+				} else {
+					((SocketChannel)pConnection.m_channel).write(data);
+					if (data.hasRemaining()) {
+						break; // Socket buffer full, wait for OP_WRITE
+					}
+				}
+				pConnection.m_pending.poll();
+			}
+			if (pConnection.m_closing && pConnection.m_pending.isEmpty()) {
+				close(pSystem, pConnection);
+			} else {
+				updateInterest(pConnection);
+			}
+		} catch (IOException e) {
+			failed(pSystem, pConnection, e);
+		}
+	}
+
+	/**
+	 * Read the next chunk of a file.
+	 */
+	private void readChunk(TaskSystem pSystem, Connection pConnection) {
+		try {
+			m_readBuffer.clear();
+			if (((FileChannel)pConnection.m_channel).read(m_readBuffer) < 0) {
+				close(pSystem, pConnection);
+				return;
+			}
+			sendRead(pSystem, pConnection);
+		} catch (IOException e) {
+			failed(pSystem, pConnection, e);
+		}
+	}
+
+	/**
+	 * Send the bytes of the read buffer to the owner, and pause the channel if the owner is behind.
+	 */
+	private void sendRead(TaskSystem pSystem, Connection pConnection) {
+		m_readBuffer.flip();
+		if (m_readBuffer.hasRemaining()) {
+			byte[] data = new byte[m_readBuffer.remaining()];
+			m_readBuffer.get(data);
+			int owner = pConnection.m_owner;
+			long sent = pSystem.getSentCount(owner);
+			pSystem.send(new IODataMessage(pConnection.m_id, data, 0, data.length), owner);
+			m_ownerSent[owner] += pSystem.getSentCount(owner) - sent; // Records written in this system
+			
+			if (getBacklog(pSystem, owner) > m_readLimit) {
+				pConnection.m_paused = true;
+				m_paused.add(pConnection);
+				m_fileReaders.remove(pConnection);
+				updateInterest(pConnection);
+			}
+		}
+	}
+
+	/**
+	 * Read again the paused channels of the owners that read half of their backlog.
+	 */
+	private void resume(TaskSystem pSystem) {
+		for (int i = m_paused.size() - 1; i >= 0; i--) {
+			Connection c = m_paused.get(i);
+			if (getBacklog(pSystem, c.m_owner) <= m_readLimit / 2) {
+				m_paused.remove(i);
+				c.m_paused = false;
+				if (c.m_fileReader) {
+					m_fileReaders.add(c);
+				} else {
+					updateInterest(c);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records sent by the service still in the mailbox of an owner. Other senders read by the owner make
+	 * it look smaller, never larger, so a paused channel always resume once the owner is idle.
+	 * @param pSystem
+	 * @param pOwner
+	 * @return Backlog, 0 when the owner read everything.
+	 */
+	private long getBacklog(TaskSystem pSystem, int pOwner) {
+		long received = pSystem.getReceivedCount(pOwner);
+		long backlog = m_ownerSent[pOwner] - (received - m_ownerBase[pOwner]);
+		if (backlog <= 0 || received < m_ownerBase[pOwner]) {
+			// Caught up, or the mailbox of the owner was created again : count from now
+			m_ownerSent[pOwner] = 0;
+			m_ownerBase[pOwner] = received;
+			return 0;
+		}
+		return backlog;
+	}
+
+	private void updateInterest(Connection pConnection) {
+		if (pConnection.m_key != null && pConnection.m_key.isValid()) {
+			pConnection.m_key.interestOps((pConnection.m_paused ? 0 : SelectionKey.OP_READ)
+					| (pConnection.m_pending.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+		}
+	}
+
+	private void failed(TaskSystem pSystem, Connection pConnection, IOException pError) {
+		System.err.println("IOService, error on channel " + pConnection.m_id + " : " + pError.getMessage());
+		pSystem.send(new IOMessage(IOMessage.ERROR, pConnection.m_id, 0), pConnection.m_owner);
+		close(pSystem, pConnection);
+	}
+
+	/**
+	 * Close a channel and send CLOSED to its owner.
+	 */
+	private void close(TaskSystem pSystem, Connection pConnection) {
+		if (m_connections.remove(pConnection.m_id) == null) {
+			return;
+		}
+		m_fileReaders.remove(pConnection);
+		m_paused.remove(pConnection);
+		closeQuietly(pConnection);
+		pSystem.send(new IOMessage(IOMessage.CLOSED, pConnection.m_id, 0), pConnection.m_owner);
+	}
+
+	private static void closeQuietly(Connection pConnection) {
+		if (pConnection.m_key != null) {
+			pConnection.m_key.cancel();
+		}
+		try {
+			pConnection.m_channel.close();
+		} catch (IOException e) {
+			System.err.println("IOService, failed to close channel " + pConnection.m_id + " : " + e.getMessage());
+		}
+	}
+}
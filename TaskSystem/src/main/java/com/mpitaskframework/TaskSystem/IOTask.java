@@ -0,0 +1,154 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import com.mpitaskframework.TaskSystem.Messages.IODataMessage;
+import com.mpitaskframework.TaskSystem.Messages.IOMessage;
+
+/**
+ * A task serving channels of the IOService. The events and the reads of its channels are received like
+ * any message and dispatched to the on* methods, the other messages go to onMessage. The task wait on
+ * its mailbox only, one task can serve many connections.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public abstract class IOTask extends Task {
+
+	private volatile boolean m_stopped = false;
+
+	@Override
+	public void start() {
+		while (!m_stopped) {
+			receive();
+		}
+	}
+
+	@Override
+	public void receive() {
+		Message msg = this.getNextMessage();
+
+		if (msg instanceof IODataMessage) {
+			onData(msg.getTag(), ((IODataMessage)msg).getValues());
+		} else if (msg instanceof IOMessage) {
+			IOMessage event = (IOMessage)msg;
+			switch (event.getTag()) {
+			case IOMessage.ACCEPTED:
+				onAccept(event.channel, event.value);
+				break;
+			case IOMessage.CONNECTED:
+				onConnect(event.channel);
+				break;
+			case IOMessage.ERROR:
+				onError(event.channel);
+				break;
+			case IOMessage.CLOSED:
+				onClose(event.channel);
+				break;
+			default:
+				System.out.println("Received unsuported IO event " + event.getTag());
+				break;
+			}
+		} else {
+			onMessage(msg);
+		}
+	}
+
+	/**
+	 * End the receive loop after the current message.
+	 */
+	protected void stop() {
+		m_stopped = true;
+	}
+
+	/**
+	 * Bytes read on a channel.
+	 * @param pChannel Channel id.
+	 * @param pData Read-only bytes.
+	 */
+	protected abstract void onData(int pChannel, ByteBuffer pData);
+
+	/**
+	 * New connection on a listening channel, owned by this task.
+	 * @param pChannel New channel.
+	 * @param pListener Listening channel.
+	 */
+	protected void onAccept(int pChannel, int pListener) { }
+
+	/**
+	 * Connection done.
+	 * @param pChannel Channel id.
+	 */
+	protected void onConnect(int pChannel) { }
+
+	/**
+	 * Error on a channel, onClose follow.
+	 * @param pChannel Channel id.
+	 */
+	protected void onError(int pChannel) { }
+
+	/**
+	 * Last event of a channel.
+	 * @param pChannel Channel id.
+	 */
+	protected void onClose(int pChannel) { }
+
+	/**
+	 * Any other message.
+	 * @param pMsg Message.
+	 */
+	protected void onMessage(Message pMsg) {
+		System.out.println("Received unsuported message");
+	}
+
+	protected int listen(InetSocketAddress pAddress) {
+		return TaskSystem.getInstance().getIOService().listen(pAddress, getTaskId());
+	}
+
+	protected int connect(InetSocketAddress pAddress) {
+		return TaskSystem.getInstance().getIOService().connect(pAddress, getTaskId());
+	}
+
+	protected int readFile(Path pPath) {
+		return TaskSystem.getInstance().getIOService().readFile(pPath, getTaskId());
+	}
+
+	protected int writeFile(Path pPath) {
+		return TaskSystem.getInstance().getIOService().writeFile(pPath, getTaskId());
+	}
+
+	/**
+	 * Write bytes on a channel. The array must not be modified until the call return.
+	 * @param pChannel Channel id.
+	 * @param pData Bytes.
+	 * @param pOffset First byte.
+	 * @param pLength Number of bytes.
+	 */
+	protected void write(int pChannel, byte[] pData, int pOffset, int pLength) {
+		IOService service = TaskSystem.getInstance().getIOService();
+		send(new IODataMessage(pChannel, pData, pOffset, pLength), service.getServiceId());
+		service.wakeup();
+	}
+
+	/**
+	 * Write the remaining bytes of a buffer on a channel.
+	 * @param pChannel Channel id.
+	 * @param pData Bytes, consumed.
+	 */
+	protected void write(int pChannel, ByteBuffer pData) {
+		byte[] data = new byte[pData.remaining()];
+		pData.get(data);
+		write(pChannel, data, 0, data.length);
+	}
+
+	/**
+	 * Close a channel once its pending writes are done.
+	 * @param pChannel Channel id.
+	 */
+	protected void close(int pChannel) {
+		IOService service = TaskSystem.getInstance().getIOService();
+		send(new IOMessage(IOMessage.CLOSE, pChannel, 0), service.getServiceId());
+		service.wakeup();
+	}
+}
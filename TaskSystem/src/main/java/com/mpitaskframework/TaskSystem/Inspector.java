@@ -0,0 +1,164 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Top-like view of a running system, from another process. The shared files are mapped read-only and
+ * nothing is locked, so the inspected processes are not disturbed.
+ *
+ * For each task : write position of the queue (the MappedBus limit), messages written in all the
+ * lanes, messages received (published by the receiving process in TS_COUNTERS), backlog and receive
+ * rate, and the named cursors of the queue (see MailboxCursor). Written is computed from the queue
+ * positions, so it is only exact for messages of one record.
+ *
+ * Usage : Inspector [-interval ms] [-count n] [task ids]
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class Inspector {
+
+	/**
+	 * Main.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		long interval = 1000;
+		long count = Long.MAX_VALUE;
+		List<Integer> tasks = new ArrayList<Integer>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-interval") && i + 1 < args.length) {
+				interval = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-count") && i + 1 < args.length) {
+				count = Long.parseLong(args[++i]);
+			} else {
+				tasks.add(Integer.parseInt(args[i]));
+			}
+		}
+
+		ByteBuffer system = map(TaskSystem.SYSTEM_SHARED_PATH, 64);
+		if (system == null) {
+			System.err.println("Inspector, no system in " + TaskSystem.SHARED_ROOT);
+			System.exit(-1);
+		}
+		system.order(ByteOrder.BIG_ENDIAN); // Written with the ByteBuffer default order, see SharedSystemData
+		ByteBuffer counters = map(TaskSystem.COUNTERS_SHARED_PATH, (long)TaskSystem.MAX_TASK_COUNT * TaskSystem.COUNTERS_ENTRY_SIZE);
+		ByteBuffer routes = map(TaskSystem.ROUTES_SHARED_PATH, (long)TaskSystem.MAX_TASK_COUNT * 64);
+		ByteBuffer arena = map(TaskSystem.ARENA_SHARED_PATH, Integer.MAX_VALUE);
+
+		long[] lastReceived = new long[TaskSystem.MAX_TASK_COUNT];
+		long lastTime = 0;
+		boolean console = System.console() != null;
+
+		for (long n = 0; n < count; n++) {
+			long now = System.nanoTime();
+			double elapsed = lastTime == 0 ? 0 : (now - lastTime) / 1e9;
+			lastTime = now;
+
+			long queueSize = system.getLong(SharedSystemData.QUEUE_SIZE_OFFSET);
+			int recordSize = system.getInt(SharedSystemData.RECORD_SIZE_OFFSET);
+
+			StringBuilder sb = new StringBuilder();
+			if (console && count > 1) {
+				sb.append("\033[H\033[2J"); // Clear the terminal
+			}
+			sb.append(String.format("System : next task id=%d shutdown=%b queue size=%d record size=%d ranks=%d attached=%d%n",
+					system.getInt(SharedSystemData.NEXT_TASK_ID_OFFSET), system.getInt(SharedSystemData.SHUTDOWN_OFFSET) == 1,
+					queueSize, recordSize, system.getInt(SharedSystemData.RANK_COUNT_OFFSET),
+					system.getInt(SharedSystemData.ATTACHED_OFFSET)));
+			sb.append(String.format("%-6s %-7s %-12s %-6s %-12s %-12s %-10s %s%n", "task", "epoch", "write pos", "fill",
+					"written", "received", "backlog", "rate(msg/s)"));
+
+			for (int id = 1; id < TaskSystem.MAX_TASK_COUNT; id++) {
+				if (!tasks.isEmpty() && !tasks.contains(id)) {
+					continue;
+				}
+				long route = routes == null ? 0 : routes.getLong(id * 64);
+				int epoch = TaskRouter.getEpoch(route);
+
+				// Positions of the lanes, the NORMAL lane is the one shown
+				long written = 0;
+				long writePos = -1;
+				long[] laneWritten = new long[MessagePriority.values().length];
+				for (MessagePriority priority : MessagePriority.values()) {
+					ByteBuffer queue = map(TaskSystem.getLanePath(id, priority, epoch), SharedMemoryConfig.MAPPEDBUS_DATA_OFFSET);
+					if (queue == null) {
+						continue;
+					}
+					long limit = queue.capacity() < SharedMemoryConfig.MAPPEDBUS_DATA_OFFSET ? 0 : queue.getLong(0);
+					limit = Math.max(limit, SharedMemoryConfig.MAPPEDBUS_DATA_OFFSET);
+					laneWritten[priority.ordinal()] = SharedMemoryConfig.getRecordCount(limit, recordSize);
+					written += laneWritten[priority.ordinal()];
+					if (priority == MessagePriority.NORMAL) {
+						writePos = limit;
+					}
+				}
+				long block = arena == null ? 0 : arena.getLong((int)(MailboxArena.DIRECTORY_OFFSET + id * 8L));
+				if (block != 0) {
+					// Mailbox in the arena, the limits are offsets in each log
+					long logSize = arena.getLong(MailboxArena.LOG_SIZE_OFFSET);
+					int slotSize = arena.getInt(MailboxArena.SLOT_SIZE_OFFSET);
+					for (MessagePriority priority : MessagePriority.values()) {
+						long limit = Math.min(logSize, arena.getLong((int)MailboxArena.controlBase(block, priority.ordinal(), logSize)));
+						laneWritten[priority.ordinal()] = limit / slotSize;
+						written += laneWritten[priority.ordinal()];
+						if (priority == MessagePriority.NORMAL) {
+							writePos = limit;
+						}
+					}
+				}
+				if (writePos < 0) {
+					continue; // No task
+				}
+
+				long received = counters == null ? 0 : counters.getLong(id * TaskSystem.COUNTERS_ENTRY_SIZE);
+				long rate = elapsed > 0 ? (long)(Math.max(0, received - lastReceived[id]) / elapsed) : 0;
+				lastReceived[id] = received;
+				sb.append(String.format("%-6d %-7s %-12d %-6s %-12d %-12d %-10d %d%n", id, route == 0 ? "-" : Integer.toString(epoch),
+						writePos, (queueSize > 0 ? 100 * writePos / queueSize : 0) + "%", written, received,
+						Math.max(0, written - received), rate));
+				
+				ByteBuffer cursors = map(TaskSystem.getCursorsPath(id), (long)MailboxCursor.MAX_CURSORS * MailboxCursor.ENTRY_SIZE);
+				if (cursors != null) {
+					sb.append(MailboxCursor.describe(cursors, laneWritten));
+				}
+			}
+			System.out.print(sb);
+
+			if (n + 1 < count) {
+				try {
+					Thread.sleep(interval);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Map the start of a shared file read-only, in the native order used by the Unsafe writers.
+	 * @param pPath
+	 * @param pSize Mapped size, reduced to the file size.
+	 * @return The mapping, or null if the file does not exist.
+	 */
+	private static ByteBuffer map(String pPath, long pSize) {
+		File f = new File(pPath);
+		if (!f.exists()) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, Math.min(pSize, channel.size()));
+			return buffer.order(ByteOrder.nativeOrder());
+		} catch (IOException e) {
+			return null; // Deleted meanwhile
+		}
+	}
+}
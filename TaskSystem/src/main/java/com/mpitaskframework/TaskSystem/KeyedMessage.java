@@ -0,0 +1,15 @@
+package com.mpitaskframework.TaskSystem;
+
+/**
+ * Message carrying a conflation key. Sent to a conflating mailbox, a keyed message replace the unread
+ * message with the same key (see ConflatingMailbox). Sent to a regular mailbox, it is queued as usual.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public interface KeyedMessage {
+
+	/**
+	 * @return Conflation key, ex : the instrument id of a market data update.
+	 */
+	long getConflationKey();
+}
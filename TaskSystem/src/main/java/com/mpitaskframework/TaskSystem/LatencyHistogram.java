@@ -0,0 +1,139 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of latencies in nanoseconds, with a bounded relative error. Values below 128 have their own
+ * bucket, above each power of 2 is split in 64 buckets : a recorded value is reported within 1.6% of its
+ * real value, from 1 ns to the largest long, with 3776 counters.
+ *
+ * Not thread safe, each recording thread keep its own histogram and the histograms are added at the end.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 6;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int LINEAR_COUNT = SUB_COUNT * 2;
+	private static final int BUCKET_COUNT = LINEAR_COUNT + (63 - SUB_BITS) * SUB_COUNT;
+
+	private final long[] m_counts = new long[BUCKET_COUNT];
+	private long m_total;
+	private long m_sum;
+	private long m_min = Long.MAX_VALUE;
+	private long m_max;
+
+	/**
+	 * Record a value.
+	 * @param pValue Value, a negative value is recorded as 0.
+	 */
+	public void record(long pValue) {
+		long value = Math.max(0, pValue);
+		m_counts[index(value)]++;
+		m_total++;
+		m_sum += value;
+		m_min = Math.min(m_min, value);
+		m_max = Math.max(m_max, value);
+	}
+
+	/**
+	 * Add the values of another histogram.
+	 * @param pOther
+	 */
+	public void add(LatencyHistogram pOther) {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			m_counts[i] += pOther.m_counts[i];
+		}
+		m_total += pOther.m_total;
+		m_sum += pOther.m_sum;
+		m_min = Math.min(m_min, pOther.m_min);
+		m_max = Math.max(m_max, pOther.m_max);
+	}
+
+	/**
+	 * Forget every value.
+	 */
+	public void reset() {
+		Arrays.fill(m_counts, 0);
+		m_total = 0;
+		m_sum = 0;
+		m_min = Long.MAX_VALUE;
+		m_max = 0;
+	}
+
+	/**
+	 * @return Number of values.
+	 */
+	public long getCount() {
+		return m_total;
+	}
+
+	/**
+	 * @return Smallest value, 0 when empty.
+	 */
+	public long getMin() {
+		return m_total == 0 ? 0 : m_min;
+	}
+
+	/**
+	 * @return Largest value.
+	 */
+	public long getMax() {
+		return m_max;
+	}
+
+	/**
+	 * @return Mean value, 0 when empty.
+	 */
+	public double getMean() {
+		return m_total == 0 ? 0 : (double)m_sum / m_total;
+	}
+
+	/**
+	 * Value under which a percentage of the values are.
+	 * @param pPercentile Percentile, from 0 to 100.
+	 * @return Highest value of the bucket holding the percentile, never more than the max. 0 when empty.
+	 */
+	public long getValueAtPercentile(double pPercentile) {
+		if (m_total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long)Math.ceil(Math.min(100, pPercentile) / 100 * m_total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += m_counts[i];
+			if (seen >= rank) {
+				return Math.min(m_max, highestValue(i));
+			}
+		}
+		return m_max;
+	}
+
+	/**
+	 * @param pValue Positive value.
+	 * @return Bucket of the value.
+	 */
+	private static int index(long pValue) {
+		if (pValue < LINEAR_COUNT) {
+			return (int)pValue;
+		}
+		// Shift that bring the value in [SUB_COUNT, 2 * SUB_COUNT)
+		int shift = 63 - Long.numberOfLeadingZeros(pValue) - SUB_BITS;
+		return LINEAR_COUNT + (shift - 1) * SUB_COUNT + (int)((pValue >>> shift) - SUB_COUNT);
+	}
+
+	/**
+	 * @param pIndex Bucket.
+	 * @return Highest value that fall in the bucket.
+	 */
+	private static long highestValue(int pIndex) {
+		if (pIndex < LINEAR_COUNT) {
+			return pIndex;
+		}
+		int shift = (pIndex - LINEAR_COUNT) / SUB_COUNT + 1;
+		long mantissa = (pIndex - LINEAR_COUNT) % SUB_COUNT + SUB_COUNT;
+		long next = (mantissa + 1) << shift;
+		return next <= 0 ? Long.MAX_VALUE : next - 1;
+	}
+}
@@ -0,0 +1,254 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Start a job of several processes sharing one system, like mpirun. The launcher create the system,
+ * start one JVM per rank with the same class path, wait for all of them to attach, then wait for
+ * their exit and print the exit status and the metrics of each rank.
+ *
+ * Each rank take its task ids in its own block (see TaskSystem.getRankTaskId), so the ranks know the ids
+ * of each other tasks without any lookup. A rank can be pinned to a CPU set with taskset.
+ *
+ * Usage : Launcher [-np N] [-bind] [-cpus list:list:...] [-timeout seconds] MainClass [args] [: -np N MainClass [args]]...
+ * -bind pin each rank on one core, -cpus give the CPU list of each rank (cycled), ex : 0-3:4-7.
+ * The ':' separated groups start different programs in the same job, the ranks are numbered in order.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class Launcher {
+
+	/**
+	 * Rank of a launched process, and number of ranks of the job.
+	 */
+	public static final String RANK_PROPERTY = "mpitaskframework.rank";
+	public static final String SIZE_PROPERTY = "mpitaskframework.size";
+
+	/**
+	 * Prefix of the properties forwarded to the ranks.
+	 */
+	private static final String PROPERTY_PREFIX = "mpitaskframework.";
+
+	/**
+	 * Default time given to the ranks to attach, in seconds.
+	 */
+	private static final int DEFAULT_ATTACH_TIMEOUT = 30;
+
+	/**
+	 * One program of the job.
+	 */
+	private static class Group {
+		int m_count = 1;
+		String m_mainClass;
+		List<String> m_args = new ArrayList<String>();
+	}
+
+	/**
+	 * Main.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		List<Group> groups = new ArrayList<Group>();
+		boolean bind = false;
+		String[] cpuSets = null;
+		int timeout = DEFAULT_ATTACH_TIMEOUT;
+
+		Group group = new Group();
+		for (int i = 0; i < args.length; i++) {
+			if (group.m_mainClass != null) {
+				if (args[i].equals(":")) {
+					groups.add(group);
+					group = new Group();
+				} else {
+					group.m_args.add(args[i]);
+				}
+			} else if (args[i].equals("-np") && i + 1 < args.length) {
+				group.m_count = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-bind")) {
+				bind = true;
+			} else if (args[i].equals("-cpus") && i + 1 < args.length) {
+				cpuSets = args[++i].split(":");
+			} else if (args[i].equals("-timeout") && i + 1 < args.length) {
+				timeout = Integer.parseInt(args[++i]);
+			} else if (args[i].startsWith("-")) {
+				usage("Unknown option " + args[i]);
+			} else {
+				group.m_mainClass = args[i];
+			}
+		}
+		if (group.m_mainClass == null) {
+			usage("Missing main class");
+		}
+		groups.add(group);
+
+		int rankCount = 0;
+		for (Group g : groups) {
+			rankCount += g.m_count;
+		}
+		if (rankCount < 1 || rankCount > SharedSystemData.MAX_RANK_COUNT) {
+			usage("The job need 1 to " + SharedSystemData.MAX_RANK_COUNT + " ranks");
+		}
+
+		TaskSystem.activateSystem(true);
+		SharedSystemData sharedData = TaskSystem.getInstance().getSharedData();
+		sharedData.setRanks(rankCount, getRankBlockSize(rankCount));
+
+		// Start the ranks
+		int cores = Runtime.getRuntime().availableProcessors();
+		Process[] processes = new Process[rankCount];
+		int rank = 0;
+		for (Group g : groups) {
+			for (int i = 0; i < g.m_count; i++, rank++) {
+				String cpuSet = null;
+				if (cpuSets != null) {
+					cpuSet = cpuSets[rank % cpuSets.length];
+				} else if (bind) {
+					cpuSet = Integer.toString(rank % cores);
+				}
+
+				try {
+					processes[rank] = new ProcessBuilder(command(g, rank, rankCount, cpuSet)).inheritIO().start();
+				} catch (Exception e) {
+					System.err.println("Launcher, failed to start rank " + rank + " : " + e.getMessage());
+					kill(processes);
+					TaskSystem.getInstance().destroy();
+					System.exit(-1);
+				}
+			}
+		}
+
+		// Wait for the attach, a rank failing before attaching abort the job
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+		long attachStart = System.nanoTime();
+		while (sharedData.getAttachedCount() < rankCount) {
+			String failure = null;
+			if (System.nanoTime() > deadline) {
+				failure = "only " + sharedData.getAttachedCount() + " of " + rankCount + " ranks attached after " + timeout + " s";
+			}
+			for (int r = 0; r < rankCount && failure == null; r++) {
+				if (!processes[r].isAlive() && processes[r].exitValue() != 0) {
+					failure = "rank " + r + " exited with status " + processes[r].exitValue() + " before attaching";
+				}
+			}
+			if (failure != null) {
+				System.err.println("Launcher, " + failure);
+				kill(processes);
+				TaskSystem.getInstance().destroy();
+				System.exit(-1);
+			}
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		System.out.format("Launcher : %d ranks attached in %d ms%n", rankCount,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - attachStart));
+
+		// Collect
+		int failures = 0;
+		for (int r = 0; r < rankCount; r++) {
+			int status;
+			try {
+				status = processes[r].waitFor();
+			} catch (InterruptedException e) {
+				System.err.println("Launcher, interrupted while waiting for rank " + r);
+				kill(processes);
+				status = -1;
+			}
+			sharedData.setRankExitStatus(r, status);
+			if (status != 0) {
+				failures++;
+			}
+		}
+
+		System.out.println(report(sharedData, rankCount));
+		TaskSystem.getInstance().destroy();
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * @return Rank of this process, -1 if it was not started by the launcher.
+	 */
+	public static int getLaunchedRank() {
+		return Integer.getInteger(RANK_PROPERTY, -1);
+	}
+
+	/**
+	 * @return True if this process was started by the launcher. A launched process acquire the system
+	 * instead of creating it.
+	 */
+	public static boolean isLaunched() {
+		return getLaunchedRank() >= 0;
+	}
+
+	/**
+	 * Number of task ids of each rank. The last block is left to the processes without rank.
+	 * @param pRankCount
+	 * @return Block size.
+	 */
+	static int getRankBlockSize(int pRankCount) {
+		return TaskSystem.MAX_TASK_COUNT / (pRankCount + 1);
+	}
+
+	/**
+	 * Build the command of a rank : same JVM, same class path and system properties.
+	 */
+	private static List<String> command(Group pGroup, int pRank, int pRankCount, String pCpuSet) {
+		List<String> command = new ArrayList<String>();
+		if (pCpuSet != null) {
+			command.add("taskset");
+			command.add("-c");
+			command.add(pCpuSet);
+		}
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		for (Map.Entry<Object, Object> p : System.getProperties().entrySet()) {
+			String name = p.getKey().toString();
+			if (name.startsWith(PROPERTY_PREFIX) && !name.equals(RANK_PROPERTY) && !name.equals(SIZE_PROPERTY)) {
+				command.add("-D" + name + "=" + p.getValue());
+			}
+		}
+		command.add("-D" + RANK_PROPERTY + "=" + pRank);
+		command.add("-D" + SIZE_PROPERTY + "=" + pRankCount);
+		command.add(pGroup.m_mainClass);
+		command.addAll(pGroup.m_args);
+		return command;
+	}
+
+	/**
+	 * One line per rank.
+	 */
+	private static String report(SharedSystemData pSharedData, int pRankCount) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-6s %-8s %-6s %-6s %-12s %-12s %-10s %s%n", "rank", "pid", "exit", "tasks", "sent",
+				"received", "time(ms)", "msg/s"));
+		for (int r = 0; r < pRankCount; r++) {
+			long[] m = pSharedData.getRankMetrics(r);
+			long timeNs = m[5];
+			long rate = timeNs > 0 ? (long)((m[3] + m[4]) * 1e9 / timeNs) : 0;
+			sb.append(String.format("%-6d %-8d %-6d %-6d %-12d %-12d %-10d %d%n", r, m[1], m[0], m[2], m[3], m[4],
+					TimeUnit.NANOSECONDS.toMillis(timeNs), rate));
+		}
+		return sb.toString();
+	}
+
+	private static void kill(Process[] pProcesses) {
+		for (Process p : pProcesses) {
+			if (p != null) {
+				p.destroyForcibly();
+			}
+		}
+	}
+
+	private static void usage(String pError) {
+		System.err.println("Launcher, " + pError);
+		System.err.println("Usage : Launcher [-np N] [-bind] [-cpus list:list:...] [-timeout seconds] MainClass [args] [: -np N MainClass [args]]...");
+		System.exit(-1);
+	}
+}
@@ -0,0 +1,536 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ToLongFunction;
+
+import com.mpitaskframework.TaskSystem.Messages.IntMessage;
+
+/**
+ * Open-loop load generator. N client tasks send requests to a target task (or pool) at a fixed offered
+ * rate, whatever the replies do : a client never wait for a reply before its next request. Each request
+ * has an intended send time on a fixed schedule, and its latency is measured from that time and not from
+ * the time it was really sent. A client that fall behind, or a target that stall, then show up in the
+ * latencies instead of silently lowering the rate (the coordinated omission of closed-loop clients).
+ *
+ * The rates are run one after the other, each one with a warmup, a measured period and a drain period for
+ * the last replies. A request without reply at the end of the drain is a timeout, recorded with the
+ * latency it had at that time. Each step report the achieved throughput and the latency percentiles, the
+ * first step that can not sustain its rate is the saturation point.
+ *
+ * The replies are matched to the requests in order, per client, unless a reply sequence function is given.
+ *
+ * Usage : LoadGenerator <target id> [-clients n] [-rates r,r,...] [-sweep from:to:steps] [-duration ms]
+ * [-warmup ms] [-drain ms] [-tag t]. The tool attach to a running system and send IntMessage requests with
+ * the given tag and the client id as value, like the LocalRepReq and IPCServer samples.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class LoadGenerator {
+
+	/**
+	 * Build the requests of the clients.
+	 */
+	@FunctionalInterface
+	public interface RequestFactory {
+		/**
+		 * @param pClientId Task id of the client, where the reply must go.
+		 * @param pSequence Sequence of the request for this client.
+		 * @return Request.
+		 */
+		Message create(int pClientId, long pSequence);
+	}
+
+	/**
+	 * Default periods of a step, in milliseconds.
+	 */
+	public static final long DEFAULT_DURATION = 5000;
+	public static final long DEFAULT_WARMUP = 1000;
+	public static final long DEFAULT_DRAIN = 1000;
+
+	/**
+	 * A step is saturated when its throughput is under this ratio of the offered rate.
+	 */
+	public static final double SATURATION_RATIO = 0.95;
+
+	/**
+	 * Delay between the start of the clients and the first intended send, in nanoseconds.
+	 */
+	private static final long START_DELAY = 1000000;
+
+	/**
+	 * A client wait for its next send with a park when it is further than this, in nanoseconds.
+	 */
+	private static final long PARK_THRESHOLD = 100000;
+
+	/**
+	 * Result of one offered rate.
+	 */
+	public static class Step {
+		private final double m_offeredRate;
+		private final long m_duration;
+		private final LatencyHistogram m_histogram = new LatencyHistogram();
+		private long m_sent;
+		private long m_replied;
+		private long m_timeouts;
+		private long m_completed;
+
+		Step(double pOfferedRate, long pDuration) {
+			m_offeredRate = pOfferedRate;
+			m_duration = pDuration;
+		}
+
+		/**
+		 * @return Offered rate, requests per second.
+		 */
+		public double getOfferedRate() {
+			return m_offeredRate;
+		}
+
+		/**
+		 * @return Achieved rate : replies received during the measured period, per second.
+		 */
+		public double getThroughput() {
+			return m_completed / (m_duration / 1e9);
+		}
+
+		/**
+		 * @return Latencies in nanoseconds, from the intended send time. Timeouts included.
+		 */
+		public LatencyHistogram getHistogram() {
+			return m_histogram;
+		}
+
+		public long getSent() {
+			return m_sent;
+		}
+
+		public long getReplied() {
+			return m_replied;
+		}
+
+		public long getTimeouts() {
+			return m_timeouts;
+		}
+
+		/**
+		 * @return True if the target did not keep up with the offered rate.
+		 */
+		public boolean isSaturated() {
+			return m_timeouts > 0 || getThroughput() < m_offeredRate * SATURATION_RATIO;
+		}
+	}
+
+	private final int m_targetId;
+	private int m_clients = 1;
+	private RequestFactory m_factory;
+	private ToLongFunction<Message> m_replySequence;
+	private double[] m_rates = new double[] { 1000 };
+	private long m_duration = DEFAULT_DURATION * 1000000;
+	private long m_warmup = DEFAULT_WARMUP * 1000000;
+	private long m_drain = DEFAULT_DRAIN * 1000000;
+
+	/**
+	 * Start of the current step, written before the clients are released by the barrier.
+	 */
+	private CyclicBarrier m_barrier;
+	private long m_stepStart;
+
+	/**
+	 * @param pTargetId Task or pool receiving the requests.
+	 */
+	public LoadGenerator(int pTargetId) {
+		m_targetId = pTargetId;
+	}
+
+	/**
+	 * Number of simulated clients, each one with its own task. The offered rate is split between them.
+	 * @param pClients
+	 * @return This generator.
+	 */
+	public LoadGenerator clients(int pClients) {
+		if (pClients < 1) {
+			throw new IllegalArgumentException("At least one client");
+		}
+		m_clients = pClients;
+		return this;
+	}
+
+	/**
+	 * @param pFactory Request factory.
+	 * @return This generator.
+	 */
+	public LoadGenerator request(RequestFactory pFactory) {
+		m_factory = pFactory;
+		return this;
+	}
+
+	/**
+	 * Match the replies with the sequence they carry, for targets that can reorder the replies (a pool).
+	 * Without it, the replies of a client are matched in order.
+	 * @param pSequence Sequence of the request a reply is for.
+	 * @return This generator.
+	 */
+	public LoadGenerator replySequence(ToLongFunction<Message> pSequence) {
+		m_replySequence = pSequence;
+		return this;
+	}
+
+	/**
+	 * @param pRates Offered rates to run, requests per second.
+	 * @return This generator.
+	 */
+	public LoadGenerator rates(double... pRates) {
+		m_rates = pRates.clone();
+		return this;
+	}
+
+	/**
+	 * Run rates evenly spaced between two rates.
+	 * @param pFrom First rate.
+	 * @param pTo Last rate.
+	 * @param pSteps Number of rates.
+	 * @return This generator.
+	 */
+	public LoadGenerator sweep(double pFrom, double pTo, int pSteps) {
+		m_rates = new double[Math.max(1, pSteps)];
+		for (int i = 0; i < m_rates.length; i++) {
+			m_rates[i] = m_rates.length == 1 ? pFrom : pFrom + (pTo - pFrom) * i / (m_rates.length - 1);
+		}
+		return this;
+	}
+
+	/**
+	 * @param pDuration Measured period of a step, in milliseconds.
+	 * @return This generator.
+	 */
+	public LoadGenerator duration(long pDuration) {
+		m_duration = pDuration * 1000000;
+		return this;
+	}
+
+	/**
+	 * @param pWarmup Period sent but not measured at the start of a step, in milliseconds.
+	 * @return This generator.
+	 */
+	public LoadGenerator warmup(long pWarmup) {
+		m_warmup = pWarmup * 1000000;
+		return this;
+	}
+
+	/**
+	 * @param pDrain Time given to the last replies of a step, in milliseconds.
+	 * @return This generator.
+	 */
+	public LoadGenerator drain(long pDrain) {
+		m_drain = pDrain * 1000000;
+		return this;
+	}
+
+	/**
+	 * Run every rate. Blocking, must not be called by a task the target reply to.
+	 * @return One result per rate.
+	 */
+	public List<Step> run() {
+		if (m_factory == null) {
+			throw new IllegalStateException("No request factory");
+		}
+
+		m_barrier = new CyclicBarrier(m_clients + 1);
+		Client[] clients = new Client[m_clients];
+		for (int i = 0; i < m_clients; i++) {
+			clients[i] = new Client(i);
+			Task.createTask(clients[i]);
+		}
+
+		List<Step> steps = new ArrayList<Step>();
+		for (double rate : m_rates) {
+			m_stepStart = System.nanoTime() + START_DELAY;
+			if (!await(m_barrier) || !await(m_barrier)) {
+				break;
+			}
+
+			Step step = new Step(rate, m_duration);
+			for (Client client : clients) {
+				step.m_histogram.add(client.m_histogram);
+				step.m_sent += client.m_sent;
+				step.m_replied += client.m_replied;
+				step.m_timeouts += client.m_timeouts;
+				step.m_completed += client.m_completed;
+			}
+			steps.add(step);
+		}
+		return steps;
+	}
+
+	/**
+	 * @param pSteps Results.
+	 * @return Highest offered rate sustained before the first saturated step, 0 if the first one is.
+	 */
+	public static double getSaturationRate(List<Step> pSteps) {
+		double rate = 0;
+		for (Step step : pSteps) {
+			if (step.isSaturated()) {
+				break;
+			}
+			rate = step.getOfferedRate();
+		}
+		return rate;
+	}
+
+	/**
+	 * Report of the steps : throughput and latency percentiles in microseconds, one line per rate.
+	 * @param pSteps Results.
+	 * @return Report.
+	 */
+	public static String getReport(List<Step> pSteps) {
+		double[] percentiles = new double[] { 50, 90, 99, 99.9, 99.99 };
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%10s %10s %9s %9s %8s", "offered/s", "achieved/s", "sent", "replied", "timeout"));
+		for (double p : percentiles) {
+			sb.append(String.format(" %9s", "p" + (p == Math.rint(p) ? Integer.toString((int)p) : Double.toString(p))));
+		}
+		sb.append(String.format(" %9s%n", "max"));
+
+		for (Step step : pSteps) {
+			LatencyHistogram h = step.getHistogram();
+			sb.append(String.format("%10.0f %10.0f %9d %9d %8d", step.getOfferedRate(), step.getThroughput(), step.getSent(),
+					step.getReplied(), step.getTimeouts()));
+			for (double p : percentiles) {
+				sb.append(String.format(" %9.1f", h.getValueAtPercentile(p) / 1e3));
+			}
+			sb.append(String.format(" %9.1f%s%n", h.getMax() / 1e3, step.isSaturated() ? " saturated" : ""));
+		}
+		sb.append(String.format("Latencies in us from the intended send time. Sustained rate : %.0f/s%n", getSaturationRate(pSteps)));
+		return sb.toString();
+	}
+
+	/**
+	 * Wait on a barrier.
+	 * @param pBarrier
+	 * @return False if the barrier is broken.
+	 */
+	private static boolean await(CyclicBarrier pBarrier) {
+		try {
+			pBarrier.await();
+			return true;
+		} catch (InterruptedException | BrokenBarrierException e) {
+			System.err.println("LoadGenerator, barrier failed : " + e.getMessage());
+			pBarrier.reset();
+			return false;
+		}
+	}
+
+	/**
+	 * A simulated client, sending on its own schedule.
+	 */
+	private class Client extends Task {
+
+		private final int m_index;
+		private final LatencyHistogram m_histogram = new LatencyHistogram();
+
+		/**
+		 * Sequence of the first request of the next step, sequences are not reused between steps.
+		 */
+		private long m_nextSequence;
+
+		/**
+		 * Replies of the previous steps still to come, when matched in order.
+		 */
+		private long m_stale;
+
+		/**
+		 * Measured requests of the current step, and replies received during the measured period.
+		 */
+		private long m_sent;
+		private long m_replied;
+		private long m_timeouts;
+		private long m_completed;
+
+		Client(int pIndex) {
+			m_index = pIndex;
+		}
+
+		@Override
+		protected void initialize() {
+			m_nextSequence = 0;
+			m_stale = 0;
+		}
+
+		@Override
+		public void start() {
+			for (double rate : m_rates) {
+				if (!await(m_barrier)) {
+					return;
+				}
+				runStep(rate);
+				if (!await(m_barrier)) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Send on the schedule of a rate, and match the replies.
+		 * @param pRate Offered rate of all the clients.
+		 */
+		private void runStep(double pRate) {
+			m_histogram.reset();
+			m_sent = 0;
+			m_replied = 0;
+			m_timeouts = 0;
+			m_completed = 0;
+
+			// The clients are spread over the interval, the target see evenly spaced requests
+			long interval = Math.max(1, (long)(1e9 * m_clients / pRate));
+			long start = m_stepStart + interval * m_index / m_clients;
+			long measured = m_stepStart + m_warmup;
+			long end = measured + m_duration;
+			long deadline = end + m_drain;
+			int count = (int)Math.max(0, (end - start + interval - 1) / interval);
+
+			long first = m_nextSequence;
+			long[] intended = new long[count];
+			boolean[] done = new boolean[count];
+			int sent = 0;
+			int replied = 0;
+			int nextInOrder = 0;
+
+			while (true) {
+				long now = System.nanoTime();
+				long next = start + sent * interval;
+				if (sent < count && next <= now) {
+					intended[sent] = next;
+					send(m_factory.create(getTaskId(), first + sent), m_targetId);
+					sent++;
+					continue;
+				}
+
+				Message reply = TaskSystem.getInstance().receive(getMailboxId());
+				if (reply != null) {
+					long index;
+					if (m_replySequence != null) {
+						index = m_replySequence.applyAsLong(reply) - first;
+					} else if (m_stale > 0) {
+						m_stale--;
+						continue;
+					} else {
+						index = nextInOrder++;
+					}
+					if (index >= 0 && index < sent && !done[(int)index]) {
+						done[(int)index] = true;
+						replied++;
+						long time = System.nanoTime();
+						if (time >= measured && time < end) {
+							m_completed++;
+						}
+						if (intended[(int)index] >= measured) {
+							m_histogram.record(time - intended[(int)index]);
+							m_replied++;
+						}
+					}
+					continue;
+				}
+
+				if (sent == count) {
+					if (replied == count || now >= deadline) {
+						break;
+					}
+					Thread.yield();
+				} else if (next - now > PARK_THRESHOLD) {
+					LockSupport.parkNanos(next - now - PARK_THRESHOLD / 2);
+				} else {
+					Thread.yield();
+				}
+			}
+
+			for (int i = 0; i < count; i++) {
+				if (intended[i] >= measured) {
+					m_sent++;
+					if (!done[i]) {
+						// Still waiting, its latency is at least the time waited so far
+						m_histogram.record(deadline - intended[i]);
+						m_timeouts++;
+					}
+				}
+			}
+			if (m_replySequence == null) {
+				m_stale += count - replied;
+			}
+			m_nextSequence += count;
+		}
+
+		@Override
+		public void receive() { }
+	}
+
+	/**
+	 * Main.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int target = -1;
+		int clients = 1;
+		int tag = 0;
+		double[] rates = null;
+		double[] sweep = null;
+		long duration = DEFAULT_DURATION;
+		long warmup = DEFAULT_WARMUP;
+		long drain = DEFAULT_DRAIN;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-clients") && i + 1 < args.length) {
+				clients = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-rates") && i + 1 < args.length) {
+				String[] values = args[++i].split(",");
+				rates = new double[values.length];
+				for (int r = 0; r < values.length; r++) {
+					rates[r] = Double.parseDouble(values[r]);
+				}
+			} else if (args[i].equals("-sweep") && i + 1 < args.length) {
+				String[] values = args[++i].split(":");
+				if (values.length != 3) {
+					usage("Sweep is from:to:steps");
+				}
+				sweep = new double[] { Double.parseDouble(values[0]), Double.parseDouble(values[1]), Double.parseDouble(values[2]) };
+			} else if (args[i].equals("-duration") && i + 1 < args.length) {
+				duration = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-warmup") && i + 1 < args.length) {
+				warmup = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-drain") && i + 1 < args.length) {
+				drain = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-tag") && i + 1 < args.length) {
+				tag = Integer.parseInt(args[++i]);
+			} else if (args[i].startsWith("-")) {
+				usage("Unknown option " + args[i]);
+			} else {
+				target = Integer.parseInt(args[i]);
+			}
+		}
+		if (target < 0) {
+			usage("Missing target task id");
+		}
+
+		TaskSystem.activateSystem(false);
+
+		final int requestTag = tag;
+		LoadGenerator generator = new LoadGenerator(target).clients(clients).duration(duration).warmup(warmup).drain(drain)
+				.request((client, sequence) -> new IntMessage(requestTag, client));
+		if (sweep != null) {
+			generator.sweep(sweep[0], sweep[1], (int)sweep[2]);
+		} else if (rates != null) {
+			generator.rates(rates);
+		}
+
+		System.out.print(getReport(generator.run()));
+		System.exit(0); // Attached to the system of another process, do not shut it down
+	}
+
+	private static void usage(String pError) {
+		System.err.println("LoadGenerator, " + pError);
+		System.err.println("Usage : LoadGenerator <target id> [-clients n] [-rates r,r,...] [-sweep from:to:steps] [-duration ms] [-warmup ms] [-drain ms] [-tag t]");
+		System.exit(-1);
+	}
+}
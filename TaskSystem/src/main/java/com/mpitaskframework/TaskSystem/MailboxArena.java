@@ -0,0 +1,421 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * Single shared file holding the mailboxes of every task. With one file per queue, creating a task cost
+ * three file creations and three mappings in each process that talk to it. In the arena, a mailbox is a
+ * block cut from the end of the used space (one CAS on the bump pointer) and published in a directory
+ * indexed by task id : every process map the arena once and find any mailbox with one read.
+ *
+ * A block hold one log per lane (see MessagePriority), each is a multi producer log like the MappedBus
+ * queue : a sender claim a slot by adding to the log limit, write the message and set the commit flag,
+ * the receiver read the slots in order. A log is not circular, it is full once its size is used.
+ *
+ * A slot claimed and not committed stop the reader. When a sender die between the claim and the commit,
+ * the reader roll the slot back after CLAIM_TIMEOUT_PROPERTY : the slot is marked aborted and skipped, a
+ * commit that come after is reported and the message is lost (like the MappedBus rollback).
+ *
+ * The space of a deleted mailbox is not reused, the arena is sized for every task created during the
+ * life of the system. Migratable tasks keep their own files (a migration move the files). The arena is
+ * one mapping, limited to 2GB : it hold (size - directory) / (LOG_COUNT x (64 + log size)) mailboxes, about
+ * 7 with 100MB logs. The log size is set apart from the queue size (see ARENA_LOG_SIZE_PROPERTY) and
+ * create warn below MIN_MAILBOXES.
+ *
+ * Layout : header (LONG size, LONG log size, INT record size, INT slot size), LONG bump pointer on its
+ * own cache line, directory (LONG block offset per task id, 0 if none), then the blocks. A block is, for
+ * each lane : LONG limit on its own cache line, then the slots : INT commit (1, 2 if aborted), INT type, message (record size).
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class MailboxArena {
+
+	static final int SIZE_OFFSET = 0;
+	static final int LOG_SIZE_OFFSET = 8;
+	static final int RECORD_SIZE_OFFSET = 16;
+	static final int SLOT_SIZE_OFFSET = 20;
+	static final int NEXT_OFFSET = 64;
+	static final int DIRECTORY_OFFSET = 128;
+	static final int CONTROL_SIZE = 64;
+	private static final int COMMIT_OFFSET = 0;
+	private static final int TYPE_OFFSET = 4;
+	private static final int MESSAGE_OFFSET = 8;
+
+	/**
+	 * Commit flag values. An aborted slot (see MailboxClaim) is skipped by the reader.
+	 */
+	private static final int COMMITTED = 1;
+	private static final int ABORTED = 2;
+
+	/**
+	 * Logs of a mailbox, one per lane.
+	 */
+	public static final int LOG_COUNT = MessagePriority.values().length;
+
+	/**
+	 * Below this number of mailboxes the arena is reported as too small when created.
+	 */
+	public static final int MIN_MAILBOXES = 64;
+
+	/**
+	 * Milliseconds a reader wait on a claimed slot before it roll it back (default 2000).
+	 */
+	public static final String CLAIM_TIMEOUT_PROPERTY = "mpitaskframework.arenaClaimTimeout";
+
+	private static final long CLAIM_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong(CLAIM_TIMEOUT_PROPERTY, 2000L));
+
+	/**
+	 * Receiver side of a mailbox, owned by the process of the task.
+	 */
+	public class Reader {
+
+		private final long m_block;
+
+		/**
+		 * Read position of each log, and slot found by the last next().
+		 */
+		private final long[] m_positions;
+		private long m_slot;
+		private int m_lane;
+
+		/**
+		 * Claimed slot each log is waiting on, -1 if none, and since when. Updated by next and hasNext.
+		 */
+		private final AtomicLongArray m_stallPositions = new AtomicLongArray(LOG_COUNT);
+		private final AtomicLongArray m_stallTimes = new AtomicLongArray(LOG_COUNT);
+
+		private Reader(long pBlock) {
+			m_block = pBlock;
+			m_positions = new long[LOG_COUNT];
+			for (int lane = 0; lane < LOG_COUNT; lane++) {
+				m_stallPositions.set(lane, -1);
+			}
+		}
+
+		/**
+		 * Look at a slot that is not committed. A slot claimed for longer than the claim timeout has lost
+		 * its sender.
+		 * @param pLane
+		 * @param pPosition Position of the slot in the log.
+		 * @return True if the slot is claimed and timed out.
+		 */
+		private boolean isStale(int pLane, long pPosition) {
+			if (m_memory.getLongVolatile(controlBase(m_block, pLane, m_logSize)) <= pPosition) {
+				return false; // Not claimed yet
+			}
+			long now = System.nanoTime();
+			if (m_stallPositions.get(pLane) != pPosition) {
+				m_stallTimes.set(pLane, now);
+				m_stallPositions.set(pLane, pPosition);
+				return false;
+			}
+			return now - m_stallTimes.get(pLane) > CLAIM_TIMEOUT_NANOS;
+		}
+
+		/**
+		 * Look for a committed message in a log, without reading it. Called by the reading task only.
+		 * @param pLane Lane, MessagePriority ordinal.
+		 * @return True if readType and readMessage can be called.
+		 */
+		public boolean next(int pLane) {
+			long position = m_positions[pLane];
+			if (position + m_slotSize > m_logSize) {
+				return false; // Full and read
+			}
+			long slot = dataBase(m_block, pLane) + position;
+			int commit;
+			while ((commit = m_memory.getIntVolatile(slot + COMMIT_OFFSET)) == ABORTED) {
+				position += m_slotSize;
+				slot += m_slotSize;
+				m_positions[pLane] = position;
+				if (position + m_slotSize > m_logSize) {
+					return false;
+				}
+			}
+			if (commit == 0) {
+				if (!isStale(pLane, position) || !m_memory.compareAndSwapInt(slot + COMMIT_OFFSET, 0, ABORTED)) {
+					return false;
+				}
+				System.err.println("Mailbox arena, slot claimed and not committed for " + CLAIM_TIMEOUT_PROPERTY + ", rolled back");
+				return next(pLane);
+			}
+			m_slot = slot;
+			m_lane = pLane;
+			return true;
+		}
+
+		/**
+		 * Look for a committed message in a log, without changing the reader. Can be called by any thread
+		 * of the process (see TaskSystem.message_immediate).
+		 * @param pLane Lane, MessagePriority ordinal.
+		 * @return True if the log has a message to read.
+		 */
+		public boolean hasNext(int pLane) {
+			long base = dataBase(m_block, pLane);
+			for (long position = m_positions[pLane]; position + m_slotSize <= m_logSize; position += m_slotSize) {
+				int commit = m_memory.getIntVolatile(base + position + COMMIT_OFFSET);
+				if (commit != ABORTED) {
+					// A timed out claim wake the task, its next roll it back
+					return commit != 0 || isStale(pLane, position);
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Read the type of the message found by next and move past it.
+		 * @return Message type id.
+		 */
+		public int readType() {
+			m_positions[m_lane] += m_slotSize;
+			return m_memory.getInt(m_slot + TYPE_OFFSET);
+		}
+
+		/**
+		 * Decode the message found by next.
+		 * @param pMsg Empty message of the type.
+		 */
+		public void readMessage(Message pMsg) {
+			pMsg.read(m_file, m_slot + MESSAGE_OFFSET);
+		}
+
+		/**
+		 * Touch every page of a log from the calling thread. The pages are touched with an atomic add of 0,
+		 * the senders may already be writing.
+		 * @param pLane
+		 */
+		public void pretouch(int pLane) {
+			long base = dataBase(m_block, pLane);
+			for (long offset = 0; offset < m_logSize; offset += SharedMemoryConfig.PAGE_SIZE) {
+				m_memory.getAndAddInt(base + offset, 0);
+			}
+		}
+	}
+
+	/**
+	 * Atomic view and message view of the same file.
+	 */
+	private final SharedMemory m_memory;
+	private final MemoryMappedFile m_file;
+
+	private final long m_size;
+	private final long m_logSize;
+	private final int m_slotSize;
+	private final long m_blockSize;
+
+	/**
+	 * Create the arena file. Called by the process that create the system.
+	 * @param pPath File path.
+	 * @param pSize Arena size, at most 2GB.
+	 * @param pLogSize Size of each log of a mailbox.
+	 * @param pRecordSize Largest message size.
+	 * @return Arena.
+	 * @throws IOException The arena is larger than 2GB or can't hold one mailbox.
+	 */
+	public static MailboxArena create(String pPath, long pSize, long pLogSize, int pRecordSize) throws IOException {
+		if (pSize > Integer.MAX_VALUE) {
+			throw new IOException("arena size " + pSize + " is larger than 2GB");
+		}
+		long capacity = getCapacity(pSize, pLogSize);
+		if (capacity == 0) {
+			throw new IOException("arena size " + pSize + " can't hold one mailbox of " + LOG_COUNT + " x " + pLogSize
+					+ " bytes, see " + SharedMemoryConfig.ARENA_LOG_SIZE_PROPERTY);
+		}
+		if (capacity < MIN_MAILBOXES) {
+			System.err.println("Mailbox arena hold only " + capacity + " mailboxes of " + LOG_COUNT + " x " + pLogSize
+					+ " bytes, the next tasks use queue files (see " + SharedMemoryConfig.ARENA_LOG_SIZE_PROPERTY + ")");
+		}
+		int slotSize = (int)((MESSAGE_OFFSET + pRecordSize + 7) & ~7L);
+
+		// The blocks are never touched here, the pages are allocated by the first writer of each mailbox
+		SharedMemoryConfig.preallocate(pPath, pSize, false);
+		SharedMemory memory = new SharedMemory(pPath, pSize);
+		memory.putLong(SIZE_OFFSET, pSize);
+		memory.putLong(LOG_SIZE_OFFSET, pLogSize);
+		memory.putInt(RECORD_SIZE_OFFSET, pRecordSize);
+		memory.putInt(SLOT_SIZE_OFFSET, slotSize);
+		memory.putLongVolatile(NEXT_OFFSET, getDirectoryEnd());
+
+		return new MailboxArena(pPath, memory);
+	}
+
+	/**
+	 * Open the arena of an existing system. Called by the attaching processes.
+	 * @param pPath File path.
+	 * @return Arena.
+	 * @throws IOException
+	 */
+	public static MailboxArena open(String pPath) throws IOException {
+		SharedMemory header = new SharedMemory(pPath, DIRECTORY_OFFSET);
+		return new MailboxArena(pPath, new SharedMemory(pPath, header.getLong(SIZE_OFFSET)));
+	}
+
+	private MailboxArena(String pPath, SharedMemory pMemory) throws IOException {
+		m_memory = pMemory;
+		m_size = pMemory.getLong(SIZE_OFFSET);
+		m_logSize = pMemory.getLong(LOG_SIZE_OFFSET);
+		m_slotSize = pMemory.getInt(SLOT_SIZE_OFFSET);
+		m_blockSize = getBlockSize(m_logSize);
+		try {
+			m_file = new MemoryMappedFile(pPath, m_size);
+		} catch (Exception e) {
+			throw new IOException("Failed to map " + pPath + " : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return Offset of the first block.
+	 */
+	static long getDirectoryEnd() {
+		return DIRECTORY_OFFSET + (long)TaskSystem.MAX_TASK_COUNT * 8;
+	}
+
+	/**
+	 * @param pSize Arena size.
+	 * @param pLogSize
+	 * @return Number of mailboxes the arena can allocate.
+	 */
+	static long getCapacity(long pSize, long pLogSize) {
+		return Math.max(0, (pSize - getDirectoryEnd()) / getBlockSize(pLogSize));
+	}
+
+	/**
+	 * @param pLogSize
+	 * @return Size of a mailbox block.
+	 */
+	static long getBlockSize(long pLogSize) {
+		return LOG_COUNT * (CONTROL_SIZE + pLogSize);
+	}
+
+	/**
+	 * Offset of the limit of a log.
+	 * @param pBlock
+	 * @param pLane
+	 * @param pLogSize
+	 * @return Offset in the arena.
+	 */
+	static long controlBase(long pBlock, int pLane, long pLogSize) {
+		return pBlock + pLane * (CONTROL_SIZE + pLogSize);
+	}
+
+	private long dataBase(long pBlock, int pLane) {
+		return controlBase(pBlock, pLane, m_logSize) + CONTROL_SIZE;
+	}
+
+	/**
+	 * Allocate the mailbox of a task and publish it. A task id that had a mailbox get a new one.
+	 * @param pTaskId
+	 * @return Receiver side of the mailbox, or null if the arena is full.
+	 */
+	public Reader allocate(int pTaskId) {
+		long block;
+		do {
+			block = m_memory.getLongVolatile(NEXT_OFFSET);
+			if (block + m_blockSize > m_size) {
+				return null;
+			}
+		} while (!m_memory.compareAndSwapLong(NEXT_OFFSET, block, block + m_blockSize));
+
+		m_memory.putLongVolatile(DIRECTORY_OFFSET + (long)pTaskId * 8, block);
+		return new Reader(block);
+	}
+
+	/**
+	 * Remove the mailbox of a task from the directory, the senders fall back to the queue files.
+	 * @param pTaskId
+	 */
+	public void release(int pTaskId) {
+		m_memory.putLongVolatile(DIRECTORY_OFFSET + (long)pTaskId * 8, 0);
+	}
+
+	/**
+	 * Return the mailbox block of a task.
+	 * @param pTaskId
+	 * @return Block offset, 0 if the task has no mailbox in the arena.
+	 */
+	public long getBlock(int pTaskId) {
+		return m_memory.getLongVolatile(DIRECTORY_OFFSET + (long)pTaskId * 8);
+	}
+
+	/**
+	 * Append a message to a log of a mailbox.
+	 * @param pBlock Mailbox block, see getBlock.
+	 * @param pLane Lane, MessagePriority ordinal.
+	 * @param pMsg Message.
+	 * @return False if the log is full.
+	 */
+	public boolean offer(long pBlock, int pLane, Message pMsg) {
+		long position = claim(pBlock, pLane, pMsg.getTid());
+		if (position < 0) {
+			return false;
+		}
+		pMsg.write(m_file, position);
+		commit(position);
+		return true;
+	}
+
+	/**
+	 * Reserve a slot in a log of a mailbox. The reader stop at the slot until it is committed or aborted.
+	 * @param pBlock Mailbox block, see getBlock.
+	 * @param pLane Lane, MessagePriority ordinal.
+	 * @param pType Message type id.
+	 * @return Offset of the message in the arena file, -1 if the log is full.
+	 */
+	long claim(long pBlock, int pLane, int pType) {
+		long control = controlBase(pBlock, pLane, m_logSize);
+		long position = m_memory.getAndAddLong(control, m_slotSize);
+		if (position + m_slotSize > m_logSize) {
+			return -1;
+		}
+
+		long slot = control + CONTROL_SIZE + position;
+		m_memory.putInt(slot + TYPE_OFFSET, pType);
+		return slot + MESSAGE_OFFSET;
+	}
+
+	/**
+	 * Publish a claimed slot.
+	 * @param pPosition Offset returned by claim.
+	 * @return False if the reader rolled the slot back, the message is lost.
+	 */
+	boolean commit(long pPosition) {
+		if (!m_memory.compareAndSwapInt(pPosition - MESSAGE_OFFSET + COMMIT_OFFSET, 0, COMMITTED)) {
+			System.err.println("Mailbox arena, commit after " + CLAIM_TIMEOUT_PROPERTY + ", the slot was rolled back and the message is lost");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Give up a claimed slot, the reader skip it.
+	 * @param pPosition Offset returned by claim.
+	 */
+	void abort(long pPosition) {
+		m_memory.compareAndSwapInt(pPosition - MESSAGE_OFFSET + COMMIT_OFFSET, 0, ABORTED);
+	}
+
+	/**
+	 * @return Message view of the arena file.
+	 */
+	MemoryMappedFile getFile() {
+		return m_file;
+	}
+
+	/**
+	 * @return Arena size in bytes.
+	 */
+	public long getSize() {
+		return m_size;
+	}
+
+	/**
+	 * @return Bytes allocated to the mailboxes so far.
+	 */
+	public long getUsed() {
+		return m_memory.getLongVolatile(NEXT_OFFSET) - getDirectoryEnd();
+	}
+}
@@ -0,0 +1,188 @@
+package com.mpitaskframework.TaskSystem;
+
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * A slot reserved in a task mailbox, see TaskSystem.tryClaim. The sender encode the message directly in
+ * the slot, at the offsets of its codec, then commit it : there is no message object and no copy. The
+ * receiver read it as any other message of the type.
+ *
+ * Ex, with a generated codec :
+ *
+ *     MailboxClaim claim = LoadTest_LoadRequestCodec.claim(server);
+ *     if (claim != null) {
+ *         try {
+ *             claim.putInt(LoadTest_LoadRequestCodec.TAG_OFFSET, 0);
+ *             claim.putInt(LoadTest_LoadRequestCodec.CLIENT_OFFSET, client);
+ *             claim.putInt(LoadTest_LoadRequestCodec.SEQUENCE_OFFSET, sequence);
+ *             claim.commit();
+ *         } finally {
+ *             if (claim.isOpen()) {
+ *                 claim.abort();
+ *             }
+ *         }
+ *     }
+ *
+ * Each thread has one claim, reused by every tryClaim : it must be committed or aborted before the next
+ * one. In an arena mailbox the receiver wait at an open slot, so a claim left open block the NORMAL lane
+ * of the task : the finally above abort it when the encoding throw. The open claim of a task thread is
+ * aborted when the thread end (see TaskSystem.releaseThreadWriters), another thread must call it itself.
+ * The offsets are not checked, they must stay in the length given to tryClaim. The tag and the fields not
+ * written hold what the slot held before.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class MailboxClaim {
+
+	private MemoryMappedFile m_file;
+	private long m_position;
+	private int m_length;
+	private int m_taskId;
+	private int m_type;
+
+	/**
+	 * Mailbox of the slot, a fan-in lane or an arena log.
+	 */
+	private FanInMailbox.Lane m_lane;
+	private MailboxArena m_arena;
+	private boolean m_open = false;
+
+	MailboxClaim() { }
+
+	/**
+	 * Take a slot of a fan-in lane.
+	 */
+	MailboxClaim open(int pTaskId, int pType, int pLength, FanInMailbox.Lane pLane, long pPosition) {
+		return open(pTaskId, pType, pLength, pLane.getFile(), pPosition, pLane, null);
+	}
+
+	/**
+	 * Take a slot of an arena mailbox.
+	 */
+	MailboxClaim open(int pTaskId, int pType, int pLength, MailboxArena pArena, long pPosition) {
+		return open(pTaskId, pType, pLength, pArena.getFile(), pPosition, null, pArena);
+	}
+
+	private MailboxClaim open(int pTaskId, int pType, int pLength, MemoryMappedFile pFile, long pPosition,
+			FanInMailbox.Lane pLane, MailboxArena pArena) {
+		m_taskId = pTaskId;
+		m_type = pType;
+		m_length = pLength;
+		m_file = pFile;
+		m_position = pPosition;
+		m_lane = pLane;
+		m_arena = pArena;
+		m_open = true;
+		return this;
+	}
+
+	/**
+	 * @return True between tryClaim and commit or abort.
+	 */
+	public boolean isOpen() {
+		return m_open;
+	}
+
+	/**
+	 * @return Destination task.
+	 */
+	public int getTaskId() {
+		return m_taskId;
+	}
+
+	/**
+	 * @return Message type id of the slot.
+	 */
+	public int getType() {
+		return m_type;
+	}
+
+	/**
+	 * @return Bytes reserved for the message.
+	 */
+	public int getLength() {
+		return m_length;
+	}
+
+	/**
+	 * File of the slot, for a codec that write a whole message (ex : Codec.write(msg, getFile(), getPosition())).
+	 * @return The mailbox file.
+	 */
+	public MemoryMappedFile getFile() {
+		return m_file;
+	}
+
+	/**
+	 * @return Offset of the message in getFile().
+	 */
+	public long getPosition() {
+		return m_position;
+	}
+
+	public void putByte(int pOffset, byte pValue) {
+		m_file.putByte(m_position + pOffset, pValue);
+	}
+
+	/**
+	 * Short and char are written low byte first, like the generated codecs.
+	 */
+	public void putShort(int pOffset, short pValue) {
+		m_file.putByte(m_position + pOffset, (byte)pValue);
+		m_file.putByte(m_position + pOffset + 1, (byte)(pValue >> 8));
+	}
+
+	public void putChar(int pOffset, char pValue) {
+		putShort(pOffset, (short)pValue);
+	}
+
+	public void putInt(int pOffset, int pValue) {
+		m_file.putInt(m_position + pOffset, pValue);
+	}
+
+	public void putLong(int pOffset, long pValue) {
+		m_file.putLong(m_position + pOffset, pValue);
+	}
+
+	public void putFloat(int pOffset, float pValue) {
+		m_file.putInt(m_position + pOffset, Float.floatToRawIntBits(pValue));
+	}
+
+	public void putDouble(int pOffset, double pValue) {
+		m_file.putLong(m_position + pOffset, Double.doubleToRawLongBits(pValue));
+	}
+
+	public void putBytes(int pOffset, byte[] pData, int pDataOffset, int pLength) {
+		m_file.setBytes(m_position + pOffset, pData, pDataOffset, pLength);
+	}
+
+	/**
+	 * Publish the message, the receiver can read it. In an arena mailbox a claim kept open longer than
+	 * MailboxArena.CLAIM_TIMEOUT_PROPERTY is rolled back by the receiver and the commit is lost.
+	 */
+	public void commit() {
+		if (!m_open) {
+			System.err.println("MailboxClaim, commit without claim");
+			return;
+		}
+		m_open = false;
+		if (m_lane != null) {
+			m_lane.commit();
+		} else if (!m_arena.commit(m_position)) {
+			return; // Rolled back by the receiver, nothing delivered
+		}
+		TaskSystem.getInstance().claimCommitted(m_taskId, m_type);
+	}
+
+	/**
+	 * Give the slot up, nothing is delivered. In an arena mailbox the slot is lost, the receiver skip it.
+	 */
+	public void abort() {
+		if (!m_open) {
+			return;
+		}
+		m_open = false;
+		if (m_arena != null) {
+			m_arena.abort(m_position);
+		}
+	}
+}
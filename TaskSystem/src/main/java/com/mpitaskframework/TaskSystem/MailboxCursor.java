@@ -0,0 +1,324 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import com.mpitaskframework.TaskSystem.Messages.ArrayAssembler;
+import com.mpitaskframework.TaskSystem.Messages.ArrayFragment;
+import com.mpitaskframework.TaskSystem.Messages.ConflationNotice;
+
+import io.mappedbus.MappedBusMessage;
+import io.mappedbus.MappedBusReader;
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * Named reader of a task queue, next to the task itself : an audit logger, a hot standby or a metrics
+ * tap read the same messages with their own position, the senders write nothing more. The queue is
+ * append-only, so a cursor never remove a message from the task.
+ *
+ * The three lanes are read like the task read them : CONTROL, then HIGH, then NORMAL. The committed
+ * position of each lane is kept in TS_<id>_CURSORS, a cursor opened again with the same name resume
+ * after the last commit. A cursor is meant for a task that does not move (see MigratableTask), with its
+ * mailbox in queue files (no arena, no fan-in lanes, see TaskSystem.openCursor).
+ *
+ * Layout : one 96 bytes entry per cursor : LONG position by lane (CONTROL, HIGH, NORMAL), INT state,
+ * INT nameLength, name.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class MailboxCursor {
+
+	/**
+	 * Maximum number of cursors of a queue.
+	 */
+	public static final int MAX_CURSORS = 16;
+
+	static final int ENTRY_SIZE = 96;
+	private static final int POSITION_OFFSET = 0;
+	private static final int LANE_COUNT = MessagePriority.values().length;
+	private static final int STATE_OFFSET = 8 * LANE_COUNT;
+	private static final int NAME_LENGTH_OFFSET = STATE_OFFSET + 4;
+	private static final int NAME_OFFSET = NAME_LENGTH_OFFSET + 4;
+	private static final int MAX_NAME_LENGTH = ENTRY_SIZE - NAME_OFFSET;
+
+	/**
+	 * Entry states.
+	 */
+	private static final int EMPTY = 0;
+	private static final int CLAIMING = 1;
+	private static final int USED = 2;
+
+	/**
+	 * Consume a record without decoding it.
+	 */
+	private static final MappedBusMessage SKIP = new MappedBusMessage() {
+		@Override
+		public void write(MemoryMappedFile mem, long pos) { }
+
+		@Override
+		public void read(MemoryMappedFile mem, long pos) { }
+
+		@Override
+		public int type() {
+			return 0;
+		}
+	};
+
+	private final String m_name;
+	private final int m_taskId;
+	private final SharedMemory m_cursors;
+	private final long m_entry;
+	private final SharedMemory[] m_limits = new SharedMemory[LANE_COUNT];
+	private final MappedBusReader[] m_readers = new MappedBusReader[LANE_COUNT];
+	private final int m_recordSize;
+	private final Supplier<? extends Message>[] m_messageTypes;
+	private final ArrayAssembler m_assembler = new ArrayAssembler();
+
+	/**
+	 * Records read in each lane, committed or not.
+	 */
+	private final long[] m_positions = new long[LANE_COUNT];
+
+	/**
+	 * Open a cursor and move it to its committed position. Use TaskSystem.openCursor.
+	 * @param pTaskId Task.
+	 * @param pName Cursor name.
+	 * @param pLanePaths Lane files of the task, by priority.
+	 * @param pCursorsPath Cursor file of the queue.
+	 * @param pQueueSize Queue size.
+	 * @param pRecordSize Record size.
+	 * @param pMessageTypes Message factories, by type id.
+	 * @throws IOException
+	 */
+	MailboxCursor(int pTaskId, String pName, String[] pLanePaths, String pCursorsPath, long pQueueSize, int pRecordSize,
+			Supplier<? extends Message>[] pMessageTypes) throws IOException {
+		byte[] name = pName.getBytes(StandardCharsets.UTF_8);
+		if (name.length == 0 || name.length > MAX_NAME_LENGTH) {
+			throw new IOException("Cursor name must be 1 to " + MAX_NAME_LENGTH + " bytes");
+		}
+
+		m_name = pName;
+		m_taskId = pTaskId;
+		m_recordSize = pRecordSize;
+		m_messageTypes = pMessageTypes;
+		m_cursors = new SharedMemory(pCursorsPath, SharedMemoryConfig.align((long)MAX_CURSORS * ENTRY_SIZE));
+		m_entry = findOrClaim(name);
+		if (m_entry < 0) {
+			throw new IOException("No cursor left on task " + pTaskId + " (" + MAX_CURSORS + " per queue)");
+		}
+		for (int lane = 0; lane < LANE_COUNT; lane++) {
+			m_limits[lane] = new SharedMemory(pLanePaths[lane], SharedMemoryConfig.MAPPEDBUS_DATA_OFFSET);
+			m_readers[lane] = new MappedBusReader(pLanePaths[lane], pQueueSize, pRecordSize);
+			m_readers[lane].open();
+
+			// Resume, the reader can only move forward one record at a time
+			long committed = m_cursors.getLongVolatile(m_entry + POSITION_OFFSET + 8 * lane);
+			while (m_positions[lane] < committed && m_readers[lane].next()) {
+				m_readers[lane].readMessage(SKIP);
+				m_positions[lane]++;
+			}
+		}
+	}
+
+	/**
+	 * @return Cursor name.
+	 */
+	public String getName() {
+		return m_name;
+	}
+
+	/**
+	 * @return Task read by the cursor.
+	 */
+	public int getTaskId() {
+		return m_taskId;
+	}
+
+	/**
+	 * Read the next message of the task, CONTROL first, then HIGH, then NORMAL.
+	 * @return The message, or null if the cursor reached the end of every lane.
+	 */
+	public Message poll() {
+		for (int lane = 0; lane < LANE_COUNT; lane++) {
+			Message msg = poll(lane);
+			if (msg != null) {
+				return msg;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Read the next message of a lane.
+	 * @param pLane Priority ordinal.
+	 * @return The message, or null if the cursor reached the end of the lane.
+	 */
+	private Message poll(int pLane) {
+		MappedBusReader reader = m_readers[pLane];
+		try {
+			while (reader.next()) {
+				int type = reader.readType();
+				m_positions[pLane]++;
+
+				if (type == ArrayFragment.ARRAYFRAGMENT_TID) {
+					reader.readMessage(m_assembler.getFragment());
+					Message msg = m_assembler.poll();
+					if (msg != null) {
+						return msg;
+					}
+				} else if (type == ConflationNotice.CONFLATIONNOTICE_TID) {
+					reader.readMessage(SKIP); // The keyed message is not in the queue
+				} else if (type >= 0 && type < m_messageTypes.length && m_messageTypes[type] != null) {
+					Message msg = m_messageTypes[type].get();
+					reader.readMessage(msg);
+					return msg;
+				} else {
+					reader.readMessage(SKIP);
+				}
+			}
+		} catch (EOFException e) {
+			System.err.println("EOF error : " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Save the position, a cursor opened again with this name resume after the last message read.
+	 */
+	public void commit() {
+		for (int lane = 0; lane < LANE_COUNT; lane++) {
+			m_cursors.putLongOrdered(m_entry + POSITION_OFFSET + 8 * lane, m_positions[lane]);
+		}
+	}
+
+	/**
+	 * @return Records read by this cursor, in every lane.
+	 */
+	public long getPosition() {
+		long position = 0;
+		for (long p : m_positions) {
+			position += p;
+		}
+		return position;
+	}
+
+	/**
+	 * @param pPriority Lane.
+	 * @return Records read by this cursor in a lane.
+	 */
+	public long getPosition(MessagePriority pPriority) {
+		return m_positions[pPriority.ordinal()];
+	}
+
+	/**
+	 * @return Last committed position, in every lane.
+	 */
+	public long getCommittedPosition() {
+		long position = 0;
+		for (int lane = 0; lane < LANE_COUNT; lane++) {
+			position += m_cursors.getLongVolatile(m_entry + POSITION_OFFSET + 8 * lane);
+		}
+		return position;
+	}
+
+	/**
+	 * @return Records written in the lanes and not read yet by this cursor.
+	 */
+	public long getLag() {
+		long lag = 0;
+		for (int lane = 0; lane < LANE_COUNT; lane++) {
+			lag += SharedMemoryConfig.getRecordCount(m_limits[lane].getLongVolatile(0), m_recordSize) - m_positions[lane];
+		}
+		return lag;
+	}
+
+	/**
+	 * Commit and release the lanes.
+	 */
+	public void close() {
+		commit();
+		for (MappedBusReader reader : m_readers) {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				System.err.println("MailboxCursor, failed to close " + m_name + " : " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Find the entry of a name, or claim an empty one.
+	 * @param pName
+	 * @return Entry offset, or -1 if the file is full.
+	 */
+	private long findOrClaim(byte[] pName) {
+		for (int i = 0; i < MAX_CURSORS; ) {
+			long entry = (long)i * ENTRY_SIZE;
+			int state = m_cursors.getIntVolatile(entry + STATE_OFFSET);
+			if (state == USED) {
+				if (nameEquals(m_cursors, entry, pName)) {
+					return entry;
+				}
+			} else if (state == EMPTY) {
+				if (m_cursors.compareAndSwapInt(entry + STATE_OFFSET, EMPTY, CLAIMING)) {
+					for (int lane = 0; lane < LANE_COUNT; lane++) {
+						m_cursors.putLong(entry + POSITION_OFFSET + 8 * lane, 0);
+					}
+					m_cursors.putInt(entry + NAME_LENGTH_OFFSET, pName.length);
+					m_cursors.putBytes(entry + NAME_OFFSET, pName, 0, pName.length);
+					m_cursors.putIntVolatile(entry + STATE_OFFSET, USED);
+					return entry;
+				}
+				continue; // Lost the race, the winner can be the same name
+			} else {
+				Thread.yield(); // Being claimed
+				continue;
+			}
+			i++;
+		}
+		return -1;
+	}
+
+	private static boolean nameEquals(SharedMemory pCursors, long pEntry, byte[] pName) {
+		if (pCursors.getInt(pEntry + NAME_LENGTH_OFFSET) != pName.length) {
+			return false;
+		}
+		byte[] name = new byte[pName.length];
+		pCursors.getBytes(pEntry + NAME_OFFSET, name, 0, name.length);
+		return Arrays.equals(name, pName);
+	}
+
+	/**
+	 * Describe the cursors of a queue from a read-only copy of the cursor file. Used by the Inspector.
+	 * @param pCursors Cursor file, native order.
+	 * @param pWritten Records written in each lane, by priority.
+	 * @return One line per cursor.
+	 */
+	static String describe(ByteBuffer pCursors, long[] pWritten) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < MAX_CURSORS && (i + 1) * ENTRY_SIZE <= pCursors.capacity(); i++) {
+			int entry = i * ENTRY_SIZE;
+			if (pCursors.getInt(entry + STATE_OFFSET) != USED) {
+				continue;
+			}
+			byte[] name = new byte[Math.min(pCursors.getInt(entry + NAME_LENGTH_OFFSET), MAX_NAME_LENGTH)];
+			for (int b = 0; b < name.length; b++) {
+				name[b] = pCursors.get(entry + NAME_OFFSET + b);
+			}
+			long position = 0;
+			long lag = 0;
+			for (int lane = 0; lane < LANE_COUNT; lane++) {
+				long lanePosition = pCursors.getLong(entry + POSITION_OFFSET + 8 * lane);
+				position += lanePosition;
+				lag += Math.max(0, pWritten[lane] - lanePosition);
+			}
+			sb.append(String.format("         cursor %-20s committed=%-12d lag=%d%n", new String(name, StandardCharsets.UTF_8),
+					position, lag));
+		}
+		return sb.toString();
+	}
+}
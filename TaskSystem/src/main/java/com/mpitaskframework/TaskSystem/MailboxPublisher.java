@@ -0,0 +1,187 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A task whose mailbox is read by a Flow.Subscriber. Senders use the task id as usual, the task only
+ * read a message from its mailbox when the subscriber has requested one : the demand is the number of
+ * messages the task may take out of the mailbox, and the messages not requested stay in the mailbox. Without
+ * subscriber, or after a cancel, the messages wait for the next subscriber.
+ *
+ * One subscriber at a time, the mailbox has one reader. onNext is called on the task thread, in the
+ * order of the mailbox. After complete(), the subscriber get onComplete once the mailbox is empty.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class MailboxPublisher extends Task implements Flow.Publisher<Message> {
+
+	/**
+	 * Subscription of the current subscriber.
+	 */
+	private class Subscription implements Flow.Subscription {
+
+		private final Flow.Subscriber<? super Message> m_subscriber;
+		private final AtomicLong m_demand = new AtomicLong();
+		private volatile boolean m_cancelled = false;
+		private volatile long m_invalidRequest = 0;
+
+		private Subscription(Flow.Subscriber<? super Message> pSubscriber) {
+			m_subscriber = pSubscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				m_invalidRequest = n; // Signaled by the task, see rule 3.9
+			} else {
+				long demand;
+				do {
+					demand = m_demand.get();
+				} while (demand != Long.MAX_VALUE && !m_demand.compareAndSet(demand, demand + n < 0 ? Long.MAX_VALUE : demand + n));
+			}
+			wakeup();
+		}
+
+		@Override
+		public void cancel() {
+			m_cancelled = true;
+			wakeup();
+		}
+	}
+
+	private volatile Subscription m_subscription = null;
+	private volatile boolean m_completed = false;
+	private volatile Thread m_thread = null;
+	private boolean m_ended = false;
+
+	@Override
+	protected void initialize() { }
+
+	/**
+	 * Subscribe to the messages of the mailbox. A second subscriber get an error until the first cancel.
+	 * @param pSubscriber
+	 */
+	@Override
+	public synchronized void subscribe(Flow.Subscriber<? super Message> pSubscriber) {
+		Subscription subscription = new Subscription(pSubscriber);
+		if (m_ended) {
+			subscription.m_cancelled = true;
+			pSubscriber.onSubscribe(subscription);
+			pSubscriber.onComplete();
+			return;
+		}
+
+		Subscription current = m_subscription;
+		if (current != null && !current.m_cancelled) {
+			subscription.m_cancelled = true;
+			pSubscriber.onSubscribe(subscription);
+			pSubscriber.onError(new IllegalStateException("Mailbox of task " + getTaskId() + " already has a subscriber"));
+			return;
+		}
+
+		pSubscriber.onSubscribe(subscription);
+		m_subscription = subscription;
+		wakeup();
+	}
+
+	/**
+	 * End the stream : the subscriber get onComplete once the messages already in the mailbox are
+	 * delivered, and the task end.
+	 */
+	public void complete() {
+		m_completed = true;
+		wakeup();
+	}
+
+	private void wakeup() {
+		Thread thread = m_thread;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	@Override
+	public void start() {
+		m_thread = Thread.currentThread();
+		while (true) {
+			receive();
+			if (m_completed) {
+				synchronized (this) {
+					if (m_subscription == null) {
+						m_ended = true;
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deliver one message if there is demand, or wait for a signal.
+	 */
+	@Override
+	public void receive() {
+		Subscription subscription = m_subscription;
+		if (subscription == null) {
+			if (!m_completed) {
+				LockSupport.park(this);
+			}
+			return;
+		}
+
+		if (subscription.m_cancelled) {
+			release(subscription);
+			return;
+		}
+		if (subscription.m_invalidRequest != 0) {
+			release(subscription);
+			subscription.m_subscriber.onError(new IllegalArgumentException("Non-positive request " + subscription.m_invalidRequest));
+			return;
+		}
+
+		if (subscription.m_demand.get() == 0) {
+			if (m_completed && message_immediate()) {
+				release(subscription);
+				subscription.m_subscriber.onComplete();
+			} else {
+				LockSupport.park(this);
+			}
+			return;
+		}
+
+		Message msg = TaskSystem.getInstance().receive(getMailboxId());
+		if (msg == null) {
+			if (m_completed) {
+				release(subscription);
+				subscription.m_subscriber.onComplete();
+			} else {
+				message_wait();
+			}
+			return;
+		}
+
+		if (subscription.m_demand.get() != Long.MAX_VALUE) {
+			subscription.m_demand.decrementAndGet();
+		}
+		try {
+			subscription.m_subscriber.onNext(msg);
+		} catch (Throwable t) {
+			// Rule 2.13, the subscriber is considered cancelled
+			System.err.println("Subscriber of task " + getTaskId() + " failed on a message : " + t);
+			subscription.m_cancelled = true;
+		}
+	}
+
+	/**
+	 * Remove the subscription if it is still the current one.
+	 * @param pSubscription
+	 */
+	private synchronized void release(Subscription pSubscription) {
+		pSubscription.m_cancelled = true;
+		if (m_subscription == pSubscription) {
+			m_subscription = null;
+		}
+	}
+}
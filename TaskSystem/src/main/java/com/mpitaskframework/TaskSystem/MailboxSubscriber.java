@@ -0,0 +1,217 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A Flow.Subscriber sending the items it receive to a task. The demand is the free space of the task
+ * mailbox : the subscriber give a window of credits, and only request an item when an earlier one has been
+ * read by the task. Items requested but not yet read by the task never exceed the window, so nothing is
+ * buffered between the publisher and the mailbox and a slow task slow down the publisher.
+ *
+ * The reads of the task are counted with its shared delivered counter (TaskSystem.getDeliveredCount, an
+ * array message count once), any process can host the task. The window is exact when the subscriber is
+ * the only sender of the task, other senders only make it larger. A conflating task is not supported :
+ * the items replaced in the mailbox are never read and their credits are never given back.
+ *
+ * The credits are given back by one thread for all the subscribers of the process, it request a batch of
+ * a quarter of the window at a time. The thread stop when the last subscriber is done.
+ *
+ * On onComplete or onError, the end message (if any) is sent to the task after the last item.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class MailboxSubscriber implements Flow.Subscriber<Message> {
+
+	/**
+	 * Wait between two looks at the received counter while the window is full.
+	 */
+	private static final long CREDIT_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final int m_taskId;
+	private final long m_window;
+	private final long m_batch;
+	private final Message m_endMessage;
+
+	private volatile Flow.Subscription m_subscription = null;
+
+	/**
+	 * Items requested and items sent to the task. m_requested is only changed by the credit thread.
+	 */
+	private volatile long m_requested = 0;
+	private volatile long m_sent = 0;
+
+	/**
+	 * Delivered counter of the task when the subscription started.
+	 */
+	private long m_receivedBase;
+
+	private volatile boolean m_done = false;
+	private volatile Throwable m_error = null;
+
+	/**
+	 * Subscribers waiting for credits, served by the credit thread.
+	 */
+	private static final CopyOnWriteArrayList<MailboxSubscriber> s_active = new CopyOnWriteArrayList<MailboxSubscriber>();
+	private static Thread s_creditThread = null;
+
+	/**
+	 * Constructor.
+	 * @param pTaskId Destination task.
+	 * @param pWindow Credits, the most items requested and not yet read by the task.
+	 */
+	public MailboxSubscriber(int pTaskId, int pWindow) {
+		this(pTaskId, pWindow, null);
+	}
+
+	/**
+	 * Constructor.
+	 * @param pTaskId Destination task.
+	 * @param pWindow Credits, the most items requested and not yet read by the task.
+	 * @param pEndMessage Sent to the task when the stream end, or null.
+	 */
+	public MailboxSubscriber(int pTaskId, int pWindow, Message pEndMessage) {
+		m_taskId = pTaskId;
+		m_window = Math.max(1, pWindow);
+		m_batch = Math.max(1, m_window / 4);
+		m_endMessage = pEndMessage;
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription pSubscription) {
+		if (m_subscription != null) {
+			pSubscription.cancel(); // Rule 2.5
+			return;
+		}
+		m_subscription = pSubscription;
+		m_receivedBase = TaskSystem.getInstance().getDeliveredCount(m_taskId);
+		s_active.add(this);
+		startCreditThread();
+	}
+
+	@Override
+	public void onNext(Message pItem) {
+		TaskSystem.getInstance().send(pItem, m_taskId);
+		m_sent++; // Signals are serial, rule 1.3
+	}
+
+	@Override
+	public void onError(Throwable pError) {
+		m_error = pError;
+		end();
+	}
+
+	@Override
+	public void onComplete() {
+		end();
+	}
+
+	private void end() {
+		m_done = true;
+		s_active.remove(this);
+		if (m_endMessage != null) {
+			TaskSystem.getInstance().send(m_endMessage, m_taskId);
+		}
+	}
+
+	/**
+	 * Cancel the subscription, the items already sent stay in the mailbox.
+	 */
+	public void cancel() {
+		Flow.Subscription subscription = m_subscription;
+		if (subscription != null) {
+			m_done = true;
+			s_active.remove(this);
+			subscription.cancel();
+		}
+	}
+
+	/**
+	 * Start the credit thread if it is not running.
+	 */
+	private static synchronized void startCreditThread() {
+		if (s_creditThread == null) {
+			s_creditThread = new Thread(MailboxSubscriber::giveCredits, "MailboxSubscriber credits");
+			s_creditThread.setDaemon(true);
+			s_creditThread.start();
+		}
+	}
+
+	/**
+	 * Stop the credit thread if no subscriber is left.
+	 * @return True if the thread must end.
+	 */
+	private static synchronized boolean stopCreditThread() {
+		if (s_active.isEmpty()) {
+			s_creditThread = null;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Loop of the credit thread : request what the tasks have read, a batch at a time, for every subscriber.
+	 */
+	private static void giveCredits() {
+		while (true) {
+			boolean given = false;
+			for (MailboxSubscriber subscriber : s_active) {
+				given |= subscriber.giveCredit();
+			}
+			if (!given) {
+				if (s_active.isEmpty() && stopCreditThread()) {
+					return;
+				}
+				LockSupport.parkNanos(CREDIT_POLL_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * Request what the task has read, when it is at least a batch.
+	 * @return True if credits were given.
+	 */
+	private boolean giveCredit() {
+		if (m_done) {
+			return false;
+		}
+		long credits = m_window - getOutstanding();
+		if (credits < m_batch) {
+			return false;
+		}
+		m_requested += credits;
+		m_subscription.request(credits);
+		return true;
+	}
+
+	/**
+	 * @return Items requested and not yet read by the task.
+	 */
+	public long getOutstanding() {
+		long read = Math.min(m_sent, TaskSystem.getInstance().getDeliveredCount(m_taskId) - m_receivedBase);
+		return m_requested - read;
+	}
+
+	/**
+	 * @return Items sent to the task.
+	 */
+	public long getSent() {
+		return m_sent;
+	}
+
+	/**
+	 * @return True once the stream ended or was cancelled.
+	 */
+	public boolean isDone() {
+		return m_done;
+	}
+
+	/**
+	 * @return Error of the publisher, or null.
+	 */
+	public Throwable getError() {
+		return m_error;
+	}
+}
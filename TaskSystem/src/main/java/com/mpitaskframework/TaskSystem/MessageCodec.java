@@ -0,0 +1,31 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generate the codec of a message class at compile time, see MessageCodecProcessor. The class X get a
+ * generated XCodec (Outer_XCodec for a nested class) with the type id, the encoded size and the write,
+ * read and register methods. The message delegate to it :
+ *
+ *   write : XCodec.write(this, mem, pos);
+ *   read : setTag(XCodec.read(this, mem, pos));
+ *
+ * The message class must be top level or static, with a constructor without argument. Every field not
+ * static or transient is encoded and must be a primitive, not private and not final.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface MessageCodec {
+
+	/**
+	 * Unique message type id, checked at compile time. 100 to 199 are reserved by the system.
+	 */
+	int tid();
+}
@@ -0,0 +1,429 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Compile time generator of the message codecs (see MessageCodec). The generated codec write and read
+ * each field at a constant offset, without reflection and without offset written by hand, and give the
+ * encoded size checked against the record size when the type is registered.
+ *
+ * Layout : the tag is at 0, then the fields by decreasing size so each one is aligned on its size. When
+ * there is a LONG or DOUBLE field, the hole after the tag is filled first by the smaller fields. The
+ * fields inherited from the superclasses, up to Message, are encoded too : they must be public, or
+ * declared in the package of the message.
+ *
+ * The compilation fail when two messages use the same type id, when a type id is used by a system
+ * message or is in the reserved range, or when a field can't be encoded. The processor is declared in
+ * META-INF/services and run for any module compiled with the TaskSystem jar. It only see the messages
+ * of the module being compiled : two modules compiled apart can use the same type id, that is found
+ * when both register their type in the same process (TaskSystem.registerMessageType exit on a type id
+ * registered by two classes), not when each type is only registered in a different process.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+@SupportedAnnotationTypes("com.mpitaskframework.TaskSystem.MessageCodec")
+public class MessageCodecProcessor extends AbstractProcessor {
+
+	/**
+	 * Type ids reserved for the system messages.
+	 */
+	public static final int RESERVED_TID_MIN = 100;
+	public static final int RESERVED_TID_MAX = 199;
+
+	private static final String MESSAGE_CLASS = "com.mpitaskframework.TaskSystem.Message";
+	private static final String SYSTEM_MESSAGES_PACKAGE = "com.mpitaskframework.TaskSystem.Messages";
+	private static final int TAG_SIZE = 4;
+
+	/**
+	 * Type ids used in this compilation, with the system messages.
+	 */
+	private final Map<Integer, String> m_tids = new HashMap<Integer, String>();
+	private boolean m_systemLoaded = false;
+
+	/**
+	 * An encoded field.
+	 */
+	private static class Field {
+		final String name;
+		final String constant;
+		final String kind;
+		final int size;
+		int offset;
+
+		Field(String pName, String pKind, int pSize) {
+			name = pName;
+			constant = toConstant(pName) + "_OFFSET";
+			kind = pKind;
+			size = pSize;
+			offset = -1;
+		}
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> pAnnotations, RoundEnvironment pRound) {
+		if (!m_systemLoaded) {
+			loadSystemTids();
+			m_systemLoaded = true;
+		}
+
+		for (Element element : pRound.getElementsAnnotatedWith(MessageCodec.class)) {
+			if (element.getKind() != ElementKind.CLASS) {
+				error(element, "@MessageCodec is only for message classes");
+				continue;
+			}
+			TypeElement type = (TypeElement)element;
+			int tid = type.getAnnotation(MessageCodec.class).tid();
+			if (!checkType(type, tid)) {
+				continue;
+			}
+			List<Field> fields = layout(type);
+			if (fields == null) {
+				continue;
+			}
+			try {
+				generate(type, tid, fields);
+			} catch (IOException e) {
+				error(type, "Failed to generate the codec : " + e.getMessage());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Collect the type ids of the system messages, the *_TID constants of the Messages package.
+	 */
+	private void loadSystemTids() {
+		PackageElement messages = processingEnv.getElementUtils().getPackageElement(SYSTEM_MESSAGES_PACKAGE);
+		if (messages == null) {
+			return;
+		}
+		for (TypeElement type : ElementFilter.typesIn(messages.getEnclosedElements())) {
+			for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+				Object value = field.getConstantValue();
+				if (field.getSimpleName().toString().endsWith("_TID") && value instanceof Integer) {
+					m_tids.put((Integer)value, type.getQualifiedName().toString());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check the type id and the class.
+	 * @return False if an error was reported.
+	 */
+	private boolean checkType(TypeElement pType, int pTid) {
+		String name = pType.getQualifiedName().toString();
+		boolean ok = true;
+
+		if (pTid < 0 || pTid >= TaskSystem.MAX_MESSAGE_TYPE) {
+			error(pType, "Type id " + pTid + " out of range, 0 to " + (TaskSystem.MAX_MESSAGE_TYPE - 1));
+			ok = false;
+		} else if (pTid >= RESERVED_TID_MIN && pTid <= RESERVED_TID_MAX
+				&& !processingEnv.getElementUtils().getPackageOf(pType).getQualifiedName().contentEquals(SYSTEM_MESSAGES_PACKAGE)) {
+			error(pType, "Type id " + pTid + " is reserved by the system (" + RESERVED_TID_MIN + " to " + RESERVED_TID_MAX + ")");
+			ok = false;
+		} else {
+			String existing = m_tids.get(pTid);
+			if (existing != null && !existing.equals(name)) {
+				error(pType, "Type id " + pTid + " already used by " + existing);
+				ok = false;
+			} else {
+				m_tids.put(pTid, name);
+			}
+		}
+
+		TypeElement message = processingEnv.getElementUtils().getTypeElement(MESSAGE_CLASS);
+		if (message == null || !processingEnv.getTypeUtils().isSubtype(pType.asType(), message.asType())) {
+			error(pType, name + " must extend " + MESSAGE_CLASS);
+			ok = false;
+		}
+		if (pType.getModifiers().contains(Modifier.ABSTRACT)) {
+			error(pType, name + " can't be abstract");
+			ok = false;
+		}
+		if (pType.getModifiers().contains(Modifier.PRIVATE) || (pType.getNestingKind() != NestingKind.TOP_LEVEL
+				&& (pType.getNestingKind() != NestingKind.MEMBER || !pType.getModifiers().contains(Modifier.STATIC)))) {
+			error(pType, name + " must be a top level or static nested class, not private");
+			ok = false;
+		}
+
+		boolean defaultConstructor = false;
+		for (ExecutableElement constructor : ElementFilter.constructorsIn(pType.getEnclosedElements())) {
+			if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+				defaultConstructor = true;
+			}
+		}
+		if (!defaultConstructor) {
+			error(pType, name + " need a constructor without argument, not private");
+			ok = false;
+		}
+		return ok;
+	}
+
+	/**
+	 * Compute the offset of the encoded fields.
+	 * @return The fields by offset, or null if an error was reported.
+	 */
+	private List<Field> layout(TypeElement pType) {
+		List<Field> fields = new ArrayList<Field>();
+		Set<String> constants = new HashSet<String>();
+		boolean ok = true;
+		boolean hasLong = false;
+
+		// The fields of the superclasses first, Message only hold the tag
+		List<VariableElement> variables = new ArrayList<VariableElement>();
+		for (TypeElement type = pType; type != null && !type.getQualifiedName().contentEquals(MESSAGE_CLASS);
+				type = getSuperclass(type)) {
+			variables.addAll(0, ElementFilter.fieldsIn(type.getEnclosedElements()));
+		}
+		PackageElement messagePackage = processingEnv.getElementUtils().getPackageOf(pType);
+
+		for (VariableElement variable : variables) {
+			Set<Modifier> modifiers = variable.getModifiers();
+			if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) {
+				continue;
+			}
+
+			String name = variable.getSimpleName().toString();
+			TypeElement owner = (TypeElement)variable.getEnclosingElement();
+			String label = owner == pType ? name : name + " inherited from " + owner.getQualifiedName();
+			Field field;
+			switch (variable.asType().getKind()) {
+			case LONG: field = new Field(name, "long", 8); break;
+			case DOUBLE: field = new Field(name, "double", 8); break;
+			case INT: field = new Field(name, "int", 4); break;
+			case FLOAT: field = new Field(name, "float", 4); break;
+			case SHORT: field = new Field(name, "short", 2); break;
+			case CHAR: field = new Field(name, "char", 2); break;
+			case BYTE: field = new Field(name, "byte", 1); break;
+			case BOOLEAN: field = new Field(name, "boolean", 1); break;
+			default:
+				error(variable, "Field " + label + " can't be encoded, only primitive fields are (or mark it transient)");
+				ok = false;
+				continue;
+			}
+			if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL)) {
+				error(variable, "Field " + label + " is encoded, it can't be private or final");
+				ok = false;
+			} else if (owner != pType && !modifiers.contains(Modifier.PUBLIC)
+					&& !processingEnv.getElementUtils().getPackageOf(owner).equals(messagePackage)) {
+				// The codec is generated in the package of the message
+				error(pType, "Field " + label + " is encoded, it must be public or in the package of the message (or mark it transient)");
+				ok = false;
+			}
+			if (field.constant.equals("TAG_OFFSET") || !constants.add(field.constant)) {
+				error(variable, "Field " + label + " clash with another offset constant (" + field.constant + ")");
+				ok = false;
+			}
+			hasLong |= field.size == 8;
+			fields.add(field);
+		}
+		if (!ok) {
+			return null;
+		}
+
+		List<Field> placed = new ArrayList<Field>();
+		int offset = TAG_SIZE;
+		if (hasLong) {
+			// Fill the hole before the first 8 bytes field
+			for (int size = 4; size >= 1; size /= 2) {
+				for (Field field : fields) {
+					if (field.size == size && field.offset < 0 && align(offset, size) + size <= 8) {
+						offset = place(field, offset, placed);
+					}
+				}
+			}
+		}
+		for (int size = 8; size >= 1; size /= 2) {
+			for (Field field : fields) {
+				if (field.size == size && field.offset < 0) {
+					offset = place(field, offset, placed);
+				}
+			}
+		}
+		return placed;
+	}
+
+	/**
+	 * @return The superclass, or null for Object.
+	 */
+	private static TypeElement getSuperclass(TypeElement pType) {
+		TypeMirror superclass = pType.getSuperclass();
+		if (superclass.getKind() != TypeKind.DECLARED) {
+			return null;
+		}
+		return (TypeElement)((DeclaredType)superclass).asElement();
+	}
+
+	private static int place(Field pField, int pOffset, List<Field> pPlaced) {
+		pField.offset = align(pOffset, pField.size);
+		pPlaced.add(pField);
+		return pField.offset + pField.size;
+	}
+
+	private static int align(int pOffset, int pSize) {
+		return (pOffset + pSize - 1) & ~(pSize - 1);
+	}
+
+	/**
+	 * Write the codec source.
+	 */
+	private void generate(TypeElement pType, int pTid, List<Field> pFields) throws IOException {
+		String packageName = processingEnv.getElementUtils().getPackageOf(pType).getQualifiedName().toString();
+		String codecName = getCodecName(pType);
+		String message = pType.getQualifiedName().toString();
+		int size = TAG_SIZE;
+		for (Field field : pFields) {
+			size = Math.max(size, field.offset + field.size);
+		}
+
+		String qualifiedName = packageName.isEmpty() ? codecName : packageName + "." + codecName;
+		try (PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(qualifiedName, pType).openWriter())) {
+			if (!packageName.isEmpty()) {
+				out.println("package " + packageName + ";");
+				out.println();
+			}
+			out.println("/**");
+			out.println(" * Codec of " + message + ", generated by MessageCodecProcessor.");
+			out.println(" */");
+			out.println("public final class " + codecName + " {");
+			out.println();
+			out.println("\tpublic static final int TID = " + pTid + ";");
+			out.println();
+			out.println("\t/**");
+			out.println("\t * Encoded size in bytes, must fit in the record size.");
+			out.println("\t */");
+			out.println("\tpublic static final int SIZE = " + size + ";");
+			out.println();
+			out.println("\tpublic static final int TAG_OFFSET = 0;");
+			for (Field field : pFields) {
+				out.println("\tpublic static final int " + field.constant + " = " + field.offset + ";");
+			}
+			out.println();
+			out.println("\tprivate " + codecName + "() { }");
+			out.println();
+			out.println("\tpublic static void write(" + message + " pMessage, io.mappedbus.MemoryMappedFile pMem, long pPos) {");
+			out.println("\t\tpMem.putInt(pPos + TAG_OFFSET, pMessage.getTag());");
+			for (Field field : pFields) {
+				out.println("\t\t" + writeStatement(field) + ";");
+			}
+			out.println("\t}");
+			out.println();
+			out.println("\t/**");
+			out.println("\t * Read the fields.");
+			out.println("\t * @return The tag, to set by the message.");
+			out.println("\t */");
+			out.println("\tpublic static int read(" + message + " pMessage, io.mappedbus.MemoryMappedFile pMem, long pPos) {");
+			for (Field field : pFields) {
+				out.println("\t\tpMessage." + field.name + " = " + readExpression(field) + ";");
+			}
+			out.println("\t\treturn pMem.getInt(pPos + TAG_OFFSET);");
+			out.println("\t}");
+			out.println();
+			out.println("\t/**");
+			out.println("\t * Reserve a slot for the message in a task mailbox, see TaskSystem.tryClaim.");
+			out.println("\t * @return The claim to encode at the offsets above, or null to use send.");
+			out.println("\t */");
+			out.println("\tpublic static com.mpitaskframework.TaskSystem.MailboxClaim claim(int pTaskId) {");
+			out.println("\t\treturn com.mpitaskframework.TaskSystem.TaskSystem.getInstance().tryClaim(pTaskId, SIZE, TID);");
+			out.println("\t}");
+			out.println();
+			out.println("\t/**");
+			out.println("\t * Register the message type in the system, the size is checked against the record size.");
+			out.println("\t */");
+			out.println("\tpublic static void register() {");
+			out.println("\t\tcom.mpitaskframework.TaskSystem.TaskSystem.getInstance().registerMessageType(TID, SIZE, " + message + "::new);");
+			out.println("\t}");
+			out.println("}");
+		}
+	}
+
+	private static String writeStatement(Field pField) {
+		String at = "pPos + " + pField.constant;
+		String value = "pMessage." + pField.name;
+		switch (pField.kind) {
+		case "long": return "pMem.putLong(" + at + ", " + value + ")";
+		case "double": return "pMem.putLong(" + at + ", Double.doubleToRawLongBits(" + value + "))";
+		case "int": return "pMem.putInt(" + at + ", " + value + ")";
+		case "float": return "pMem.putInt(" + at + ", Float.floatToRawIntBits(" + value + "))";
+		case "short":
+		case "char": return "pMem.putByte(" + at + ", (byte)" + value + ");\n\t\tpMem.putByte(" + at + " + 1, (byte)(" + value + " >> 8))";
+		case "byte": return "pMem.putByte(" + at + ", " + value + ")";
+		default: return "pMem.putByte(" + at + ", (byte)(" + value + " ? 1 : 0))";
+		}
+	}
+
+	private static String readExpression(Field pField) {
+		String at = "pPos + " + pField.constant;
+		switch (pField.kind) {
+		case "long": return "pMem.getLong(" + at + ")";
+		case "double": return "Double.longBitsToDouble(pMem.getLong(" + at + "))";
+		case "int": return "pMem.getInt(" + at + ")";
+		case "float": return "Float.intBitsToFloat(pMem.getInt(" + at + "))";
+		case "short":
+		case "char": return "(" + pField.kind + ")((pMem.getByte(" + at + ") & 0xFF) | (pMem.getByte(" + at + " + 1) << 8))";
+		case "byte": return "pMem.getByte(" + at + ")";
+		default: return "pMem.getByte(" + at + ") != 0";
+		}
+	}
+
+	/**
+	 * @return Codec class name, the enclosing classes joined by '_' and "Codec".
+	 */
+	private static String getCodecName(TypeElement pType) {
+		StringBuilder name = new StringBuilder(pType.getSimpleName()).append("Codec");
+		for (Element e = pType.getEnclosingElement(); e instanceof TypeElement; e = e.getEnclosingElement()) {
+			name.insert(0, e.getSimpleName() + "_");
+		}
+		return name.toString();
+	}
+
+	/**
+	 * @return The field name in upper case, words separated by '_'.
+	 */
+	private static String toConstant(String pName) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < pName.length(); i++) {
+			char c = pName.charAt(i);
+			if (Character.isUpperCase(c) && i > 0 && !Character.isUpperCase(pName.charAt(i - 1))) {
+				sb.append('_');
+			}
+			sb.append(Character.toUpperCase(c));
+		}
+		return sb.toString();
+	}
+
+	private void error(Element pElement, String pMessage) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, pMessage, pElement);
+	}
+}
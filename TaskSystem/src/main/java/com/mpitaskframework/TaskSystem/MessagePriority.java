@@ -0,0 +1,30 @@
+package com.mpitaskframework.TaskSystem;
+
+/**
+ * Priority lane of a message. Each task have one queue per lane and the receive always look at the
+ * higher lanes first, so coordination messages (shutdown, cancel, ack) are not stuck behind a data backlog.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public enum MessagePriority {
+	
+	/**
+	 * Control messages : shutdown, cancel, acknowledges.
+	 */
+	CONTROL,
+	
+	/**
+	 * Latency sensitive messages.
+	 */
+	HIGH,
+	
+	/**
+	 * Default lane, the task queue itself.
+	 */
+	NORMAL;
+	
+	/**
+	 * Number of lanes with a priority over NORMAL.
+	 */
+	public static final int PRIORITY_LANE_COUNT = NORMAL.ordinal();
+}
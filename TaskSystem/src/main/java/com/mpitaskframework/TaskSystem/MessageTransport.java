@@ -0,0 +1,31 @@
+package com.mpitaskframework.TaskSystem;
+
+/**
+ * A transport that carry the messages of some task ids out of the process, instead of the local queues.
+ * TaskSystem.send give every message to the installed transport first (see TaskSystem.setTransport).
+ * UnixSocketTransport is one, it is built with the unix-sockets profile (Java 17).
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public interface MessageTransport {
+
+	/**
+	 * Send a message if its task is reached through this transport.
+	 * @param pMsg
+	 * @param pTaskId
+	 * @param pPriority
+	 * @return False if the task is local, the message is then written in the local queue.
+	 */
+	boolean send(Message pMsg, int pTaskId, MessagePriority pPriority);
+
+	/**
+	 * @param pTaskId
+	 * @return True if the task is reached through this transport.
+	 */
+	boolean isRouted(int pTaskId);
+
+	/**
+	 * Close the transport. Called by TaskSystem.destroy.
+	 */
+	void shutdown();
+}
@@ -0,0 +1,194 @@
+package com.mpitaskframework.TaskSystem.Messages;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reassemble the array messages of one queue. Fragments of different arrays can be interleaved when many
+ * tasks send to the same queue, each array is identified by the key written in its fragments.
+ * 
+ * An array that get no fragment for TIMEOUT_PROPERTY is dropped : its sender died or found the queue
+ * full in the middle of the array. The check is done when another array start.
+ * 
+ * Not thread-safe, used by the reader of the queue only.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class ArrayAssembler {
+	
+	/**
+	 * Milliseconds without a fragment after which a partial array is dropped (default 10000).
+	 */
+	public static final String TIMEOUT_PROPERTY = "mpitaskframework.arrayTimeout";
+	
+	private static final long TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong(TIMEOUT_PROPERTY, 10000L));
+	
+	/**
+	 * An array being received.
+	 */
+	private static class Partial {
+		final int kind;
+		final int tag;
+		final byte[] data;
+		int received;
+		long updated;
+		
+		Partial(int pKind, int pTag, int pTotal) {
+			this(pKind, pTag, new byte[pTotal], 0);
+		}
+		
+		Partial(int pKind, int pTag, byte[] pData, int pReceived) {
+			kind = pKind;
+			tag = pTag;
+			data = pData;
+			received = pReceived;
+			updated = System.nanoTime();
+		}
+	}
+	
+	/**
+	 * Arrays being received, by key.
+	 */
+	private final HashMap<Long, Partial> m_partials = new HashMap<Long, Partial>();
+	
+	/**
+	 * Fragment used to read every record of this queue.
+	 */
+	private final ArrayFragment m_fragment = new ArrayFragment(this);
+	
+	/**
+	 * Array of the fragment being read.
+	 */
+	private Partial m_current;
+	
+	/**
+	 * Last completed array, until polled.
+	 */
+	private ArrayMessage m_completed;
+	
+	/**
+	 * Time of the next check for stale arrays.
+	 */
+	private long m_nextSweep = System.nanoTime() + TIMEOUT_NANOS;
+	
+	/**
+	 * @return Fragment to pass to the queue reader.
+	 */
+	public ArrayFragment getFragment() {
+		return m_fragment;
+	}
+	
+	/**
+	 * Start reading a fragment. The reassembly buffer is allocated with the full size on the first fragment.
+	 * @param pKey Array key.
+	 * @param pKind Element kind.
+	 * @param pTag Tag.
+	 * @param pTotal Total size in bytes.
+	 * @return Reassembly buffer.
+	 */
+	byte[] begin(long pKey, int pKind, int pTag, int pTotal) {
+		long now = System.nanoTime();
+		m_current = m_partials.get(pKey);
+		if (m_current == null) {
+			if (!m_partials.isEmpty() && now - m_nextSweep >= 0) {
+				dropStale(now);
+			}
+			m_current = new Partial(pKind, pTag, pTotal);
+			m_partials.put(pKey, m_current);
+		}
+		m_current.updated = now;
+		return m_current.data;
+	}
+	
+	/**
+	 * Drop the arrays without a fragment for the timeout.
+	 * @param pNow
+	 */
+	private void dropStale(long pNow) {
+		m_nextSweep = pNow + TIMEOUT_NANOS;
+		Iterator<Partial> partials = m_partials.values().iterator();
+		while (partials.hasNext()) {
+			Partial p = partials.next();
+			if (pNow - p.updated > TIMEOUT_NANOS) {
+				System.err.println("ArrayAssembler, array with tag " + p.tag + " dropped after " + p.received + " of "
+						+ p.data.length + " bytes");
+				partials.remove();
+			}
+		}
+	}
+	
+	/**
+	 * End reading a fragment.
+	 * @param pKey Array key.
+	 * @param pCount Bytes copied.
+	 */
+	void received(long pKey, int pCount) {
+		m_current.received += pCount;
+		if (m_current.received >= m_current.data.length) {
+			m_partials.remove(pKey);
+			m_completed = ArrayMessage.create(m_current.kind, m_current.tag, m_current.data);
+		}
+		m_current = null;
+	}
+	
+	/**
+	 * Write the arrays being received, for a task that migrate : their next fragments are read by the
+	 * new incarnation.
+	 * @param pAssembler Assembler of the task, or null.
+	 * @param pOut
+	 * @throws IOException
+	 */
+	public static void writePartials(ArrayAssembler pAssembler, ObjectOutputStream pOut) throws IOException {
+		if (pAssembler == null) {
+			pOut.writeInt(0);
+			return;
+		}
+		pOut.writeInt(pAssembler.m_partials.size());
+		for (Map.Entry<Long, Partial> e : pAssembler.m_partials.entrySet()) {
+			Partial p = e.getValue();
+			pOut.writeLong(e.getKey());
+			pOut.writeInt(p.kind);
+			pOut.writeInt(p.tag);
+			pOut.writeInt(p.received);
+			pOut.writeObject(p.data);
+		}
+	}
+	
+	/**
+	 * Read the arrays written by writePartials.
+	 * @param pIn
+	 * @return The assembler, or null if there was no array being received.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static ArrayAssembler readPartials(ObjectInputStream pIn) throws IOException, ClassNotFoundException {
+		int count = pIn.readInt();
+		if (count == 0) {
+			return null;
+		}
+		ArrayAssembler assembler = new ArrayAssembler();
+		for (int i = 0; i < count; i++) {
+			long key = pIn.readLong();
+			int kind = pIn.readInt();
+			int tag = pIn.readInt();
+			int received = pIn.readInt();
+			assembler.m_partials.put(key, new Partial(kind, tag, (byte[])pIn.readObject(), received));
+		}
+		return assembler;
+	}
+	
+	/**
+	 * Return the array completed by the last fragment.
+	 * @return The array message, or null if the array is not complete.
+	 */
+	public ArrayMessage poll() {
+		ArrayMessage msg = m_completed;
+		m_completed = null;
+		return msg;
+	}
+}
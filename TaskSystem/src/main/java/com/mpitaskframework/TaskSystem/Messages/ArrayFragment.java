@@ -0,0 +1,105 @@
+package com.mpitaskframework.TaskSystem.Messages;
+
+import com.mpitaskframework.TaskSystem.Message;
+
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * One record of an array message. Only used by the system, the receiving task get the reassembled
+ * ArrayMessage.
+ * 
+ * Layout : INT tag, INT kind, LONG arrayKey, INT totalBytes, INT offsetBytes, INT countBytes, padding, data.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class ArrayFragment extends Message {
+	
+	public static final int ARRAYFRAGMENT_TID = 100;
+	
+	/**
+	 * Size of the fragment header. The data start on a 8 bytes boundary of the record.
+	 */
+	public static final int HEADER_SIZE = 32;
+	
+	/**
+	 * Sending side : array being sent and current range.
+	 */
+	private ArrayMessage m_source;
+	private long m_key;
+	private int m_first;
+	private int m_count;
+	
+	/**
+	 * Receiving side : assembler receiving the data.
+	 */
+	private final ArrayAssembler m_assembler;
+	
+	/**
+	 * Sending side constructor.
+	 * @param pSource Array being sent.
+	 * @param pKey Key unique to this array, used to reassemble fragments from different senders.
+	 */
+	public ArrayFragment(ArrayMessage pSource, long pKey) {
+		super(pSource.getTag(), ARRAYFRAGMENT_TID);
+		m_source = pSource;
+		m_key = pKey;
+		m_assembler = null;
+	}
+	
+	/**
+	 * Receiving side constructor.
+	 * @param pAssembler Assembler receiving the data.
+	 */
+	ArrayFragment(ArrayAssembler pAssembler) {
+		super(-1, ARRAYFRAGMENT_TID);
+		m_assembler = pAssembler;
+	}
+	
+	/**
+	 * Number of data bytes that fit in a record.
+	 * @param pRecordSize Queue record size.
+	 * @return Capacity in bytes, multiple of 8. Zero or less if the record is too small.
+	 */
+	public static int getDataCapacity(int pRecordSize) {
+		return ((pRecordSize - HEADER_SIZE) / Long.BYTES) * Long.BYTES;
+	}
+	
+	/**
+	 * Select the range of elements written by the next write.
+	 * @param pFirst First element.
+	 * @param pCount Number of elements.
+	 */
+	public void setRange(int pFirst, int pCount) {
+		m_first = pFirst;
+		m_count = pCount;
+	}
+
+	@Override
+	public void write(MemoryMappedFile mem, long pos) {
+		// In long, the senders check that the array is at most 2GB
+		long elementSize = m_source.getElementSize();
+		mem.putInt(pos, getTag());
+		mem.putInt(pos + 4, m_source.getElementKind());
+		mem.putLong(pos + 8, m_key);
+		mem.putInt(pos + 16, (int)m_source.getByteLength());
+		mem.putInt(pos + 20, (int)(m_first * elementSize));
+		mem.putInt(pos + 24, (int)(m_count * elementSize));
+		m_source.writeElements(mem, pos + HEADER_SIZE, m_first, m_count);
+	}
+
+	@Override
+	public void read(MemoryMappedFile mem, long pos) {
+		setTid(ARRAYFRAGMENT_TID);
+		setTag(mem.getInt(pos));
+		int kind = mem.getInt(pos + 4);
+		long key = mem.getLong(pos + 8);
+		int total = mem.getInt(pos + 16);
+		int offset = mem.getInt(pos + 20);
+		int count = mem.getInt(pos + 24);
+		
+		// Copy straight from the record to the reassembly buffer
+		byte[] target = m_assembler.begin(key, kind, getTag(), total);
+		mem.getBytes(pos + HEADER_SIZE, target, offset, count);
+		m_assembler.received(key, count);
+	}
+}
@@ -0,0 +1,161 @@
+package com.mpitaskframework.TaskSystem.Messages;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.mpitaskframework.TaskSystem.Message;
+
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * Base class of the primitive array messages. An array message is never written as a single record, the
+ * system split it in fragments (see ArrayFragment) that fit in the queue record and reassemble it on the
+ * receiving side.
+ * 
+ * On the receiving side, the elements are copied once from the queue into the reassembly buffer and
+ * exposed as a read-only view over that buffer.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public abstract class ArrayMessage extends Message {
+	
+	/**
+	 * Element kinds, written in each fragment.
+	 */
+	public static final int BYTE_KIND = 0;
+	public static final int INT_KIND = 1;
+	public static final int LONG_KIND = 2;
+	public static final int DOUBLE_KIND = 3;
+	
+	/**
+	 * Bytes of an IOService channel, see IODataMessage.
+	 */
+	public static final int IO_KIND = 4;
+	
+	/**
+	 * Received payload, in native order. Null on the sending side.
+	 */
+	private ByteBuffer m_payload;
+	
+	/**
+	 * Constructor.
+	 * @param pTag Tag.
+	 * @param pTid Unique message id.
+	 */
+	protected ArrayMessage(int pTag, int pTid) {
+		super(pTag, pTid);
+		m_payload = null;
+	}
+	
+	/**
+	 * Create a received message from the reassembled bytes.
+	 * @param pKind Element kind.
+	 * @param pTag Tag.
+	 * @param pData Reassembled bytes, in native order.
+	 * @return The message.
+	 */
+	static ArrayMessage create(int pKind, int pTag, byte[] pData) {
+		ArrayMessage msg;
+		switch (pKind) {
+		case BYTE_KIND:
+			msg = new ByteArrayMessage(pTag);
+			break;
+		case INT_KIND:
+			msg = new IntArrayMessage(pTag);
+			break;
+		case LONG_KIND:
+			msg = new LongArrayMessage(pTag);
+			break;
+		case DOUBLE_KIND:
+			msg = new DoubleArrayMessage(pTag);
+			break;
+		case IO_KIND:
+			msg = new IODataMessage(pTag);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown array kind : " + pKind);
+		}
+		msg.m_payload = ByteBuffer.wrap(pData).asReadOnlyBuffer();
+		return msg;
+	}
+	
+	/**
+	 * Size in bytes of an element.
+	 * @param pKind Element kind.
+	 * @return Element size.
+	 */
+	static int elementSize(int pKind) {
+		switch (pKind) {
+		case BYTE_KIND:
+		case IO_KIND:
+			return 1;
+		case INT_KIND:
+			return Integer.BYTES;
+		default:
+			return Long.BYTES;
+		}
+	}
+	
+	/**
+	 * Return the received bytes as a read-only view in native order.
+	 * @return Payload view, or null if the message was not received.
+	 */
+	protected ByteBuffer getPayload() {
+		return m_payload == null ? null : m_payload.duplicate().order(ByteOrder.nativeOrder());
+	}
+	
+	/**
+	 * @return True if this message come from a queue.
+	 */
+	protected boolean isReceived() {
+		return m_payload != null;
+	}
+	
+	/**
+	 * @return Element kind.
+	 */
+	public abstract int getElementKind();
+	
+	/**
+	 * @return Number of elements.
+	 */
+	public abstract int getLength();
+	
+	/**
+	 * Copy elements in the queue record.
+	 * @param mem Mapped queue.
+	 * @param pos Position of the first element.
+	 * @param pFirst Index of the first element to copy.
+	 * @param pCount Number of elements to copy.
+	 */
+	public abstract void writeElements(MemoryMappedFile mem, long pos, int pFirst, int pCount);
+	
+	/**
+	 * @return Size in bytes of an element.
+	 */
+	public int getElementSize() {
+		return elementSize(getElementKind());
+	}
+	
+	/**
+	 * @return Size in bytes of the elements, at most 2GB can be sent.
+	 */
+	public long getByteLength() {
+		return (long)getLength() * getElementSize();
+	}
+
+	/**
+	 * An array does not fit in one record. TaskSystem.send and the transports write it with ArrayFragment,
+	 * the array types are not registered (see TaskSystem.registerMessageType) so no reader call read : a
+	 * direct call is a programming error.
+	 */
+	@Override
+	public void write(MemoryMappedFile mem, long pos) {
+		throw new UnsupportedOperationException("Array messages are written as fragments, use TaskSystem.send");
+	}
+
+	@Override
+	public void read(MemoryMappedFile mem, long pos) {
+		throw new UnsupportedOperationException("Array messages are read as fragments, see ArrayAssembler");
+	}
+}
@@ -0,0 +1,65 @@
+package com.mpitaskframework.TaskSystem.Messages;
+
+import com.mpitaskframework.TaskSystem.Message;
+import com.mpitaskframework.TaskSystem.SharedBuffer;
+import com.mpitaskframework.TaskSystem.TaskSystem;
+
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * Handle of a shared buffer (see SharedBufferPool). Only the slab id and generation are queued, the
+ * recipient map the slab with open(). Each message created hold one reference of the slab, released by
+ * the recipient with SharedBuffer.release().
+ * The message fit in the default 8 bytes record : INT tag and slab, INT generation.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class BufferMessage extends Message {
+
+	public static final int BUFFERMESSAGE_TID = 107;
+
+	public int slab;
+	public int generation;
+
+	/**
+	 * Default constructor.
+	 */
+	public BufferMessage() {
+		super(-1, BUFFERMESSAGE_TID);
+	}
+
+	/**
+	 * Handle of a buffer, a reference is added for the recipient. If the send fail (queue full, no route)
+	 * the system release it, the message must not be sent again.
+	 * @param pTag Tag, 0 to 65535.
+	 * @param pBuffer Buffer.
+	 */
+	public BufferMessage(int pTag, SharedBuffer pBuffer) {
+		super(pTag, BUFFERMESSAGE_TID);
+		slab = pBuffer.getSlabId();
+		generation = pBuffer.getGeneration();
+		pBuffer.retain();
+	}
+
+	/**
+	 * Map the buffer in this process. The reference of the message is now owned by the caller.
+	 * @return The buffer, or null if it was freed.
+	 */
+	public SharedBuffer open() {
+		return TaskSystem.getInstance().getBufferPool().open(slab, generation);
+	}
+
+	@Override
+	public void write(MemoryMappedFile mem, long pos) {
+		mem.putInt(pos, (this.getTag() << 16) | slab);
+		mem.putInt(pos + 4, generation);
+	}
+
+	@Override
+	public void read(MemoryMappedFile mem, long pos) {
+		int word = mem.getInt(pos);
+		setTag(word >>> 16);
+		slab = word & 0xFFFF;
+		generation = mem.getInt(pos + 4);
+	}
+}
@@ -0,0 +1,97 @@
+package com.mpitaskframework.TaskSystem.Messages;
+
+import java.nio.ByteBuffer;
+
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * A message containing an array of byte. The array is not copied when the message is created, it must not
+ * be modified until the send returns.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class ByteArrayMessage extends ArrayMessage {
+	
+	public static final int BYTEARRAYMESSAGE_TID = 104;
+	
+	/**
+	 * Source array, null on the receiving side.
+	 */
+	private final byte[] m_values;
+	private final int m_offset;
+	private final int m_length;
+	
+	/**
+	 * Received message. See ArrayMessage.create.
+	 * @param pTag Tag.
+	 */
+	ByteArrayMessage(int pTag) {
+		super(pTag, BYTEARRAYMESSAGE_TID);
+		m_values = null;
+		m_offset = 0;
+		m_length = -1;
+	}
+	
+	/**
+	 * Send the whole array.
+	 * @param pTag Tag.
+	 * @param pValues Values.
+	 */
+	public ByteArrayMessage(int pTag, byte[] pValues) {
+		this(pTag, pValues, 0, pValues.length);
+	}
+	
+	/**
+	 * Send a range of the array.
+	 * @param pTag Tag.
+	 * @param pValues Values.
+	 * @param pOffset First element to send.
+	 * @param pLength Number of elements to send.
+	 */
+	public ByteArrayMessage(int pTag, byte[] pValues, int pOffset, int pLength) {
+		super(pTag, BYTEARRAYMESSAGE_TID);
+		m_values = pValues;
+		m_offset = pOffset;
+		m_length = pLength;
+	}
+	
+	/**
+	 * Return a read-only view of the values. On the receiving side, the view is over the reassembly
+	 * buffer, no copy is done.
+	 * @return Values.
+	 */
+	public ByteBuffer getValues() {
+		if (isReceived()) {
+			return getPayload();
+		}
+		return ByteBuffer.wrap(m_values, m_offset, m_length).slice().asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Copy the values in a new array.
+	 * @return Values.
+	 */
+	public byte[] toArray() {
+		byte[] values = new byte[getLength()];
+		getValues().get(values);
+		return values;
+	}
+
+	@Override
+	public int getElementKind() {
+		return BYTE_KIND;
+	}
+
+	@Override
+	public int getLength() {
+		if (isReceived()) {
+			return getPayload().remaining() / getElementSize();
+		}
+		return m_length;
+	}
+
+	@Override
+	public void writeElements(MemoryMappedFile mem, long pos, int pFirst, int pCount) {
+		mem.setBytes(pos, m_values, m_offset + pFirst, pCount);
+	}
+}
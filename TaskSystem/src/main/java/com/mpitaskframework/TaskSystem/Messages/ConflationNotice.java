@@ -0,0 +1,41 @@
+package com.mpitaskframework.TaskSystem.Messages;
+
+import com.mpitaskframework.TaskSystem.Message;
+
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * Queued when a slot of a conflating mailbox become dirty. Only used by the system, the receiving task
+ * get the latest message of the slot instead.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class ConflationNotice extends Message {
+
+	public static final int CONFLATIONNOTICE_TID = 105;
+
+	public int slot;
+
+	/**
+	 * Default constructor.
+	 */
+	public ConflationNotice() {
+		super(-1, CONFLATIONNOTICE_TID);
+		slot = -1;
+	}
+
+	public ConflationNotice(int pSlot) {
+		super(-1, CONFLATIONNOTICE_TID);
+		slot = pSlot;
+	}
+
+	@Override
+	public void write(MemoryMappedFile mem, long pos) {
+		mem.putInt(pos, slot);
+	}
+
+	@Override
+	public void read(MemoryMappedFile mem, long pos) {
+		slot = mem.getInt(pos);
+	}
+}
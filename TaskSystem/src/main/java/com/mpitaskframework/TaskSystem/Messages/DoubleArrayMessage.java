@@ -0,0 +1,99 @@
+package com.mpitaskframework.TaskSystem.Messages;
+
+import java.nio.DoubleBuffer;
+
+import com.mpitaskframework.TaskSystem.SharedMemory;
+
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * A message containing an array of double. The array is not copied when the message is created, it must not
+ * be modified until the send returns.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class DoubleArrayMessage extends ArrayMessage {
+	
+	public static final int DOUBLEARRAYMESSAGE_TID = 103;
+	
+	/**
+	 * Source array, null on the receiving side.
+	 */
+	private final double[] m_values;
+	private final int m_offset;
+	private final int m_length;
+	
+	/**
+	 * Received message. See ArrayMessage.create.
+	 * @param pTag Tag.
+	 */
+	DoubleArrayMessage(int pTag) {
+		super(pTag, DOUBLEARRAYMESSAGE_TID);
+		m_values = null;
+		m_offset = 0;
+		m_length = -1;
+	}
+	
+	/**
+	 * Send the whole array.
+	 * @param pTag Tag.
+	 * @param pValues Values.
+	 */
+	public DoubleArrayMessage(int pTag, double[] pValues) {
+		this(pTag, pValues, 0, pValues.length);
+	}
+	
+	/**
+	 * Send a range of the array.
+	 * @param pTag Tag.
+	 * @param pValues Values.
+	 * @param pOffset First element to send.
+	 * @param pLength Number of elements to send.
+	 */
+	public DoubleArrayMessage(int pTag, double[] pValues, int pOffset, int pLength) {
+		super(pTag, DOUBLEARRAYMESSAGE_TID);
+		m_values = pValues;
+		m_offset = pOffset;
+		m_length = pLength;
+	}
+	
+	/**
+	 * Return a read-only view of the values. On the receiving side, the view is over the reassembly
+	 * buffer, no copy is done.
+	 * @return Values.
+	 */
+	public DoubleBuffer getValues() {
+		if (isReceived()) {
+			return getPayload().asDoubleBuffer();
+		}
+		return DoubleBuffer.wrap(m_values, m_offset, m_length).slice().asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Copy the values in a new array.
+	 * @return Values.
+	 */
+	public double[] toArray() {
+		double[] values = new double[getLength()];
+		getValues().get(values);
+		return values;
+	}
+
+	@Override
+	public int getElementKind() {
+		return DOUBLE_KIND;
+	}
+
+	@Override
+	public int getLength() {
+		if (isReceived()) {
+			return getPayload().remaining() / getElementSize();
+		}
+		return m_length;
+	}
+
+	@Override
+	public void writeElements(MemoryMappedFile mem, long pos, int pFirst, int pCount) {
+		SharedMemory.putDoubles(mem, pos, m_values, m_offset + pFirst, pCount);
+	}
+}
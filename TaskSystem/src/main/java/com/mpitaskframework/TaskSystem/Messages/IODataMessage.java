@@ -0,0 +1,85 @@
+package com.mpitaskframework.TaskSystem.Messages;
+
+import java.nio.ByteBuffer;
+
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * Bytes of a channel of the IOService, the tag is the channel id. Sent by the service to the owner of the
+ * channel for each completed read, or by a task to the service to write on the channel. Sent as an array
+ * message, so the record size must leave room for the fragment header.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class IODataMessage extends ArrayMessage {
+
+	public static final int IODATAMESSAGE_TID = 109;
+
+	/**
+	 * Source array, null on the receiving side.
+	 */
+	private final byte[] m_values;
+	private final int m_offset;
+	private final int m_length;
+
+	/**
+	 * Received message. See ArrayMessage.create.
+	 * @param pChannel Channel id.
+	 */
+	IODataMessage(int pChannel) {
+		super(pChannel, IODATAMESSAGE_TID);
+		m_values = null;
+		m_offset = 0;
+		m_length = -1;
+	}
+
+	/**
+	 * Bytes of a channel. The array is not copied, it must not be modified until the send returns.
+	 * @param pChannel Channel id.
+	 * @param pValues Bytes.
+	 * @param pOffset First byte.
+	 * @param pLength Number of bytes.
+	 */
+	public IODataMessage(int pChannel, byte[] pValues, int pOffset, int pLength) {
+		super(pChannel, IODATAMESSAGE_TID);
+		m_values = pValues;
+		m_offset = pOffset;
+		m_length = pLength;
+	}
+
+	/**
+	 * @return Channel id.
+	 */
+	public int getChannel() {
+		return getTag();
+	}
+
+	/**
+	 * Return a read-only view of the bytes. On the receiving side, the view is over the reassembly buffer.
+	 * @return Bytes.
+	 */
+	public ByteBuffer getValues() {
+		if (isReceived()) {
+			return getPayload();
+		}
+		return ByteBuffer.wrap(m_values, m_offset, m_length).slice().asReadOnlyBuffer();
+	}
+
+	@Override
+	public int getElementKind() {
+		return IO_KIND;
+	}
+
+	@Override
+	public int getLength() {
+		if (isReceived()) {
+			return getPayload().remaining();
+		}
+		return m_length;
+	}
+
+	@Override
+	public void writeElements(MemoryMappedFile mem, long pos, int pFirst, int pCount) {
+		mem.setBytes(pos, m_values, m_offset + pFirst, pCount);
+	}
+}
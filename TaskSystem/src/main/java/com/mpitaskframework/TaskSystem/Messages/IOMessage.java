@@ -0,0 +1,66 @@
+package com.mpitaskframework.TaskSystem.Messages;
+
+import com.mpitaskframework.TaskSystem.Message;
+
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * Event of a channel of the IOService. The tag is the event, sent by the service to the owner of the
+ * channel, or CLOSE sent by a task to the service. The data of a channel is sent with IODataMessage.
+ * The message fit in the default 8 bytes record : INT event and value (24 bits), INT channel.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class IOMessage extends Message {
+
+	public static final int IOMESSAGE_TID = 108;
+
+	/**
+	 * Events. ACCEPTED is sent for a new connection of a listening channel (the value is the listening
+	 * channel), CLOSED is the last message of a channel, ERROR is followed by CLOSED.
+	 */
+	public static final int ACCEPTED = 0;
+	public static final int CONNECTED = 1;
+	public static final int CLOSED = 2;
+	public static final int ERROR = 3;
+
+	/**
+	 * Request, close the channel once its pending writes are done.
+	 */
+	public static final int CLOSE = 4;
+
+	public int channel;
+	public int value;
+
+	/**
+	 * Default constructor.
+	 */
+	public IOMessage() {
+		super(-1, IOMESSAGE_TID);
+	}
+
+	/**
+	 * @param pEvent Event.
+	 * @param pChannel Channel id.
+	 * @param pValue Value of the event, 0 to 2^24-1.
+	 */
+	public IOMessage(int pEvent, int pChannel, int pValue) {
+		super(pEvent, IOMESSAGE_TID);
+		channel = pChannel;
+		value = pValue;
+	}
+
+	@Override
+	public void write(MemoryMappedFile mem, long pos) {
+		mem.putInt(pos, (this.getTag() << 24) | (value & 0xFFFFFF));
+		mem.putInt(pos + 4, channel);
+	}
+
+	@Override
+	public void read(MemoryMappedFile mem, long pos) {
+		int word = mem.getInt(pos);
+		setTag(word >>> 24);
+		value = word & 0xFFFFFF;
+		channel = mem.getInt(pos + 4);
+	}
+}
@@ -0,0 +1,99 @@
+package com.mpitaskframework.TaskSystem.Messages;
+
+import java.nio.LongBuffer;
+
+import com.mpitaskframework.TaskSystem.SharedMemory;
+
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * A message containing an array of long. The array is not copied when the message is created, it must not
+ * be modified until the send returns.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class LongArrayMessage extends ArrayMessage {
+	
+	public static final int LONGARRAYMESSAGE_TID = 102;
+	
+	/**
+	 * Source array, null on the receiving side.
+	 */
+	private final long[] m_values;
+	private final int m_offset;
+	private final int m_length;
+	
+	/**
+	 * Received message. See ArrayMessage.create.
+	 * @param pTag Tag.
+	 */
+	LongArrayMessage(int pTag) {
+		super(pTag, LONGARRAYMESSAGE_TID);
+		m_values = null;
+		m_offset = 0;
+		m_length = -1;
+	}
+	
+	/**
+	 * Send the whole array.
+	 * @param pTag Tag.
+	 * @param pValues Values.
+	 */
+	public LongArrayMessage(int pTag, long[] pValues) {
+		this(pTag, pValues, 0, pValues.length);
+	}
+	
+	/**
+	 * Send a range of the array.
+	 * @param pTag Tag.
+	 * @param pValues Values.
+	 * @param pOffset First element to send.
+	 * @param pLength Number of elements to send.
+	 */
+	public LongArrayMessage(int pTag, long[] pValues, int pOffset, int pLength) {
+		super(pTag, LONGARRAYMESSAGE_TID);
+		m_values = pValues;
+		m_offset = pOffset;
+		m_length = pLength;
+	}
+	
+	/**
+	 * Return a read-only view of the values. On the receiving side, the view is over the reassembly
+	 * buffer, no copy is done.
+	 * @return Values.
+	 */
+	public LongBuffer getValues() {
+		if (isReceived()) {
+			return getPayload().asLongBuffer();
+		}
+		return LongBuffer.wrap(m_values, m_offset, m_length).slice().asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Copy the values in a new array.
+	 * @return Values.
+	 */
+	public long[] toArray() {
+		long[] values = new long[getLength()];
+		getValues().get(values);
+		return values;
+	}
+
+	@Override
+	public int getElementKind() {
+		return LONG_KIND;
+	}
+
+	@Override
+	public int getLength() {
+		if (isReceived()) {
+			return getPayload().remaining() / getElementSize();
+		}
+		return m_length;
+	}
+
+	@Override
+	public void writeElements(MemoryMappedFile mem, long pos, int pFirst, int pCount) {
+		SharedMemory.putLongs(mem, pos, m_values, m_offset + pFirst, pCount);
+	}
+}
@@ -0,0 +1,54 @@
+package com.mpitaskframework.TaskSystem.Messages;
+
+import com.mpitaskframework.TaskSystem.Message;
+
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * Migration protocol. MIGRATE is sent to a MigratableTask to move it to the process of an agent (id), ADOPT
+ * is sent by the moving task (id) to the agent once its state and mailbox are moved, STOP end an agent.
+ * The message fit in the default 8 bytes record : INT tag and id, INT epoch.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class MigrationMessage extends Message {
+
+	public static final int MIGRATIONMESSAGE_TID = 106;
+
+	/**
+	 * Tags.
+	 */
+	public static final int MIGRATE = 0;
+	public static final int ADOPT = 1;
+	public static final int STOP = 2;
+
+	public int id;
+	public int epoch;
+
+	/**
+	 * Default constructor.
+	 */
+	public MigrationMessage() {
+		super(-1, MIGRATIONMESSAGE_TID);
+	}
+
+	public MigrationMessage(int pTag, int pId, int pEpoch) {
+		super(pTag, MIGRATIONMESSAGE_TID);
+		id = pId;
+		epoch = pEpoch;
+	}
+
+	@Override
+	public void write(MemoryMappedFile mem, long pos) {
+		mem.putInt(pos, (this.getTag() << 16) | id);
+		mem.putInt(pos + 4, epoch);
+	}
+
+	@Override
+	public void read(MemoryMappedFile mem, long pos) {
+		int tagAndId = mem.getInt(pos);
+		setTag(tagAndId >>> 16);
+		id = tagAndId & 0xFFFF;
+		epoch = mem.getInt(pos + 4);
+	}
+}
@@ -18,6 +18,14 @@ public class NotifyMessage extends Message {
 		System.out.println("In static initializer");
 	}
 
+	/**
+	 * Default constructor.
+	 */
+	public NotifyMessage() {
+		super(-1, -1);
+		success = false;
+	}
+
 	protected NotifyMessage(int pTag, boolean pSuccess) {
 		super(pTag, NOTIFYMESSAGE_TID);
 		success = pSuccess;
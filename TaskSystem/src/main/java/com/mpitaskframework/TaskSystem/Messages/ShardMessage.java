@@ -0,0 +1,52 @@
+package com.mpitaskframework.TaskSystem.Messages;
+
+import com.mpitaskframework.TaskSystem.Message;
+
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * Handoff protocol of a sharded group, only used by the system (see ShardedGroup.resize). BEGIN tell a
+ * shard that gain keys how many STATE to wait for (value), HANDOFF tell a shard that lose keys to export
+ * them, STATE is sent by the shard that lose keys (value is its index) once its entries are in the inbox
+ * of the receiver.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class ShardMessage extends Message {
+
+	public static final int SHARDMESSAGE_TID = 110;
+
+	/**
+	 * Tags.
+	 */
+	public static final int BEGIN = 0;
+	public static final int HANDOFF = 1;
+	public static final int STATE = 2;
+
+	public int value;
+
+	/**
+	 * Default constructor.
+	 */
+	public ShardMessage() {
+		super(-1, SHARDMESSAGE_TID);
+		value = -1;
+	}
+
+	public ShardMessage(int pTag, int pValue) {
+		super(pTag, SHARDMESSAGE_TID);
+		value = pValue;
+	}
+
+	@Override
+	public void write(MemoryMappedFile mem, long pos) {
+		mem.putInt(pos, this.getTag());
+		mem.putInt(pos + 4, value);
+	}
+
+	@Override
+	public void read(MemoryMappedFile mem, long pos) {
+		setTag(mem.getInt(pos));
+		value = mem.getInt(pos + 4);
+	}
+}
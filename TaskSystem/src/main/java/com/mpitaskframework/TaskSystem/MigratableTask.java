@@ -0,0 +1,77 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.io.Serializable;
+
+import com.mpitaskframework.TaskSystem.Messages.MigrationMessage;
+
+/**
+ * A task that can move to another process while the senders keep using its id. See
+ * TaskSystem.requestMigration.
+ *
+ * The task move between two messages : when getNextMessage get a migration request, the task fields are
+ * serialized, the messages waiting in its queue are moved to a new incarnation of the queue and the
+ * thread stop. In the new process, start() is called again with the restored fields, so start() must
+ * resume from the fields (ex : loop until a counter reach a value) instead of assuming a fresh task.
+ * The fields of the subclass must be serializable, transient fields are lost.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public abstract class MigratableTask extends Task implements Serializable {
+
+	private static final long serialVersionUID = 3161573830561358711L;
+
+	/**
+	 * Stop the thread of a task that moved. Thrown through start() and caught by run().
+	 */
+	private static class Moved extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Constructor. The task get a route.
+	 */
+	public MigratableTask() {
+		super();
+		TaskSystem.getInstance().getRouter().register(getTaskId());
+	}
+
+	/**
+	 * Called in the new process, before start() is called again. Reopen the transient resources here.
+	 */
+	protected void moved() { }
+
+	/**
+	 * Wait for the next message, and move if it is a migration request.
+	 */
+	@Override
+	protected Message getNextMessage() {
+		Message msg = super.getNextMessage();
+		while (msg instanceof MigrationMessage && msg.getTag() == MigrationMessage.MIGRATE) {
+			if (TaskSystem.getInstance().migrate(this, ((MigrationMessage)msg).id)) {
+				throw new Moved();
+			}
+			msg = super.getNextMessage();
+		}
+		return msg;
+	}
+
+	/**
+	 * Thread "main" entry.
+	 */
+	@Override
+	public void run() {
+		try {
+			super.run();
+		} catch (Moved e) {
+			// Running in the new process now
+		}
+	}
+
+	/**
+	 * Entry of the thread created by the agent in the new process.
+	 */
+	void resume() {
+		moved();
+		run();
+	}
+}
@@ -0,0 +1,58 @@
+package com.mpitaskframework.TaskSystem;
+
+import com.mpitaskframework.TaskSystem.Messages.MigrationMessage;
+
+/**
+ * Receive the tasks moving to this process. Create one agent per process that can host moved tasks,
+ * and give its id to the process deciding the moves (ex : to move the hot tasks to the least loaded
+ * process). The agent stop on a STOP migration message.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class MigrationAgent extends Task {
+
+	private boolean m_stop;
+
+	/**
+	 * Constructor. The agent get a route, used to find its process.
+	 */
+	public MigrationAgent() {
+		super();
+		TaskSystem.getInstance().getRouter().register(getTaskId());
+	}
+
+	@Override
+	protected void initialize() {
+		m_stop = false;
+	}
+
+	@Override
+	public void start() {
+		while (!m_stop) {
+			receive();
+		}
+	}
+
+	@Override
+	public void receive() {
+		Message msg = this.getNextMessage();
+
+		if (!(msg instanceof MigrationMessage)) {
+			System.out.println("Received unsuported message");
+			return;
+		}
+
+		MigrationMessage migration = (MigrationMessage)msg;
+		switch (migration.getTag()) {
+		case MigrationMessage.ADOPT:
+			TaskSystem.getInstance().adoptTask(migration.id, migration.epoch);
+			break;
+		case MigrationMessage.STOP:
+			m_stop = true;
+			break;
+		default:
+			System.out.println("Received unsuported message");
+			break;
+		}
+	}
+}
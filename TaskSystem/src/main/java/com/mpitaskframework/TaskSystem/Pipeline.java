@@ -0,0 +1,352 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A chain of processing stages (parse -> enrich -> aggregate) declared once and run on tasks. The
+ * adjacent stages with a parallelism of 1 are fused on one task : a message go through them with plain
+ * calls, without encoding, queue write or wakeup. A stage with a larger parallelism run alone on a pool
+ * of workers competing on one queue, the order of the messages is then not kept.
+ *
+ * A fused task check its backlog every CHECK_INTERVAL messages. When the queue hold more than the split
+ * backlog, the fused stages are the bottleneck and the task is split : the heaviest stage is moved with
+ * the stages after it to a new task, or only the stages after it if it is the first one. The stages keep
+ * their state and the order is kept. Each stage count its messages and busy time, see getReport().
+ *
+ * The pipeline is local to the process that start it, like a TaskPool. Messages are sent to the id
+ * returned by start(), the output of the last stage go to the task given to to(). stop() end the tasks.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class Pipeline {
+
+	/**
+	 * A processing step.
+	 */
+	@FunctionalInterface
+	public interface Stage {
+		/**
+		 * Process a message.
+		 * @param pMsg Input message.
+		 * @return Message for the next stage, or null to drop it.
+		 */
+		Message process(Message pMsg);
+	}
+
+	/**
+	 * Messages between two bottleneck checks of a fused task.
+	 */
+	public static final int CHECK_INTERVAL = 1024;
+
+	/**
+	 * Default backlog over which a fused task is split.
+	 */
+	public static final long DEFAULT_SPLIT_BACKLOG = 256;
+
+	/**
+	 * A declared stage and its counters.
+	 */
+	private static class StageInfo {
+		final String m_name;
+		final int m_parallelism;
+		final Supplier<? extends Stage> m_factory;
+		final LongAdder m_count = new LongAdder();
+		final LongAdder m_busy = new LongAdder();
+
+		/**
+		 * Task running the stage, or pool id.
+		 */
+		volatile int m_taskId = -1;
+
+		StageInfo(String pName, int pParallelism, Supplier<? extends Stage> pFactory) {
+			m_name = pName;
+			m_parallelism = pParallelism;
+			m_factory = pFactory;
+		}
+	}
+
+	private final String m_name;
+	private final List<StageInfo> m_stages = new ArrayList<StageInfo>();
+	private final AtomicInteger m_splits = new AtomicInteger(0);
+	private int m_sinkId = -1;
+	private boolean m_fusion = true;
+	private long m_splitBacklog = DEFAULT_SPLIT_BACKLOG;
+	private int m_entryId = -1;
+	private long m_startTime;
+	private volatile boolean m_stopped = false;
+
+	/**
+	 * @param pName Pipeline name, for the report.
+	 */
+	public Pipeline(String pName) {
+		m_name = pName;
+	}
+
+	/**
+	 * Add a stage run by one task.
+	 * @param pName Stage name.
+	 * @param pStage Stage.
+	 * @return This pipeline.
+	 */
+	public Pipeline stage(String pName, Stage pStage) {
+		return stage(pName, 1, () -> pStage);
+	}
+
+	/**
+	 * Add a stage run by a pool of workers, each one with its own stage instance.
+	 * @param pName Stage name.
+	 * @param pParallelism Number of workers.
+	 * @param pFactory Stage factory, called once per worker.
+	 * @return This pipeline.
+	 */
+	public Pipeline stage(String pName, int pParallelism, Supplier<? extends Stage> pFactory) {
+		if (m_entryId >= 0) {
+			throw new IllegalStateException("Pipeline " + m_name + " already started");
+		}
+		if (pParallelism < 1) {
+			throw new IllegalArgumentException("Parallelism of stage " + pName + " must be at least 1");
+		}
+		m_stages.add(new StageInfo(pName, pParallelism, pFactory));
+		return this;
+	}
+
+	/**
+	 * Send the output of the last stage to a task. Without it, the output is dropped.
+	 * @param pTaskId Task id.
+	 * @return This pipeline.
+	 */
+	public Pipeline to(int pTaskId) {
+		m_sinkId = pTaskId;
+		return this;
+	}
+
+	/**
+	 * Fuse the adjacent stages, true by default. Without fusion every stage has its own task.
+	 * @param pFusion
+	 * @return This pipeline.
+	 */
+	public Pipeline fusion(boolean pFusion) {
+		m_fusion = pFusion;
+		return this;
+	}
+
+	/**
+	 * Backlog over which a fused task is split, 0 to never split.
+	 * @param pBacklog Messages.
+	 * @return This pipeline.
+	 */
+	public Pipeline splitBacklog(long pBacklog) {
+		m_splitBacklog = pBacklog;
+		return this;
+	}
+
+	/**
+	 * Create the tasks, from the last stage to the first.
+	 * @return Id to send the messages to.
+	 */
+	public int start() {
+		if (m_stages.isEmpty()) {
+			throw new IllegalStateException("Pipeline " + m_name + " has no stage");
+		}
+		if (m_entryId >= 0) {
+			return m_entryId;
+		}
+
+		m_startTime = System.nanoTime();
+		int downstream = m_sinkId;
+		int end = m_stages.size();
+		while (end > 0) {
+			StageInfo last = m_stages.get(end - 1);
+			if (last.m_parallelism > 1) {
+				final int to = downstream;
+				final int index = end - 1;
+				downstream = TaskPool.createPool(TaskPool.Mode.SHARED_QUEUE, last.m_parallelism,
+						() -> new Segment(index, new Stage[] { last.m_factory.get() }, to, false));
+				last.m_taskId = downstream;
+				end--;
+				continue;
+			}
+
+			int begin = end - 1;
+			while (m_fusion && begin > 0 && m_stages.get(begin - 1).m_parallelism == 1) {
+				begin--;
+			}
+			Stage[] stages = new Stage[end - begin];
+			for (int i = 0; i < stages.length; i++) {
+				stages[i] = m_stages.get(begin + i).m_factory.get();
+			}
+			Segment segment = new Segment(begin, stages, downstream, m_splitBacklog > 0);
+			for (int i = begin; i < end; i++) {
+				m_stages.get(i).m_taskId = segment.getTaskId();
+			}
+			downstream = Task.createTask(segment);
+			end = begin;
+		}
+
+		m_entryId = downstream;
+		return m_entryId;
+	}
+
+	/**
+	 * Stop the tasks of the pipeline, the messages not processed yet are left in the queues.
+	 */
+	public void stop() {
+		m_stopped = true;
+	}
+
+	/**
+	 * @return Id to send the messages to, -1 before start.
+	 */
+	public int getEntryId() {
+		return m_entryId;
+	}
+
+	/**
+	 * @return Number of fused tasks split since the start.
+	 */
+	public int getSplitCount() {
+		return m_splits.get();
+	}
+
+	/**
+	 * Report of each stage : task (or pool), messages, busy time, throughput when busy and load (busy
+	 * time over elapsed time, per worker). The stage with the highest load is the bottleneck.
+	 * @return Report, one line per stage.
+	 */
+	public String getReport() {
+		double elapsed = Math.max(1, System.nanoTime() - m_startTime);
+		int bottleneck = -1;
+		double maxLoad = -1;
+		for (int i = 0; i < m_stages.size(); i++) {
+			StageInfo info = m_stages.get(i);
+			double load = info.m_busy.sum() / (elapsed * info.m_parallelism);
+			if (load > maxLoad) {
+				maxLoad = load;
+				bottleneck = i;
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Pipeline %s : %d stages, %d splits, %.3f s%n", m_name, m_stages.size(), m_splits.get(), elapsed / 1e9));
+		sb.append(String.format("  %-16s %-10s %12s %10s %14s %6s%n", "stage", "task", "messages", "busy ms", "msg/s busy", "load"));
+		for (int i = 0; i < m_stages.size(); i++) {
+			StageInfo info = m_stages.get(i);
+			long count = info.m_count.sum();
+			long busy = info.m_busy.sum();
+			String task = info.m_parallelism > 1 ? info.m_taskId + "x" + info.m_parallelism : Integer.toString(info.m_taskId);
+			sb.append(String.format("  %-16s %-10s %12d %10d %14.0f %5.1f%%%s%n", info.m_name, task, count, busy / 1000000,
+					busy > 0 ? count * 1e9 / busy : 0.0, 100.0 * busy / (elapsed * info.m_parallelism), i == bottleneck ? " *" : ""));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Task running consecutive stages.
+	 */
+	private class Segment extends Task {
+
+		/**
+		 * Index of the first stage in the pipeline.
+		 */
+		private final int m_first;
+		private final Stage[] m_segmentStages;
+		private final long[] m_window;
+		private final boolean m_splittable;
+
+		/**
+		 * Stages run by this task, the others were split.
+		 */
+		private int m_count;
+		private int m_downstream;
+		private int m_sinceCheck;
+
+		Segment(int pFirst, Stage[] pStages, int pDownstream, boolean pSplittable) {
+			m_first = pFirst;
+			m_segmentStages = pStages;
+			m_window = new long[pStages.length];
+			m_splittable = pSplittable;
+			m_count = pStages.length;
+			m_downstream = pDownstream;
+		}
+
+		@Override
+		protected void initialize() {
+			m_sinceCheck = 0;
+		}
+
+		@Override
+		public void start() {
+			while (!m_stopped) {
+				receive();
+			}
+		}
+
+		@Override
+		public void receive() {
+			Message msg = TaskSystem.getInstance().receive(getMailboxId());
+			if (msg == null) {
+				message_wait();
+				return;
+			}
+
+			long time = System.nanoTime();
+			for (int i = 0; i < m_count && msg != null; i++) {
+				msg = m_segmentStages[i].process(msg);
+				long now = System.nanoTime();
+				StageInfo info = m_stages.get(m_first + i);
+				info.m_count.increment();
+				info.m_busy.add(now - time);
+				m_window[i] += now - time;
+				time = now;
+			}
+			if (msg != null && m_downstream >= 0) {
+				send(msg, m_downstream);
+			}
+
+			if (m_splittable && m_count > 1 && ++m_sinceCheck == CHECK_INTERVAL) {
+				m_sinceCheck = 0;
+				checkBottleneck();
+			}
+		}
+
+		/**
+		 * Split the task if its queue is backing up.
+		 */
+		private void checkBottleneck() {
+			if (TaskSystem.getInstance().getMailboxDepth(getMailboxId()) > m_splitBacklog) {
+				int heaviest = 0;
+				for (int i = 1; i < m_count; i++) {
+					if (m_window[i] > m_window[heaviest]) {
+						heaviest = i;
+					}
+				}
+				split(heaviest > 0 ? heaviest : 1);
+			}
+			for (int i = 0; i < m_count; i++) {
+				m_window[i] = 0;
+			}
+		}
+
+		/**
+		 * Move the stages from pAt to a new task, placed between this task and its downstream.
+		 * @param pAt First stage moved, relative to this task.
+		 */
+		private void split(int pAt) {
+			Stage[] moved = new Stage[m_count - pAt];
+			System.arraycopy(m_segmentStages, pAt, moved, 0, moved.length);
+			Segment tail = new Segment(m_first + pAt, moved, m_downstream, true);
+			for (int i = pAt; i < m_count; i++) {
+				m_stages.get(m_first + i).m_taskId = tail.getTaskId();
+			}
+
+			// Messages already processed by this task are in the downstream queue, the order is kept
+			m_downstream = Task.createTask(tail);
+			m_count = pAt;
+			m_splits.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.mpitaskframework.TaskSystem.Messages.ShardMessage;
+
+/**
+ * A shard of a ShardedGroup. The state of the keys owned by the shard is kept with putState and getState,
+ * it move with the keys when the group is resized. The handoff is done by getNextMessage, between two
+ * messages : start() only see the messages of the keys it own, with their state already there.
+ *
+ * A shard removed by a resize stop at its next receive, after its keys are exported.
+ * @param <S> State of one key.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public abstract class ShardTask<S> extends Task {
+
+	/**
+	 * Stop the thread of a retired shard. Thrown through start() and caught by run().
+	 */
+	private static class Retired extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Group of the shard, and index of the shard in the group.
+	 */
+	private ShardedGroup m_group;
+	private int m_index;
+
+	/**
+	 * State of the owned keys.
+	 */
+	private final HashMap<Long, S> m_state;
+
+	/**
+	 * Entries exported to this shard, one map per STATE message.
+	 */
+	private final ConcurrentLinkedQueue<Map<Long, ?>> m_inbox;
+
+	/**
+	 * Number of STATE still expected, and messages received meanwhile.
+	 */
+	private int m_waiting;
+	private final ArrayDeque<Message> m_held;
+
+	/**
+	 * Constructor.
+	 */
+	public ShardTask() {
+		super();
+		m_state = new HashMap<Long, S>();
+		m_inbox = new ConcurrentLinkedQueue<Map<Long, ?>>();
+		m_waiting = 0;
+		m_held = new ArrayDeque<Message>();
+	}
+
+	/**
+	 * Called by the group before the shard is started.
+	 * @param pGroup
+	 * @param pIndex
+	 */
+	void join(ShardedGroup pGroup, int pIndex) {
+		m_group = pGroup;
+		m_index = pIndex;
+	}
+
+	/**
+	 * Return the state of a key.
+	 * @param pKey
+	 * @return State, or null if the key has none.
+	 */
+	protected S getState(long pKey) {
+		return m_state.get(pKey);
+	}
+
+	/**
+	 * Set the state of a key.
+	 * @param pKey
+	 * @param pState
+	 */
+	protected void putState(long pKey, S pState) {
+		m_state.put(pKey, pState);
+	}
+
+	/**
+	 * Remove the state of a key.
+	 * @param pKey
+	 * @return Removed state, or null.
+	 */
+	protected S removeState(long pKey) {
+		return m_state.remove(pKey);
+	}
+
+	/**
+	 * @return Read-only view of the state of the owned keys.
+	 */
+	protected Map<Long, S> getStates() {
+		return Collections.unmodifiableMap(m_state);
+	}
+
+	/**
+	 * @return Index of this shard in its group.
+	 */
+	public int getShardIndex() {
+		return m_index;
+	}
+
+	/**
+	 * @return Group of this shard.
+	 */
+	public ShardedGroup getGroup() {
+		return m_group;
+	}
+
+	/**
+	 * Wait for the next message, and run the handoff protocol. While the shard wait for the state of the
+	 * keys it gain, the messages are held and replayed in order once the state is there.
+	 */
+	@Override
+	protected Message getNextMessage() {
+		while (true) {
+			if (m_waiting == 0 && !m_held.isEmpty()) {
+				return m_held.poll();
+			}
+
+			Message msg = super.getNextMessage();
+			if (msg instanceof ShardMessage) {
+				handoff((ShardMessage)msg);
+			} else if (m_waiting > 0) {
+				m_held.add(msg);
+			} else {
+				return msg;
+			}
+		}
+	}
+
+	/**
+	 * Run one step of the handoff protocol, see ShardedGroup.
+	 * @param pMsg
+	 */
+	private void handoff(ShardMessage pMsg) {
+		switch (pMsg.getTag()) {
+		case ShardMessage.BEGIN:
+			m_waiting += pMsg.value;
+			break;
+		case ShardMessage.HANDOFF:
+			export();
+			if (m_index >= m_group.getShardCount()) {
+				TaskSystem.getInstance().deleteMessageQueue(getTaskId());
+				throw new Retired();
+			}
+			break;
+		case ShardMessage.STATE:
+			@SuppressWarnings("unchecked")
+			Map<Long, S> entries = (Map<Long, S>)m_inbox.poll();
+			m_state.putAll(entries);
+			if (--m_waiting == 0) {
+				m_group.imported();
+			}
+			break;
+		default:
+			System.err.println("Shard " + getTaskId() + " received an unknown handoff step : " + pMsg.getTag());
+			break;
+		}
+	}
+
+	/**
+	 * Move the entries of the keys this shard no longer own to the inbox of their new shard. Every gainer
+	 * get a STATE, even without entries, so it know when it has everything.
+	 */
+	private void export() {
+		int[] gainers = m_group.getGainers(m_index);
+		HashMap<Integer, HashMap<Long, S>> outboxes = new HashMap<Integer, HashMap<Long, S>>();
+		for (int gainer : gainers) {
+			outboxes.put(gainer, new HashMap<Long, S>());
+		}
+
+		int count = 0;
+		Iterator<Map.Entry<Long, S>> it = m_state.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, S> entry = it.next();
+			int owner = m_group.getShard(entry.getKey());
+			if (owner == m_index) {
+				continue;
+			}
+			HashMap<Long, S> outbox = outboxes.get(owner);
+			if (outbox == null) {
+				System.err.println("Shard " + getTaskId() + ", key " + entry.getKey() + " moved to an unexpected shard " + owner);
+				continue;
+			}
+			outbox.put(entry.getKey(), entry.getValue());
+			it.remove();
+			count++;
+		}
+		m_group.exported(count);
+
+		for (int gainer : gainers) {
+			ShardTask<?> shard = m_group.getShardTask(gainer);
+			shard.m_inbox.add(outboxes.get(gainer));
+			send(new ShardMessage(ShardMessage.STATE, m_index), shard.getTaskId());
+		}
+	}
+
+	/**
+	 * Thread "main" entry.
+	 */
+	@Override
+	public void run() {
+		try {
+			super.run();
+		} catch (Retired e) {
+			// Keys handed to the other shards
+		}
+	}
+}
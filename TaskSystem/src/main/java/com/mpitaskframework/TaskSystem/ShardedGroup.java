@@ -0,0 +1,396 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+import com.mpitaskframework.TaskSystem.Messages.ShardMessage;
+
+/**
+ * A group of shard tasks behind a single id. Senders give a key with each message (see
+ * TaskSystem.send(key, msg, groupId)) and every message of a key reach the same shard, so the state of
+ * a key is only touched by one thread and need no lock. The group is local to the process that created it.
+ *
+ * Keys are placed with consistent hashing : each shard own VIRTUAL_NODES points on a ring of 64 bits
+ * hashes and a key belong to the first point after its hash. Adding a shard only take keys from the
+ * others and removing one only give its keys away, about 1/S of the keys move on a resize.
+ *
+ * Resize handoff :
+ * 1) The shards that gain keys get BEGIN, from then they hold their messages until they have the state.
+ * 2) The new ring is published, new sends go to the new owners.
+ * 3) Once the sends that read the old ring are written, the shards that lose keys get HANDOFF : their
+ *    messages for the moved keys are all before it in their queue. They export the moved entries and
+ *    send STATE to each gainer.
+ * 4) A gainer import the entries on each STATE, then replay the messages it was holding.
+ * The messages of a key stay in order through a resize.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class ShardedGroup {
+
+	/**
+	 * Points of each shard on the ring.
+	 */
+	public static final int VIRTUAL_NODES = 64;
+
+	/**
+	 * Distance between the in-flight counters of two shards, in longs, so they are not on the same cache line.
+	 */
+	private static final int PAD = 16;
+
+	/**
+	 * Id used by the senders.
+	 */
+	private final int m_groupId;
+
+	/**
+	 * Shard factory, used when the group grow.
+	 */
+	private final Supplier<? extends ShardTask<?>> m_factory;
+
+	/**
+	 * Current ring. Replaced, never modified.
+	 */
+	private volatile Ring m_ring;
+
+	/**
+	 * Every shard task, indexed by shard index. Replaced on a resize, the retired shards are removed at the end.
+	 */
+	private volatile ShardTask<?>[] m_shards;
+
+	/**
+	 * Gainers of each losing shard during a resize, indexed by shard index (null if the shard lose nothing).
+	 */
+	private volatile int[][] m_gainers;
+
+	/**
+	 * Counted down by each gainer once it has all its state.
+	 */
+	private volatile CountDownLatch m_handoffDone;
+
+	/**
+	 * Number of keys moved by the last resize.
+	 */
+	private final AtomicLong m_movedKeys;
+
+	/**
+	 * Placement of the keys for one shard count.
+	 */
+	static final class Ring {
+
+		/**
+		 * Sorted points and the shard index owning each point.
+		 */
+		final long[] m_points;
+		final int[] m_owners;
+
+		/**
+		 * Task id of each shard.
+		 */
+		final int[] m_shardIds;
+
+		/**
+		 * Sends in progress on each shard with this ring, see send.
+		 */
+		final AtomicLongArray m_inFlight;
+
+		Ring(int[] pShardIds) {
+			int count = pShardIds.length;
+			m_shardIds = pShardIds;
+			m_inFlight = new AtomicLongArray(count * PAD);
+
+			long[] points = new long[count * VIRTUAL_NODES];
+			for (int i = 0; i < count; i++) {
+				for (int v = 0; v < VIRTUAL_NODES; v++) {
+					points[i * VIRTUAL_NODES + v] = mix64(((long)i << 32) | v);
+				}
+			}
+
+			// Sort the points with their owner, an index is sorted in the same order as its point
+			Integer[] order = new Integer[points.length];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, (a, b) -> Long.compare(points[a], points[b]));
+			m_points = new long[points.length];
+			m_owners = new int[points.length];
+			for (int i = 0; i < order.length; i++) {
+				m_points[i] = points[order[i]];
+				m_owners[i] = order[i] / VIRTUAL_NODES;
+			}
+		}
+
+		/**
+		 * Return the shard owning a hash : the owner of the first point at or after it, wrapping at the end.
+		 * @param pHash
+		 * @return Shard index.
+		 */
+		int getOwner(long pHash) {
+			int index = Arrays.binarySearch(m_points, pHash);
+			if (index < 0) {
+				index = -index - 1;
+			}
+			return m_owners[index == m_points.length ? 0 : index];
+		}
+
+		int getShardCount() {
+			return m_shardIds.length;
+		}
+	}
+
+	/**
+	 * Private constructor, use createGroup.
+	 * @param pGroupId Group id.
+	 * @param pFactory Shard factory.
+	 */
+	private ShardedGroup(int pGroupId, Supplier<? extends ShardTask<?>> pFactory) {
+		m_groupId = pGroupId;
+		m_factory = pFactory;
+		m_shards = new ShardTask<?>[0];
+		m_movedKeys = new AtomicLong();
+	}
+
+	/**
+	 * Create a sharded group and return the group id. Shards are created with the factory and started
+	 * like any other task.
+	 * @param pShardCount Number of shards.
+	 * @param pFactory Shard factory.
+	 * @return Group id.
+	 */
+	public static int createGroup(int pShardCount, Supplier<? extends ShardTask<?>> pFactory) {
+		if (pShardCount < 1) {
+			System.err.println("createGroup, a group need at least one shard : " + pShardCount);
+			return -1;
+		}
+
+		TaskSystem system = TaskSystem.getInstance();
+		ShardedGroup group = new ShardedGroup(system.getNextTaskId(), pFactory);
+		int[] ids = new int[pShardCount];
+		for (int i = 0; i < pShardCount; i++) {
+			ids[i] = group.addShard(i);
+		}
+		group.m_ring = new Ring(ids);
+
+		system.registerGroup(group);
+		return group.m_groupId;
+	}
+
+	/**
+	 * Create and start a shard.
+	 * @param pIndex Shard index.
+	 * @return Task id of the shard.
+	 */
+	private int addShard(int pIndex) {
+		ShardTask<?> shard = m_factory.get();
+		shard.join(this, pIndex);
+		ShardTask<?>[] shards = Arrays.copyOf(m_shards, pIndex + 1);
+		shards[pIndex] = shard;
+		m_shards = shards;
+		return Task.createTask(shard);
+	}
+
+	/**
+	 * Send a message to the shard owning a key. The send is counted on the shard while it is written, so
+	 * a resize know when the sends that read the old ring are done.
+	 * @param pKey
+	 * @param pMsg
+	 */
+	void send(long pKey, Message pMsg) {
+		long hash = mix64(pKey);
+		while (true) {
+			Ring ring = m_ring;
+			int shard = ring.getOwner(hash);
+			ring.m_inFlight.incrementAndGet(shard * PAD);
+			try {
+				if (ring == m_ring) {
+					TaskSystem.getInstance().send(pMsg, ring.m_shardIds[shard]);
+					return;
+				}
+			} finally {
+				ring.m_inFlight.decrementAndGet(shard * PAD);
+			}
+			// Resized between the read and the count, use the new ring
+		}
+	}
+
+	/**
+	 * Change the number of shards and move the keys to their new owner. Return once every moved key is
+	 * in its new shard, sends continue during the resize. A shard of this group must not call it, it
+	 * would wait for itself.
+	 * @param pShardCount New number of shards.
+	 * @return Number of keys moved.
+	 */
+	public synchronized long resize(int pShardCount) {
+		Ring old = m_ring;
+		int oldCount = old.getShardCount();
+		if (pShardCount < 1 || pShardCount == oldCount) {
+			return 0;
+		}
+
+		int[] ids = Arrays.copyOf(old.m_shardIds, pShardCount);
+		for (int i = oldCount; i < pShardCount; i++) {
+			ids[i] = addShard(i);
+		}
+		Ring ring = new Ring(ids);
+
+		// A range of hashes end at a point of either ring, its owners are the owners of that point
+		boolean[][] moves = new boolean[oldCount][pShardCount];
+		for (Ring points : new Ring[] { old, ring }) {
+			for (long point : points.m_points) {
+				int from = old.getOwner(point);
+				int to = ring.getOwner(point);
+				if (from != to) {
+					moves[from][to] = true;
+				}
+			}
+		}
+
+		int[][] gainers = new int[oldCount][];
+		int[] expected = new int[pShardCount];
+		int gainerCount = 0;
+		for (int from = 0; from < oldCount; from++) {
+			int count = 0;
+			for (int to = 0; to < pShardCount; to++) {
+				if (moves[from][to]) {
+					count++;
+				}
+			}
+			if (count == 0) {
+				continue;
+			}
+			gainers[from] = new int[count];
+			count = 0;
+			for (int to = 0; to < pShardCount; to++) {
+				if (moves[from][to]) {
+					gainers[from][count++] = to;
+					if (expected[to]++ == 0) {
+						gainerCount++;
+					}
+				}
+			}
+		}
+
+		m_gainers = gainers;
+		m_movedKeys.set(0);
+		CountDownLatch done = new CountDownLatch(gainerCount);
+		m_handoffDone = done;
+
+		TaskSystem system = TaskSystem.getInstance();
+		for (int to = 0; to < pShardCount; to++) {
+			if (expected[to] > 0) {
+				system.send(new ShardMessage(ShardMessage.BEGIN, expected[to]), ids[to]);
+			}
+		}
+
+		m_ring = ring;
+
+		for (int from = 0; from < oldCount; from++) {
+			if (gainers[from] == null) {
+				continue;
+			}
+			while (old.m_inFlight.get(from * PAD) != 0) {
+				Thread.yield(); // A send with the old ring is being written
+			}
+			system.send(new ShardMessage(ShardMessage.HANDOFF, 0), old.m_shardIds[from]);
+		}
+
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			System.err.println("Resize of group " + m_groupId + " interrupted");
+			Thread.currentThread().interrupt();
+		}
+
+		m_shards = Arrays.copyOf(m_shards, pShardCount);
+		m_gainers = null;
+		return m_movedKeys.get();
+	}
+
+	/**
+	 * Return the shard index owning a key.
+	 * @param pKey
+	 * @return Shard index.
+	 */
+	public int getShard(long pKey) {
+		return m_ring.getOwner(mix64(pKey));
+	}
+
+	/**
+	 * Return the shards that gain keys from a shard during a resize.
+	 * @param pIndex Losing shard.
+	 * @return Gainer indexes.
+	 */
+	int[] getGainers(int pIndex) {
+		int[][] gainers = m_gainers;
+		return gainers == null || pIndex >= gainers.length || gainers[pIndex] == null ? new int[0] : gainers[pIndex];
+	}
+
+	/**
+	 * Return a shard task, to deliver its entries.
+	 * @param pIndex
+	 * @return Shard.
+	 */
+	ShardTask<?> getShardTask(int pIndex) {
+		return m_shards[pIndex];
+	}
+
+	/**
+	 * Called by a shard that lose keys once they are exported.
+	 * @param pCount Number of keys exported.
+	 */
+	void exported(int pCount) {
+		m_movedKeys.addAndGet(pCount);
+	}
+
+	/**
+	 * Called by a shard that gain keys once it has all its state.
+	 */
+	void imported() {
+		m_handoffDone.countDown();
+	}
+
+	/**
+	 * @return Group id.
+	 */
+	public int getGroupId() {
+		return m_groupId;
+	}
+
+	/**
+	 * @return Current number of shards.
+	 */
+	public int getShardCount() {
+		return m_ring.getShardCount();
+	}
+
+	/**
+	 * @return Copy of the shard task ids, indexed by shard index.
+	 */
+	public int[] getShardIds() {
+		return m_ring.m_shardIds.clone();
+	}
+
+	/**
+	 * @return Number of keys moved by the last resize.
+	 */
+	public long getMovedKeys() {
+		return m_movedKeys.get();
+	}
+
+	/**
+	 * Mix the bits of a key (murmur3 finalizer), close keys end far apart on the ring.
+	 * @param pKey
+	 * @return Hash.
+	 */
+	static long mix64(long pKey) {
+		long h = pKey;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
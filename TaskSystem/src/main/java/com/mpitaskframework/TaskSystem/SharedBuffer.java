@@ -0,0 +1,126 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A slab of the SharedBufferPool mapped in this process. Every holder (the allocating task, each recipient
+ * of a BufferMessage) own one reference and call release() when done, the buffer must not be used after :
+ * the slab is unmapped from this process. An access after release throw an IllegalStateException instead
+ * of reading unmapped memory, but a ByteBuffer from asByteBuffer is not checked and must be dropped before.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class SharedBuffer {
+
+	private final SharedBufferPool m_pool;
+	private final int m_slab;
+	private final int m_generation;
+	private final SharedMemory m_memory;
+	private volatile boolean m_released = false;
+
+	SharedBuffer(SharedBufferPool pPool, int pSlab, int pGeneration, SharedMemory pMemory) {
+		m_pool = pPool;
+		m_slab = pSlab;
+		m_generation = pGeneration;
+		m_memory = pMemory;
+	}
+
+	/**
+	 * @return Slab id, part of the handle.
+	 */
+	public int getSlabId() {
+		return m_slab;
+	}
+
+	/**
+	 * @return Generation of the slab, part of the handle.
+	 */
+	public int getGeneration() {
+		return m_generation;
+	}
+
+	/**
+	 * @return Size in bytes.
+	 */
+	public long getSize() {
+		return m_memory.getSize();
+	}
+
+	public byte getByte(long pPos) {
+		checkOpen();
+		return m_memory.getByte(pPos);
+	}
+
+	public void putByte(long pPos, byte pValue) {
+		checkOpen();
+		m_memory.putByte(pPos, pValue);
+	}
+
+	public int getInt(long pPos) {
+		checkOpen();
+		return m_memory.getInt(pPos);
+	}
+
+	public void putInt(long pPos, int pValue) {
+		checkOpen();
+		m_memory.putInt(pPos, pValue);
+	}
+
+	public long getLong(long pPos) {
+		checkOpen();
+		return m_memory.getLong(pPos);
+	}
+
+	public void putLong(long pPos, long pValue) {
+		checkOpen();
+		m_memory.putLong(pPos, pValue);
+	}
+
+	public void getBytes(long pPos, byte[] pData, int pOffset, int pLength) {
+		checkOpen();
+		m_memory.getBytes(pPos, pData, pOffset, pLength);
+	}
+
+	public void putBytes(long pPos, byte[] pData, int pOffset, int pLength) {
+		checkOpen();
+		m_memory.putBytes(pPos, pData, pOffset, pLength);
+	}
+
+	/**
+	 * @return A ByteBuffer view of the whole slab, in native order.
+	 */
+	public ByteBuffer asByteBuffer() {
+		checkOpen();
+		return m_memory.asByteBuffer();
+	}
+
+	/**
+	 * Add a reference. Done by BufferMessage for each handle sent.
+	 */
+	public void retain() {
+		checkOpen();
+		m_pool.retain(m_slab);
+	}
+
+	/**
+	 * Drop the reference of this holder and unmap the slab, the slab is freed with the last reference.
+	 */
+	public synchronized void release() {
+		if (m_released) {
+			System.err.println("SharedBuffer, slab " + m_slab + " already released");
+			return;
+		}
+		m_released = true;
+		m_pool.release(m_slab);
+		m_memory.close();
+	}
+
+	/**
+	 * Fail before touching a slab that is unmapped.
+	 */
+	private void checkOpen() {
+		if (m_released) {
+			throw new IllegalStateException("SharedBuffer, slab " + m_slab + " is released");
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Pool of shared buffers (slabs) passed by handle between tasks of any attached process. A task allocate
+ * a slab, fill it and send a BufferMessage : the recipients map the same file, nothing is copied in the
+ * queues. Each slab has a reference count in the shared slab table, the slab file is deleted when the
+ * count drop to 0.
+ *
+ * The slab table (TS_SLABS) has one 64 bytes entry per slab : LONG size, INT references, INT state,
+ * INT generation. The generation change each time an entry is reused, so a stale handle is detected.
+ * A slab is one mapping, limited to 2GB.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class SharedBufferPool {
+
+	/**
+	 * Maximum number of live slabs.
+	 */
+	public static final int MAX_SLABS = 4096;
+
+	/**
+	 * Prefix of the slab files, followed by the slab id.
+	 */
+	public static final String SLAB_PREFIX = "TS_SLAB_";
+
+	private static final int ENTRY_SIZE = 64;
+	private static final int SIZE_OFFSET = 0;
+	private static final int REFERENCES_OFFSET = 8;
+	private static final int STATE_OFFSET = 12;
+	private static final int GENERATION_OFFSET = 16;
+
+	/**
+	 * Entry states.
+	 */
+	private static final int EMPTY = 0;
+	private static final int CLAIMING = 1;
+	private static final int USED = 2;
+	private static final int FREEING = 3;
+
+	private final SharedMemory m_table;
+
+	/**
+	 * Open the slab table.
+	 * @param pPath Table file.
+	 * @param pCreate True for the system creator, the table and the slabs left by a previous system are
+	 * deleted.
+	 * @throws IOException
+	 */
+	public SharedBufferPool(String pPath, boolean pCreate) throws IOException {
+		if (pCreate) {
+			new File(pPath).delete();
+			File[] slabs = new File(TaskSystem.SHARED_ROOT).listFiles((dir, name) -> name.startsWith(SLAB_PREFIX));
+			if (slabs != null) {
+				for (File f : slabs) {
+					f.delete();
+				}
+			}
+		}
+		m_table = new SharedMemory(pPath, SharedMemoryConfig.align((long)MAX_SLABS * ENTRY_SIZE));
+	}
+
+	/**
+	 * Allocate a slab. The caller own one reference.
+	 * @param pSize Size in bytes.
+	 * @return The buffer, or null if there is no slab left or the file can't be created.
+	 */
+	public SharedBuffer allocate(long pSize) {
+		if (pSize <= 0 || pSize > Integer.MAX_VALUE) {
+			System.err.println("SharedBufferPool, invalid slab size " + pSize);
+			return null;
+		}
+
+		for (int slab = 0; slab < MAX_SLABS; slab++) {
+			long entry = (long)slab * ENTRY_SIZE;
+			if (m_table.getIntVolatile(entry + STATE_OFFSET) != EMPTY
+					|| !m_table.compareAndSwapInt(entry + STATE_OFFSET, EMPTY, CLAIMING)) {
+				continue;
+			}
+
+			String path = getSlabPath(slab);
+			SharedMemory memory;
+			try {
+				new File(path).delete();
+				SharedMemoryConfig.preallocate(path, pSize, false);
+				memory = new SharedMemory(path, pSize);
+			} catch (IOException e) {
+				System.err.println("SharedBufferPool, failed to create " + path + " : " + e.getMessage());
+				m_table.putIntVolatile(entry + STATE_OFFSET, EMPTY);
+				return null;
+			}
+
+			int generation = m_table.getInt(entry + GENERATION_OFFSET);
+			m_table.putLong(entry + SIZE_OFFSET, pSize);
+			m_table.putIntVolatile(entry + REFERENCES_OFFSET, 1);
+			m_table.putIntVolatile(entry + STATE_OFFSET, USED);
+			return new SharedBuffer(this, slab, generation, memory);
+		}
+
+		System.err.println("SharedBufferPool, no slab left (" + MAX_SLABS + ")");
+		return null;
+	}
+
+	/**
+	 * Map a slab received by handle. The reference of the handle is now owned by the caller.
+	 * @param pSlab Slab id.
+	 * @param pGeneration Generation of the handle.
+	 * @return The buffer, or null if the slab was freed.
+	 */
+	public SharedBuffer open(int pSlab, int pGeneration) {
+		if (pSlab < 0 || pSlab >= MAX_SLABS) {
+			return null;
+		}
+		long entry = (long)pSlab * ENTRY_SIZE;
+		if (m_table.getIntVolatile(entry + STATE_OFFSET) != USED || m_table.getInt(entry + GENERATION_OFFSET) != pGeneration) {
+			System.err.println("SharedBufferPool, slab " + pSlab + " was freed");
+			return null;
+		}
+
+		long size = m_table.getLong(entry + SIZE_OFFSET);
+		try {
+			return new SharedBuffer(this, pSlab, pGeneration, new SharedMemory(getSlabPath(pSlab), size));
+		} catch (IOException e) {
+			System.err.println("SharedBufferPool, failed to map slab " + pSlab + " : " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Add a reference, for a handle being sent.
+	 * @param pSlab
+	 */
+	void retain(int pSlab) {
+		m_table.getAndAddInt((long)pSlab * ENTRY_SIZE + REFERENCES_OFFSET, 1);
+	}
+
+	/**
+	 * Drop a reference. The last one delete the slab file and free the entry.
+	 * @param pSlab
+	 */
+	void release(int pSlab) {
+		long entry = (long)pSlab * ENTRY_SIZE;
+		int left = m_table.getAndAddInt(entry + REFERENCES_OFFSET, -1) - 1;
+		if (left > 0) {
+			return;
+		}
+		if (left < 0) {
+			System.err.println("SharedBufferPool, slab " + pSlab + " released too many times");
+			return;
+		}
+
+		m_table.putIntVolatile(entry + STATE_OFFSET, FREEING);
+		new File(getSlabPath(pSlab)).delete(); // Each holder unmapped its own mapping (SharedBuffer.release)
+		m_table.putInt(entry + GENERATION_OFFSET, m_table.getInt(entry + GENERATION_OFFSET) + 1);
+		m_table.putIntVolatile(entry + STATE_OFFSET, EMPTY);
+	}
+
+	/**
+	 * @param pSlab
+	 * @return References of a slab, 0 if it is free.
+	 */
+	public int getReferences(int pSlab) {
+		long entry = (long)pSlab * ENTRY_SIZE;
+		return m_table.getIntVolatile(entry + STATE_OFFSET) == USED ? m_table.getIntVolatile(entry + REFERENCES_OFFSET) : 0;
+	}
+
+	/**
+	 * Build the path to a slab.
+	 * Format : <SHARED_ROOT>/TS_SLAB_<SLAB_ID>
+	 * @param pSlab
+	 * @return
+	 */
+	private static String getSlabPath(int pSlab) {
+		return new String(TaskSystem.SHARED_ROOT + "/" + SLAB_PREFIX + pSlab);
+	}
+}
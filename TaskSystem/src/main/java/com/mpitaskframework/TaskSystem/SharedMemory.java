@@ -0,0 +1,215 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+
+import io.mappedbus.MemoryMappedFile;
+import sun.misc.Unsafe;
+
+/**
+ * Shared file mapped in memory, with the volatile and atomic operations needed to build lock-free
+ * structures between processes (the MappedBus file only expose plain reads and writes).
+ *
+ * Offsets are relative to the start of the mapping and are not checked. The mapping is released by the
+ * garbage collector, an instance must be kept as long as it is used, or by close() for a mapping that
+ * must go now (ex : a shared buffer).
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class SharedMemory {
+
+	private static final Unsafe UNSAFE;
+	private static final long ADDRESS_OFFSET;
+	private static final long FILE_ADDRESS_OFFSET;
+
+	static {
+		Unsafe unsafe = null;
+		long addressOffset = 0;
+		long fileAddressOffset = 0;
+		try {
+			Field f = Unsafe.class.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			unsafe = (Unsafe)f.get(null);
+			addressOffset = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+			// MemoryMappedFile only copy byte arrays, the other arrays are copied at its address
+			fileAddressOffset = unsafe.objectFieldOffset(MemoryMappedFile.class.getDeclaredField("addr"));
+		} catch (Exception e) {
+			System.err.println("SharedMemory, Unsafe is not available : " + e.getMessage());
+			System.exit(-1);
+		}
+		UNSAFE = unsafe;
+		ADDRESS_OFFSET = addressOffset;
+		FILE_ADDRESS_OFFSET = fileAddressOffset;
+	}
+
+	private final MappedByteBuffer m_buffer;
+	private final long m_address;
+	private final long m_size;
+	private boolean m_closed = false;
+
+	/**
+	 * Map a file, created if needed.
+	 * @param pPath File path.
+	 * @param pSize Mapped size.
+	 * @throws IOException
+	 */
+	public SharedMemory(String pPath, long pSize) throws IOException {
+		try (FileChannel channel = FileChannel.open(new File(pPath).toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+			m_buffer = channel.map(MapMode.READ_WRITE, 0, pSize);
+		}
+		m_address = UNSAFE.getLong(m_buffer, ADDRESS_OFFSET);
+		m_size = pSize;
+	}
+
+	/**
+	 * Unmap the file now instead of waiting for the garbage collector. Any access after, from this
+	 * instance or from a view of asByteBuffer, crash the process.
+	 */
+	public synchronized void close() {
+		if (m_closed) {
+			return;
+		}
+		m_closed = true;
+		UNSAFE.invokeCleaner(m_buffer);
+	}
+
+	/**
+	 * @return Mapped size.
+	 */
+	public long getSize() {
+		return m_size;
+	}
+
+	/**
+	 * @return A ByteBuffer view of the mapping, in native order.
+	 */
+	public ByteBuffer asByteBuffer() {
+		return m_buffer.duplicate().order(ByteOrder.nativeOrder());
+	}
+
+	public byte getByte(long pPos) {
+		return UNSAFE.getByte(m_address + pPos);
+	}
+
+	public void putByte(long pPos, byte pValue) {
+		UNSAFE.putByte(m_address + pPos, pValue);
+	}
+
+	public int getInt(long pPos) {
+		return UNSAFE.getInt(m_address + pPos);
+	}
+
+	public void putInt(long pPos, int pValue) {
+		UNSAFE.putInt(m_address + pPos, pValue);
+	}
+
+	public long getLong(long pPos) {
+		return UNSAFE.getLong(m_address + pPos);
+	}
+
+	public void putLong(long pPos, long pValue) {
+		UNSAFE.putLong(m_address + pPos, pValue);
+	}
+
+	public int getIntVolatile(long pPos) {
+		return UNSAFE.getIntVolatile(null, m_address + pPos);
+	}
+
+	public void putIntVolatile(long pPos, int pValue) {
+		UNSAFE.putIntVolatile(null, m_address + pPos, pValue);
+	}
+
+	public long getLongVolatile(long pPos) {
+		return UNSAFE.getLongVolatile(null, m_address + pPos);
+	}
+
+	public void putLongVolatile(long pPos, long pValue) {
+		UNSAFE.putLongVolatile(null, m_address + pPos, pValue);
+	}
+
+	/**
+	 * Store with release semantic only, cheaper than putLongVolatile. Used to publish a position.
+	 */
+	public void putLongOrdered(long pPos, long pValue) {
+		UNSAFE.putOrderedLong(null, m_address + pPos, pValue);
+	}
+
+	public boolean compareAndSwapInt(long pPos, int pExpected, int pValue) {
+		return UNSAFE.compareAndSwapInt(null, m_address + pPos, pExpected, pValue);
+	}
+
+	public boolean compareAndSwapLong(long pPos, long pExpected, long pValue) {
+		return UNSAFE.compareAndSwapLong(null, m_address + pPos, pExpected, pValue);
+	}
+
+	public int getAndAddInt(long pPos, int pDelta) {
+		return UNSAFE.getAndAddInt(null, m_address + pPos, pDelta);
+	}
+
+	public long getAndAddLong(long pPos, long pDelta) {
+		return UNSAFE.getAndAddLong(null, m_address + pPos, pDelta);
+	}
+
+	public void getBytes(long pPos, byte[] pData, int pOffset, int pLength) {
+		UNSAFE.copyMemory(null, m_address + pPos, pData, Unsafe.ARRAY_BYTE_BASE_OFFSET + pOffset, pLength);
+	}
+
+	public void putBytes(long pPos, byte[] pData, int pOffset, int pLength) {
+		UNSAFE.copyMemory(pData, Unsafe.ARRAY_BYTE_BASE_OFFSET + pOffset, null, m_address + pPos, pLength);
+	}
+
+	/**
+	 * Copy ints in a MappedBus file in one copy, in the order of putInt.
+	 * @param pFile
+	 * @param pPos Offset in the file.
+	 * @param pValues
+	 * @param pFirst First value copied.
+	 * @param pCount Number of values.
+	 */
+	public static void putInts(MemoryMappedFile pFile, long pPos, int[] pValues, int pFirst, int pCount) {
+		UNSAFE.copyMemory(pValues, Unsafe.ARRAY_INT_BASE_OFFSET + ((long)pFirst << 2), null,
+				UNSAFE.getLong(pFile, FILE_ADDRESS_OFFSET) + pPos, (long)pCount << 2);
+	}
+
+	/**
+	 * Copy longs in a MappedBus file in one copy, in the order of putLong.
+	 * @param pFile
+	 * @param pPos Offset in the file.
+	 * @param pValues
+	 * @param pFirst First value copied.
+	 * @param pCount Number of values.
+	 */
+	public static void putLongs(MemoryMappedFile pFile, long pPos, long[] pValues, int pFirst, int pCount) {
+		UNSAFE.copyMemory(pValues, Unsafe.ARRAY_LONG_BASE_OFFSET + ((long)pFirst << 3), null,
+				UNSAFE.getLong(pFile, FILE_ADDRESS_OFFSET) + pPos, (long)pCount << 3);
+	}
+
+	/**
+	 * Copy doubles in a MappedBus file in one copy, as the raw bits written by putLong.
+	 * @param pFile
+	 * @param pPos Offset in the file.
+	 * @param pValues
+	 * @param pFirst First value copied.
+	 * @param pCount Number of values.
+	 */
+	public static void putDoubles(MemoryMappedFile pFile, long pPos, double[] pValues, int pFirst, int pCount) {
+		UNSAFE.copyMemory(pValues, Unsafe.ARRAY_DOUBLE_BASE_OFFSET + ((long)pFirst << 3), null,
+				UNSAFE.getLong(pFile, FILE_ADDRESS_OFFSET) + pPos, (long)pCount << 3);
+	}
+
+	/**
+	 * Order the loads before the fence with the loads after it. Used by the seqlock readers.
+	 */
+	public static void loadFence() {
+		UNSAFE.loadFence();
+	}
+}
@@ -0,0 +1,294 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Configuration of the shared space used by the system and the task queues. Every value can be
+ * overridden with a system property (-Dmpitaskframework.xxx=value).
+ *
+ * The shared root default to tmpfs (/dev/shm) when available, /tmp otherwise. On many hosts /tmp is
+ * disk-backed and the page faults and writeback end up on the message path.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public final class SharedMemoryConfig {
+
+	/**
+	 * Directory containing the system and the task queues files.
+	 */
+	public static final String ROOT_PROPERTY = "mpitaskframework.sharedRoot";
+
+	/**
+	 * Size in bytes of a task queue file.
+	 */
+	public static final String QUEUE_SIZE_PROPERTY = "mpitaskframework.queueSize";
+
+	/**
+	 * Size in bytes of a queue record (the mailbox slot).
+	 */
+	public static final String RECORD_SIZE_PROPERTY = "mpitaskframework.recordSize";
+
+	/**
+	 * True to touch every page of a queue file when it is created (default true).
+	 */
+	public static final String PRETOUCH_PROPERTY = "mpitaskframework.pretouch";
+
+	/**
+	 * True to round the shared file sizes up to a multiple of the huge page size (default false). The
+	 * system does not map huge pages itself : the kernel back the files with huge pages only when the
+	 * shared root is a tmpfs mounted with huge=always or huge=within_size (see checkHugePages).
+	 */
+	public static final String HUGE_PAGES_PROPERTY = "mpitaskframework.hugePages";
+
+	/**
+	 * Ids of the tasks of a new system start after this one (default 0). Systems that do not share their
+	 * files but exchange messages (see UnixSocketTransport) must use disjoint ids.
+	 */
+	public static final String FIRST_TASK_ID_PROPERTY = "mpitaskframework.firstTaskId";
+
+	/**
+	 * Size in bytes of the mailbox arena (default 0, one file per queue). When set, the queues of the new
+	 * tasks are allocated in a single shared file, see MailboxArena. Limited to 2GB.
+	 */
+	public static final String ARENA_SIZE_PROPERTY = "mpitaskframework.arenaSize";
+
+	/**
+	 * Size in bytes of each log of an arena mailbox (default : the queue size). A mailbox hold one log per
+	 * lane, a smaller log fit more mailboxes in the arena.
+	 */
+	public static final String ARENA_LOG_SIZE_PROPERTY = "mpitaskframework.arenaLogSize";
+
+	/**
+	 * Default tmpfs location.
+	 */
+	public static final String TMPFS_ROOT = "/dev/shm";
+
+	/**
+	 * Fallback location.
+	 */
+	public static final String TMP_ROOT = "/tmp";
+
+	/**
+	 * Default queue size, in bytes.
+	 */
+	public static final long DEFAULT_QUEUE_SIZE = 100000L;
+
+	/**
+	 * Default record size, in bytes.
+	 */
+	public static final int DEFAULT_RECORD_SIZE = 8;
+
+	/**
+	 * Regular page size.
+	 */
+	public static final int PAGE_SIZE = 4096;
+
+	/**
+	 * Huge page size (x86_64).
+	 */
+	public static final int HUGE_PAGE_SIZE = 2 * 1024 * 1024;
+
+	/**
+	 * MappedBus queue layout : LONG limit (write position), then the records. A record is the header
+	 * (status flags and message type) followed by the record size.
+	 */
+	public static final int MAPPEDBUS_DATA_OFFSET = 8;
+	public static final int MAPPEDBUS_RECORD_HEADER = 8;
+
+	/**
+	 * Size of the mapping window used to pre-touch a file. A single mapping is limited to 2GB.
+	 */
+	private static final long PRETOUCH_WINDOW = 256L * 1024 * 1024;
+
+	/**
+	 * Static only.
+	 */
+	private SharedMemoryConfig() { }
+
+	/**
+	 * Return the shared root directory. Use the property if present, otherwise /dev/shm if it is
+	 * a writable directory, otherwise /tmp.
+	 * @return Shared root path without trailing separator.
+	 */
+	public static String getSharedRoot() {
+		String root = System.getProperty(ROOT_PROPERTY);
+		if (root != null && !root.isEmpty()) {
+			return root.endsWith(File.separator) ? root.substring(0, root.length() - 1) : root;
+		}
+
+		File tmpfs = new File(TMPFS_ROOT);
+		if (tmpfs.isDirectory() && tmpfs.canWrite()) {
+			return TMPFS_ROOT;
+		}
+		return TMP_ROOT;
+	}
+
+	/**
+	 * Queue size requested by the configuration, aligned on the page size.
+	 * @return Queue size in bytes.
+	 */
+	public static long getQueueSize() {
+		return align(Long.getLong(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE));
+	}
+
+	/**
+	 * Record size requested by the configuration.
+	 * @return Record size in bytes.
+	 */
+	public static int getRecordSize() {
+		return Integer.getInteger(RECORD_SIZE_PROPERTY, DEFAULT_RECORD_SIZE);
+	}
+
+	/**
+	 * Task id after which the ids of a new system start.
+	 * @return Task id.
+	 */
+	public static int getFirstTaskId() {
+		return Integer.getInteger(FIRST_TASK_ID_PROPERTY, 0);
+	}
+
+	/**
+	 * Mailbox arena size requested by the configuration, aligned on the page size.
+	 * @return Arena size in bytes, 0 if the queues use their own files.
+	 */
+	public static long getArenaSize() {
+		return align(Long.getLong(ARENA_SIZE_PROPERTY, 0));
+	}
+
+	/**
+	 * Log size of the arena mailboxes requested by the configuration, aligned on the page size.
+	 * @param pQueueSize Queue size, the default.
+	 * @return Log size in bytes.
+	 */
+	public static long getArenaLogSize(long pQueueSize) {
+		return align(Long.getLong(ARENA_LOG_SIZE_PROPERTY, pQueueSize));
+	}
+
+	/**
+	 * @return True if queue files must be pre-touched at creation.
+	 */
+	public static boolean isPretouchEnabled() {
+		return Boolean.parseBoolean(System.getProperty(PRETOUCH_PROPERTY, "true"));
+	}
+
+	/**
+	 * @return True if the shared file sizes are rounded up to the huge page size.
+	 */
+	public static boolean isHugePagesEnabled() {
+		return Boolean.getBoolean(HUGE_PAGES_PROPERTY);
+	}
+
+	/**
+	 * Report when hugePages is set and the shared root can't give huge pages : the files are then
+	 * only rounded up and the queues use normal pages.
+	 * @param pRoot Shared root.
+	 * @return True if the root is a tmpfs mounted with huge=always or huge=within_size.
+	 */
+	static boolean checkHugePages(String pRoot) {
+		if (!isHugePagesEnabled()) {
+			return false;
+		}
+
+		// The mount of the root is the longest mount point that contain it
+		String mountPoint = "";
+		String fsType = "";
+		String options = "";
+		try {
+			String root = new File(pRoot).getCanonicalPath();
+			for (String line : Files.readAllLines(Paths.get("/proc/mounts"), StandardCharsets.UTF_8)) {
+				String[] fields = line.split(" ");
+				if (fields.length < 4 || fields[1].length() < mountPoint.length()) {
+					continue;
+				}
+				if (root.equals(fields[1]) || root.startsWith(fields[1].endsWith("/") ? fields[1] : fields[1] + "/")) {
+					mountPoint = fields[1];
+					fsType = fields[2];
+					options = "," + fields[3] + ",";
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("SharedMemoryConfig, can't read the mounts : " + e.getMessage());
+			return false;
+		}
+
+		if (fsType.equals("tmpfs") && (options.contains(",huge=always,") || options.contains(",huge=within_size,"))) {
+			return true;
+		}
+		System.err.println("SharedMemoryConfig, " + HUGE_PAGES_PROPERTY + " only round the file sizes : " + pRoot
+				+ " is not a tmpfs mounted with huge=always or huge=within_size, the queues use normal pages");
+		return false;
+	}
+
+	/**
+	 * Number of records written in a queue.
+	 * @param pLimit Write position of the queue (the MappedBus limit).
+	 * @param pRecordSize Record size of the system.
+	 * @return Record count.
+	 */
+	public static long getRecordCount(long pLimit, int pRecordSize) {
+		return Math.max(0, pLimit - MAPPEDBUS_DATA_OFFSET) / (MAPPEDBUS_RECORD_HEADER + pRecordSize);
+	}
+
+	/**
+	 * Round a size up to the next page (or huge page) boundary.
+	 * @param pSize Size in bytes.
+	 * @return Aligned size.
+	 */
+	public static long align(long pSize) {
+		long alignment = isHugePagesEnabled() ? HUGE_PAGE_SIZE : PAGE_SIZE;
+		return ((pSize + alignment - 1) / alignment) * alignment;
+	}
+
+	/**
+	 * Create the file with its final size and, if enabled, write every page once so the memory
+	 * is allocated now and not when the first messages are written.
+	 * @param pPath File path.
+	 * @param pSize File size in bytes.
+	 * @throws IOException
+	 */
+	public static void preallocate(String pPath, long pSize) throws IOException {
+		preallocate(pPath, pSize, isPretouchEnabled());
+	}
+
+	/**
+	 * Create the file with its final size.
+	 * @param pPath File path.
+	 * @param pSize File size in bytes.
+	 * @param pPretouch True to write every page once.
+	 * @throws IOException
+	 */
+	public static void preallocate(String pPath, long pSize, boolean pPretouch) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(pPath, "rw")) {
+			file.setLength(pSize);
+
+			if (pPretouch) {
+				pretouch(file.getChannel(), pSize);
+			}
+		}
+	}
+
+	/**
+	 * Write a zero in every page of the file. The file is already zero-filled, so this does not
+	 * change the content, only force the allocation of the pages.
+	 * @param pChannel Channel to the file.
+	 * @param pSize File size in bytes.
+	 * @throws IOException
+	 */
+	public static void pretouch(FileChannel pChannel, long pSize) throws IOException {
+		for (long start = 0; start < pSize; start += PRETOUCH_WINDOW) {
+			long length = Math.min(PRETOUCH_WINDOW, pSize - start);
+			MappedByteBuffer buffer = pChannel.map(MapMode.READ_WRITE, start, length);
+			for (int i = 0; i < length; i += PAGE_SIZE) {
+				buffer.put(i, (byte)0);
+			}
+		}
+	}
+}
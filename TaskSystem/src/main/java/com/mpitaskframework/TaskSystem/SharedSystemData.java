@@ -16,7 +16,51 @@ import java.nio.file.StandardOpenOption;
  */
 public class SharedSystemData implements Serializable {
 	
-	// Shared data structure : INT nextTaskId, INT shutdownSignal
+	// Shared data structure : INT nextTaskId, INT shutdownSignal, LONG queueSize, INT recordSize,
+	// INT rankCount, INT attachedCount, INT barrierCount, then from RANKS_OFFSET one entry per rank :
+	// INT nextTaskId, INT exitStatus, INT processId, INT taskCount, LONG sent, LONG received, LONG runTime
+	
+	/**
+	 * Maximum number of ranks started by the launcher.
+	 */
+	public static final int MAX_RANK_COUNT = 32;
+	
+	/**
+	 * Offsets of the next task id and of the shutdown signal. The offsets are also used by the Inspector,
+	 * which map the file read-only.
+	 */
+	static final int NEXT_TASK_ID_OFFSET = 0;
+	static final int SHUTDOWN_OFFSET = Integer.BYTES;
+	
+	/**
+	 * Offset of the queue size.
+	 */
+	static final int QUEUE_SIZE_OFFSET = 2 * Integer.BYTES;
+	
+	/**
+	 * Offset of the record size.
+	 */
+	static final int RECORD_SIZE_OFFSET = QUEUE_SIZE_OFFSET + Long.BYTES;
+	
+	/**
+	 * Offsets of the launcher counters.
+	 */
+	static final int RANK_COUNT_OFFSET = RECORD_SIZE_OFFSET + 2 * Integer.BYTES;
+	static final int ATTACHED_OFFSET = RANK_COUNT_OFFSET + Integer.BYTES;
+	private static final int BARRIER_OFFSET = ATTACHED_OFFSET + Integer.BYTES;
+	
+	/**
+	 * Rank entries, one cache line each.
+	 */
+	private static final int RANKS_OFFSET = 64;
+	private static final int RANK_ENTRY_SIZE = 64;
+	private static final int RANK_NEXT_ID = 0;
+	private static final int RANK_EXIT_STATUS = 4;
+	private static final int RANK_PROCESS_ID = 8;
+	private static final int RANK_TASK_COUNT = 12;
+	private static final int RANK_SENT = 16;
+	private static final int RANK_RECEIVED = 24;
+	private static final int RANK_RUN_TIME = 32;
 	
 	/**
 	 * Generated UID.
@@ -55,14 +99,17 @@ public class SharedSystemData implements Serializable {
 		buffer = channel.map(MapMode.READ_WRITE, 0, 4000);
 		
 		if (create) {
-			setNextTaskId(0);
+			setNextTaskId(SharedMemoryConfig.getFirstTaskId());
 			setShutdownSignal(false);
+			setQueueConfig(SharedMemoryConfig.getQueueSize(), SharedMemoryConfig.getRecordSize());
+			buffer.putInt(RANK_COUNT_OFFSET, 0);
 		}
 	}
 	
 	@Override
 	public String toString() {
-		return new String("NextTaskId=" + getNextTaskId() + " ShutdownSignal=" + getShutdownSignal());
+		return new String("NextTaskId=" + getNextTaskId() + " ShutdownSignal=" + getShutdownSignal()
+				+ " QueueSize=" + getQueueSize() + " RecordSize=" + getRecordSize());
 	}
 	
 	/**
@@ -130,7 +177,7 @@ public class SharedSystemData implements Serializable {
 		}
 	}
 	
-	public boolean getShutdownSignal() {
+	public synchronized boolean getShutdownSignal() {
 		boolean toRet = false;
 		try {
 			FileLock l = channel.lock(Integer.BYTES, Integer.BYTES, false);
@@ -145,4 +192,188 @@ public class SharedSystemData implements Serializable {
 		return toRet;
 	}
 	
+	/**
+	 * Set the queue configuration. Written once by the creator so every process attached to the
+	 * system use the same queue layout.
+	 * @param pQueueSize Queue size in bytes.
+	 * @param pRecordSize Record size in bytes.
+	 */
+	private void setQueueConfig(long pQueueSize, int pRecordSize) {
+		buffer.putLong(QUEUE_SIZE_OFFSET, pQueueSize);
+		buffer.putInt(RECORD_SIZE_OFFSET, pRecordSize);
+	}
+	
+	/**
+	 * Get the queue size. Written at creation only, no lock needed.
+	 * @return Queue size in bytes.
+	 */
+	public long getQueueSize() {
+		return buffer.getLong(QUEUE_SIZE_OFFSET);
+	}
+	
+	/**
+	 * Get the record size. Written at creation only, no lock needed.
+	 * @return Record size in bytes.
+	 */
+	public int getRecordSize() {
+		return buffer.getInt(RECORD_SIZE_OFFSET);
+	}
+	
+	/**
+	 * Prepare the ranks of a launched job. Each rank get its own block of task ids, so the first task
+	 * of a rank always have the same id whatever the start order of the processes. Ids after the last
+	 * block are left to the processes without rank.
+	 * @param pRankCount Number of ranks.
+	 * @param pBlockSize Number of task ids of each rank.
+	 */
+	public synchronized void setRanks(int pRankCount, int pBlockSize) {
+		try {
+			FileLock l = channel.lock();
+			buffer.putInt(RANK_COUNT_OFFSET, pRankCount);
+			buffer.putInt(ATTACHED_OFFSET, 0);
+			buffer.putInt(BARRIER_OFFSET, 0);
+			for (int r = 0; r < pRankCount; r++) {
+				int entry = rankEntry(r);
+				for (int i = 0; i < RANK_ENTRY_SIZE; i += Integer.BYTES) {
+					buffer.putInt(entry + i, 0);
+				}
+				buffer.putInt(entry + RANK_NEXT_ID, r * pBlockSize);
+				buffer.putInt(entry + RANK_EXIT_STATUS, -1);
+			}
+			buffer.position(0);
+			buffer.putInt(pRankCount * pBlockSize);
+			l.release();
+		} catch (IOException e) {
+			System.err.println("SharedSystemData, IOException : " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Get the number of ranks. Written by the launcher before starting them, no lock needed.
+	 * @return Rank count, 0 if the system was not created by the launcher.
+	 */
+	public int getRankCount() {
+		return buffer.getInt(RANK_COUNT_OFFSET);
+	}
+	
+	/**
+	 * Acquire file lock and take the next task id of a rank.
+	 * @param pRank
+	 * @return Task id.
+	 */
+	public synchronized int incrementRankTaskId(int pRank) {
+		return addInt(rankEntry(pRank) + RANK_NEXT_ID, 1);
+	}
+	
+	/**
+	 * Called by a rank when it acquire the system.
+	 * @param pRank
+	 * @param pProcessId Operating system id of the rank process.
+	 * @return Number of ranks attached, including this one.
+	 */
+	public synchronized int attachRank(int pRank, int pProcessId) {
+		try {
+			FileLock l = channel.lock();
+			buffer.putInt(rankEntry(pRank) + RANK_PROCESS_ID, pProcessId);
+			l.release();
+		} catch (IOException e) {
+			System.err.println("SharedSystemData, IOException : " + e.getMessage());
+			e.printStackTrace();
+		}
+		return addInt(ATTACHED_OFFSET, 1);
+	}
+	
+	/**
+	 * Acquire file lock and get the number of ranks attached.
+	 * @return
+	 */
+	public synchronized int getAttachedCount() {
+		return addInt(ATTACHED_OFFSET, 0);
+	}
+	
+	/**
+	 * Acquire file lock and count one more rank at the barrier.
+	 * @return Number of arrivals, all generations included.
+	 */
+	public synchronized int arriveBarrier() {
+		return addInt(BARRIER_OFFSET, 1);
+	}
+	
+	/**
+	 * Acquire file lock and get the number of arrivals at the barrier.
+	 * @return
+	 */
+	public synchronized int getBarrierCount() {
+		return addInt(BARRIER_OFFSET, 0);
+	}
+	
+	/**
+	 * Publish the metrics of a rank. Called once by the rank when its process exit.
+	 * @param pRank
+	 * @param pTaskCount Tasks created by the rank.
+	 * @param pSent Messages sent by the rank.
+	 * @param pReceived Messages received by the rank.
+	 * @param pRunTime Time between the attach and the exit, in nanoseconds.
+	 */
+	public synchronized void setRankMetrics(int pRank, int pTaskCount, long pSent, long pReceived, long pRunTime) {
+		try {
+			FileLock l = channel.lock();
+			int entry = rankEntry(pRank);
+			buffer.putInt(entry + RANK_TASK_COUNT, pTaskCount);
+			buffer.putLong(entry + RANK_SENT, pSent);
+			buffer.putLong(entry + RANK_RECEIVED, pReceived);
+			buffer.putLong(entry + RANK_RUN_TIME, pRunTime);
+			l.release();
+		} catch (IOException e) {
+			System.err.println("SharedSystemData, IOException : " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Set the exit status of a rank. Called by the launcher.
+	 * @param pRank
+	 * @param pStatus
+	 */
+	public synchronized void setRankExitStatus(int pRank, int pStatus) {
+		buffer.putInt(rankEntry(pRank) + RANK_EXIT_STATUS, pStatus);
+	}
+	
+	/**
+	 * Get the metrics of a rank, the ranks have exited so no lock needed.
+	 * @param pRank
+	 * @return Exit status, process id, task count, sent, received, run time in nanoseconds.
+	 */
+	public long[] getRankMetrics(int pRank) {
+		int entry = rankEntry(pRank);
+		return new long[] { buffer.getInt(entry + RANK_EXIT_STATUS), buffer.getInt(entry + RANK_PROCESS_ID),
+				buffer.getInt(entry + RANK_TASK_COUNT), buffer.getLong(entry + RANK_SENT),
+				buffer.getLong(entry + RANK_RECEIVED), buffer.getLong(entry + RANK_RUN_TIME) };
+	}
+	
+	/**
+	 * Add to an int of the shared data under the file lock.
+	 * @param pOffset
+	 * @param pDelta
+	 * @return The new value, -1 on error.
+	 */
+	private int addInt(int pOffset, int pDelta) {
+		int toRet = -1;
+		try {
+			FileLock l = channel.lock();
+			toRet = buffer.getInt(pOffset) + pDelta;
+			buffer.putInt(pOffset, toRet);
+			l.release();
+		} catch (IOException e) {
+			System.err.println("SharedSystemData, IOException : " + e.getMessage());
+			e.printStackTrace();
+		}
+		return toRet;
+	}
+	
+	private static int rankEntry(int pRank) {
+		return RANKS_OFFSET + pRank * RANK_ENTRY_SIZE;
+	}
+	
 }
@@ -1,5 +1,8 @@
 package com.mpitaskframework.TaskSystem;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
  * An abstract task. A task is a small process (a thread in this case) that can send and receive messages.
  * @author François Gingras <bizzard4>
@@ -12,13 +15,40 @@ public abstract class Task implements Runnable {
 	 */
 	private int m_taskId;
 	
+	/**
+	 * Queue read by this task. Same as the task id, except for workers of a shared queue pool.
+	 */
+	private int m_mailboxId;
+	
+	/**
+	 * Placement applied by the task thread before start, null if the task is not placed.
+	 */
+	private TaskPlacement m_placement;
+	
+	/**
+	 * Released by a placed task thread once its queue is created, see createTask(task, placement).
+	 */
+	private CountDownLatch m_placed;
+	
+	/**
+	 * False when the placement could not be applied, the task is then not started.
+	 */
+	private volatile boolean m_placementApplied;
+	
+	/**
+	 * Id of the task being deserialized by this thread. A moved task keep its id, see TaskSystem.adoptTask.
+	 */
+	static final ThreadLocal<Integer> s_adoptedTaskId = new ThreadLocal<Integer>();
+	
 	/**
 	 * Protected constructor, to create a task we need to use the createTask. The actual instance of this class
 	 * should never be available to the user.
 	 * @param pTaskId
 	 */
 	public Task() {
-		m_taskId = TaskSystem.getInstance().getNextTaskId();
+		Integer adopted = s_adoptedTaskId.get();
+		m_taskId = adopted != null ? adopted : TaskSystem.getInstance().getNextTaskId();
+		m_mailboxId = m_taskId;
 	}
 	
 	/**
@@ -29,13 +59,96 @@ public abstract class Task implements Runnable {
 		return m_taskId;
 	}
 	
+	/**
+	 * Return the id of the queue read by this task.
+	 * @return Mailbox id.
+	 */
+	public int getMailboxId() {
+		return m_mailboxId;
+	}
+	
+	/**
+	 * Read from another queue. Used by pools to make workers compete on the pool queue.
+	 * @param pMailboxId
+	 */
+	void setMailboxId(int pMailboxId) {
+		m_mailboxId = pMailboxId;
+	}
+	
 	/**
 	 * Create the task and return the unique task id generated with it. A user could use directly the refenrece of the task
-	 * but that would break the idea behind.
+	 * but that would break the idea behind. A task reading another mailbox (a worker of a SHARED_QUEUE pool)
+	 * get no queue of its own.
 	 * @return
 	 */
 	public static <T extends Task> int createTask(T task) {
+		if (task.getMailboxId() == task.getTaskId()) {
+			TaskSystem.getInstance().createMessageQueue(task.getTaskId());
+		}
+		task.initialize();
+		(new Thread(task)).start();
+		return task.getTaskId();
+	}
+	
+	/**
+	 * Create the task with a placement hint. The task thread pin itself, then create and pre-touch its
+	 * queue so the memory is allocated on the same NUMA node as the task, then initialize the task. The
+	 * id is returned after that : no sender can write in the queue while it is touched. When the
+	 * placement can't be applied (ex : the exclusive core is held by another task), the task is not
+	 * created.
+	 * @param task Task.
+	 * @param pPlacement Placement hint.
+	 * @return Task id, or -1 if the placement could not be applied.
+	 */
+	public static <T extends Task> int createTask(T task, TaskPlacement pPlacement) {
+		((Task)task).m_placement = pPlacement;
+		((Task)task).m_placed = new CountDownLatch(1);
+		(new Thread(task)).start();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				((Task)task).m_placed.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (!((Task)task).m_placementApplied) {
+			System.err.println("Task " + task.getTaskId() + " not created, placement " + pPlacement + " can't be applied");
+			return -1;
+		}
+		return task.getTaskId();
+	}
+	
+	/**
+	 * Create the task with a conflating mailbox : keyed messages (see KeyedMessage) replace the unread
+	 * message with the same key, other messages are queued as usual.
+	 * @param task Task.
+	 * @param pKeyCount Number of distinct keys.
+	 * @return Task id.
+	 */
+	public static <T extends Task> int createConflatingTask(T task, int pKeyCount) {
+		TaskSystem.getInstance().createMessageQueue(task.getTaskId());
+		TaskSystem.getInstance().createConflatingMailbox(task.getTaskId(), pKeyCount);
+		task.initialize();
+		(new Thread(task)).start();
+		return task.getTaskId();
+	}
+	
+	/**
+	 * Create the task with a fan-in mailbox : each sending thread get its own lane, for a task with many
+	 * clients. The scalar NORMAL messages of one sender stay in order. Array messages, priority messages and
+	 * keyed messages to a conflating task use the task queue, they are not ordered with the lane messages.
+	 * @param task Task.
+	 * @param pLaneCount Number of lanes, senders beyond it use the task queue.
+	 * @return Task id.
+	 */
+	public static <T extends Task> int createFanInTask(T task, int pLaneCount) {
 		TaskSystem.getInstance().createMessageQueue(task.getTaskId());
+		TaskSystem.getInstance().createFanInMailbox(task.getTaskId(), pLaneCount, FanInMailbox.DEFAULT_CAPACITY);
 		task.initialize();
 		(new Thread(task)).start();
 		return task.getTaskId();
@@ -62,7 +175,27 @@ public abstract class Task implements Runnable {
 	 */
 	@Override
 	public void run() {
-		start();
+		if (m_placement != null) {
+			try {
+				if (!m_placement.apply(m_taskId)) {
+					return; // Reported by createTask
+				}
+				TaskSystem.getInstance().createMessageQueue(m_taskId);
+				initialize();
+				m_placementApplied = true;
+			} finally {
+				m_placed.countDown();
+			}
+		}
+		try {
+			start();
+		} finally {
+			if (m_placement != null) {
+				TaskPlacement.release(m_taskId);
+			}
+			TaskSystem.getInstance().releaseThreadWriters();
+			FlightRecorder.releaseRing();
+		}
 	}
 	
 	/**
@@ -74,14 +207,70 @@ public abstract class Task implements Runnable {
 		TaskSystem.getInstance().send(pMsg, pTaskId);
 	}
 	
+	/**
+	 * Wrapper so send a message in a priority lane of another task.
+	 * @param pMsg Message.
+	 * @param pTaskId Destination task id.
+	 * @param pPriority Lane.
+	 */
+	protected void send(Message pMsg, int pTaskId, MessagePriority pPriority) {
+		TaskSystem.getInstance().send(pMsg, pTaskId, pPriority);
+	}
+	
+	/**
+	 * Wrapper to send a message to the shard of a group that own a key.
+	 * @param pKey Key.
+	 * @param pMsg Message.
+	 * @param pGroupId Destination group id.
+	 */
+	protected void send(long pKey, Message pMsg, int pGroupId) {
+		TaskSystem.getInstance().send(pKey, pMsg, pGroupId);
+	}
+	
+	/**
+	 * Wrapper to reserve a slot in the mailbox of a task, see TaskSystem.tryClaim.
+	 * @param pTaskId Destination task id.
+	 * @param pLength Encoded size.
+	 * @param pTypeId Message type id.
+	 * @return The claim, or null to use send.
+	 */
+	protected MailboxClaim tryClaim(int pTaskId, int pLength, int pTypeId) {
+		return TaskSystem.getInstance().tryClaim(pTaskId, pLength, pTypeId);
+	}
+	
+	/**
+	 * Wrapper to send a message to another task, or to itself, after a delay.
+	 * @param pMsg Message.
+	 * @param pTaskId Destination task id.
+	 * @param pDelay Delay.
+	 * @param pUnit Delay unit.
+	 * @return Handle to cancel the send.
+	 */
+	protected Timeout sendAfter(Message pMsg, int pTaskId, long pDelay, TimeUnit pUnit) {
+		return TaskSystem.getInstance().sendAfter(pMsg, pTaskId, pDelay, pUnit);
+	}
+	
+	/**
+	 * Wrapper to send a message periodically.
+	 * @param pMsg Message.
+	 * @param pTaskId Destination task id.
+	 * @param pInitialDelay Delay of the first send.
+	 * @param pPeriod Period.
+	 * @param pUnit Delay and period unit.
+	 * @return Handle to cancel the sends.
+	 */
+	protected Timeout sendPeriodic(Message pMsg, int pTaskId, long pInitialDelay, long pPeriod, TimeUnit pUnit) {
+		return TaskSystem.getInstance().sendPeriodic(pMsg, pTaskId, pInitialDelay, pPeriod, pUnit);
+	}
+	
 	/**
 	 * This method loop and wait for the next message.
 	 * @return
 	 */
 	protected Message getNextMessage() {
-		Message msg = TaskSystem.getInstance().receive(this.getTaskId());
+		Message msg = TaskSystem.getInstance().receive(this.getMailboxId());
 		while (msg == null) {
-			msg = TaskSystem.getInstance().receive(this.getTaskId());
+			msg = TaskSystem.getInstance().receive(this.getMailboxId());
 		}
 		return msg;
 	}
@@ -91,21 +280,21 @@ public abstract class Task implements Runnable {
 	 * @return
 	 */
 	protected boolean message_immediate() {
-		return TaskSystem.getInstance().message_immediate(this.getTaskId());
+		return TaskSystem.getInstance().message_immediate(this.getMailboxId());
 	}
 	
 	/**
 	 * Wrapper for notify strategy.
 	 */
 	protected void message_notify() {
-		TaskSystem.getInstance().message_notify(this.getTaskId());
+		TaskSystem.getInstance().message_notify(this.getMailboxId());
 	}
 	
 	/**
 	 * Wrapper for wait strategy.
 	 */
 	protected void message_wait() {
-		TaskSystem.getInstance().message_wait(this.getTaskId());
+		TaskSystem.getInstance().message_wait(this.getMailboxId());
 	}
 	
 	
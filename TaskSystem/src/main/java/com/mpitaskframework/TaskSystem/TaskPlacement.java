@@ -0,0 +1,312 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Placement hint given at task creation. The task thread is pinned with the Linux scheduler affinity
+ * (taskset) before the task start, and the task queue is created and pre-touched from the pinned thread
+ * so its pages are allocated on the local NUMA node (first touch policy).
+ *
+ * Three kinds of placement :
+ * 1) A core set, the task can run on any of the cores.
+ * 2) An exclusive core, the task is the only placed task allowed on this core.
+ * 3) A NUMA node, the task can run on any core of the node.
+ *
+ * Placement only restrict the placed tasks, threads created without placement are not moved. An exclusive
+ * core is held until its task end. A task whose placement can't be applied (core already exclusive,
+ * taskset failure) is not created, see Task.createTask(task, placement).
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class TaskPlacement {
+
+	/**
+	 * Kind of placement.
+	 */
+	public enum Kind { CORES, EXCLUSIVE_CORE, NUMA_NODE };
+
+	/**
+	 * Location of the NUMA nodes description.
+	 */
+	private static final String NODE_PATH = "/sys/devices/system/node/node";
+
+	/**
+	 * Cores reserved by an exclusive placement, in this process, and the task holding each.
+	 */
+	private static final TreeMap<Integer, Integer> s_exclusiveCores = new TreeMap<Integer, Integer>();
+
+	/**
+	 * Applied placements, by task id. Used by the report.
+	 */
+	private static final Map<Integer, String> s_applied = new TreeMap<Integer, String>();
+
+	/**
+	 * Kernel thread id of the placed tasks.
+	 */
+	private static final Map<Integer, Integer> s_threadIds = new TreeMap<Integer, Integer>();
+
+	private final Kind m_kind;
+	private final TreeSet<Integer> m_cores;
+	private final int m_node;
+
+	/**
+	 * Private constructor, use the factories.
+	 */
+	private TaskPlacement(Kind pKind, TreeSet<Integer> pCores, int pNode) {
+		m_kind = pKind;
+		m_cores = pCores;
+		m_node = pNode;
+	}
+
+	/**
+	 * Allow the task on a set of cores.
+	 * @param pCores Core ids.
+	 * @return Placement.
+	 */
+	public static TaskPlacement cores(int... pCores) {
+		TreeSet<Integer> cores = new TreeSet<Integer>();
+		for (int c : pCores) {
+			cores.add(c);
+		}
+		return new TaskPlacement(Kind.CORES, cores, -1);
+	}
+
+	/**
+	 * Allow the task on a set of cores.
+	 * @param pCpuList Linux cpu list format, ex : 0-3,8,10-11.
+	 * @return Placement.
+	 */
+	public static TaskPlacement cores(String pCpuList) {
+		return new TaskPlacement(Kind.CORES, parseCpuList(pCpuList), -1);
+	}
+
+	/**
+	 * Give a core to the task alone. Other placed tasks will avoid it.
+	 * @param pCore Core id.
+	 * @return Placement.
+	 */
+	public static TaskPlacement exclusiveCore(int pCore) {
+		TreeSet<Integer> cores = new TreeSet<Integer>();
+		cores.add(pCore);
+		return new TaskPlacement(Kind.EXCLUSIVE_CORE, cores, -1);
+	}
+
+	/**
+	 * Allow the task on the cores of a NUMA node.
+	 * @param pNode Node id.
+	 * @return Placement.
+	 */
+	public static TaskPlacement numaNode(int pNode) {
+		TreeSet<Integer> cores;
+		try {
+			cores = parseCpuList(readFirstLine(Paths.get(NODE_PATH + pNode, "cpulist")));
+		} catch (IOException e) {
+			System.err.println("TaskPlacement, unknown NUMA node " + pNode + " : " + e.getMessage());
+			cores = new TreeSet<Integer>();
+		}
+		return new TaskPlacement(Kind.NUMA_NODE, cores, pNode);
+	}
+
+	/**
+	 * @return Number of NUMA nodes of the host, 1 if unknown.
+	 */
+	public static int getNumaNodeCount() {
+		int count = 0;
+		while (Files.isDirectory(Paths.get(NODE_PATH + count))) {
+			count++;
+		}
+		return Math.max(count, 1);
+	}
+
+	/**
+	 * Pin the calling thread. Called by the task thread before its queue is created. An exclusive core
+	 * already held by another task is refused, the thread is not pinned.
+	 * @param pTaskId Task id, for the report.
+	 * @return True if the affinity was applied.
+	 */
+	boolean apply(int pTaskId) {
+		TreeSet<Integer> cores = new TreeSet<Integer>(m_cores);
+		synchronized (s_exclusiveCores) {
+			if (m_kind == Kind.EXCLUSIVE_CORE) {
+				Integer owner = s_exclusiveCores.get(cores.first());
+				if (owner != null) {
+					System.err.println("TaskPlacement, core " + cores.first() + " is already exclusive to task " + owner);
+					return false;
+				}
+				s_exclusiveCores.put(cores.first(), pTaskId);
+			} else {
+				TreeSet<Integer> shared = new TreeSet<Integer>(cores);
+				shared.removeAll(s_exclusiveCores.keySet());
+				if (!shared.isEmpty()) {
+					cores = shared;
+				}
+			}
+		}
+
+		if (cores.isEmpty()) {
+			System.err.println("TaskPlacement, no core to place task " + pTaskId);
+			return false;
+		}
+
+		String cpuList = formatCpuList(cores);
+		int tid;
+		try {
+			tid = currentNativeThreadId();
+			Process taskset = new ProcessBuilder("taskset", "-p", "-c", cpuList, Integer.toString(tid))
+					.redirectErrorStream(true).start();
+			drain(taskset.getInputStream());
+			if (taskset.waitFor() != 0) {
+				System.err.println("TaskPlacement, taskset failed for task " + pTaskId);
+				release(pTaskId);
+				return false;
+			}
+		} catch (IOException | InterruptedException e) {
+			System.err.println("TaskPlacement, failed to place task " + pTaskId + " : " + e.getMessage());
+			release(pTaskId);
+			return false;
+		}
+
+		synchronized (s_applied) {
+			s_applied.put(pTaskId, this + " cpus=" + cpuList);
+			s_threadIds.put(pTaskId, tid);
+		}
+		return true;
+	}
+
+	/**
+	 * Forget a placed task that is done. Its exclusive core is given back to the other placed tasks.
+	 * Called by the task thread when the task end.
+	 * @param pTaskId Task id.
+	 */
+	static void release(int pTaskId) {
+		synchronized (s_exclusiveCores) {
+			s_exclusiveCores.values().remove(pTaskId);
+		}
+		synchronized (s_applied) {
+			s_applied.remove(pTaskId);
+			s_threadIds.remove(pTaskId);
+		}
+	}
+
+	/**
+	 * Build the placement report : requested placement and affinity actually seen by the kernel, for
+	 * each running placed task of this process.
+	 * @return Report, one line per task.
+	 */
+	public static String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Task placement (").append(getNumaNodeCount()).append(" NUMA node(s), ")
+			.append(Runtime.getRuntime().availableProcessors()).append(" cores)\n");
+
+		synchronized (s_applied) {
+			for (Map.Entry<Integer, String> entry : s_applied.entrySet()) {
+				int tid = s_threadIds.get(entry.getKey());
+				sb.append("  task ").append(entry.getKey()).append(" : tid=").append(tid).append(' ')
+					.append(entry.getValue()).append(" allowed=").append(readAllowedCpus(tid)).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		switch (m_kind) {
+		case EXCLUSIVE_CORE:
+			return "exclusive(" + m_cores.first() + ")";
+		case NUMA_NODE:
+			return "node(" + m_node + ")";
+		default:
+			return "cores(" + formatCpuList(m_cores) + ")";
+		}
+	}
+
+	/**
+	 * @return Kernel id of the calling thread.
+	 * @throws IOException
+	 */
+	private static int currentNativeThreadId() throws IOException {
+		// Link to <pid>/task/<tid>
+		Path self = Files.readSymbolicLink(Paths.get("/proc/thread-self"));
+		return Integer.parseInt(self.getFileName().toString());
+	}
+
+	/**
+	 * Read the affinity of a thread of this process.
+	 * @param pTid Kernel thread id.
+	 * @return Cpu list, or ? if unknown.
+	 */
+	private static String readAllowedCpus(int pTid) {
+		try {
+			List<String> lines = Files.readAllLines(Paths.get("/proc/self/task", Integer.toString(pTid), "status"),
+					StandardCharsets.UTF_8);
+			for (String line : lines) {
+				if (line.startsWith("Cpus_allowed_list:")) {
+					return line.substring("Cpus_allowed_list:".length()).trim();
+				}
+			}
+		} catch (IOException e) {
+			// Thread is gone
+		}
+		return "?";
+	}
+
+	/**
+	 * Parse a Linux cpu list, ex : 0-3,8,10-11.
+	 * @param pCpuList Cpu list.
+	 * @return Core ids.
+	 */
+	static TreeSet<Integer> parseCpuList(String pCpuList) {
+		TreeSet<Integer> cores = new TreeSet<Integer>();
+		for (String part : pCpuList.trim().split(",")) {
+			if (part.isEmpty()) {
+				continue;
+			}
+			int dash = part.indexOf('-');
+			if (dash < 0) {
+				cores.add(Integer.parseInt(part.trim()));
+			} else {
+				int from = Integer.parseInt(part.substring(0, dash).trim());
+				int to = Integer.parseInt(part.substring(dash + 1).trim());
+				for (int c = from; c <= to; c++) {
+					cores.add(c);
+				}
+			}
+		}
+		return cores;
+	}
+
+	/**
+	 * Format core ids as a cpu list.
+	 * @param pCores Core ids.
+	 * @return Comma separated list.
+	 */
+	static String formatCpuList(TreeSet<Integer> pCores) {
+		StringBuilder sb = new StringBuilder();
+		for (int c : pCores) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	private static String readFirstLine(Path pPath) throws IOException {
+		List<String> lines = Files.readAllLines(pPath, StandardCharsets.UTF_8);
+		return lines.isEmpty() ? "" : lines.get(0);
+	}
+
+	private static void drain(InputStream pStream) throws IOException {
+		byte[] buffer = new byte[256];
+		while (pStream.read(buffer) >= 0) { }
+	}
+}
@@ -0,0 +1,148 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.util.function.Supplier;
+
+/**
+ * A pool of worker tasks behind a single task id. Senders use the pool id like any other task id and
+ * the system spread the messages over the workers. The pool is local to the process that created it.
+ * A SHARED_QUEUE pool can still be reached from another process, the workers read the pool queue, one at
+ * a time (receive and message_immediate lock the pool), and have no queue of their own. A
+ * JOIN_SHORTEST_QUEUE pool has no queue and route with the mailbox depths seen by its process, the
+ * other processes refuse to send to it (see TaskRouter.setProcessLocal).
+ *
+ * Two modes are supported :
+ * 1) SHARED_QUEUE, the pool id own a queue and every worker compete to read from it.
+ * 2) JOIN_SHORTEST_QUEUE, each worker keep its own queue and each message is sent to the worker
+ *    with the smallest mailbox depth at the time of the send.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class TaskPool {
+
+	/**
+	 * Dispatch mode of the pool.
+	 */
+	public enum Mode { SHARED_QUEUE, JOIN_SHORTEST_QUEUE };
+
+	/**
+	 * Id used by the senders.
+	 */
+	private final int m_poolId;
+
+	/**
+	 * Dispatch mode.
+	 */
+	private final Mode m_mode;
+
+	/**
+	 * Task id of each worker.
+	 */
+	private final int[] m_workerIds;
+
+	/**
+	 * First worker to look at on the next dispatch. Rotating the start spread the messages when
+	 * many workers have the same depth. Racy on purpose, any value is fine.
+	 */
+	private int m_nextStart;
+
+	/**
+	 * Private constructor, use createPool.
+	 * @param pPoolId Pool id.
+	 * @param pMode Dispatch mode.
+	 * @param pWorkerCount Number of workers.
+	 */
+	private TaskPool(int pPoolId, Mode pMode, int pWorkerCount) {
+		m_poolId = pPoolId;
+		m_mode = pMode;
+		m_workerIds = new int[pWorkerCount];
+		m_nextStart = 0;
+	}
+
+	/**
+	 * Create a pool of workers and return the pool id. Workers are created with the factory and started
+	 * like any other task.
+	 * @param pMode Dispatch mode.
+	 * @param pWorkerCount Number of workers.
+	 * @param pFactory Worker factory.
+	 * @return Pool id.
+	 */
+	public static <T extends Task> int createPool(Mode pMode, int pWorkerCount, Supplier<T> pFactory) {
+		TaskSystem system = TaskSystem.getInstance();
+		TaskPool pool = new TaskPool(system.getNextTaskId(), pMode, pWorkerCount);
+
+		if (pMode == Mode.SHARED_QUEUE) {
+			system.createMessageQueue(pool.m_poolId);
+		} else {
+			system.getRouter().setProcessLocal(pool.m_poolId);
+		}
+
+		// Register before starting the workers so the shared queue is read under the pool lock
+		system.registerPool(pool);
+
+		for (int i = 0; i < pWorkerCount; i++) {
+			T worker = pFactory.get();
+			if (pMode == Mode.SHARED_QUEUE) {
+				worker.setMailboxId(pool.m_poolId);
+			}
+			pool.m_workerIds[i] = Task.createTask(worker);
+		}
+
+		return pool.m_poolId;
+	}
+
+	/**
+	 * Return the queue that must receive the next message.
+	 * @return Task id of the destination queue.
+	 */
+	int route() {
+		if (m_mode == Mode.SHARED_QUEUE) {
+			return m_poolId;
+		}
+
+		TaskSystem system = TaskSystem.getInstance();
+		int count = m_workerIds.length;
+		int start = m_nextStart;
+		int best = m_workerIds[start];
+		long bestDepth = system.getMailboxDepth(best);
+
+		for (int i = 1; i < count && bestDepth > 0; i++) {
+			int candidate = m_workerIds[(start + i) % count];
+			long depth = system.getMailboxDepth(candidate);
+			if (depth < bestDepth) {
+				best = candidate;
+				bestDepth = depth;
+			}
+		}
+
+		m_nextStart = (start + 1) % count;
+		return best;
+	}
+
+	/**
+	 * @return Pool id.
+	 */
+	public int getPoolId() {
+		return m_poolId;
+	}
+
+	/**
+	 * @return Dispatch mode.
+	 */
+	public Mode getMode() {
+		return m_mode;
+	}
+
+	/**
+	 * @return Copy of the worker task ids.
+	 */
+	public int[] getWorkerIds() {
+		return m_workerIds.clone();
+	}
+
+	/**
+	 * @return True if the workers compete on the pool queue.
+	 */
+	public boolean isShared() {
+		return m_mode == Mode.SHARED_QUEUE;
+	}
+}
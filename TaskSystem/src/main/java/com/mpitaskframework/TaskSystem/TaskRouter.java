@@ -0,0 +1,343 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Route table shared by every process of the system : for each task id, where the task currently run.
+ * Only the tasks that can move (MigratableTask) and the migration agents have a route, the other tasks
+ * stay in their creating process and keep the plain TS_<id> queue.
+ *
+ * A route is one 64 bits word so it is read and changed atomically :
+ * epoch (23 bits) | state (2 bits) | node (8 bits) | process (30 bits).
+ * The epoch is the mailbox incarnation, the queue of a task that moved e times is TS_<id>.<e>.
+ *
+ * A sender announce the task it is writing in before reading the route, and a migration set the route
+ * to MOVING then wait for the senders writing, so no message is written in the old incarnation once its
+ * content is moved. Each sending thread claim a slot of the table at its first routed send and announce
+ * the task in it : a send cost one volatile store in a line no other thread write, no atomic on the task
+ * entry, and the rare migration pay the scan of the slots. A thread without slot (all taken, or a send
+ * inside a send) count itself in the entry of the task instead.
+ *
+ * An entry can also mark an id that only exist in one process (a pool dispatching to the queues of its
+ * workers) : the other processes refuse to send to it instead of writing in a queue nobody read.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class TaskRouter {
+
+	/**
+	 * Where a task run, seen from this process.
+	 */
+	public enum Kind { LOCAL, PROCESS, NODE };
+
+	/**
+	 * Id of this node. Routes to other nodes are recorded but there is no network transport yet.
+	 */
+	public static final String NODE_PROPERTY = "mpitaskframework.node";
+
+	/**
+	 * Longest wait in milliseconds for the senders writing in a task that start moving (default 5000). A
+	 * sender that died between enter and exit is never done, the move is then cancelled.
+	 */
+	public static final String MOVE_TIMEOUT_PROPERTY = "mpitaskframework.moveTimeout";
+
+	/**
+	 * Slots of the sending threads, for all the processes. A slot is given back when its task thread end,
+	 * the threads that send while they are all taken use the count of the task entry.
+	 */
+	public static final int SENDER_SLOTS = 1024;
+
+	/**
+	 * Route states. A 0 route is a task without route.
+	 */
+	public static final int ACTIVE = 1;
+	public static final int MOVING = 2;
+
+	private static final int ENTRY_SIZE = 64;
+	private static final int ROUTE_OFFSET = 0;
+	private static final int INFLIGHT_OFFSET = 8;
+	private static final int LOCAL_OFFSET = 12;
+	private static final int SLOT_OWNER_OFFSET = 0;
+	private static final int SLOT_TASK_OFFSET = 8;
+
+	private static final int PROCESS_BITS = 30;
+	private static final int NODE_BITS = 8;
+	private static final int STATE_BITS = 2;
+	private static final int NODE_SHIFT = PROCESS_BITS;
+	private static final int STATE_SHIFT = NODE_SHIFT + NODE_BITS;
+	private static final int EPOCH_SHIFT = STATE_SHIFT + STATE_BITS;
+
+	private final SharedMemory m_table;
+	private final int m_process;
+	private final int m_node;
+
+	/**
+	 * Offset of the sender slot of each thread, -1 if the thread has none, null before its first send.
+	 */
+	private final ThreadLocal<Long> m_senderSlot = new ThreadLocal<>();
+
+	/**
+	 * Open the route table.
+	 * @param pPath Table file.
+	 * @param pCreate True for the system creator, the table is cleared.
+	 * @throws IOException
+	 */
+	public TaskRouter(String pPath, boolean pCreate) throws IOException {
+		if (pCreate) {
+			new File(pPath).delete();
+		}
+		m_table = new SharedMemory(pPath, SharedMemoryConfig.align((long)(TaskSystem.MAX_TASK_COUNT + SENDER_SLOTS) * ENTRY_SIZE));
+		m_process = currentProcessId();
+		m_node = Integer.getInteger(NODE_PROPERTY, 0);
+	}
+
+	/**
+	 * @return Id of this process in the routes.
+	 */
+	public int getProcessId() {
+		return m_process;
+	}
+
+	/**
+	 * @return Id of this node.
+	 */
+	public int getNodeId() {
+		return m_node;
+	}
+
+	/**
+	 * Give a route to a task created in this process.
+	 * @param pTaskId
+	 */
+	public void register(int pTaskId) {
+		m_table.putLongVolatile(routeOffset(pTaskId), pack(0, ACTIVE, m_node, m_process));
+	}
+
+	/**
+	 * Mark an id that can only be reached from this process.
+	 * @param pTaskId
+	 */
+	public void setProcessLocal(int pTaskId) {
+		m_table.putIntVolatile(localOffset(pTaskId), m_process);
+	}
+
+	/**
+	 * @param pTaskId
+	 * @return Process that own an id only reachable from it, 0 for a regular id.
+	 */
+	public int getLocalProcess(int pTaskId) {
+		return m_table.getIntVolatile(localOffset(pTaskId));
+	}
+
+	/**
+	 * Remove the route of a deleted task.
+	 * @param pTaskId
+	 */
+	public void unregister(int pTaskId) {
+		m_table.putLongVolatile(routeOffset(pTaskId), 0);
+	}
+
+	/**
+	 * @param pTaskId
+	 * @return Current route, 0 if the task has no route.
+	 */
+	public long getRoute(int pTaskId) {
+		return m_table.getLongVolatile(routeOffset(pTaskId));
+	}
+
+	/**
+	 * @param pTaskId
+	 * @return Where the task run, LOCAL for a task without route.
+	 */
+	public Kind getKind(int pTaskId) {
+		long route = getRoute(pTaskId);
+		if (route == 0) {
+			return Kind.LOCAL;
+		}
+		if (getNode(route) != m_node) {
+			return Kind.NODE;
+		}
+		return getProcess(route) == m_process ? Kind.LOCAL : Kind.PROCESS;
+	}
+
+	/**
+	 * Called by a sender before writing in the incarnation of the route it read after this call.
+	 * @param pTaskId
+	 * @return Sender slot used, to give to exit. -1 if the sender is counted in the task entry.
+	 */
+	long enter(int pTaskId) {
+		Long claimed = m_senderSlot.get();
+		if (claimed == null) {
+			claimed = claimSenderSlot();
+			m_senderSlot.set(claimed);
+		}
+		long slot = claimed;
+		if (slot >= 0 && m_table.getLong(slot + SLOT_TASK_OFFSET) == 0) {
+			// The volatile store is ordered before the read of the route, like the increment
+			m_table.putLongVolatile(slot + SLOT_TASK_OFFSET, pTaskId + 1);
+			return slot;
+		}
+		m_table.getAndAddInt(inflightOffset(pTaskId), 1);
+		return -1;
+	}
+
+	/**
+	 * Called by a sender once the message is written.
+	 * @param pTaskId
+	 * @param pSlot Slot returned by enter.
+	 */
+	void exit(int pTaskId, long pSlot) {
+		if (pSlot >= 0) {
+			m_table.putLongOrdered(pSlot + SLOT_TASK_OFFSET, 0);
+		} else {
+			m_table.getAndAddInt(inflightOffset(pTaskId), -1);
+		}
+	}
+
+	/**
+	 * @param pTaskId
+	 * @return Senders writing in the task : counted in the entry, and announced in a slot.
+	 */
+	private int getSendersIn(int pTaskId) {
+		int senders = m_table.getIntVolatile(inflightOffset(pTaskId));
+		for (int i = 0; i < SENDER_SLOTS; i++) {
+			if (m_table.getLongVolatile(slotOffset(i) + SLOT_TASK_OFFSET) == pTaskId + 1) {
+				senders++;
+			}
+		}
+		return senders;
+	}
+
+	/**
+	 * Take a free sender slot for the calling thread.
+	 * @return Offset of the slot, -1 if they are all taken.
+	 */
+	private long claimSenderSlot() {
+		for (int i = 0; i < SENDER_SLOTS; i++) {
+			if (m_table.getLongVolatile(slotOffset(i) + SLOT_OWNER_OFFSET) == 0
+					&& m_table.compareAndSwapLong(slotOffset(i) + SLOT_OWNER_OFFSET, 0, m_process)) {
+				return slotOffset(i);
+			}
+		}
+		return -1L;
+	}
+
+	/**
+	 * Give the sender slot of the calling thread back. Called when a task thread end.
+	 */
+	void releaseSenderSlot() {
+		Long slot = m_senderSlot.get();
+		if (slot == null) {
+			return;
+		}
+		m_senderSlot.remove();
+		if (slot >= 0) {
+			m_table.putLongVolatile(slot + SLOT_TASK_OFFSET, 0);
+			m_table.putLongVolatile(slot + SLOT_OWNER_OFFSET, 0);
+		}
+	}
+
+	/**
+	 * Start a migration : stop the senders and wait for the ones writing, at most MOVE_TIMEOUT_PROPERTY.
+	 * @param pTaskId
+	 * @return The route before the move, or 0 if the task is not active or the senders are not done.
+	 */
+	long beginMove(int pTaskId) {
+		long route = getRoute(pTaskId);
+		if (getState(route) != ACTIVE
+				|| !m_table.compareAndSwapLong(routeOffset(pTaskId), route, withState(route, MOVING))) {
+			return 0;
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Long.getLong(MOVE_TIMEOUT_PROPERTY, 5000L));
+		int inflight;
+		while ((inflight = getSendersIn(pTaskId)) != 0) {
+			if (System.nanoTime() - deadline > 0) {
+				System.err.println("Task " + pTaskId + " still has " + inflight + " send(s) in flight, a sender may have died,"
+						+ " the move is cancelled");
+				m_table.putLongVolatile(routeOffset(pTaskId), route);
+				return 0;
+			}
+			Thread.yield();
+		}
+		return route;
+	}
+
+	/**
+	 * End a migration : the senders resume on the new incarnation.
+	 * @param pTaskId
+	 * @param pEpoch New incarnation.
+	 * @param pNode Node of the new owner.
+	 * @param pProcess Process of the new owner.
+	 */
+	void endMove(int pTaskId, int pEpoch, int pNode, int pProcess) {
+		m_table.putLongVolatile(routeOffset(pTaskId), pack(pEpoch, ACTIVE, pNode, pProcess));
+	}
+
+	public static int getEpoch(long pRoute) {
+		return (int)(pRoute >>> EPOCH_SHIFT);
+	}
+
+	public static int getState(long pRoute) {
+		return (int)((pRoute >>> STATE_SHIFT) & ((1 << STATE_BITS) - 1));
+	}
+
+	public static int getNode(long pRoute) {
+		return (int)((pRoute >>> NODE_SHIFT) & ((1 << NODE_BITS) - 1));
+	}
+
+	public static int getProcess(long pRoute) {
+		return (int)(pRoute & ((1 << PROCESS_BITS) - 1));
+	}
+
+	/**
+	 * @param pRoute
+	 * @return Readable route, ex : epoch=2 ACTIVE node=0 process=1234.
+	 */
+	public static String toString(long pRoute) {
+		if (pRoute == 0) {
+			return "none";
+		}
+		return "epoch=" + getEpoch(pRoute) + (getState(pRoute) == MOVING ? " MOVING" : " ACTIVE") + " node="
+				+ getNode(pRoute) + " process=" + getProcess(pRoute);
+	}
+
+	private static long pack(int pEpoch, int pState, int pNode, int pProcess) {
+		return ((long)pEpoch << EPOCH_SHIFT) | ((long)pState << STATE_SHIFT) | ((long)pNode << NODE_SHIFT) | pProcess;
+	}
+
+	private static long withState(long pRoute, int pState) {
+		return pack(getEpoch(pRoute), pState, getNode(pRoute), getProcess(pRoute));
+	}
+
+	private static long routeOffset(int pTaskId) {
+		return (long)pTaskId * ENTRY_SIZE + ROUTE_OFFSET;
+	}
+
+	private static long inflightOffset(int pTaskId) {
+		return (long)pTaskId * ENTRY_SIZE + INFLIGHT_OFFSET;
+	}
+
+	private static long localOffset(int pTaskId) {
+		return (long)pTaskId * ENTRY_SIZE + LOCAL_OFFSET;
+	}
+
+	private static long slotOffset(int pSlot) {
+		return (long)(TaskSystem.MAX_TASK_COUNT + pSlot) * ENTRY_SIZE;
+	}
+
+	/**
+	 * @return Operating system id of this process.
+	 */
+	static int currentProcessId() {
+		// Format : <pid>@<host>
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		try {
+			return Integer.parseInt(name.substring(0, name.indexOf('@')));
+		} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+			return name.hashCode() & ((1 << PROCESS_BITS) - 1);
+		}
+	}
+}
@@ -2,15 +2,38 @@ package com.mpitaskframework.TaskSystem;
 
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
+import com.mpitaskframework.TaskSystem.Messages.ArrayAssembler;
+import com.mpitaskframework.TaskSystem.Messages.ArrayFragment;
+import com.mpitaskframework.TaskSystem.Messages.ArrayMessage;
+import com.mpitaskframework.TaskSystem.Messages.BufferMessage;
+import com.mpitaskframework.TaskSystem.Messages.ConflationNotice;
+import com.mpitaskframework.TaskSystem.Messages.IOMessage;
 import com.mpitaskframework.TaskSystem.Messages.IntMessage;
+import com.mpitaskframework.TaskSystem.Messages.MigrationMessage;
+import com.mpitaskframework.TaskSystem.Messages.NotifyMessage;
+import com.mpitaskframework.TaskSystem.Messages.ShardMessage;
 
 import io.mappedbus.MappedBusReader;
 import io.mappedbus.MappedBusWriter;
+import io.mappedbus.MemoryMappedFile;
 
 /**
  * System class is a central point where message queues are kept. Every method can be call from any task, this
@@ -25,15 +48,52 @@ public class TaskSystem implements Runnable {
 	 */
 	public static final int MAX_TASK_COUNT = 1000;
 	
+	/**
+	 * Maximum message type id. Ids 100 to 199 are reserved by the system.
+	 */
+	public static final int MAX_MESSAGE_TYPE = 1024;
+	
+	/**
+	 * Shared root directory. See SharedMemoryConfig.
+	 */
+	public static final String SHARED_ROOT = SharedMemoryConfig.getSharedRoot();
+	
 	/**
 	 * Shared system location.
 	 */
-	public static final String SYSTEM_SHARED_PATH = "/tmp/TS_SYSTEM";
+	public static final String SYSTEM_SHARED_PATH = SHARED_ROOT + "/TS_SYSTEM";
 	
 	/**
 	 * Prefix for task specific shared queue path.
 	 */
-	public static final String TASK_SHARED_PATH_PREFIX = "/tmp/TS_";
+	public static final String TASK_SHARED_PATH_PREFIX = SHARED_ROOT + "/TS_";
+	
+	/**
+	 * Route table location. See TaskRouter.
+	 */
+	public static final String ROUTES_SHARED_PATH = SHARED_ROOT + "/TS_ROUTES";
+	
+	/**
+	 * Path of the shared task counters, read by the Inspector.
+	 */
+	public static final String COUNTERS_SHARED_PATH = SHARED_ROOT + "/TS_COUNTERS";
+	
+	/**
+	 * Path of the shared buffer slab table.
+	 */
+	public static final String SLABS_SHARED_PATH = SHARED_ROOT + "/TS_SLABS";
+	
+	/**
+	 * Path of the mailbox arena, present when the system use one. See MailboxArena.
+	 */
+	public static final String ARENA_SHARED_PATH = SHARED_ROOT + "/TS_ARENA";
+	
+	/**
+	 * Size of a task entry in the counters, one cache line. Entry : LONG received (records read), LONG
+	 * delivered (messages given to the task, an array is one message).
+	 */
+	static final int COUNTERS_ENTRY_SIZE = 64;
+	static final int DELIVERED_OFFSET = 8;
 	
 	/**
 	 * Reference to wait and signal thread. Will be null if this process is not
@@ -47,21 +107,199 @@ public class TaskSystem implements Runnable {
 	private SharedSystemData m_sharedData;
 	
 	/**
-	 * Writers for each task. Writer are acquired when doing the first send.
+	 * Route table of the tasks that can move between processes.
+	 */
+	private TaskRouter m_router;
+	
+	/**
+	 * Task counters shared with the Inspector : messages received by each task, published by the
+	 * receiving process.
+	 */
+	private SharedMemory m_counters;
+	
+	/**
+	 * Shared buffers passed by handle.
+	 */
+	private SharedBufferPool m_bufferPool;
+	
+	/**
+	 * Mailbox incarnation used by this process for each task, and route it was read from. A sender
+	 * reopen its writers when the route change.
+	 */
+	private int[] m_epochs = new int[MAX_TASK_COUNT];
+	private AtomicLongArray m_routeCache = new AtomicLongArray(MAX_TASK_COUNT);
+	
+	/**
+	 * Queue file size and record size, read from the shared data.
+	 */
+	private long m_queueSize;
+	private int m_recordSize;
+	
+	/**
+	 * A record copied as is, without decoding it. Used to move the queue of a migrating task.
+	 */
+	private static class RawRecord extends Message {
+		
+		private final byte[] m_data;
+		
+		RawRecord(int pRecordSize) {
+			super(0, -1);
+			m_data = new byte[pRecordSize];
+		}
+		
+		void setType(int pType) {
+			setTid(pType);
+		}
+		
+		@Override
+		public void write(MemoryMappedFile mem, long pos) {
+			mem.setBytes(pos, m_data, 0, m_data.length);
+		}
+		
+		@Override
+		public void read(MemoryMappedFile mem, long pos) {
+			mem.getBytes(pos, m_data, 0, m_data.length);
+		}
+	}
+	
+	/**
+	 * Writers of the sending thread, indexed by [lane][task id], acquired on the first send of the thread
+	 * to a lane. A writer is never shared : concurrent senders do not race to create it and do not touch
+	 * the same writer state. A writer is reopened when the generation of its task change (new route,
+	 * migration, deleted queue). The fan-in lanes claimed by the thread are kept the same way, a null lane
+	 * with a current generation mean the task has no lane for this thread. Every writer map a whole queue,
+	 * the cache is closed when the thread end (see releaseThreadWriters).
+	 */
+	private static class WriterCache {
+		final MappedBusWriter[][] m_writers = new MappedBusWriter[MessagePriority.values().length][MAX_TASK_COUNT];
+		final int[][] m_generations = new int[MessagePriority.values().length][MAX_TASK_COUNT];
+		final FanInMailbox.Lane[] m_lanes = new FanInMailbox.Lane[MAX_TASK_COUNT];
+		final int[] m_laneGenerations = new int[MAX_TASK_COUNT];
+		final MailboxClaim m_claim = new MailboxClaim();
+		
+		/**
+		 * Value of m_deletedQueues at the last sweep of the stale writers.
+		 */
+		int m_sweptDeletes = 0;
+		
+		WriterCache() {
+			Arrays.fill(m_laneGenerations, -1);
+		}
+	}
+	private final ThreadLocal<WriterCache> m_writerCache = new ThreadLocal<WriterCache>();
+	private final AtomicIntegerArray m_writerGenerations = new AtomicIntegerArray(MAX_TASK_COUNT);
+	
+	/**
+	 * Queues deleted by this process. A thread close its writers of the deleted queues on its next send,
+	 * so the files are unmapped without waiting for a send to the same id.
 	 */
-	private MappedBusWriter[] writers = new MappedBusWriter[MAX_TASK_COUNT];
+	private final AtomicInteger m_deletedQueues = new AtomicInteger();
 	
 	/**
 	 * Readers for each task. Reader are created when the task is created.
 	 */
 	private MappedBusReader[] readers = new MappedBusReader[MAX_TASK_COUNT];
 	
+	/**
+	 * Readers of the priority lanes (CONTROL and HIGH), indexed by [lane][task id]. The NORMAL lane is
+	 * the task queue itself.
+	 */
+	private MappedBusReader[][] laneReaders = new MappedBusReader[MessagePriority.PRIORITY_LANE_COUNT][MAX_TASK_COUNT];
+	
+	/**
+	 * Mailbox arena of the system, null if every queue has its own files. arenaReaders hold the mailboxes
+	 * read by this process, null for a task with queue files.
+	 */
+	private MailboxArena m_arena;
+	private MailboxArena.Reader[] arenaReaders = new MailboxArena.Reader[MAX_TASK_COUNT];
+	
+	/**
+	 * Pools registered in this process, indexed by pool id. Null for a regular task.
+	 */
+	private TaskPool[] pools = new TaskPool[MAX_TASK_COUNT];
+	
+	/**
+	 * Sharded groups registered in this process, indexed by group id.
+	 */
+	private ShardedGroup[] groups = new ShardedGroup[MAX_TASK_COUNT];
+	
+	/**
+	 * Number of messages sent to and received from each queue by this process. Used to compute the live
+	 * mailbox depth.
+	 */
+	private AtomicLongArray m_sendCount = new AtomicLongArray(MAX_TASK_COUNT);
+	private AtomicLongArray m_receiveCount = new AtomicLongArray(MAX_TASK_COUNT);
+	
+	/**
+	 * Factory of each message type, indexed by type id. Used to decode the queues.
+	 */
+	private Supplier<? extends Message>[] m_messageTypes = newTypeTable(MAX_MESSAGE_TYPE);
+	
+	/**
+	 * Reassembly of the array messages, for each queue read by this process.
+	 */
+	private ArrayAssembler[] assemblers = new ArrayAssembler[MAX_TASK_COUNT];
+	
+	/**
+	 * Conflating mailboxes, opened on the first keyed send. A task without conflating mailbox is only
+	 * looked up once (conflatingChecked, 1 once looked up). The mailbox is set before the flag, a sender
+	 * that read the flag see the mailbox.
+	 */
+	private ConflatingMailbox[] conflating = new ConflatingMailbox[MAX_TASK_COUNT];
+	private final AtomicIntegerArray conflatingChecked = new AtomicIntegerArray(MAX_TASK_COUNT);
+	
+	/**
+	 * Fan-in mailboxes, opened on the first send like the conflating ones. fanInTurns count the lane
+	 * messages read in a row by the receiver, the queue get its turn after FanInMailbox.BATCH of them.
+	 */
+	private FanInMailbox[] fanIn = new FanInMailbox[MAX_TASK_COUNT];
+	private final AtomicIntegerArray fanInChecked = new AtomicIntegerArray(MAX_TASK_COUNT);
+	private int[] fanInTurns = new int[MAX_TASK_COUNT];
+	
+	/**
+	 * Array keys are unique per process (high bits) and per array (low bits).
+	 */
+	private final long m_arrayKeyBase = ((long)new Random().nextInt()) << 32;
+	private final AtomicInteger m_nextArrayKey = new AtomicInteger();
+	
 	/**
 	 * Wait and signal condition and lock.
 	 */
 	final Lock sleeper_lock = new ReentrantLock();
 	final Condition[] sleepers = new Condition[MAX_TASK_COUNT];
 	
+	/**
+	 * Held by the wait and signal loop while it scan the readers, so a queue is never closed under it.
+	 */
+	private final Object m_queueLock = new Object();
+	
+	/**
+	 * Timer wheel of the delayed and periodic sends, started on the first use.
+	 */
+	private TimerWheel m_timerWheel;
+	
+	/**
+	 * Selector thread of the sockets and files, started on the first use.
+	 */
+	private IOService m_ioService;
+	
+	/**
+	 * Transport of the task ids that are not in this system (ex : UnixSocketTransport), null if none. Read
+	 * by every send.
+	 */
+	private volatile MessageTransport m_transport;
+	
+	/**
+	 * Rank of this process when started by the Launcher, -1 otherwise.
+	 */
+	private final int m_rank = Launcher.getLaunchedRank();
+	
+	/**
+	 * Number of task ids of each rank, and tasks created by this rank.
+	 */
+	private int m_rankBlockSize;
+	private final AtomicInteger m_rankTaskCount = new AtomicInteger();
+	
 	
 	/**
 	 * The system is unique process wide. But in the case of IPC, it will need to be
@@ -124,6 +362,66 @@ public class TaskSystem implements Runnable {
 		for (int i = 0; i < MAX_TASK_COUNT; i++) {
 			sleepers[i] = sleeper_lock.newCondition();
 		}
+		
+		// Built-in message types
+		registerMessageType(IntMessage.INTMESSAGE_TID, IntMessage::new);
+		registerMessageType(NotifyMessage.NOTIFYMESSAGE_TID, NotifyMessage::new);
+		registerMessageType(MigrationMessage.MIGRATIONMESSAGE_TID, MigrationMessage::new);
+		registerMessageType(BufferMessage.BUFFERMESSAGE_TID, BufferMessage::new);
+		registerMessageType(IOMessage.IOMESSAGE_TID, IOMessage::new);
+		registerMessageType(ShardMessage.SHARDMESSAGE_TID, ShardMessage::new);
+	}
+	
+	/**
+	 * Java can't create an array of a generic type, the table is created raw.
+	 * @param pSize
+	 * @return Empty table of message factories.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Supplier<? extends Message>[] newTypeTable(int pSize) {
+		return new Supplier[pSize];
+	}
+	
+	/**
+	 * Register a message type so it can be decoded when received. A type id can only be used by one
+	 * message class, registering another class with the same id is a fatal error. Array messages are
+	 * not registered, they are sent as fragments and rebuilt by the system.
+	 * @param pTid Unique message type id.
+	 * @param pFactory Create an empty message of this type.
+	 */
+	public void registerMessageType(int pTid, Supplier<? extends Message> pFactory) {
+		if (pTid < 0 || pTid >= MAX_MESSAGE_TYPE) {
+			System.err.println("Error, message type id out of range : " + pTid);
+			System.exit(-1);
+		}
+		if (pFactory.get() instanceof ArrayMessage) {
+			System.err.println("Error, message type id " + pTid + " is an array message, it can't be decoded from one record");
+			System.exit(-1);
+		}
+		
+		Supplier<? extends Message> existing = m_messageTypes[pTid];
+		if (existing != null && existing.get().getClass() != pFactory.get().getClass()) {
+			System.err.println("Error, message type id " + pTid + " already used by " + existing.get().getClass().getName());
+			System.exit(-1);
+		}
+		
+		m_messageTypes[pTid] = pFactory;
+	}
+	
+	/**
+	 * Register a message type of known encoded size, used by the generated codecs (see MessageCodec).
+	 * A message larger than the record size is a fatal error.
+	 * @param pTid Unique message type id.
+	 * @param pSize Encoded size in bytes.
+	 * @param pFactory Create an empty message of this type.
+	 */
+	public void registerMessageType(int pTid, int pSize, Supplier<? extends Message> pFactory) {
+		if (pSize > m_recordSize) {
+			System.err.println("Error, message type id " + pTid + " is " + pSize + " bytes and the record size is " + m_recordSize
+					+ ", see mpitaskframework.recordSize");
+			System.exit(-1);
+		}
+		registerMessageType(pTid, pFactory);
 	}
 	
 	/**
@@ -135,11 +433,27 @@ public class TaskSystem implements Runnable {
 	private void createSystem() throws IOException, ClassNotFoundException {
 		// Create and initialize shared data
 		m_sharedData = new SharedSystemData(SYSTEM_SHARED_PATH, true);
+		m_queueSize = m_sharedData.getQueueSize();
+		m_recordSize = m_sharedData.getRecordSize();
+		SharedMemoryConfig.checkHugePages(SHARED_ROOT);
+		m_router = new TaskRouter(ROUTES_SHARED_PATH, true);
+		FlightRecorder.removeStaleFiles();
+		new File(COUNTERS_SHARED_PATH).delete();
+		m_counters = new SharedMemory(COUNTERS_SHARED_PATH, SharedMemoryConfig.align((long)MAX_TASK_COUNT * COUNTERS_ENTRY_SIZE));
+		m_bufferPool = new SharedBufferPool(SLABS_SHARED_PATH, true);
+		new File(ARENA_SHARED_PATH).delete();
+		long arenaSize = SharedMemoryConfig.getArenaSize();
+		if (arenaSize > 0) {
+			m_arena = MailboxArena.create(ARENA_SHARED_PATH, arenaSize, SharedMemoryConfig.getArenaLogSize(m_queueSize),
+					m_recordSize);
+		}
 		
-		// Initialize all readers and writers to null
+		// Initialize all readers to null, the writers are per thread
 		for (int i = 0; i < MAX_TASK_COUNT; i++) {
 			readers[i] = null;
-			writers[i] = null;
+			for (int lane = 0; lane < MessagePriority.PRIORITY_LANE_COUNT; lane++) {
+				laneReaders[lane][i] = null;
+			}
 		}
 		
 		// Start he wait and signal loop
@@ -154,18 +468,129 @@ public class TaskSystem implements Runnable {
 	private void acquireSystem() throws IOException {
 		// Create and initialize shared data
 		m_sharedData = new SharedSystemData(SYSTEM_SHARED_PATH, false);
+		m_queueSize = m_sharedData.getQueueSize();
+		m_recordSize = m_sharedData.getRecordSize();
+		m_router = new TaskRouter(ROUTES_SHARED_PATH, false);
+		m_counters = new SharedMemory(COUNTERS_SHARED_PATH, SharedMemoryConfig.align((long)MAX_TASK_COUNT * COUNTERS_ENTRY_SIZE));
+		m_bufferPool = new SharedBufferPool(SLABS_SHARED_PATH, false);
+		if (new File(ARENA_SHARED_PATH).exists()) {
+			m_arena = MailboxArena.open(ARENA_SHARED_PATH);
+		}
 		
-		// Initialize all readers and writers to null
+		// Initialize all readers to null, the writers are per thread
 		for (int i = 0; i < MAX_TASK_COUNT; i++) {
 			readers[i] = null;
-			writers[i] = null;
+			for (int lane = 0; lane < MessagePriority.PRIORITY_LANE_COUNT; lane++) {
+				laneReaders[lane][i] = null;
+			}
+		}
+		
+		if (m_rank >= 0) {
+			attachRank();
+		}
+	}
+	
+	/**
+	 * Attach this process as a rank of the launched job. The metrics of the rank are published when the
+	 * process exit, for the launcher report.
+	 */
+	private void attachRank() {
+		int rankCount = m_sharedData.getRankCount();
+		if (m_rank >= rankCount) {
+			System.err.println("Error, rank " + m_rank + " is not part of the system (" + rankCount + " ranks)");
+			System.exit(-1);
+		}
+		m_rankBlockSize = Launcher.getRankBlockSize(rankCount);
+		m_sharedData.attachRank(m_rank, m_router.getProcessId());
+		
+		final long attachTime = System.nanoTime();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			long sent = 0;
+			long received = 0;
+			for (int i = 0; i < MAX_TASK_COUNT; i++) {
+				sent += m_sendCount.get(i);
+				received += m_receiveCount.get(i);
+			}
+			m_sharedData.setRankMetrics(m_rank, m_rankTaskCount.get(), sent, received, System.nanoTime() - attachTime);
+		}));
+	}
+	
+	/**
+	 * @return Rank of this process, -1 if it was not started by the Launcher.
+	 */
+	public int getRank() {
+		return m_rank;
+	}
+	
+	/**
+	 * @return Number of ranks of the launched job, 0 if the system was not created by the Launcher.
+	 */
+	public int getRankCount() {
+		return m_sharedData.getRankCount();
+	}
+	
+	/**
+	 * Task id of a rank task. Each rank take its ids in its own block, so the n-th task created by a rank
+	 * always have the same id : a rank can send to another one without any lookup.
+	 * @param pRank Rank.
+	 * @param pIndex Creation order of the task in the rank, 0 for the first task.
+	 * @return Task id.
+	 */
+	public int getRankTaskId(int pRank, int pIndex) {
+		return pRank * Launcher.getRankBlockSize(getRankCount()) + pIndex + 1;
+	}
+	
+	/**
+	 * Wait until every rank reach the barrier. Used to create the tasks of a rank before the other ranks
+	 * send to them.
+	 */
+	public void barrier() {
+		int rankCount = getRankCount();
+		if (m_rank < 0 || rankCount == 0) {
+			System.err.println("Error, barrier called outside of a launched job");
+			return;
+		}
+		
+		// Arrival n belong to the generation ceil(n / rankCount)
+		int arrival = m_sharedData.arriveBarrier();
+		int target = ((arrival - 1) / rankCount + 1) * rankCount;
+		while (m_sharedData.getBarrierCount() < target) {
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				System.err.println("Barrier interrupted");
+				return;
+			}
 		}
 	}
 	
+	/**
+	 * Shared system data. Used by the Launcher.
+	 * @return
+	 */
+	SharedSystemData getSharedData() {
+		return m_sharedData;
+	}
+	
 	/**
 	 * Signal system for a clean exit.
 	 */
 	public void destroy() {
+		synchronized (this) {
+			if (m_timerWheel != null) {
+				m_timerWheel.shutdown();
+				m_timerWheel = null;
+			}
+			if (m_ioService != null) {
+				m_ioService.shutdown();
+				m_ioService = null;
+			}
+			if (m_transport != null) {
+				m_transport.shutdown();
+				m_transport = null;
+			}
+		}
+		
 		m_sharedData.setShutdownSignal(true);
 		
 		try {
@@ -174,6 +599,7 @@ public class TaskSystem implements Runnable {
 			System.err.println("System failed to join wait and signal thread");
 			e.printStackTrace();
 		}
+		FlightRecorder.close();
 	}
 	
 	/**
@@ -183,148 +609,1407 @@ public class TaskSystem implements Runnable {
 	 * @param pTaskId
 	 */
 	public void send(Message pMsg, int pTaskId) {
-		try {
-		if (writers[pTaskId] == null) {
-			// Acquire the Q
-			writers[pTaskId] = new MappedBusWriter(getTaskQPath(pTaskId), 100000L, 8, true);
-			writers[pTaskId].open();
-		}
-		} catch (IOException ex) {
-			System.err.println("Failed to acquire Q : " + ex.getMessage());
-			return;
-		}
-		
-		// Write message
-		try {
-			writers[pTaskId].write(pMsg);
-		} catch (EOFException e) {
-			System.err.println("Failed to write in Q : " + e.getMessage());
-		}
+		send(pMsg, pTaskId, MessagePriority.NORMAL);
 	}
 	
 	/**
-	 * Get the message from a task queue.
+	 * Send a message after a delay. The message is delivered by the timer wheel, never before the delay and
+	 * at most one tick after (see TimerWheel.TICK_PROPERTY).
+	 * @param pMsg
 	 * @param pTaskId
-	 * @return
-	 * @throws  
+	 * @param pDelay
+	 * @param pUnit
+	 * @return Handle to cancel the send.
 	 */
-	public Message receive(int pTaskId) {	
-		try {
-			if (readers[pTaskId].next()) {
-				int type = readers[pTaskId].readType();
-				
-				// Mapping
-				Message msg = null;
-				if (type == IntMessage.INTMESSAGE_TID) {
-					msg = new IntMessage();
-					readers[pTaskId].readMessage(msg);
-				}
-				
-				return msg;
-			}
-		} catch (EOFException e) {
-			System.err.println("EOF error : " + e.getMessage());
-		}
-		
-		return null;
+	public Timeout sendAfter(Message pMsg, int pTaskId, long pDelay, TimeUnit pUnit) {
+		return sendAfter(pMsg, pTaskId, pDelay, pUnit, MessagePriority.NORMAL);
 	}
 	
 	/**
-	 * Create a new shared queue for a task id.
+	 * Send a message after a delay, in one of the lanes of a task.
+	 * @param pMsg
 	 * @param pTaskId
+	 * @param pDelay
+	 * @param pUnit
+	 * @param pPriority Lane of the message.
+	 * @return Handle to cancel the send.
 	 */
-	public void createMessageQueue(int pTaskId) {
-		File f = new File(getTaskQPath(pTaskId));
-		if (f.exists()) {
-			f.delete();
-		}
-		
-		try {
-			readers[pTaskId] = new MappedBusReader(getTaskQPath(pTaskId), 100000L, 8);
-			readers[pTaskId].open();
-		} catch (IOException e) {
-			System.err.println("Error creating the task Q : " + e.getMessage());
-			System.exit(-1);
-		}
+	public Timeout sendAfter(Message pMsg, int pTaskId, long pDelay, TimeUnit pUnit, MessagePriority pPriority) {
+		return getTimerWheel().schedule(pMsg, pTaskId, pPriority, pDelay, 0, pUnit);
 	}
 	
 	/**
-	 * Return next free task id.
-	 * @return
+	 * Send a message periodically, until the handle is cancelled. The message is sent as is on each period.
+	 * @param pMsg
+	 * @param pTaskId
+	 * @param pInitialDelay Delay of the first send.
+	 * @param pPeriod
+	 * @param pUnit
+	 * @return Handle to cancel the sends.
 	 */
-	public int getNextTaskId() {
-		return m_sharedData.incrementNextTaskId();
+	public Timeout sendPeriodic(Message pMsg, int pTaskId, long pInitialDelay, long pPeriod, TimeUnit pUnit) {
+		return sendPeriodic(pMsg, pTaskId, pInitialDelay, pPeriod, pUnit, MessagePriority.NORMAL);
 	}
 	
 	/**
-	 * Return true if there are no message in the Q.
+	 * Send a message periodically in one of the lanes of a task.
+	 * @param pMsg
 	 * @param pTaskId
-	 * @return
+	 * @param pInitialDelay Delay of the first send.
+	 * @param pPeriod
+	 * @param pUnit
+	 * @param pPriority Lane of the message.
+	 * @return Handle to cancel the sends, null if the period is invalid.
 	 */
-	public boolean message_immediate(int pTaskId) {
-		try {
-			return !readers[pTaskId].next();
-		} catch (EOFException e) {
-			System.err.println("message_immediate error : " + e.getMessage());
-			e.printStackTrace();
+	public Timeout sendPeriodic(Message pMsg, int pTaskId, long pInitialDelay, long pPeriod, TimeUnit pUnit,
+			MessagePriority pPriority) {
+		if (pPeriod <= 0) {
+			System.err.println("sendPeriodic, period must be positive : " + pPeriod);
+			return null;
 		}
-		
-		return false;
+		return getTimerWheel().schedule(pMsg, pTaskId, pPriority, pInitialDelay, pPeriod, pUnit);
 	}
 	
 	/**
-	 * Look for a message in the Q, if no message put to sleep and the
-	 * wait and signal loop will wake him up when a new message is present.
-	 * @param pTaskId
+	 * @return Timer wheel of this process, created on the first call.
 	 */
-	public void message_notify(int pTaskId) {
-		if (message_immediate(pTaskId)) {
+	private synchronized TimerWheel getTimerWheel() {
+		if (m_timerWheel == null) {
+			m_timerWheel = new TimerWheel(TimerWheel.getConfiguredTickNanos());
+		}
+		return m_timerWheel;
+	}
+	
+	/**
+	 * Return the I/O service of this process, started on the first use.
+	 * @return The service, the process exit if the selector can't be opened.
+	 */
+	public synchronized IOService getIOService() {
+		if (m_ioService == null) {
 			try {
-				sleepers[pTaskId].await();
-			} catch (InterruptedException e) {
-				System.err.println("Condition variable failed to await");
-				e.printStackTrace();
+				m_ioService = new IOService();
+			} catch (IOException e) {
+				System.err.println("Failed to start the IO service : " + e.getMessage());
+				System.exit(-1);
 			}
 		}
+		return m_ioService;
 	}
 	
 	/**
-	 * Yield the current thread.
-	 * @param pTaskId
+	 * Install the transport of the task ids that are not in this system. The previous one is shut down.
+	 * @param pTransport Transport, or null.
 	 */
-	public void message_wait(int pTaskId) {
-		Thread.yield();
+	public synchronized void setTransport(MessageTransport pTransport) {
+		if (m_transport != null && m_transport != pTransport) {
+			m_transport.shutdown();
+		}
+		m_transport = pTransport;
 	}
 	
 	/**
-	 * Build the path to a specific task queue.
-	 * Format : /tmp/TS_<TASK_ID>
-	 * @param pTaskId
-	 * @return
+	 * @return Transport of the task ids that are not in this system, or null.
 	 */
-	private String getTaskQPath(int pTaskId) {
-		return new String(TASK_SHARED_PATH_PREFIX + pTaskId);
+	public MessageTransport getTransport() {
+		return m_transport;
 	}
-
+	
 	/**
-	 * Wait and signal loop.
+	 * @return Size of a queue record, the largest encoded message.
 	 */
-	@Override
-	public void run() {
-		System.out.println("Wait and signal loop started");
-		
-		while(!m_sharedData.getShutdownSignal()) {
-			
+	public int getRecordSize() {
+		return m_recordSize;
+	}
+	
+	/**
+	 * Add a message to one of the lanes of a task.
+	 * @param pMsg
+	 * @param pTaskId
+	 * @param pPriority Lane of the message.
+	 */
+	public void send(Message pMsg, int pTaskId, MessagePriority pPriority) {
+		TaskPool pool = pools[pTaskId];
+		if (pool != null) {
+			pTaskId = pool.route();
+		} else if (groups[pTaskId] != null) {
+			System.err.println("Error, group " + pTaskId + " is sharded, send need a key");
+			dropMessage(pMsg);
+			return;
+		} else if (m_router.getLocalProcess(pTaskId) != 0) {
+			System.err.println("Error, " + pTaskId + " is a pool of process " + m_router.getLocalProcess(pTaskId)
+					+ ", it can't be reached from another process");
+			dropMessage(pMsg);
+			return;
+		}
+		
+		MessageTransport transport = m_transport;
+		if (transport != null && transport.send(pMsg, pTaskId, pPriority)) {
+			return;
+		}
+		
+		if (m_router.getRoute(pTaskId) != 0) {
+			sendRouted(pMsg, pTaskId, pPriority);
+			return;
+		}
+		
+		write(pMsg, pTaskId, pPriority);
+	}
+	
+	/**
+	 * Send a message to the shard of a group that own a key. Every message of a key reach the same shard,
+	 * in order. See ShardedGroup.
+	 * @param pKey Key, ex : an account number.
+	 * @param pMsg
+	 * @param pGroupId
+	 */
+	public void send(long pKey, Message pMsg, int pGroupId) {
+		ShardedGroup group = groups[pGroupId];
+		if (group == null) {
+			System.err.println("Error, " + pGroupId + " is not a sharded group of this process");
+			return;
+		}
+		group.send(pKey, pMsg);
+	}
+	
+	/**
+	 * Reserve a slot in the mailbox of a task, to encode a message in place (see MailboxClaim). Nothing
+	 * is allocated and the message is not copied : the sender write the fields at the offsets of the
+	 * codec and commit. Only a fan-in lane of the calling thread or a mailbox of the arena can give a slot,
+	 * the MappedBus queue has no reserve and publish step.
+	 * @param pTaskId Destination task, or pool.
+	 * @param pLength Bytes to write, at most the record size.
+	 * @param pTypeId Message type id, the receiver decode the slot with this type.
+	 * @return The claim of the calling thread, or null when the message must go through send (the task
+	 * has no claimable mailbox, is routed, or its mailbox is full).
+	 */
+	public MailboxClaim tryClaim(int pTaskId, int pLength, int pTypeId) {
+		if (pLength > m_recordSize) {
+			System.err.println("tryClaim, " + pLength + " bytes is larger than the record size " + m_recordSize);
+			return null;
+		}
+		TaskPool pool = pools[pTaskId];
+		if (pool != null) {
+			pTaskId = pool.route();
+		} else if (groups[pTaskId] != null) {
+			return null;
+		}
+		MessageTransport transport = m_transport;
+		if ((transport != null && transport.isRouted(pTaskId)) || m_router.getRoute(pTaskId) != 0) {
+			return null;
+		}
+		
+		MailboxClaim claim = getWriterCache().m_claim;
+		if (claim.isOpen()) {
+			System.err.println("tryClaim, the claim on task " + claim.getTaskId() + " is not committed");
+			return null;
+		}
+		
+		FanInMailbox.Lane lane = getFanInLane(pTaskId);
+		if (lane != null) {
+			long position = lane.claim(pTypeId);
+			if (position < 0) {
+				FlightRecorder.record(FlightRecorder.QUEUE_FULL, pTaskId, pTypeId);
+				return null;
+			}
+			return claim.open(pTaskId, pTypeId, pLength, lane, position);
+		}
+		
+		long block = m_arena != null ? m_arena.getBlock(pTaskId) : 0;
+		if (block != 0) {
+			long position = m_arena.claim(block, MessagePriority.NORMAL.ordinal(), pTypeId);
+			if (position < 0) {
+				FlightRecorder.record(FlightRecorder.QUEUE_FULL, pTaskId, pTypeId);
+				return null;
+			}
+			return claim.open(pTaskId, pTypeId, pLength, m_arena, position);
+		}
+		return null;
+	}
+	
+	/**
+	 * Count a message sent with a claim. Called by MailboxClaim.commit.
+	 * @param pTaskId
+	 * @param pTypeId
+	 */
+	void claimCommitted(int pTaskId, int pTypeId) {
+		m_sendCount.incrementAndGet(pTaskId);
+		FlightRecorder.record(FlightRecorder.SEND, pTaskId, pTypeId);
+	}
+	
+	/**
+	 * Send to a task that can move. The message is written in the incarnation of the current route,
+	 * a sender only wait while the task is moving.
+	 * @param pMsg
+	 * @param pTaskId
+	 * @param pPriority
+	 */
+	private void sendRouted(Message pMsg, int pTaskId, MessagePriority pPriority) {
+		while (true) {
+			long slot = m_router.enter(pTaskId);
+			long route = m_router.getRoute(pTaskId);
+			if (TaskRouter.getState(route) == TaskRouter.ACTIVE) {
+				try {
+					if (route != m_routeCache.get(pTaskId)) {
+						if (TaskRouter.getNode(route) != m_router.getNodeId()) {
+							System.err.println("Task " + pTaskId + " is on node " + TaskRouter.getNode(route)
+									+ ", no network transport");
+							dropMessage(pMsg);
+							return;
+						}
+						useRoute(pTaskId, route);
+					}
+					write(pMsg, pTaskId, pPriority);
+				} finally {
+					m_router.exit(pTaskId, slot);
+				}
+				return;
+			}
+			m_router.exit(pTaskId, slot);
+			
+			if (route == 0) {
+				// Route removed, the task is gone
+				write(pMsg, pTaskId, pPriority);
+				return;
+			}
+			Thread.yield(); // Moving
+		}
+	}
+	
+	/**
+	 * Switch the writers of this process to the incarnation of a new route.
+	 * @param pTaskId
+	 * @param pRoute
+	 */
+	private void useRoute(int pTaskId, long pRoute) {
+		synchronized (m_routeCache) {
+			if (m_routeCache.get(pTaskId) != pRoute) {
+				m_epochs[pTaskId] = TaskRouter.getEpoch(pRoute);
+				closeWriters(pTaskId);
+				m_routeCache.set(pTaskId, pRoute);
+			}
+		}
+	}
+	
+	/**
+	 * Close the writers of a task, in every lane and every thread : each thread close and reopen its
+	 * writer on its next send. Called after m_epochs is updated, a thread that see the new generation
+	 * open the new incarnation.
+	 * @param pTaskId
+	 */
+	private void closeWriters(int pTaskId) {
+		m_writerGenerations.incrementAndGet(pTaskId);
+	}
+	
+	/**
+	 * Write a message in the current incarnation of a task queue.
+	 * @param pMsg
+	 * @param pTaskId
+	 * @param pPriority
+	 */
+	private void write(Message pMsg, int pTaskId, MessagePriority pPriority) {
+		// The lanes only take the scalar NORMAL messages, a keyed message to a conflating task is conflated
+		if (pPriority == MessagePriority.NORMAL && !(pMsg instanceof ArrayMessage)
+				&& !(pMsg instanceof KeyedMessage && getConflatingMailbox(pTaskId) != null)) {
+			FanInMailbox.Lane lane = getFanInLane(pTaskId);
+			if (lane != null) {
+				if (offerFanIn(lane, pMsg, pTaskId)) {
+					return;
+				}
+				if (lane == getFanInLane(pTaskId)) {
+					System.err.println("Fan-in lane of task " + pTaskId + " full for " + FanInMailbox.OFFER_TIMEOUT_PROPERTY
+							+ ", message dropped");
+					dropMessage(pMsg);
+					return;
+				}
+				// The task was deleted or moved while we waited, use its queue
+			}
+		}
+		
+		// A task in the arena has no queue files
+		long block = m_arena != null ? m_arena.getBlock(pTaskId) : 0;
+		MappedBusWriter writer = null;
+		if (block == 0) {
+			writer = getWriter(pTaskId, pPriority);
+			if (writer == null) {
+				dropMessage(pMsg);
+				return;
+			}
+		}
+		
+		if (pMsg instanceof KeyedMessage && !(pMsg instanceof ArrayMessage)) {
+			ConflatingMailbox box = getConflatingMailbox(pTaskId);
+			if (box != null) {
+				int slot = box.offer(pMsg, ((KeyedMessage)pMsg).getConflationKey());
+				if (slot == ConflatingMailbox.NO_NOTICE) {
+					return; // Replaced the unread message
+				}
+				if (slot >= 0) {
+					pMsg = new ConflationNotice(slot);
+				}
+				// Else no slot left for the key, queued as a regular message
+			}
+		}
+		
+		if (pMsg instanceof ArrayMessage) {
+			sendFragments((ArrayMessage)pMsg, pTaskId, pPriority, writer, block);
+			return;
+		}
+		
+		// Write message
+		try {
+			writeRecord(pMsg, pTaskId, pPriority, writer, block);
+			m_sendCount.incrementAndGet(pTaskId);
+			FlightRecorder.record(FlightRecorder.SEND, pTaskId, pMsg.getTid());
+		} catch (EOFException e) {
+			FlightRecorder.record(FlightRecorder.QUEUE_FULL, pTaskId, pMsg.getTid());
+			System.err.println("Failed to write in Q : " + e.getMessage());
+			dropMessage(pMsg);
+		}
+	}
+	
+	/**
+	 * Clean up a message that was not delivered. A BufferMessage give back the slab reference it took
+	 * for the recipient.
+	 * @param pMsg
+	 */
+	void dropMessage(Message pMsg) {
+		if (pMsg instanceof BufferMessage && m_bufferPool != null) {
+			m_bufferPool.release(((BufferMessage)pMsg).slab);
+		}
+	}
+	
+	/**
+	 * Write one record in a lane, in the queue file or in the arena mailbox.
+	 * @param pMsg
+	 * @param pTaskId
+	 * @param pPriority
+	 * @param pWriter Writer of the lane, null for a mailbox of the arena.
+	 * @param pBlock Arena mailbox, used when there is no writer.
+	 * @throws EOFException The queue is full.
+	 */
+	private void writeRecord(Message pMsg, int pTaskId, MessagePriority pPriority, MappedBusWriter pWriter, long pBlock)
+			throws EOFException {
+		if (pWriter != null) {
+			pWriter.write(pMsg);
+		} else if (!m_arena.offer(pBlock, pPriority.ordinal(), pMsg)) {
+			throw new EOFException("Arena mailbox of task " + pTaskId + " is full");
+		}
+	}
+	
+	/**
+	 * Put a message in a fan-in lane, wait while the lane is full. The wait end at OFFER_TIMEOUT_PROPERTY
+	 * or when the generation of the task change (deleted queue, migration). A stall is recorded once.
+	 * @param pLane
+	 * @param pMsg
+	 * @param pTaskId
+	 * @return True if the message is in the lane.
+	 */
+	private boolean offerFanIn(FanInMailbox.Lane pLane, Message pMsg, int pTaskId) {
+		if (!pLane.offer(pMsg)) {
+			FlightRecorder.record(FlightRecorder.QUEUE_FULL, pTaskId, pMsg.getTid());
+			int generation = m_writerGenerations.get(pTaskId);
+			long deadline = System.nanoTime() + FanInMailbox.OFFER_TIMEOUT_NANOS;
+			do {
+				if (m_writerGenerations.get(pTaskId) != generation || System.nanoTime() - deadline > 0) {
+					return false;
+				}
+				Thread.yield(); // Lane full, wait for the receiver
+			} while (!pLane.offer(pMsg));
+		}
+		m_sendCount.incrementAndGet(pTaskId);
+		FlightRecorder.record(FlightRecorder.SEND, pTaskId, pMsg.getTid());
+		return true;
+	}
+	
+	/**
+	 * Return the writer of a lane, acquired on the first send.
+	 * @param pTaskId
+	 * @param pPriority
+	 * @return The writer, or null if the Q can't be acquired.
+	 */
+	private MappedBusWriter getWriter(int pTaskId, MessagePriority pPriority) {
+		WriterCache cache = getWriterCache();
+		int lane = pPriority.ordinal();
+		MappedBusWriter writer = cache.m_writers[lane][pTaskId];
+		int generation = m_writerGenerations.get(pTaskId);
+		if (writer != null && cache.m_generations[lane][pTaskId] == generation) {
+			return writer;
+		}
+		
+		try {
+			if (writer != null) {
+				cache.m_writers[lane][pTaskId] = null;
+				writer.close();
+			}
+			// Acquire the Q for this thread only
+			writer = new MappedBusWriter(getLanePath(pTaskId, pPriority), m_queueSize, m_recordSize, true);
+			writer.open();
+		} catch (IOException ex) {
+			System.err.println("Failed to acquire Q : " + ex.getMessage());
+			return null;
+		}
+		cache.m_writers[lane][pTaskId] = writer;
+		cache.m_generations[lane][pTaskId] = generation;
+		return writer;
+	}
+	
+	/**
+	 * Return the conflating mailbox of a task, opened on the first call.
+	 * @param pTaskId
+	 * @return The mailbox, or null if the task use a regular mailbox.
+	 */
+	private ConflatingMailbox getConflatingMailbox(int pTaskId) {
+		if (conflatingChecked.get(pTaskId) == 0) {
+			synchronized (conflating) {
+				if (conflatingChecked.get(pTaskId) == 0) {
+					File f = new File(getConflatingPath(pTaskId));
+					if (f.exists()) {
+						try {
+							conflating[pTaskId] = ConflatingMailbox.open(f.getPath());
+						} catch (IOException e) {
+							System.err.println("Failed to acquire conflating mailbox : " + e.getMessage());
+						}
+					}
+					conflatingChecked.set(pTaskId, 1);
+				}
+			}
+		}
+		return conflating[pTaskId];
+	}
+	
+	/**
+	 * Return the fan-in lane of the sending thread, claimed on its first send to the task.
+	 * @param pTaskId
+	 * @return The lane, or null if the task has no fan-in mailbox or no free lane.
+	 */
+	private FanInMailbox.Lane getFanInLane(int pTaskId) {
+		WriterCache cache = getWriterCache();
+		int generation = m_writerGenerations.get(pTaskId);
+		if (cache.m_laneGenerations[pTaskId] == generation) {
+			return cache.m_lanes[pTaskId];
+		}
+		
+		if (cache.m_lanes[pTaskId] != null) {
+			cache.m_lanes[pTaskId].release();
+		}
+		FanInMailbox box = getFanInMailbox(pTaskId);
+		cache.m_lanes[pTaskId] = box != null ? box.claimLane() : null;
+		cache.m_laneGenerations[pTaskId] = generation;
+		return cache.m_lanes[pTaskId];
+	}
+	
+	/**
+	 * Return the fan-in mailbox of a task, opened on the first call.
+	 * @param pTaskId
+	 * @return The mailbox, or null if the task use a regular mailbox.
+	 */
+	private FanInMailbox getFanInMailbox(int pTaskId) {
+		if (fanInChecked.get(pTaskId) == 0) {
+			synchronized (fanIn) {
+				if (fanInChecked.get(pTaskId) == 0) {
+					File f = new File(getFanInPath(pTaskId));
+					if (f.exists()) {
+						try {
+							fanIn[pTaskId] = FanInMailbox.open(f.getPath());
+						} catch (IOException e) {
+							System.err.println("Failed to acquire fan-in mailbox : " + e.getMessage());
+						}
+					}
+					fanInChecked.set(pTaskId, 1);
+				}
+			}
+		}
+		return fanIn[pTaskId];
+	}
+	
+	/**
+	 * @return Writers of the calling thread, created on its first send.
+	 */
+	private WriterCache getWriterCache() {
+		WriterCache cache = m_writerCache.get();
+		if (cache == null) {
+			cache = new WriterCache();
+			m_writerCache.set(cache);
+		}
+		int deleted = m_deletedQueues.get();
+		if (cache.m_sweptDeletes != deleted) {
+			cache.m_sweptDeletes = deleted;
+			closeStaleWriters(cache);
+		}
+		return cache;
+	}
+	
+	/**
+	 * Close the writers and release the fan-in lanes of a thread that are from an older generation of
+	 * their task. Each writer map a whole queue, the memory of a deleted queue is only released once
+	 * every mapping is closed.
+	 * @param pCache Writers of the calling thread.
+	 */
+	private void closeStaleWriters(WriterCache pCache) {
+		for (int lane = 0; lane < pCache.m_writers.length; lane++) {
+			for (int i = 0; i < MAX_TASK_COUNT; i++) {
+				MappedBusWriter writer = pCache.m_writers[lane][i];
+				if (writer != null && pCache.m_generations[lane][i] != m_writerGenerations.get(i)) {
+					pCache.m_writers[lane][i] = null;
+					try {
+						writer.close();
+					} catch (IOException e) {
+						System.err.println("Failed to close Q writer : " + e.getMessage());
+					}
+				}
+			}
+		}
+		for (int i = 0; i < MAX_TASK_COUNT; i++) {
+			if (pCache.m_lanes[i] != null && pCache.m_laneGenerations[i] != m_writerGenerations.get(i)) {
+				pCache.m_lanes[i].release();
+				pCache.m_lanes[i] = null;
+				pCache.m_laneGenerations[i] = -1;
+			}
+		}
+	}
+	
+	/**
+	 * Close the writers of the calling thread, abort its open claim and release its fan-in lanes and its
+	 * sender slot of the routes. Called when a task thread end : each writer map a whole queue, and
+	 * MappedBus only unmap it on close. A thread that is not a task and send messages (ex : main) can call
+	 * it before it end.
+	 */
+	public void releaseThreadWriters() {
+		m_router.releaseSenderSlot();
+		WriterCache cache = m_writerCache.get();
+		if (cache == null) {
+			return;
+		}
+		m_writerCache.remove();
+		
+		if (cache.m_claim.isOpen()) {
+			// Left open by an exception, it would block the mailbox
+			System.err.println("Claim on task " + cache.m_claim.getTaskId() + " not committed by its thread, aborted");
+			cache.m_claim.abort();
+		}
+		
+		for (int lane = 0; lane < cache.m_writers.length; lane++) {
+			for (int i = 0; i < MAX_TASK_COUNT; i++) {
+				MappedBusWriter writer = cache.m_writers[lane][i];
+				if (writer != null) {
+					cache.m_writers[lane][i] = null;
+					try {
+						writer.close();
+					} catch (IOException e) {
+						System.err.println("Failed to close Q writer : " + e.getMessage());
+					}
+				}
+			}
+		}
+		for (int i = 0; i < MAX_TASK_COUNT; i++) {
+			if (cache.m_lanes[i] != null) {
+				cache.m_lanes[i].release();
+				cache.m_lanes[i] = null;
+			}
+		}
+	}
+	
+	/**
+	 * Split an array message in fragments that fit in a record.
+	 * @param pMsg
+	 * @param pTaskId
+	 * @param pPriority
+	 * @param pWriter Writer of the lane, null for a mailbox of the arena.
+	 * @param pBlock Arena mailbox.
+	 */
+	private void sendFragments(ArrayMessage pMsg, int pTaskId, MessagePriority pPriority, MappedBusWriter pWriter,
+			long pBlock) {
+		int capacity = ArrayFragment.getDataCapacity(m_recordSize);
+		if (capacity <= 0) {
+			System.err.println("Record size too small for array messages : " + m_recordSize);
+			return;
+		}
+		
+		if (pMsg.getByteLength() > Integer.MAX_VALUE) {
+			System.err.println("Array message of " + pMsg.getByteLength() + " bytes, the limit is 2GB");
+			return;
+		}
+		
+		ArrayFragment fragment = new ArrayFragment(pMsg, nextArrayKey());
+		int perFragment = capacity / pMsg.getElementSize();
+		int total = pMsg.getLength();
+		int first = 0;
+		
+		// At least one fragment, even for an empty array. If the queue fill up in the middle, the receiver
+		// drop the fragments already written after ArrayAssembler.TIMEOUT_PROPERTY
+		try {
+			do {
+				int count = Math.min(perFragment, total - first);
+				fragment.setRange(first, count);
+				writeRecord(fragment, pTaskId, pPriority, pWriter, pBlock);
+				m_sendCount.incrementAndGet(pTaskId);
+				FlightRecorder.record(FlightRecorder.SEND, pTaskId, ArrayFragment.ARRAYFRAGMENT_TID);
+				first += count;
+			} while (first < total);
+		} catch (EOFException e) {
+			FlightRecorder.record(FlightRecorder.QUEUE_FULL, pTaskId, ArrayFragment.ARRAYFRAGMENT_TID);
+			System.err.println("Failed to write in Q : " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * @return A new array key, unique to this process.
+	 */
+	long nextArrayKey() {
+		return m_arrayKeyBase | (m_nextArrayKey.incrementAndGet() & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Get the message from a task queue.
+	 * @param pTaskId
+	 * @return
+	 * @throws  
+	 */
+	public Message receive(int pTaskId) {
+		TaskPool pool = pools[pTaskId];
+		if (pool != null && pool.isShared()) {
+			// Competing consumers, one reader at a time
+			synchronized (pool) {
+				return receiveFromQueue(pTaskId);
+			}
+		}
+		
+		return receiveFromQueue(pTaskId);
+	}
+	
+	/**
+	 * Read the next message of a task, looking at the priority lanes first. When the priority lanes
+	 * are empty, the cost is one volatile read per lane. With a fan-in mailbox, the task queue is read
+	 * as one more lane : after a batch of lane messages, or when the lanes are empty.
+	 * @param pTaskId
+	 * @return The message, or null if the queue is empty.
+	 */
+	private Message receiveFromQueue(int pTaskId) {
+		MailboxArena.Reader arena = arenaReaders[pTaskId];
+		try {
+			for (int lane = 0; lane < MessagePriority.PRIORITY_LANE_COUNT; lane++) {
+				MappedBusReader reader = laneReaders[lane][pTaskId];
+				if (arena != null ? arena.next(lane) : reader.next()) {
+					return readMessage(reader, arena, pTaskId);
+				}
+			}
+			
+			FanInMailbox box = fanIn[pTaskId];
+			if (box != null && fanInTurns[pTaskId]++ < FanInMailbox.BATCH) {
+				Message msg = pollFanIn(box, pTaskId);
+				if (msg != null) {
+					return msg;
+				}
+			}
+			fanInTurns[pTaskId] = 0;
+			
+			if (arena != null ? arena.next(MessagePriority.NORMAL.ordinal()) : readers[pTaskId].next()) {
+				return readMessage(readers[pTaskId], arena, pTaskId);
+			}
+			
+			if (box != null) {
+				return pollFanIn(box, pTaskId);
+			}
+		} catch (EOFException e) {
+			System.err.println("EOF error : " + e.getMessage());
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Read the next message of the fan-in lanes.
+	 * @param pBox
+	 * @param pTaskId
+	 * @return The message, or null if the lanes are empty.
+	 */
+	private Message pollFanIn(FanInMailbox pBox, int pTaskId) {
+		Message msg = pBox.poll(m_messageTypes);
+		if (msg != null) {
+			m_receiveCount.incrementAndGet(pTaskId);
+			m_counters.getAndAddLong((long)pTaskId * COUNTERS_ENTRY_SIZE, 1);
+			m_counters.getAndAddLong((long)pTaskId * COUNTERS_ENTRY_SIZE + DELIVERED_OFFSET, 1);
+			FlightRecorder.record(FlightRecorder.RECEIVE, pTaskId, msg.getTid());
+		}
+		return msg;
+	}
+	
+	/**
+	 * Decode the message the reader is positioned on.
+	 * @param pReader
+	 * @param pArena Arena mailbox of the task, read instead of the reader when not null.
+	 * @param pTaskId
+	 * @return The message, or null for an unknown type or an incomplete array.
+	 */
+	private Message readMessage(MappedBusReader pReader, MailboxArena.Reader pArena, int pTaskId) {
+		int type = pArena != null ? pArena.readType() : pReader.readType();
+		
+		// Mapping
+		Message msg = null;
+		if (type == ArrayFragment.ARRAYFRAGMENT_TID) {
+			if (assemblers[pTaskId] == null) {
+				assemblers[pTaskId] = new ArrayAssembler();
+			}
+			readRecord(pReader, pArena, assemblers[pTaskId].getFragment());
+			msg = assemblers[pTaskId].poll(); // Null until the last fragment
+		} else if (type == ConflationNotice.CONFLATIONNOTICE_TID) {
+			ConflationNotice notice = new ConflationNotice();
+			readRecord(pReader, pArena, notice);
+			msg = conflating[pTaskId].poll(notice.slot, m_messageTypes); // Null if already read
+		} else if (type >= 0 && type < MAX_MESSAGE_TYPE && m_messageTypes[type] != null) {
+			msg = m_messageTypes[type].get();
+			readRecord(pReader, pArena, msg);
+		}
+		
+		m_receiveCount.incrementAndGet(pTaskId);
+		m_counters.getAndAddLong((long)pTaskId * COUNTERS_ENTRY_SIZE, 1);
+		if (msg != null) {
+			m_counters.getAndAddLong((long)pTaskId * COUNTERS_ENTRY_SIZE + DELIVERED_OFFSET, 1);
+		}
+		FlightRecorder.record(FlightRecorder.RECEIVE, pTaskId, type);
+		return msg;
+	}
+	
+	/**
+	 * Decode the record found by the reader, or by the arena mailbox when not null.
+	 * @param pReader
+	 * @param pArena
+	 * @param pMsg Empty message of the record type.
+	 */
+	private void readRecord(MappedBusReader pReader, MailboxArena.Reader pArena, Message pMsg) {
+		if (pArena != null) {
+			pArena.readMessage(pMsg);
+		} else {
+			pReader.readMessage(pMsg);
+		}
+	}
+	
+	/**
+	 * Create a new shared queue, and its priority lanes, for a task id. The file is preallocated (and
+	 * pre-touched) before being opened so the first messages do not stall on page faults. The priority
+	 * lanes are not pre-touched, they are expected to stay mostly empty.
+	 * @param pTaskId
+	 */
+	public void createMessageQueue(int pTaskId) {
+		createMessageQueue(pTaskId, SharedMemoryConfig.isPretouchEnabled());
+	}
+	
+	/**
+	 * Create a new shared queue for a task id.
+	 * @param pTaskId
+	 * @param pPretouch False to leave the pages to the first writer.
+	 */
+	public void createMessageQueue(int pTaskId, boolean pPretouch) {
+		if (m_arena != null && m_router.getRoute(pTaskId) == 0) {
+			// A pointer bump, a migratable task keep its files
+			MailboxArena.Reader reader = m_arena.allocate(pTaskId);
+			if (reader != null) {
+				if (pPretouch) {
+					reader.pretouch(MessagePriority.NORMAL.ordinal());
+				}
+				arenaReaders[pTaskId] = reader;
+				m_counters.putLongVolatile((long)pTaskId * COUNTERS_ENTRY_SIZE, 0);
+				m_counters.putLongVolatile((long)pTaskId * COUNTERS_ENTRY_SIZE + DELIVERED_OFFSET, 0);
+				return;
+			}
+			System.err.println("Mailbox arena full, task " + pTaskId + " use queue files");
+		}
+		
+		try {
+			createQueueFiles(pTaskId, m_epochs[pTaskId], pPretouch);
+			openReaders(pTaskId);
+			m_counters.putLongVolatile((long)pTaskId * COUNTERS_ENTRY_SIZE, 0);
+			m_counters.putLongVolatile((long)pTaskId * COUNTERS_ENTRY_SIZE + DELIVERED_OFFSET, 0);
+		} catch (IOException e) {
+			System.err.println("Error creating the task Q : " + e.getMessage());
+			System.exit(-1);
+		}
+	}
+	
+	/**
+	 * Create the files of an incarnation of a task queue, and of its priority lanes.
+	 * @param pTaskId
+	 * @param pEpoch Incarnation.
+	 * @param pPretouch
+	 * @throws IOException
+	 */
+	private void createQueueFiles(int pTaskId, int pEpoch, boolean pPretouch) throws IOException {
+		for (MessagePriority priority : MessagePriority.values()) {
+			String path = getLanePath(pTaskId, priority, pEpoch);
+			new File(path).delete();
+			// The priority lanes are expected to stay mostly empty
+			SharedMemoryConfig.preallocate(path, m_queueSize, pPretouch && priority == MessagePriority.NORMAL);
+		}
+	}
+	
+	/**
+	 * Open the readers of the current incarnation of a task queue.
+	 * @param pTaskId
+	 * @throws IOException
+	 */
+	private void openReaders(int pTaskId) throws IOException {
+		readers[pTaskId] = new MappedBusReader(getTaskQPath(pTaskId), m_queueSize, m_recordSize);
+		readers[pTaskId].open();
+		
+		for (int lane = 0; lane < MessagePriority.PRIORITY_LANE_COUNT; lane++) {
+			laneReaders[lane][pTaskId] = new MappedBusReader(getLanePath(pTaskId, MessagePriority.values()[lane]),
+					m_queueSize, m_recordSize);
+			laneReaders[lane][pTaskId].open();
+		}
+	}
+	
+	/**
+	 * Close the readers of a task, in every lane.
+	 * @param pTaskId
+	 */
+	private void closeReaders(int pTaskId) {
+		try {
+			if (readers[pTaskId] != null) {
+				readers[pTaskId].close();
+				readers[pTaskId] = null;
+			}
+			for (int lane = 0; lane < MessagePriority.PRIORITY_LANE_COUNT; lane++) {
+				if (laneReaders[lane][pTaskId] != null) {
+					laneReaders[lane][pTaskId].close();
+					laneReaders[lane][pTaskId] = null;
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Error closing the task Q : " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Add a conflating mailbox to a task queue. Keyed messages sent to the task then replace the unread
+	 * message of the same key (see ConflatingMailbox). Must be called before the task id is given to
+	 * the senders.
+	 * @param pTaskId
+	 * @param pKeyCount Number of distinct keys.
+	 */
+	public void createConflatingMailbox(int pTaskId, int pKeyCount) {
+		String path = getConflatingPath(pTaskId);
+		new File(path).delete();
+		
+		try {
+			synchronized (conflating) {
+				conflating[pTaskId] = ConflatingMailbox.create(path, pKeyCount, m_recordSize);
+				conflatingChecked.set(pTaskId, 1);
+			}
+		} catch (IOException e) {
+			System.err.println("Error creating the conflating mailbox : " + e.getMessage());
+			System.exit(-1);
+		}
+	}
+	
+	/**
+	 * Add a fan-in mailbox to a task queue. Each sending thread then get its own lane (see FanInMailbox),
+	 * the threads beyond the lane count, the array messages and the priority lanes use the task queue.
+	 * Must be called before the task id is given to the senders.
+	 * @param pTaskId
+	 * @param pLaneCount Number of lanes.
+	 * @param pCapacity Messages of each lane.
+	 */
+	public void createFanInMailbox(int pTaskId, int pLaneCount, int pCapacity) {
+		String path = getFanInPath(pTaskId);
+		new File(path).delete();
+		
+		try {
+			synchronized (fanIn) {
+				fanIn[pTaskId] = FanInMailbox.create(path, pLaneCount, pCapacity, m_recordSize);
+				fanInChecked.set(pTaskId, 1);
+				fanInTurns[pTaskId] = 0;
+			}
+		} catch (IOException e) {
+			System.err.println("Error creating the fan-in mailbox : " + e.getMessage());
+			System.exit(-1);
+		}
+	}
+	
+	/**
+	 * Close and delete the queue of a task that is done. The task must not use its queue anymore. The
+	 * memory is released when every process has closed its mapping : the writers of the other threads of
+	 * this process are closed on their next send, or when they end.
+	 * @param pTaskId
+	 */
+	public void deleteMessageQueue(int pTaskId) {
+		synchronized (m_queueLock) {
+			closeReaders(pTaskId);
+			closeWriters(pTaskId);
+			m_deletedQueues.incrementAndGet();
+			if (arenaReaders[pTaskId] != null) {
+				m_arena.release(pTaskId);
+				arenaReaders[pTaskId] = null;
+			}
+			assemblers[pTaskId] = null;
+			synchronized (conflating) {
+				conflating[pTaskId] = null;
+				conflatingChecked.set(pTaskId, 0);
+			}
+			synchronized (fanIn) {
+				fanIn[pTaskId] = null;
+				fanInChecked.set(pTaskId, 0);
+			}
+		}
+		
+		for (MessagePriority priority : MessagePriority.values()) {
+			new File(getLanePath(pTaskId, priority)).delete();
+		}
+		new File(getConflatingPath(pTaskId)).delete();
+		new File(getFanInPath(pTaskId)).delete();
+		new File(getCursorsPath(pTaskId)).delete();
+		
+		if (m_router.getRoute(pTaskId) != 0) {
+			m_router.unregister(pTaskId);
+		}
+		m_epochs[pTaskId] = 0;
+		m_routeCache.set(pTaskId, 0);
+	}
+	
+	/**
+	 * Open a named cursor on a task queue. The cursor read the messages of the task, in its three lanes,
+	 * with its own position, and resume after its last commit when opened again with the same name. A
+	 * mailbox in the arena, a fan-in task or a task that can move (MigratableTask) is refused : part of
+	 * its messages are not in the lane files.
+	 * @param pTaskId Task to read.
+	 * @param pName Cursor name, ex : audit.
+	 * @return The cursor, or null if it can't be opened.
+	 */
+	public MailboxCursor openCursor(int pTaskId, String pName) {
+		if (m_arena != null && m_arena.getBlock(pTaskId) != 0) {
+			System.err.println("Error opening cursor " + pName + " on task " + pTaskId + " : the mailbox is in the arena");
+			return null;
+		}
+		if (getFanInMailbox(pTaskId) != null) {
+			System.err.println("Error opening cursor " + pName + " on task " + pTaskId + " : the task has fan-in lanes");
+			return null;
+		}
+		if (m_router.getRoute(pTaskId) != 0) {
+			System.err.println("Error opening cursor " + pName + " on task " + pTaskId + " : the task can move");
+			return null;
+		}
+		
+		try {
+			String[] lanePaths = new String[MessagePriority.values().length];
+			for (MessagePriority priority : MessagePriority.values()) {
+				lanePaths[priority.ordinal()] = getLanePath(pTaskId, priority);
+			}
+			return new MailboxCursor(pTaskId, pName, lanePaths, getCursorsPath(pTaskId), m_queueSize,
+					m_recordSize, m_messageTypes);
+		} catch (IOException e) {
+			System.err.println("Error opening cursor " + pName + " on task " + pTaskId + " : " + e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Ask a task to move to the process of a migration agent. The task move at its next receive, the
+	 * senders keep using the same task id.
+	 * @param pTaskId A MigratableTask.
+	 * @param pAgentId A MigrationAgent.
+	 */
+	public void requestMigration(int pTaskId, int pAgentId) {
+		send(new MigrationMessage(MigrationMessage.MIGRATE, pAgentId, 0), pTaskId, MessagePriority.CONTROL);
+	}
+	
+	/**
+	 * Move a task to the process of an agent. Called by the task thread, between two messages :
+	 * 1) The route is set to MOVING, once the senders writing are done nobody write in the queue.
+	 * 2) The task is serialized in the state file of the new incarnation.
+	 * 3) The messages left in the queue are moved to the new incarnation, lane by lane.
+	 * 4) The route is set to the new incarnation in the agent process and the agent adopt the task.
+	 * @param pTask
+	 * @param pAgentId
+	 * @return True if the task moved, its thread must stop. False if the task stay here.
+	 */
+	boolean migrate(MigratableTask pTask, int pAgentId) {
+		int taskId = pTask.getTaskId();
+		long agentRoute = m_router.getRoute(pAgentId);
+		if (agentRoute == 0) {
+			System.err.println("Migration of task " + taskId + " failed, " + pAgentId + " is not an agent");
+			return false;
+		}
+		
+		long route = m_router.beginMove(taskId);
+		if (route == 0) {
+			System.err.println("Migration of task " + taskId + " failed, the task is not active or its senders are not done");
+			return false;
+		}
+		int oldEpoch = TaskRouter.getEpoch(route);
+		int newEpoch = oldEpoch + 1;
+		
+		// The arrays being received go with the task, their next fragments are in the queue
+		try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(getStatePath(taskId, newEpoch)))) {
+			out.writeObject(pTask);
+			ArrayAssembler.writePartials(assemblers[taskId], out);
+		} catch (IOException e) {
+			System.err.println("Migration of task " + taskId + " failed, state not serializable : " + e.getMessage());
+			m_router.endMove(taskId, oldEpoch, TaskRouter.getNode(route), TaskRouter.getProcess(route));
+			return false;
+		}
+		
+		synchronized (m_queueLock) {
+			try {
+				createQueueFiles(taskId, newEpoch, false);
+			} catch (IOException e) {
+				System.err.println("Migration of task " + taskId + " failed : " + e.getMessage());
+				new File(getStatePath(taskId, newEpoch)).delete();
+				m_router.endMove(taskId, oldEpoch, TaskRouter.getNode(route), TaskRouter.getProcess(route));
+				return false;
+			}
+			
+			// The readers stay on the old incarnation, the writers go to the new one
+			synchronized (m_routeCache) {
+				m_epochs[taskId] = newEpoch;
+				closeWriters(taskId);
+				m_routeCache.set(taskId, 0);
+			}
+			
+			// The records are copied as is : array fragments, conflation notices and the types this
+			// process does not know are delivered by the new incarnation
+			long moved = 0;
+			RawRecord record = new RawRecord(m_recordSize);
+			try {
+				for (MessagePriority priority : MessagePriority.values()) {
+					MappedBusReader reader = priority == MessagePriority.NORMAL ? readers[taskId]
+							: laneReaders[priority.ordinal()][taskId];
+					MappedBusWriter writer = null;
+					while (reader.next()) {
+						if (writer == null && (writer = getWriter(taskId, priority)) == null) {
+							break;
+						}
+						record.setType(reader.readType());
+						reader.readMessage(record);
+						writeRecord(record, taskId, priority, writer, 0);
+						moved++;
+					}
+				}
+			} catch (EOFException e) {
+				System.err.println("Migration of task " + taskId + ", messages lost : " + e.getMessage());
+			}
+			
+			closeReaders(taskId);
+			closeWriters(taskId);
+			assemblers[taskId] = null;
+			m_counters.putLongVolatile((long)taskId * COUNTERS_ENTRY_SIZE, 0); // Counted from the new incarnation
+			for (MessagePriority priority : MessagePriority.values()) {
+				new File(getLanePath(taskId, priority, oldEpoch)).delete();
+			}
+			System.out.println("Task " + taskId + " moved to epoch " + newEpoch + " with " + moved + " message(s)");
+		}
+		
+		m_router.endMove(taskId, newEpoch, TaskRouter.getNode(agentRoute), TaskRouter.getProcess(agentRoute));
+		send(new MigrationMessage(MigrationMessage.ADOPT, taskId, newEpoch), pAgentId, MessagePriority.CONTROL);
+		return true;
+	}
+	
+	/**
+	 * Restart a task that moved to this process. Called by the migration agent.
+	 * @param pTaskId
+	 * @param pEpoch Incarnation created by the migration.
+	 */
+	void adoptTask(int pTaskId, int pEpoch) {
+		MigratableTask task;
+		String statePath = getStatePath(pTaskId, pEpoch);
+		
+		synchronized (m_queueLock) {
+			synchronized (m_routeCache) {
+				m_epochs[pTaskId] = pEpoch;
+				closeWriters(pTaskId);
+				m_routeCache.set(pTaskId, 0);
+			}
+			
+			Task.s_adoptedTaskId.set(pTaskId);
+			try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(statePath))) {
+				openReaders(pTaskId);
+				task = (MigratableTask)in.readObject();
+				assemblers[pTaskId] = ArrayAssembler.readPartials(in);
+			} catch (IOException | ClassNotFoundException e) {
+				System.err.println("Error adopting task " + pTaskId + " : " + e.getMessage());
+				return;
+			} finally {
+				Task.s_adoptedTaskId.remove();
+			}
+		}
+		new File(statePath).delete();
+		
+		(new Thread(task::resume)).start();
+	}
+	
+	/**
+	 * @return Route table.
+	 */
+	public TaskRouter getRouter() {
+		return m_router;
+	}
+	
+	/**
+	 * @return Pool of the shared buffers passed by handle.
+	 */
+	public SharedBufferPool getBufferPool() {
+		return m_bufferPool;
+	}
+	
+	/**
+	 * Register a pool. The pool id will be dispatched to the workers from now on.
+	 * @param pPool
+	 */
+	void registerPool(TaskPool pPool) {
+		pools[pPool.getPoolId()] = pPool;
+	}
+	
+	/**
+	 * Return the pool registered for an id.
+	 * @param pPoolId
+	 * @return The pool, or null if the id is not a pool of this process.
+	 */
+	public TaskPool getPool(int pPoolId) {
+		return pools[pPoolId];
+	}
+	
+	/**
+	 * Register a sharded group. Keyed sends to the group id will reach its shards from now on.
+	 * @param pGroup
+	 */
+	void registerGroup(ShardedGroup pGroup) {
+		groups[pGroup.getGroupId()] = pGroup;
+	}
+	
+	/**
+	 * Return the sharded group registered for an id.
+	 * @param pGroupId
+	 * @return The group, or null if the id is not a group of this process.
+	 */
+	public ShardedGroup getGroup(int pGroupId) {
+		return groups[pGroupId];
+	}
+	
+	/**
+	 * Return the number of messages waiting in a queue, as seen by this process.
+	 * @param pTaskId
+	 * @return Mailbox depth.
+	 */
+	public long getMailboxDepth(int pTaskId) {
+		return m_sendCount.get(pTaskId) - m_receiveCount.get(pTaskId);
+	}
+	
+	/**
+	 * Return the number of records written in a queue by this process, the fragments of an array
+	 * message are counted one by one.
+	 * @param pTaskId
+	 * @return Sent count.
+	 */
+	public long getSentCount(int pTaskId) {
+		return m_sendCount.get(pTaskId);
+	}
+	
+	/**
+	 * Return the number of messages read from a queue since it was created, by any process. Read from
+	 * the shared counters.
+	 * @param pTaskId
+	 * @return Received count.
+	 */
+	public long getReceivedCount(int pTaskId) {
+		return m_counters.getLongVolatile((long)pTaskId * COUNTERS_ENTRY_SIZE);
+	}
+	
+	/**
+	 * Return the number of messages given to a task since it was created, by any process. Unlike the
+	 * received count, an array message count once whatever its fragments and a conflated message is
+	 * counted when it is read. Kept when the task move.
+	 * @param pTaskId
+	 * @return Delivered count.
+	 */
+	public long getDeliveredCount(int pTaskId) {
+		return m_counters.getLongVolatile((long)pTaskId * COUNTERS_ENTRY_SIZE + DELIVERED_OFFSET);
+	}
+	
+	/**
+	 * Return next free task id.
+	 * @return
+	 */
+	public int getNextTaskId() {
+		if (m_rank < 0) {
+			return m_sharedData.incrementNextTaskId();
+		}
+		
+		int id = m_sharedData.incrementRankTaskId(m_rank);
+		if (id > (m_rank + 1) * m_rankBlockSize) {
+			System.err.println("Error, rank " + m_rank + " has no task id left (" + m_rankBlockSize + " per rank)");
+			System.exit(-1);
+		}
+		m_rankTaskCount.incrementAndGet();
+		return id;
+	}
+	
+	/**
+	 * Return true if there are no message in the Q, in any lane.
+	 * @param pTaskId
+	 * @return
+	 */
+	public boolean message_immediate(int pTaskId) {
+		TaskPool pool = pools[pTaskId];
+		if (pool != null && pool.isShared()) {
+			// The readers are shared by the workers, locked like in receive
+			synchronized (pool) {
+				return isQueueEmpty(pTaskId);
+			}
+		}
+		
+		return isQueueEmpty(pTaskId);
+	}
+	
+	/**
+	 * Look at every lane of a task without reading.
+	 * @param pTaskId
+	 * @return True if there are no message.
+	 */
+	private boolean isQueueEmpty(int pTaskId) {
+		MailboxArena.Reader arena = arenaReaders[pTaskId];
+		try {
+			for (int lane = 0; lane < MessagePriority.PRIORITY_LANE_COUNT; lane++) {
+				if (arena != null ? arena.hasNext(lane) : laneReaders[lane][pTaskId].next()) {
+					return false;
+				}
+			}
+			if (fanIn[pTaskId] != null && !fanIn[pTaskId].isEmpty()) {
+				return false;
+			}
+			return arena != null ? !arena.hasNext(MessagePriority.NORMAL.ordinal()) : !readers[pTaskId].next();
+		} catch (EOFException e) {
+			System.err.println("message_immediate error : " + e.getMessage());
+			e.printStackTrace();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Look for a message in the Q, if no message put to sleep and the
+	 * wait and signal loop will wake him up when a new message is present.
+	 * @param pTaskId
+	 */
+	public void message_notify(int pTaskId) {
+		if (message_immediate(pTaskId)) {
+			FlightRecorder.record(FlightRecorder.PARK, pTaskId, 0);
+			long parkTime = System.nanoTime();
+			try {
+				sleepers[pTaskId].await();
+			} catch (InterruptedException e) {
+				System.err.println("Condition variable failed to await");
+				e.printStackTrace();
+			}
+			FlightRecorder.record(FlightRecorder.WAKEUP, pTaskId, System.nanoTime() - parkTime);
+		}
+	}
+	
+	/**
+	 * Yield the current thread.
+	 * @param pTaskId
+	 */
+	public void message_wait(int pTaskId) {
+		Thread.yield();
+	}
+	
+	/**
+	 * Build the path to a specific task queue.
+	 * Format : <SHARED_ROOT>/TS_<TASK_ID>[.<EPOCH>]
+	 * @param pTaskId
+	 * @return
+	 */
+	private String getTaskQPath(int pTaskId) {
+		return getLanePath(pTaskId, MessagePriority.NORMAL, m_epochs[pTaskId]);
+	}
+	
+	/**
+	 * Build the path to a lane of a task queue. The NORMAL lane is the task queue.
+	 * Format : <SHARED_ROOT>/TS_<TASK_ID>_<PRIORITY>
+	 * @param pTaskId
+	 * @param pPriority
+	 * @return
+	 */
+	private String getLanePath(int pTaskId, MessagePriority pPriority) {
+		return getLanePath(pTaskId, pPriority, m_epochs[pTaskId]);
+	}
+	
+	/**
+	 * Build the path to a lane of an incarnation of a task queue. The first incarnation (epoch 0) has
+	 * no suffix.
+	 * Format : <SHARED_ROOT>/TS_<TASK_ID>[.<EPOCH>][_<PRIORITY>]
+	 * @param pTaskId
+	 * @param pPriority
+	 * @param pEpoch
+	 * @return
+	 */
+	static String getLanePath(int pTaskId, MessagePriority pPriority, int pEpoch) {
+		String path = TASK_SHARED_PATH_PREFIX + pTaskId + (pEpoch == 0 ? "" : "." + pEpoch);
+		if (pPriority == MessagePriority.NORMAL) {
+			return path;
+		}
+		return new String(path + "_" + pPriority.name());
+	}
+	
+	/**
+	 * Build the path to the cursors of a task queue.
+	 * Format : <SHARED_ROOT>/TS_<TASK_ID>_CURSORS
+	 * @param pTaskId
+	 * @return
+	 */
+	static String getCursorsPath(int pTaskId) {
+		return new String(TASK_SHARED_PATH_PREFIX + pTaskId + "_CURSORS");
+	}
+	
+	/**
+	 * Build the path to the state of a task that moved.
+	 * Format : <SHARED_ROOT>/TS_<TASK_ID>.<EPOCH>_STATE
+	 * @param pTaskId
+	 * @param pEpoch
+	 * @return
+	 */
+	private String getStatePath(int pTaskId, int pEpoch) {
+		return new String(TASK_SHARED_PATH_PREFIX + pTaskId + "." + pEpoch + "_STATE");
+	}
+	
+	/**
+	 * Build the path to the conflating mailbox of a task.
+	 * Format : <SHARED_ROOT>/TS_<TASK_ID>_CONFLATED
+	 * @param pTaskId
+	 * @return
+	 */
+	private String getConflatingPath(int pTaskId) {
+		return new String(TASK_SHARED_PATH_PREFIX + pTaskId + "_CONFLATED");
+	}
+	
+	/**
+	 * Build the path to the fan-in mailbox of a task.
+	 * Format : <SHARED_ROOT>/TS_<TASK_ID>_FANIN
+	 * @param pTaskId
+	 * @return
+	 */
+	private String getFanInPath(int pTaskId) {
+		return new String(TASK_SHARED_PATH_PREFIX + pTaskId + "_FANIN");
+	}
+
+	/**
+	 * Wait and signal loop.
+	 */
+	@Override
+	public void run() {
+		System.out.println("Wait and signal loop started");
+		
+		while(!m_sharedData.getShutdownSignal()) {
+			
 			// Signal each task with mesage waiting
 			int current_max_id = m_sharedData.getNextTaskId();
 			
-			for (int i = 0; i < current_max_id; i++) {
-				if ((readers[i] != null) && (!message_immediate(i))) {
-					sleeper_lock.lock();
-					try {
-						this.sleepers[i].signal();
-					} finally {
-						sleeper_lock.unlock();
+			synchronized (m_queueLock) {
+				for (int i = 0; i < current_max_id; i++) {
+					if ((readers[i] != null || arenaReaders[i] != null) && (!message_immediate(i))) {
+						sleeper_lock.lock();
+						try {
+							this.sleepers[i].signal();
+						} finally {
+							sleeper_lock.unlock();
+						}
 					}
 				}
 			}
@@ -0,0 +1,103 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handle of a delayed or periodic message scheduled in the timer wheel. The handle is also the entry of
+ * the wheel slot list, so scheduling and cancelling never allocate anything else.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class Timeout {
+
+	/**
+	 * States. A timeout is PENDING until the timer thread put it in a slot.
+	 */
+	static final int PENDING = 0;
+	static final int SCHEDULED = 1;
+	static final int CANCELLED = 2;
+	static final int EXPIRED = 3;
+
+	/**
+	 * Message to deliver and destination.
+	 */
+	final Message m_msg;
+	final int m_taskId;
+	final MessagePriority m_priority;
+
+	/**
+	 * Deadline and period, in ticks. Period is 0 for a one shot timeout.
+	 */
+	long m_deadline;
+	final long m_period;
+
+	/**
+	 * Slot list links, only used by the timer thread.
+	 */
+	Timeout m_prev;
+	Timeout m_next;
+	TimerWheel.Slot m_slot;
+
+	/**
+	 * Current state.
+	 */
+	final AtomicInteger m_state = new AtomicInteger(PENDING);
+
+	/**
+	 * Owner wheel.
+	 */
+	private final TimerWheel m_wheel;
+
+	/**
+	 * Constructor. See TimerWheel.schedule.
+	 */
+	Timeout(TimerWheel pWheel, Message pMsg, int pTaskId, MessagePriority pPriority, long pDeadline, long pPeriod) {
+		m_wheel = pWheel;
+		m_msg = pMsg;
+		m_taskId = pTaskId;
+		m_priority = pPriority;
+		m_deadline = pDeadline;
+		m_period = pPeriod;
+	}
+
+	/**
+	 * Cancel the timeout. A periodic timeout stop after the current delivery.
+	 * @return True if the timeout was cancelled, false if it already expired or was cancelled.
+	 */
+	public boolean cancel() {
+		while (true) {
+			int state = m_state.get();
+			if (state == CANCELLED || state == EXPIRED) {
+				return false;
+			}
+			if (m_state.compareAndSet(state, CANCELLED)) {
+				if (state == SCHEDULED) {
+					// Unlinked from its slot by the timer thread
+					m_wheel.cancelled(this);
+				}
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return True if cancelled.
+	 */
+	public boolean isCancelled() {
+		return m_state.get() == CANCELLED;
+	}
+
+	/**
+	 * @return True if a one shot timeout was delivered.
+	 */
+	public boolean isExpired() {
+		return m_state.get() == EXPIRED;
+	}
+
+	/**
+	 * @return Destination task id.
+	 */
+	public int getTaskId() {
+		return m_taskId;
+	}
+}
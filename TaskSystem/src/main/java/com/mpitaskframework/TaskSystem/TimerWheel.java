@@ -0,0 +1,323 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hierarchical timing wheel delivering delayed and periodic messages in the task queues. One wheel is
+ * owned by the system and driven by its own thread.
+ *
+ * The wheel have 4 levels of 256 slots. Level 0 cover the next 256 ticks, level 1 the next 2^16 ticks and so
+ * on. When level 0 wrap, the next slot of level 1 is cascaded in level 0 (same for the upper levels). Insert
+ * and cancel are O(1) : any thread push the timeout in a lock-free queue and the timer thread link it in
+ * its slot on the next tick. A timeout is never delivered early and is late by at most one tick (plus the
+ * scheduling delay of the timer thread).
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class TimerWheel implements Runnable {
+
+	/**
+	 * Tick duration in microseconds (default 1000).
+	 */
+	public static final String TICK_PROPERTY = "mpitaskframework.timerTick";
+
+	private static final int LEVEL_COUNT = 4;
+	private static final int SLOT_BITS = 8;
+	private static final int SLOT_COUNT = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOT_COUNT - 1;
+
+	/**
+	 * Largest delay covered by the wheel, longer timeouts are reinserted when they reach the end.
+	 */
+	private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVEL_COUNT)) - 1;
+
+	/**
+	 * Doubly linked list of timeouts, the timeouts are the nodes.
+	 */
+	static class Slot {
+		Timeout head;
+		Timeout tail;
+
+		void add(Timeout pTimeout) {
+			pTimeout.m_slot = this;
+			pTimeout.m_next = null;
+			pTimeout.m_prev = tail;
+			if (tail == null) {
+				head = pTimeout;
+			} else {
+				tail.m_next = pTimeout;
+			}
+			tail = pTimeout;
+		}
+
+		void remove(Timeout pTimeout) {
+			if (pTimeout.m_prev == null) {
+				head = pTimeout.m_next;
+			} else {
+				pTimeout.m_prev.m_next = pTimeout.m_next;
+			}
+			if (pTimeout.m_next == null) {
+				tail = pTimeout.m_prev;
+			} else {
+				pTimeout.m_next.m_prev = pTimeout.m_prev;
+			}
+			pTimeout.m_prev = null;
+			pTimeout.m_next = null;
+			pTimeout.m_slot = null;
+		}
+
+		/**
+		 * Detach the whole list.
+		 * @return First timeout of the list.
+		 */
+		Timeout clear() {
+			Timeout first = head;
+			head = null;
+			tail = null;
+			return first;
+		}
+	}
+
+	private final Slot[][] m_levels = new Slot[LEVEL_COUNT][SLOT_COUNT];
+
+	/**
+	 * Timeouts to link, or to unlink, by the timer thread.
+	 */
+	private final ConcurrentLinkedQueue<Timeout> m_pending = new ConcurrentLinkedQueue<Timeout>();
+	private final ConcurrentLinkedQueue<Timeout> m_cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+	private final long m_tickNanos;
+	private final long m_startNanos;
+
+	/**
+	 * Next tick to process. Only used by the timer thread.
+	 */
+	private long m_tick;
+
+	/**
+	 * Number of timeouts linked in the wheel. Only used by the timer thread.
+	 */
+	private long m_count;
+
+	private volatile boolean m_shutdown;
+	private volatile boolean m_idle;
+	private final Thread m_thread;
+
+	/**
+	 * Create the wheel and start its thread.
+	 * @param pTickNanos Tick duration.
+	 */
+	public TimerWheel(long pTickNanos) {
+		for (int level = 0; level < LEVEL_COUNT; level++) {
+			for (int i = 0; i < SLOT_COUNT; i++) {
+				m_levels[level][i] = new Slot();
+			}
+		}
+
+		m_tickNanos = pTickNanos;
+		m_startNanos = System.nanoTime();
+		m_tick = 0;
+		m_count = 0;
+		m_shutdown = false;
+		m_idle = false;
+
+		m_thread = new Thread(this, "TimerWheel");
+		m_thread.setDaemon(true);
+		m_thread.start();
+	}
+
+	/**
+	 * @return Tick duration in nanoseconds, from the configuration.
+	 */
+	public static long getConfiguredTickNanos() {
+		return TimeUnit.MICROSECONDS.toNanos(Long.getLong(TICK_PROPERTY, 1000L));
+	}
+
+	/**
+	 * Schedule a message.
+	 * @param pMsg Message, sent again as is on each period.
+	 * @param pTaskId Destination.
+	 * @param pPriority Lane.
+	 * @param pDelay First delivery delay.
+	 * @param pPeriod Period, 0 for a one shot timeout.
+	 * @param pUnit Unit of the delay and period.
+	 * @return Handle.
+	 */
+	public Timeout schedule(Message pMsg, int pTaskId, MessagePriority pPriority, long pDelay, long pPeriod, TimeUnit pUnit) {
+		long now = System.nanoTime() - m_startNanos;
+		// Round up, a timeout is never delivered early
+		long deadline = (now + pUnit.toNanos(pDelay) + m_tickNanos - 1) / m_tickNanos;
+		long period = pPeriod <= 0 ? 0 : Math.max(1, (pUnit.toNanos(pPeriod) + m_tickNanos - 1) / m_tickNanos);
+
+		Timeout timeout = new Timeout(this, pMsg, pTaskId, pPriority, deadline, period);
+		m_pending.add(timeout);
+		if (m_idle) {
+			LockSupport.unpark(m_thread);
+		}
+		return timeout;
+	}
+
+	/**
+	 * Called by Timeout.cancel for a timeout linked in a slot.
+	 * @param pTimeout
+	 */
+	void cancelled(Timeout pTimeout) {
+		m_cancelled.add(pTimeout);
+	}
+
+	/**
+	 * Stop the timer thread. Pending timeouts are dropped.
+	 */
+	public void shutdown() {
+		m_shutdown = true;
+		LockSupport.unpark(m_thread);
+		try {
+			m_thread.join();
+		} catch (InterruptedException e) {
+			System.err.println("Timer wheel failed to join");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Timer loop.
+	 */
+	@Override
+	public void run() {
+		while (!m_shutdown) {
+			long now = (System.nanoTime() - m_startNanos) / m_tickNanos;
+			if (m_count == 0) {
+				// Nothing to expire, jump to the current tick before linking the new timeouts : after a long
+				// idle they would be placed from a stale tick, and every tick since would be processed
+				m_tick = Math.max(m_tick, now);
+			}
+			drainQueues();
+
+			while (m_tick <= now) {
+				processTick();
+			}
+
+			if (m_count == 0) {
+				m_idle = true;
+				if (m_pending.isEmpty()) {
+					LockSupport.park(this);
+				}
+				m_idle = false;
+			} else {
+				long wait = m_startNanos + m_tick * m_tickNanos - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(this, wait);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Link the new timeouts and unlink the cancelled ones.
+	 */
+	private void drainQueues() {
+		Timeout timeout;
+		while ((timeout = m_pending.poll()) != null) {
+			if (timeout.m_state.compareAndSet(Timeout.PENDING, Timeout.SCHEDULED)) {
+				insert(timeout);
+				m_count++;
+			}
+		}
+		while ((timeout = m_cancelled.poll()) != null) {
+			if (timeout.m_slot != null) {
+				timeout.m_slot.remove(timeout);
+				m_count--;
+			}
+		}
+	}
+
+	/**
+	 * Link a timeout in the slot of its deadline.
+	 * @param pTimeout
+	 */
+	private void insert(Timeout pTimeout) {
+		long expires = Math.max(pTimeout.m_deadline, m_tick);
+		long delta = Math.min(expires - m_tick, MAX_DELTA);
+		expires = m_tick + delta;
+
+		int level = 0;
+		while (level < LEVEL_COUNT - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+			level++;
+		}
+		int index = (int)((expires >>> (SLOT_BITS * level)) & SLOT_MASK);
+		m_levels[level][index].add(pTimeout);
+	}
+
+	/**
+	 * Process the tick m_tick : cascade the upper levels if level 0 wrapped, then deliver level 0 slot.
+	 */
+	private void processTick() {
+		int index = (int)(m_tick & SLOT_MASK);
+		for (int level = 1; index == 0 && level < LEVEL_COUNT; level++) {
+			index = (int)((m_tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+			cascade(m_levels[level][index]);
+		}
+
+		Timeout timeout = m_levels[0][(int)(m_tick & SLOT_MASK)].clear();
+		while (timeout != null) {
+			Timeout next = timeout.m_next;
+			timeout.m_prev = null;
+			timeout.m_next = null;
+			timeout.m_slot = null;
+			m_count--;
+			expire(timeout);
+			timeout = next;
+		}
+
+		m_tick++;
+	}
+
+	/**
+	 * Move the timeouts of an upper slot to the lower levels.
+	 * @param pSlot
+	 */
+	private void cascade(Slot pSlot) {
+		Timeout timeout = pSlot.clear();
+		while (timeout != null) {
+			Timeout next = timeout.m_next;
+			insert(timeout);
+			timeout = next;
+		}
+	}
+
+	/**
+	 * Deliver a timeout, and reschedule it if periodic. A periodic timeout delivered late is delivered
+	 * once, the periods missed are skipped and the next delivery keep the phase of the first one.
+	 * @param pTimeout
+	 */
+	private void expire(Timeout pTimeout) {
+		if (pTimeout.m_deadline > m_tick) {
+			// Longer than the wheel, not there yet
+			insert(pTimeout);
+			m_count++;
+			return;
+		}
+
+		if (pTimeout.m_period == 0) {
+			if (!pTimeout.m_state.compareAndSet(Timeout.SCHEDULED, Timeout.EXPIRED)) {
+				return; // Cancelled
+			}
+			TaskSystem.getInstance().send(pTimeout.m_msg, pTimeout.m_taskId, pTimeout.m_priority);
+		} else {
+			if (pTimeout.m_state.get() != Timeout.SCHEDULED) {
+				return;
+			}
+			TaskSystem.getInstance().send(pTimeout.m_msg, pTimeout.m_taskId, pTimeout.m_priority);
+			pTimeout.m_deadline += pTimeout.m_period;
+			if (pTimeout.m_deadline <= m_tick) {
+				// Delivered late, the slot of m_tick is already cleared : skip the missed periods
+				long missed = (m_tick - pTimeout.m_deadline) / pTimeout.m_period + 1;
+				pTimeout.m_deadline += missed * pTimeout.m_period;
+			}
+			insert(pTimeout);
+			m_count++;
+		}
+	}
+}
@@ -0,0 +1,599 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.mpitaskframework.TaskSystem.Messages.ArrayFragment;
+import com.mpitaskframework.TaskSystem.Messages.ArrayMessage;
+import com.mpitaskframework.TaskSystem.Messages.BufferMessage;
+
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * Transport over Unix domain sockets, for processes on the same host that do not share the mapped
+ * files (containers without a common shared root). Each process run its own system and listen on a
+ * socket. A range of task ids is routed to the socket of the process owning these tasks, a message sent
+ * to a routed id is then written on the socket instead of the local queue. The ids must be unique between
+ * the processes, see SharedMemoryConfig.FIRST_TASK_ID_PROPERTY.
+ *
+ * A message is sent as a frame of fixed size : header (INT task id, INT priority, INT type, INT unused)
+ * then the record as it would be written in the queue. Array messages are sent as their fragments. The
+ * receiving process write the record in the local queue of the task, so the receive path is unchanged.
+ * Buffer messages are refused : their slab is in the buffer pool of the sender, the reference is given
+ * back and the message is not sent.
+ * The record size must be the same on both sides, it is checked when the connection is opened.
+ *
+ * One writer thread per connection drain the frames queued by the senders with gathering writes, the
+ * frames queued while a write is running go in the next one. The written frames are reused by the next
+ * sends, a send allocate nothing once the frames in flight exist. The queue of a connection hold at most
+ * QUEUE_CAPACITY frames, a sender wait while it is full. The reader thread of a connection read up to
+ * BATCH frames per call with a scattering read.
+ *
+ * When a write fail, the connection is closed and the frames still queued are dropped (and reported).
+ * The next send open a new connection. While a peer can not be reached, a connection is tried at most
+ * every RECONNECT_DELAY and the messages are dropped, the count is reported when it is back.
+ *
+ * Built with the unix-sockets profile, UnixDomainSocketAddress need Java 16. Install it with install().
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class UnixSocketTransport implements MessageTransport {
+
+	/**
+	 * Frames moved by one read or write call.
+	 */
+	public static final int BATCH = 64;
+
+	/**
+	 * Frames queued for a connection before the senders wait.
+	 */
+	public static final int QUEUE_CAPACITY = 4096;
+
+	private static final int HEADER_SIZE = 16;
+	private static final int HELLO_MAGIC = 0x54535553; // TSUS
+
+	/**
+	 * Time given to the writers to send their queued frames at shutdown, in milliseconds.
+	 */
+	private static final long CLOSE_TIMEOUT = 1000;
+
+	/**
+	 * Wait between two connections to a peer that can not be reached, in milliseconds.
+	 */
+	private static final long RECONNECT_DELAY = 1000;
+
+	/**
+	 * A message encoded as a frame.
+	 */
+	private static class Frame {
+		final ByteBuffer m_header = ByteBuffer.allocate(HEADER_SIZE);
+		final ByteBuffer m_body;
+
+		Frame(int pRecordSize) {
+			m_body = ByteBuffer.allocate(pRecordSize);
+		}
+	}
+
+	/**
+	 * A record copied from a frame, written as is in the local queue.
+	 */
+	private static class RawRecord extends Message {
+		private byte[] m_data;
+
+		RawRecord() {
+			super(-1, -1);
+		}
+
+		void set(int pType, byte[] pData) {
+			setTid(pType);
+			m_data = pData;
+		}
+
+		@Override
+		public void write(MemoryMappedFile mem, long pos) {
+			mem.setBytes(pos, m_data, 0, m_data.length);
+		}
+
+		@Override
+		public void read(MemoryMappedFile mem, long pos) {
+			mem.getBytes(pos, m_data, 0, m_data.length);
+		}
+
+		@Override
+		public Message clone() {
+			RawRecord copy = new RawRecord();
+			copy.set(getTid(), m_data.clone());
+			return copy;
+		}
+	}
+
+	/**
+	 * Connection to the socket of another process, opened on the first send and opened again after a
+	 * failure.
+	 */
+	private class Peer {
+		private final Path m_path;
+		private final ArrayBlockingQueue<Frame> m_frames = new ArrayBlockingQueue<Frame>(QUEUE_CAPACITY);
+
+		/**
+		 * Frames written, reused by the next sends. A peer allocate at most the frames in flight.
+		 */
+		private final ArrayBlockingQueue<Frame> m_free = new ArrayBlockingQueue<Frame>(QUEUE_CAPACITY + BATCH);
+		private volatile SocketChannel m_channel;
+		private Thread m_writer;
+
+		/**
+		 * Time of the next connection, and messages dropped while the peer is down.
+		 */
+		private volatile long m_retryTime = 0;
+		private final AtomicLong m_dropped = new AtomicLong();
+
+		Peer(Path pPath) {
+			m_path = pPath;
+		}
+
+		/**
+		 * Open the connection and start the writer, if not open.
+		 * @return False if the socket can not be reached.
+		 */
+		boolean open() {
+			if (m_channel != null) {
+				return true;
+			}
+			synchronized (this) {
+				if (m_channel != null) {
+					return true;
+				}
+				if (m_closed || System.nanoTime() - m_retryTime < 0) {
+					return false;
+				}
+				try {
+					SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(m_path));
+					ByteBuffer hello = ByteBuffer.allocate(8);
+					hello.putInt(HELLO_MAGIC).putInt(m_recordSize).flip();
+					while (hello.hasRemaining()) {
+						channel.write(hello);
+					}
+					m_writer = new Thread(() -> run(channel), "UnixSocketTransport writer " + m_path);
+					m_writer.setDaemon(true);
+					m_channel = channel;
+					m_writer.start();
+					long dropped = m_dropped.getAndSet(0);
+					if (dropped > 0) {
+						System.err.println("UnixSocketTransport, connected to " + m_path + ", " + dropped + " messages dropped while down");
+					}
+					return true;
+				} catch (IOException e) {
+					System.err.println("UnixSocketTransport, failed to connect to " + m_path + " : " + e.getMessage()
+							+ ", messages are dropped, retry in " + RECONNECT_DELAY + " ms");
+					m_retryTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RECONNECT_DELAY);
+					return false;
+				}
+			}
+		}
+
+		/**
+		 * Take a free frame, or allocate one.
+		 * @return Empty frame.
+		 */
+		Frame frame() {
+			Frame frame = m_free.poll();
+			if (frame == null) {
+				return new Frame(m_recordSize);
+			}
+			frame.m_header.clear();
+			frame.m_body.clear();
+			return frame;
+		}
+
+		/**
+		 * Queue a frame, wait while the queue is full. A frame not queued go back to the free frames.
+		 * @param pFrame
+		 * @return False if the connection failed or the transport is closed, the frame is not sent.
+		 */
+		boolean queue(Frame pFrame) {
+			try {
+				while (!m_frames.offer(pFrame, 1, TimeUnit.MILLISECONDS)) {
+					if (m_channel == null || m_closed) {
+						m_free.offer(pFrame);
+						return false;
+					}
+				}
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				m_free.offer(pFrame);
+				return false;
+			}
+		}
+
+		/**
+		 * Writer loop : everything queued since the last write go in one gathering write. At shutdown, the
+		 * queued frames are written before the loop end. On a failure the connection is closed.
+		 * @param pChannel Connection of this writer.
+		 */
+		private void run(SocketChannel pChannel) {
+			ByteBuffer[] buffers = new ByteBuffer[2 * BATCH];
+			List<Frame> batch = new ArrayList<Frame>(BATCH);
+			while (true) {
+				Frame first;
+				try {
+					first = m_frames.poll(1, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					first = null;
+				}
+				if (first == null) {
+					if (m_closed) {
+						return;
+					}
+					continue;
+				}
+				batch.clear();
+				batch.add(first);
+				m_frames.drainTo(batch, BATCH - 1);
+				int count = 0;
+				for (Frame frame : batch) {
+					buffers[count++] = frame.m_header;
+					buffers[count++] = frame.m_body;
+				}
+
+				try {
+					int written = 0;
+					while (written < count) {
+						pChannel.write(buffers, written, count - written);
+						while (written < count && !buffers[written].hasRemaining()) {
+							written++;
+						}
+					}
+				} catch (IOException e) {
+					fail(pChannel, batch.size(), e);
+					return;
+				}
+				for (Frame frame : batch) {
+					m_free.offer(frame); // Dropped if full, more senders than frames in flight
+				}
+			}
+		}
+
+		/**
+		 * Close a failed connection and drop the queued frames, the next send reconnect.
+		 */
+		private synchronized void fail(SocketChannel pChannel, int pLost, IOException pError) {
+			int lost = pLost + m_frames.size();
+			m_frames.clear();
+			try {
+				pChannel.close();
+			} catch (IOException e) {
+				// Already broken
+			}
+			if (m_channel == pChannel) {
+				m_channel = null;
+			}
+			System.err.println("UnixSocketTransport, write to " + m_path + " failed : " + pError.getMessage() + ", "
+					+ lost + " messages lost");
+		}
+
+		/**
+		 * Wait for the queued frames, at most CLOSE_TIMEOUT, and close the connection.
+		 */
+		synchronized void close() {
+			SocketChannel channel = m_channel;
+			try {
+				if (channel != null) {
+					m_writer.join(CLOSE_TIMEOUT);
+					channel.close();
+					m_channel = null;
+				}
+			} catch (InterruptedException e) {
+				System.err.println("UnixSocketTransport, interrupted while closing " + m_path);
+			} catch (IOException e) {
+				System.err.println("UnixSocketTransport, close of " + m_path + " failed : " + e.getMessage());
+			}
+		}
+	}
+
+	private final int m_recordSize;
+
+	/**
+	 * Peer of each routed task id, null for a local task.
+	 */
+	private final AtomicReferenceArray<Peer> m_routes = new AtomicReferenceArray<Peer>(TaskSystem.MAX_TASK_COUNT);
+	private final ConcurrentHashMap<Path, Peer> m_peers = new ConcurrentHashMap<Path, Peer>();
+
+	/**
+	 * Encoding of the messages, one scratch record per sending thread.
+	 */
+	private final ThreadLocal<MemoryMappedFile> m_scratch;
+
+	private final List<ServerSocketChannel> m_listeners = new ArrayList<ServerSocketChannel>();
+	private final List<SocketChannel> m_accepted = new ArrayList<SocketChannel>();
+	private volatile boolean m_closed;
+
+	/**
+	 * Return the transport of the system, installed on the first call (see TaskSystem.setTransport).
+	 * @return Transport.
+	 */
+	public static UnixSocketTransport install() {
+		TaskSystem system = TaskSystem.getInstance();
+		synchronized (system) {
+			if (system.getTransport() instanceof UnixSocketTransport) {
+				return (UnixSocketTransport)system.getTransport();
+			}
+			UnixSocketTransport transport = new UnixSocketTransport(system.getRecordSize());
+			system.setTransport(transport);
+			return transport;
+		}
+	}
+
+	/**
+	 * Use install.
+	 * @param pRecordSize Record size of the system.
+	 */
+	private UnixSocketTransport(int pRecordSize) {
+		m_recordSize = pRecordSize;
+		m_closed = false;
+		m_scratch = ThreadLocal.withInitial(() -> {
+			try {
+				// Private to the thread, the file is removed once mapped
+				File file = File.createTempFile("TS_SCRATCH", null);
+				MemoryMappedFile scratch = new MemoryMappedFile(file.getPath(), SharedMemoryConfig.align(m_recordSize));
+				file.delete();
+				return scratch;
+			} catch (Exception e) {
+				System.err.println("UnixSocketTransport, failed to map a scratch record : " + e.getMessage());
+				System.exit(-1);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Accept the connections of other processes on a socket, and deliver their messages to the local tasks.
+	 * An existing socket file is replaced.
+	 * @param pSocket Socket path.
+	 * @return False if the socket can not be bound.
+	 */
+	public boolean listen(Path pSocket) {
+		try {
+			Files.deleteIfExists(pSocket);
+			ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			server.bind(UnixDomainSocketAddress.of(pSocket));
+			synchronized (m_listeners) {
+				m_listeners.add(server);
+			}
+
+			Thread acceptor = new Thread(() -> accept(server, pSocket), "UnixSocketTransport acceptor " + pSocket);
+			acceptor.setDaemon(true);
+			acceptor.start();
+			return true;
+		} catch (IOException e) {
+			System.err.println("UnixSocketTransport, failed to listen on " + pSocket + " : " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Send the messages of a range of task ids to the process listening on a socket. The connection is
+	 * opened on the first send.
+	 * @param pFirstId First task id.
+	 * @param pLastId Last task id, included.
+	 * @param pSocket Socket of the process owning the tasks.
+	 */
+	public void route(int pFirstId, int pLastId, Path pSocket) {
+		Peer peer = m_peers.computeIfAbsent(pSocket, Peer::new);
+		for (int id = pFirstId; id <= pLastId; id++) {
+			m_routes.set(id, peer);
+		}
+	}
+
+	/**
+	 * Send the messages of a task id to the local queue again.
+	 * @param pTaskId
+	 */
+	public void unroute(int pTaskId) {
+		m_routes.set(pTaskId, null);
+	}
+
+	/**
+	 * @param pTaskId
+	 * @return True if the task is reached through a socket.
+	 */
+	@Override
+	public boolean isRouted(int pTaskId) {
+		return m_routes.get(pTaskId) != null;
+	}
+
+	/**
+	 * Send a message if its task is routed. Called by TaskSystem.send.
+	 * @param pMsg
+	 * @param pTaskId
+	 * @param pPriority
+	 * @return False if the task is local.
+	 */
+	@Override
+	public boolean send(Message pMsg, int pTaskId, MessagePriority pPriority) {
+		Peer peer = m_routes.get(pTaskId);
+		if (peer == null) {
+			return false;
+		}
+		if (pMsg instanceof BufferMessage) {
+			// The slab is in the buffer pool of this host, the other process can't resolve it
+			System.err.println("UnixSocketTransport, buffer message to task " + pTaskId + " refused, buffers are not sent to other processes");
+			TaskSystem.getInstance().dropMessage(pMsg);
+			return true;
+		}
+		if (!peer.open()) {
+			peer.m_dropped.incrementAndGet();
+			return true;
+		}
+
+		MemoryMappedFile scratch = m_scratch.get();
+		if (pMsg instanceof ArrayMessage) {
+			ArrayMessage array = (ArrayMessage)pMsg;
+			int capacity = ArrayFragment.getDataCapacity(m_recordSize);
+			if (capacity <= 0) {
+				System.err.println("Record size too small for array messages : " + m_recordSize);
+				return true;
+			}
+			if (array.getByteLength() > Integer.MAX_VALUE) {
+				System.err.println("Array message of " + array.getByteLength() + " bytes, the limit is 2GB");
+				return true;
+			}
+			ArrayFragment fragment = new ArrayFragment(array, TaskSystem.getInstance().nextArrayKey());
+			int perFragment = capacity / array.getElementSize();
+			int total = array.getLength();
+			int first = 0;
+			do {
+				int count = Math.min(perFragment, total - first);
+				fragment.setRange(first, count);
+				if (!peer.queue(encode(peer, fragment, pTaskId, pPriority, scratch))) {
+					peer.m_dropped.incrementAndGet();
+					return true;
+				}
+				first += count;
+			} while (first < total);
+			return true;
+		}
+
+		if (!peer.queue(encode(peer, pMsg, pTaskId, pPriority, scratch))) {
+			peer.m_dropped.incrementAndGet();
+		}
+		return true;
+	}
+
+	/**
+	 * Encode a message in a free frame of the peer.
+	 */
+	private Frame encode(Peer pPeer, Message pMsg, int pTaskId, MessagePriority pPriority, MemoryMappedFile pScratch) {
+		Frame frame = pPeer.frame();
+		frame.m_header.putInt(pTaskId).putInt(pPriority.ordinal()).putInt(pMsg.getTid()).putInt(0).flip();
+		pMsg.write(pScratch, 0);
+		pScratch.getBytes(0, frame.m_body.array(), 0, m_recordSize);
+		return frame;
+	}
+
+	/**
+	 * Acceptor loop, one reader thread per connection.
+	 */
+	private void accept(ServerSocketChannel pServer, Path pSocket) {
+		while (!m_closed) {
+			try {
+				SocketChannel channel = pServer.accept();
+				synchronized (m_accepted) {
+					m_accepted.add(channel);
+				}
+				Thread reader = new Thread(() -> read(channel), "UnixSocketTransport reader " + pSocket);
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException e) {
+				if (!m_closed) {
+					System.err.println("UnixSocketTransport, accept on " + pSocket + " failed : " + e.getMessage());
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reader loop : check the hello, then fill BATCH frames per scattering read and deliver the complete
+	 * ones. A frame cut by a read is completed by the next one.
+	 */
+	private void read(SocketChannel pChannel) {
+		try {
+			ByteBuffer hello = ByteBuffer.allocate(8);
+			while (hello.hasRemaining()) {
+				if (pChannel.read(hello) < 0) {
+					pChannel.close();
+					return;
+				}
+			}
+			hello.flip();
+			int magic = hello.getInt();
+			int recordSize = hello.getInt();
+			if (magic != HELLO_MAGIC || recordSize != m_recordSize) {
+				System.err.println("UnixSocketTransport, rejected a peer with record size " + recordSize + ", local record size is " + m_recordSize);
+				pChannel.close();
+				return;
+			}
+
+			ByteBuffer[] buffers = new ByteBuffer[2 * BATCH];
+			byte[][] bodies = new byte[BATCH][m_recordSize];
+			for (int i = 0; i < BATCH; i++) {
+				buffers[2 * i] = ByteBuffer.allocate(HEADER_SIZE);
+				buffers[2 * i + 1] = ByteBuffer.wrap(bodies[i]);
+			}
+			RawRecord record = new RawRecord();
+			TaskSystem system = TaskSystem.getInstance();
+			MessagePriority[] priorities = MessagePriority.values();
+
+			int filled = 0; // First buffer not full
+			int delivered = 0; // First frame not delivered
+			while (!m_closed) {
+				if (pChannel.read(buffers, filled, buffers.length - filled) < 0) {
+					break;
+				}
+				while (filled < buffers.length && !buffers[filled].hasRemaining()) {
+					filled++;
+				}
+				for (; delivered < filled / 2; delivered++) {
+					ByteBuffer header = buffers[2 * delivered];
+					int taskId = header.getInt(0);
+					int priority = header.getInt(4);
+					record.set(header.getInt(8), bodies[delivered]);
+					system.send(record, taskId, priorities[priority]);
+				}
+				if (delivered == BATCH) {
+					for (ByteBuffer buffer : buffers) {
+						buffer.clear();
+					}
+					filled = 0;
+					delivered = 0;
+				}
+			}
+			pChannel.close();
+		} catch (IOException e) {
+			if (!m_closed) {
+				System.err.println("UnixSocketTransport, read failed : " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Close the sockets. Called by TaskSystem.destroy.
+	 */
+	@Override
+	public void shutdown() {
+		m_closed = true;
+		for (Peer peer : m_peers.values()) {
+			peer.close();
+		}
+		try {
+			synchronized (m_listeners) {
+				for (ServerSocketChannel server : m_listeners) {
+					server.close();
+				}
+			}
+			synchronized (m_accepted) {
+				for (SocketChannel channel : m_accepted) {
+					channel.close();
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("UnixSocketTransport, close failed : " + e.getMessage());
+		}
+	}
+}
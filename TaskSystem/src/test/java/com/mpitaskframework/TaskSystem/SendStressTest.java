@@ -0,0 +1,158 @@
+package com.mpitaskframework.TaskSystem;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.mpitaskframework.TaskSystem.Messages.IntMessage;
+
+import junit.extensions.TestSetup;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Many senders released at the same time on one server, so their first sends race to acquire the
+ * server queue. The tag of a message is the sender and the value its sequence number : the server count
+ * what is lost, duplicated or out of order for each sender. The fan-in server has lanes for half of the
+ * senders, the others use the queue.
+ *
+ * The system can be activated once per process, the suite create it before the tests and destroy it after.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class SendStressTest extends TestCase {
+
+	private static final int SENDERS = 32;
+	private static final int MESSAGES = 1000;
+	private static final int ROUNDS = 3;
+
+	/**
+	 * Time a round can take before the test fail, in seconds.
+	 */
+	private static final long ROUND_TIMEOUT = 60;
+
+	public static Test suite() {
+		return new TestSetup(new TestSuite(SendStressTest.class)) {
+			@Override
+			protected void setUp() {
+				System.setProperty(SharedMemoryConfig.QUEUE_SIZE_PROPERTY, Long.toString(32L * SENDERS * MESSAGES + (1L << 20)));
+				TaskSystem.activateSystem(true);
+			}
+
+			@Override
+			protected void tearDown() {
+				TaskSystem.getInstance().destroy();
+			}
+		};
+	}
+
+	public void testQueue() throws InterruptedException {
+		for (int round = 1; round <= ROUNDS; round++) {
+			runRound(round, false);
+		}
+	}
+
+	public void testFanIn() throws InterruptedException {
+		for (int round = 1; round <= ROUNDS; round++) {
+			runRound(round, true);
+		}
+	}
+
+	/**
+	 * One round, with a new server and new senders.
+	 * @param pRound
+	 * @param pFanIn
+	 * @throws InterruptedException
+	 */
+	private void runRound(int pRound, boolean pFanIn) throws InterruptedException {
+		Server server = new Server();
+		int serverId = pFanIn ? Task.createFanInTask(server, Math.max(1, SENDERS / 2)) : Task.createTask(server);
+		assertTrue("Round " + pRound + ", server not created", serverId >= 0);
+
+		CountDownLatch gate = new CountDownLatch(1);
+		for (int i = 0; i < SENDERS; i++) {
+			assertTrue("Round " + pRound + ", sender not created", Task.createTask(new Sender(i, serverId, gate)) >= 0);
+		}
+		gate.countDown();
+
+		try {
+			assertTrue("Round " + pRound + ", server still waiting after " + ROUND_TIMEOUT + " s",
+					server.m_done.await(ROUND_TIMEOUT, TimeUnit.SECONDS));
+			assertEquals("Round " + pRound + ", unexpected messages", 0, server.m_unexpected);
+			for (int i = 0; i < SENDERS; i++) {
+				assertEquals("Round " + pRound + ", messages of sender " + i, MESSAGES, server.m_next[i]);
+			}
+			assertFalse("Round " + pRound + ", message left after the expected ones", server.m_extra);
+		} finally {
+			TaskSystem.getInstance().deleteMessageQueue(serverId);
+		}
+	}
+
+	/**
+	 * Check the stream of every sender.
+	 */
+	private static class Server extends Task {
+
+		private final int[] m_next = new int[SENDERS];
+		private final CountDownLatch m_done = new CountDownLatch(1);
+		private volatile int m_unexpected;
+		private volatile boolean m_extra;
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			int unexpected = 0;
+			for (long received = 0; received < (long)SENDERS * MESSAGES; received++) {
+				Message msg = this.getNextMessage();
+				int sender = msg.getTag();
+				if (sender < 0 || sender >= m_next.length || ((IntMessage)msg).value != m_next[sender]) {
+					unexpected++;
+					continue;
+				}
+				m_next[sender]++;
+			}
+			m_unexpected = unexpected;
+			m_extra = !message_immediate(); // True when the mailbox is empty
+			m_done.countDown();
+		}
+
+		@Override
+		public void receive() { }
+	}
+
+	/**
+	 * Wait for the gate and send the sequence.
+	 */
+	private static class Sender extends Task {
+
+		private final int m_index;
+		private final int m_server;
+		private final CountDownLatch m_gate;
+
+		Sender(int pIndex, int pServer, CountDownLatch pGate) {
+			m_index = pIndex;
+			m_server = pServer;
+			m_gate = pGate;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			try {
+				m_gate.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			for (int i = 0; i < MESSAGES; i++) {
+				send(new IntMessage(m_index, i), m_server);
+			}
+		}
+
+		@Override
+		public void receive() { }
+	}
+}
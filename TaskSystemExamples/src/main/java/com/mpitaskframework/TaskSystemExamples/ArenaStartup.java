@@ -0,0 +1,125 @@
+package com.mpitaskframework.TaskSystemExamples;
+
+import com.mpitaskframework.TaskSystem.MessagePriority;
+import com.mpitaskframework.TaskSystem.SharedMemoryConfig;
+import com.mpitaskframework.TaskSystem.Task;
+import com.mpitaskframework.TaskSystem.TaskSystem;
+import com.mpitaskframework.TaskSystem.Messages.IntMessage;
+
+/**
+ * Task creation cost with one file per queue and with the mailbox arena. A ring of tasks is created and
+ * timed, then a token go around the ring a few times, alternating the NORMAL and HIGH lanes, to check
+ * that every mailbox work. The relays yield while they wait, there are many more tasks than cores.
+ *
+ * Usage : ArenaStartup [tasks] [arena|files] [laps]
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class ArenaStartup {
+
+	public enum RingMessages { TOKEN };
+
+	/**
+	 * Main.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 900;
+		boolean arena = args.length <= 1 || args[1].equals("arena");
+		int laps = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+		if (System.getProperty(SharedMemoryConfig.QUEUE_SIZE_PROPERTY) == null) {
+			System.setProperty(SharedMemoryConfig.QUEUE_SIZE_PROPERTY, Long.toString(64L * laps + (64L << 10)));
+		}
+		if (arena && System.getProperty(SharedMemoryConfig.ARENA_SIZE_PROPERTY) == null) {
+			long queueSize = SharedMemoryConfig.getQueueSize();
+			System.setProperty(SharedMemoryConfig.ARENA_SIZE_PROPERTY, Long.toString(4 * queueSize * (tasks + 16) + (1L << 20)));
+		}
+		TaskSystem.activateSystem(true);
+
+		// The last task of the ring is the first one created, it close the ring
+		ArenaStartup sample = new ArenaStartup();
+		Head head = sample.new Head(tasks, laps);
+		long start = System.nanoTime();
+		int next = Task.createTask(head);
+		for (int i = 1; i < tasks; i++) {
+			next = Task.createTask(sample.new Relay(next));
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.format("%d tasks created with %s in %.1f ms (%.1f us per task)%n", tasks, arena ? "the arena" : "queue files",
+				elapsed / 1e6, elapsed / 1e3 / tasks);
+
+		head.m_first = next;
+		TaskSystem.getInstance().send(new IntMessage(RingMessages.TOKEN.ordinal(), 0), next);
+	}
+
+	/**
+	 * Forward the token to the next task, on the lane given by the hop count.
+	 */
+	public class Relay extends Task {
+
+		private final int m_next;
+
+		public Relay(int pNext) {
+			m_next = pNext;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			while (true) {
+				receive();
+			}
+		}
+
+		@Override
+		public void receive() {
+			while (message_immediate()) {
+				message_wait();
+			}
+			IntMessage msg = (IntMessage)this.getNextMessage();
+			int hops = msg.value + 1;
+			send(new IntMessage(RingMessages.TOKEN.ordinal(), hops), m_next,
+					hops % 2 == 0 ? MessagePriority.NORMAL : MessagePriority.HIGH);
+		}
+	}
+
+	/**
+	 * End of the ring, count the laps.
+	 */
+	public class Head extends Task {
+
+		private final int m_tasks;
+		private final int m_laps;
+		volatile int m_first;
+
+		public Head(int pTasks, int pLaps) {
+			m_tasks = pTasks;
+			m_laps = pLaps;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			long start = System.nanoTime();
+			int hops = 0;
+			for (int lap = 0; lap < m_laps; lap++) {
+				hops = ((IntMessage)this.getNextMessage()).value + 1;
+				if (lap + 1 < m_laps) {
+					send(new IntMessage(RingMessages.TOKEN.ordinal(), hops), m_first);
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+			System.out.format("%d laps, %d hops in %d ms : %s%n", m_laps, hops, elapsed / 1000000,
+					hops == m_laps * m_tasks ? "ok" : "FAILED");
+			System.exit(0); // The relays never end
+		}
+
+		@Override
+		public void receive() { }
+	}
+}
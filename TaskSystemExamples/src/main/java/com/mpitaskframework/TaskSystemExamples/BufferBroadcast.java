@@ -0,0 +1,147 @@
+package com.mpitaskframework.TaskSystemExamples;
+
+import com.mpitaskframework.TaskSystem.Message;
+import com.mpitaskframework.TaskSystem.SharedBuffer;
+import com.mpitaskframework.TaskSystem.Task;
+import com.mpitaskframework.TaskSystem.TaskSystem;
+import com.mpitaskframework.TaskSystem.Messages.BufferMessage;
+import com.mpitaskframework.TaskSystem.Messages.IntMessage;
+
+/**
+ * Broadcast a large read-only dataset to workers by handle : the driver fill one shared buffer and send
+ * one small BufferMessage per worker. Each worker check the content and release its reference, the
+ * buffer is freed with the last release.
+ *
+ * Usage : BufferBroadcast [size in MB] [workers]
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class BufferBroadcast {
+
+	public enum BroadcastMessages { DATASET, CHECKED };
+
+	/**
+	 * Main.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int workers = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+		TaskSystem.activateSystem(true);
+
+		BufferBroadcast sample = new BufferBroadcast();
+		Task.createTask(sample.new Driver(sizeMB * 1024L * 1024L, workers));
+	}
+
+	/**
+	 * Sum of the longs of the dataset.
+	 */
+	private static long checksum(SharedBuffer pBuffer) {
+		long sum = 0;
+		for (long pos = 0; pos + 8 <= pBuffer.getSize(); pos += 8) {
+			sum += pBuffer.getLong(pos);
+		}
+		return sum;
+	}
+
+	/**
+	 * Fill the dataset and send it to the workers.
+	 */
+	public class Driver extends Task {
+
+		private final long m_size;
+		private final int m_workers;
+
+		public Driver(long pSize, int pWorkers) {
+			m_size = pSize;
+			m_workers = pWorkers;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			SharedBuffer dataset = TaskSystem.getInstance().getBufferPool().allocate(m_size);
+			if (dataset == null) {
+				TaskSystem.getInstance().destroy();
+				return;
+			}
+			for (long pos = 0; pos + 8 <= m_size; pos += 8) {
+				dataset.putLong(pos, pos * 31);
+			}
+			long expected = checksum(dataset);
+
+			int[] workers = new int[m_workers];
+			for (int i = 0; i < m_workers; i++) {
+				workers[i] = Task.createTask(new Worker(this.getTaskId(), expected));
+			}
+
+			long startTime = System.nanoTime();
+			for (int worker : workers) {
+				send(new BufferMessage(BroadcastMessages.DATASET.ordinal(), dataset), worker);
+			}
+			long sendTime = System.nanoTime() - startTime;
+
+			int valid = 0;
+			for (int i = 0; i < m_workers; i++) {
+				Message msg = this.getNextMessage();
+				if (msg.getTag() == BroadcastMessages.CHECKED.ordinal()) {
+					valid += ((IntMessage)msg).value;
+				}
+			}
+
+			int slab = dataset.getSlabId();
+			dataset.release();
+			System.out.format("Driver : %d MB sent to %d workers in %d us (%d MB not copied), %d valid, slab references=%d%n",
+					m_size >> 20, m_workers, sendTime / 1000, (m_size >> 20) * m_workers, valid,
+					TaskSystem.getInstance().getBufferPool().getReferences(slab));
+			TaskSystem.getInstance().destroy();
+		}
+
+		@Override
+		public void receive() { }
+	}
+
+	/**
+	 * Check the dataset and release it.
+	 */
+	public class Worker extends Task {
+
+		private final int m_driver;
+		private final long m_expected;
+
+		public Worker(int pDriver, long pExpected) {
+			m_driver = pDriver;
+			m_expected = pExpected;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			receive();
+		}
+
+		@Override
+		public void receive() {
+			Message msg = this.getNextMessage();
+
+			switch (BroadcastMessages.values()[msg.getTag()]) {
+			case DATASET:
+				SharedBuffer dataset = ((BufferMessage)msg).open();
+				boolean valid = dataset != null && checksum(dataset) == m_expected;
+				if (dataset != null) {
+					dataset.release();
+				}
+				send(new IntMessage(BroadcastMessages.CHECKED.ordinal(), valid ? 1 : 0), m_driver);
+				break;
+			default:
+				System.out.println("Received unsuported message");
+				break;
+			}
+		}
+	}
+}
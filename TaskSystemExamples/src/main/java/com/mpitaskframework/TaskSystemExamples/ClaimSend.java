@@ -0,0 +1,235 @@
+package com.mpitaskframework.TaskSystemExamples;
+
+import java.lang.management.ManagementFactory;
+
+import com.mpitaskframework.TaskSystem.MailboxClaim;
+import com.mpitaskframework.TaskSystem.Message;
+import com.mpitaskframework.TaskSystem.MessageCodec;
+import com.mpitaskframework.TaskSystem.SharedMemoryConfig;
+import com.mpitaskframework.TaskSystem.Task;
+import com.mpitaskframework.TaskSystem.TaskSystem;
+import com.mpitaskframework.TaskSystem.Messages.IntMessage;
+
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * One client sending numbered ticks to a server, first with send and a new message per tick, then with
+ * tryClaim where the tick is encoded in the mailbox slot. The server check that every tick arrive once and
+ * in order. Some claims are aborted on purpose, the server must not see them. The table give the time and
+ * the bytes allocated by the client thread.
+ *
+ * The server mailbox is a fan-in mailbox, or a mailbox of the arena.
+ *
+ * Usage : ClaimSend [messages] [fanin|arena]
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class ClaimSend {
+
+	public enum ClaimMessages { RESULT, ELAPSED, ALLOCATED };
+
+	/**
+	 * One claim in ABORT_EVERY is aborted before the tick is encoded again.
+	 */
+	private static final int ABORT_EVERY = 1000;
+
+	/**
+	 * Main.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		boolean arena = args.length > 1 && args[1].equals("arena");
+
+		if (System.getProperty(SharedMemoryConfig.QUEUE_SIZE_PROPERTY) == null) {
+			System.setProperty(SharedMemoryConfig.QUEUE_SIZE_PROPERTY, Long.toString(32L * messages + (1L << 20)));
+		}
+		if (arena && System.getProperty(SharedMemoryConfig.ARENA_SIZE_PROPERTY) == null) {
+			long queueSize = SharedMemoryConfig.getQueueSize();
+			System.setProperty(SharedMemoryConfig.ARENA_SIZE_PROPERTY, Long.toString(4 * queueSize * 6 + (1L << 20)));
+		}
+		TaskSystem.activateSystem(true);
+		ClaimSend_TickCodec.register();
+
+		ClaimSend sample = new ClaimSend();
+		Task.createTask(sample.new Driver(messages, arena));
+	}
+
+	/**
+	 * Tick, the codec is generated from the fields.
+	 */
+	@MessageCodec(tid = 40)
+	public static class Tick extends Message {
+		public int sequence;
+
+		public Tick() {
+			super(-1, ClaimSend_TickCodec.TID);
+		}
+
+		public Tick(int pSequence) {
+			super(0, ClaimSend_TickCodec.TID);
+			sequence = pSequence;
+		}
+
+		@Override
+		public Message clone() {
+			return new Tick(this.sequence);
+		}
+
+		@Override
+		public void write(MemoryMappedFile mem, long pos) {
+			ClaimSend_TickCodec.write(this, mem, pos);
+		}
+
+		@Override
+		public void read(MemoryMappedFile mem, long pos) {
+			setTag(ClaimSend_TickCodec.read(this, mem, pos));
+		}
+	}
+
+	/**
+	 * Run the send and the claim client, one after the other.
+	 */
+	public class Driver extends Task {
+
+		private final int m_messages;
+		private final boolean m_arena;
+
+		public Driver(int pMessages, boolean pArena) {
+			m_messages = pMessages;
+			m_arena = pArena;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			System.out.format("%d ticks to a %s mailbox%n", m_messages, m_arena ? "arena" : "fan-in");
+			System.out.format("%-6s %10s %12s %14s%n", "Client", "ms", "Mmsg/s", "bytes/msg");
+			boolean ok = run(false);
+			ok &= run(true);
+			System.out.println(ok ? "All runs ok" : "Some runs FAILED");
+			TaskSystem.getInstance().destroy();
+		}
+
+		/**
+		 * One run, the server report when it has every tick.
+		 * @return True if every tick arrived once and in order.
+		 */
+		private boolean run(boolean pClaim) {
+			Server server = new Server(m_messages);
+			int serverId = m_arena ? Task.createTask(server) : Task.createFanInTask(server, 1);
+			Task.createTask(new Client(serverId, m_messages, pClaim));
+
+			// The reports of the server and of the client, in any order
+			int[] report = new int[ClaimMessages.values().length];
+			for (int i = 0; i < report.length; i++) {
+				IntMessage msg = (IntMessage)this.getNextMessage();
+				report[msg.getTag()] = msg.value;
+			}
+			double elapsed = report[ClaimMessages.ELAPSED.ordinal()];
+			System.out.format("%-6s %10.1f %12.2f %14.1f%n", pClaim ? "claim" : "send", elapsed / 1000.0,
+					m_messages / elapsed, report[ClaimMessages.ALLOCATED.ordinal()] * 1024.0 / m_messages);
+			TaskSystem.getInstance().deleteMessageQueue(serverId);
+			return report[ClaimMessages.RESULT.ordinal()] == 1;
+		}
+
+		@Override
+		public void receive() { }
+
+		/**
+		 * Check the sequence, and report.
+		 */
+		private class Server extends Task {
+
+			private final int m_expected;
+
+			Server(int pExpected) {
+				m_expected = pExpected;
+			}
+
+			@Override
+			protected void initialize() { }
+
+			@Override
+			public void start() {
+				long startTime = System.nanoTime();
+				boolean ok = true;
+				for (int i = 0; i < m_expected; i++) {
+					Message msg = this.getNextMessage();
+					ok &= msg instanceof Tick && ((Tick)msg).sequence == i;
+				}
+				int elapsed = (int)((System.nanoTime() - startTime) / 1000);
+				send(new IntMessage(ClaimMessages.RESULT.ordinal(),
+						ok && TaskSystem.getInstance().message_immediate(getMailboxId()) ? 1 : 0), Driver.this.getTaskId());
+				send(new IntMessage(ClaimMessages.ELAPSED.ordinal(), elapsed), Driver.this.getTaskId());
+			}
+
+			@Override
+			public void receive() { }
+		}
+
+		/**
+		 * Send the ticks, with send or with a claim.
+		 */
+		private class Client extends Task {
+
+			private final int m_server;
+			private final int m_messages;
+			private final boolean m_claim;
+
+			Client(int pServer, int pMessages, boolean pClaim) {
+				m_server = pServer;
+				m_messages = pMessages;
+				m_claim = pClaim;
+			}
+
+			@Override
+			protected void initialize() { }
+
+			@Override
+			public void start() {
+				com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+				long allocated = bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+				for (int i = 0; i < m_messages; i++) {
+					if (m_claim) {
+						claim(i);
+					} else {
+						send(new Tick(i), m_server);
+					}
+				}
+				allocated = bean.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+				send(new IntMessage(ClaimMessages.ALLOCATED.ordinal(), (int)(allocated >> 10)), Driver.this.getTaskId());
+			}
+
+			private void claim(int pSequence) {
+				boolean abort = pSequence % ABORT_EVERY == ABORT_EVERY - 1;
+				while (true) {
+					MailboxClaim claim = ClaimSend_TickCodec.claim(m_server);
+					if (claim == null) {
+						Thread.yield(); // Full, wait for the server
+					} else if (abort) {
+						claim.putInt(ClaimSend_TickCodec.SEQUENCE_OFFSET, -1);
+						claim.abort();
+						abort = false;
+					} else {
+						try {
+							claim.putInt(ClaimSend_TickCodec.TAG_OFFSET, 0);
+							claim.putInt(ClaimSend_TickCodec.SEQUENCE_OFFSET, pSequence);
+							claim.commit();
+						} finally {
+							if (claim.isOpen()) {
+								claim.abort(); // Not committed, the slot must not block the server
+							}
+						}
+						return;
+					}
+				}
+			}
+
+			@Override
+			public void receive() { }
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package com.mpitaskframework.TaskSystemExamples;
+
+import java.util.Arrays;
+
+import com.mpitaskframework.TaskSystem.KeyedMessage;
+import com.mpitaskframework.TaskSystem.Message;
+import com.mpitaskframework.TaskSystem.MessageCodec;
+import com.mpitaskframework.TaskSystem.Task;
+import com.mpitaskframework.TaskSystem.TaskSystem;
+import com.mpitaskframework.TaskSystem.Messages.IntMessage;
+
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * A fast feed publish price updates to a slow consumer with a conflating mailbox. The consumer only
+ * get the latest price of each instrument, its mailbox stay bounded by the number of instruments
+ * whatever the update rate.
+ *
+ * Usage : ConflatedFeed [instruments] [updates] [consumer delay in microseconds]
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class ConflatedFeed {
+
+	public enum FeedMessages { PRICE, DONE };
+
+	/**
+	 * Main.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int instruments = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int updates = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		int delay = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+		// A price is 24 bytes (ConflatedFeed_PriceMessageCodec.SIZE)
+		if (System.getProperty("mpitaskframework.recordSize") == null) {
+			System.setProperty("mpitaskframework.recordSize", "32");
+		}
+		TaskSystem.activateSystem(true);
+		ConflatedFeed_PriceMessageCodec.register();
+
+		ConflatedFeed sample = new ConflatedFeed();
+		int consumer = Task.createConflatingTask(sample.new Consumer(instruments, updates, delay), instruments);
+		Task.createTask(sample.new Feed(consumer, instruments, updates));
+	}
+
+	/**
+	 * Last price of an instrument. The instrument is the conflation key.
+	 */
+	@MessageCodec(tid = PriceMessage.PRICEMESSAGE_TID)
+	public static class PriceMessage extends Message implements KeyedMessage {
+
+		public static final int PRICEMESSAGE_TID = 10;
+
+		public int instrument;
+		public long sequence;
+		public double price;
+
+		public PriceMessage() {
+			super(-1, PRICEMESSAGE_TID);
+		}
+
+		public PriceMessage(int pInstrument, long pSequence, double pPrice) {
+			super(FeedMessages.PRICE.ordinal(), PRICEMESSAGE_TID);
+			instrument = pInstrument;
+			sequence = pSequence;
+			price = pPrice;
+		}
+
+		@Override
+		public long getConflationKey() {
+			return instrument;
+		}
+
+		@Override
+		public void write(MemoryMappedFile mem, long pos) {
+			ConflatedFeed_PriceMessageCodec.write(this, mem, pos);
+		}
+
+		@Override
+		public void read(MemoryMappedFile mem, long pos) {
+			setTag(ConflatedFeed_PriceMessageCodec.read(this, mem, pos));
+		}
+	}
+
+	/**
+	 * Publish the updates as fast as possible, round robin on the instruments.
+	 */
+	public class Feed extends Task {
+
+		private final int m_consumer;
+		private final int m_instruments;
+		private final int m_updates;
+
+		public Feed(int pConsumer, int pInstruments, int pUpdates) {
+			m_consumer = pConsumer;
+			m_instruments = pInstruments;
+			m_updates = pUpdates;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			long startTime = System.nanoTime();
+			for (int i = 0; i < m_updates; i++) {
+				int instrument = i % m_instruments;
+				send(new PriceMessage(instrument, i, 100.0 + instrument + i * 0.0001), m_consumer);
+			}
+			long time = System.nanoTime() - startTime;
+			System.out.format("Feed : %d updates in %d ms, consumer mailbox depth=%d%n", m_updates, time / 1000000,
+					TaskSystem.getInstance().getMailboxDepth(m_consumer));
+			send(new IntMessage(FeedMessages.DONE.ordinal(), 0), m_consumer);
+		}
+
+		@Override
+		public void receive() { }
+	}
+
+	/**
+	 * Slow consumer, check that it always see newer prices.
+	 */
+	public class Consumer extends Task {
+
+		private final int m_updates;
+		private final int m_delay;
+		private long[] m_lastSequence;
+		private long m_received;
+		private long m_outOfOrder;
+		private boolean m_done;
+
+		public Consumer(int pInstruments, int pUpdates, int pDelay) {
+			m_updates = pUpdates;
+			m_delay = pDelay;
+			m_lastSequence = new long[pInstruments];
+		}
+
+		@Override
+		protected void initialize() {
+			Arrays.fill(m_lastSequence, -1);
+			m_received = 0;
+			m_outOfOrder = 0;
+			m_done = false;
+		}
+
+		@Override
+		public void start() {
+			while (!m_done) {
+				receive();
+			}
+
+			// DONE is queued after the notices of the last updates
+			long last = 0;
+			for (long s : m_lastSequence) {
+				last = Math.max(last, s);
+			}
+			System.out.format("Consumer : %d of %d updates received, out of order=%d, last sequence=%d%n", m_received,
+					m_updates, m_outOfOrder, last);
+			TaskSystem.getInstance().destroy();
+		}
+
+		@Override
+		public void receive() {
+			Message msg = this.getNextMessage();
+
+			switch (FeedMessages.values()[msg.getTag()]) {
+			case PRICE:
+				PriceMessage price = (PriceMessage)msg;
+				if (price.sequence <= m_lastSequence[price.instrument]) {
+					m_outOfOrder++;
+				}
+				m_lastSequence[price.instrument] = price.sequence;
+				m_received++;
+
+				// Slow processing
+				long until = System.nanoTime() + m_delay * 1000L;
+				while (System.nanoTime() < until) { }
+				break;
+			case DONE:
+				m_done = true;
+				break;
+			default:
+				System.out.println("Received unsuported message");
+				break;
+			}
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package com.mpitaskframework.TaskSystemExamples;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mpitaskframework.TaskSystem.MailboxCursor;
+import com.mpitaskframework.TaskSystem.Message;
+import com.mpitaskframework.TaskSystem.Task;
+import com.mpitaskframework.TaskSystem.TaskSystem;
+import com.mpitaskframework.TaskSystem.Messages.IntMessage;
+
+/**
+ * An audit tap read the stream of a worker with a named cursor, the producer send each value once. The
+ * audit stop half way, commit and open the cursor again : it resume after the last value read. Both
+ * the worker and the audit must see the same sum.
+ *
+ * Usage : CursorTap [messages]
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class CursorTap {
+
+	public enum CursorTapMessages { VALUE, DONE };
+
+	/**
+	 * The worker and the audit, the last one done destroy the system.
+	 */
+	private final AtomicInteger m_running = new AtomicInteger(2);
+
+	private void finished() {
+		if (m_running.decrementAndGet() == 0) {
+			TaskSystem.getInstance().destroy();
+		}
+	}
+
+	/**
+	 * Main.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+		if (System.getProperty("mpitaskframework.queueSize") == null) {
+			System.setProperty("mpitaskframework.queueSize", Long.toString(32L * (messages + 1000)));
+		}
+		TaskSystem.activateSystem(true);
+
+		CursorTap sample = new CursorTap();
+		int worker = Task.createTask(sample.new Worker());
+		Task.createTask(sample.new Audit(worker, messages));
+		Task.createTask(sample.new Producer(worker, messages));
+	}
+
+	/**
+	 * Send the values 1 to N, then DONE.
+	 */
+	public class Producer extends Task {
+
+		private final int m_worker;
+		private final int m_messages;
+
+		public Producer(int pWorker, int pMessages) {
+			m_worker = pWorker;
+			m_messages = pMessages;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			for (int i = 1; i <= m_messages; i++) {
+				send(new IntMessage(CursorTapMessages.VALUE.ordinal(), i), m_worker);
+			}
+			send(new IntMessage(CursorTapMessages.DONE.ordinal(), 0), m_worker);
+		}
+
+		@Override
+		public void receive() { }
+	}
+
+	/**
+	 * Owner of the queue, sum the values.
+	 */
+	public class Worker extends Task {
+
+		private long m_sum;
+		private boolean m_done;
+
+		@Override
+		protected void initialize() {
+			m_sum = 0;
+			m_done = false;
+		}
+
+		@Override
+		public void start() {
+			while (!m_done) {
+				receive();
+			}
+			System.out.println("Worker : sum=" + m_sum);
+			finished();
+		}
+
+		@Override
+		public void receive() {
+			Message msg = this.getNextMessage();
+
+			switch (CursorTapMessages.values()[msg.getTag()]) {
+			case VALUE:
+				m_sum += ((IntMessage)msg).value;
+				break;
+			case DONE:
+				m_done = true;
+				break;
+			default:
+				System.out.println("Received unsuported message");
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Read the worker queue with the "audit" cursor, reopened half way.
+	 */
+	public class Audit extends Task {
+
+		private final int m_worker;
+		private final int m_messages;
+		private long m_sum;
+
+		public Audit(int pWorker, int pMessages) {
+			m_worker = pWorker;
+			m_messages = pMessages;
+		}
+
+		@Override
+		protected void initialize() {
+			m_sum = 0;
+		}
+
+		@Override
+		public void start() {
+			MailboxCursor cursor = TaskSystem.getInstance().openCursor(m_worker, "audit");
+			boolean reopened = false;
+			long maxLag = 0;
+
+			while (true) {
+				Message msg = cursor.poll();
+				if (msg == null) {
+					Thread.yield();
+					continue;
+				}
+				if (msg.getTag() == CursorTapMessages.DONE.ordinal()) {
+					break;
+				}
+				m_sum += ((IntMessage)msg).value;
+				if (cursor.getPosition() % 1000 == 0) {
+					maxLag = Math.max(maxLag, cursor.getLag());
+				}
+
+				if (!reopened && cursor.getPosition() == m_messages / 2) {
+					cursor.close(); // Commit
+					cursor = TaskSystem.getInstance().openCursor(m_worker, "audit");
+					System.out.println("Audit : cursor reopened at " + cursor.getPosition());
+					reopened = true;
+				}
+			}
+			cursor.close();
+			System.out.println("Audit : sum=" + m_sum + ", max lag=" + maxLag);
+			finished();
+		}
+
+		@Override
+		public void receive() { }
+	}
+}
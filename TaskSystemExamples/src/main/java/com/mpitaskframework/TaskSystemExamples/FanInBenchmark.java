@@ -0,0 +1,157 @@
+package com.mpitaskframework.TaskSystemExamples;
+
+import java.util.concurrent.CountDownLatch;
+
+import com.mpitaskframework.TaskSystem.Message;
+import com.mpitaskframework.TaskSystem.Task;
+import com.mpitaskframework.TaskSystem.TaskSystem;
+import com.mpitaskframework.TaskSystem.Messages.IntMessage;
+
+/**
+ * N clients flooding one server, with 1, 2, 4, ... clients. Each client count is run twice : first on a
+ * server with a regular queue, where every send compete for the queue limit, then on a server with a
+ * fan-in mailbox where each client has its own lane. The total number of messages is the same for every
+ * run, the table give the aggregate throughput.
+ *
+ * Usage : FanInBenchmark [max clients] [messages]
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class FanInBenchmark {
+
+	/**
+	 * Main.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int maxClients = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 4000000;
+
+		if (System.getProperty("mpitaskframework.queueSize") == null) {
+			System.setProperty("mpitaskframework.queueSize", Long.toString(32L * messages + (1L << 20)));
+		}
+		TaskSystem.activateSystem(true);
+
+		FanInBenchmark sample = new FanInBenchmark();
+		Task.createTask(sample.new Driver(ScalingReport.taskCounts(maxClients), messages));
+	}
+
+	/**
+	 * Run each client count on both servers.
+	 */
+	public class Driver extends Task {
+
+		private final int[] m_clientCounts;
+		private final int m_messages;
+
+		public Driver(int[] pClientCounts, int pMessages) {
+			m_clientCounts = pClientCounts;
+			m_messages = pMessages;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			ScalingReport queue = new ScalingReport("Queue", m_messages);
+			ScalingReport fanIn = new ScalingReport("FanIn", m_messages);
+			boolean ok = true;
+			for (int clients : m_clientCounts) {
+				ok &= run(clients, false, queue);
+				ok &= run(clients, true, fanIn);
+			}
+			queue.print();
+			fanIn.print();
+			System.out.println(ok ? "All runs ok" : "Some runs FAILED");
+			TaskSystem.getInstance().destroy();
+		}
+
+		/**
+		 * One run, the server report when it has every message.
+		 * @return True if nothing was lost.
+		 */
+		private boolean run(int pClients, boolean pFanIn, ScalingReport pReport) {
+			int perClient = m_messages / pClients;
+			Server server = new Server((long)perClient * pClients);
+			int serverId = pFanIn ? Task.createFanInTask(server, pClients) : Task.createTask(server);
+
+			CountDownLatch gate = new CountDownLatch(1);
+			for (int i = 0; i < pClients; i++) {
+				Task.createTask(new Client(serverId, perClient, gate));
+			}
+			long startTime = System.nanoTime();
+			gate.countDown();
+
+			Message msg = this.getNextMessage();
+			pReport.record(pClients, System.nanoTime() - startTime);
+			TaskSystem.getInstance().deleteMessageQueue(serverId);
+			return ((IntMessage)msg).value == 1;
+		}
+
+		@Override
+		public void receive() { }
+
+		/**
+		 * Count the messages.
+		 */
+		private class Server extends Task {
+
+			private final long m_expected;
+
+			Server(long pExpected) {
+				m_expected = pExpected;
+			}
+
+			@Override
+			protected void initialize() { }
+
+			@Override
+			public void start() {
+				long sum = 0;
+				for (long received = 0; received < m_expected; received++) {
+					sum += ((IntMessage)this.getNextMessage()).value;
+				}
+				send(new IntMessage(0, sum == m_expected ? 1 : 0), Driver.this.getTaskId());
+			}
+
+			@Override
+			public void receive() { }
+		}
+
+		/**
+		 * Wait for the gate and send.
+		 */
+		private class Client extends Task {
+
+			private final int m_server;
+			private final int m_messages;
+			private final CountDownLatch m_gate;
+
+			Client(int pServer, int pMessages, CountDownLatch pGate) {
+				m_server = pServer;
+				m_messages = pMessages;
+				m_gate = pGate;
+			}
+
+			@Override
+			protected void initialize() { }
+
+			@Override
+			public void start() {
+				try {
+					m_gate.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				IntMessage msg = new IntMessage(0, 1);
+				for (int i = 0; i < m_messages; i++) {
+					send(msg, m_server);
+				}
+			}
+
+			@Override
+			public void receive() { }
+		}
+	}
+}
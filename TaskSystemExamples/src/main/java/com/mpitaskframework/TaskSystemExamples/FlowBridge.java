@@ -0,0 +1,154 @@
+package com.mpitaskframework.TaskSystemExamples;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+
+import com.mpitaskframework.TaskSystem.MailboxPublisher;
+import com.mpitaskframework.TaskSystem.MailboxSubscriber;
+import com.mpitaskframework.TaskSystem.Message;
+import com.mpitaskframework.TaskSystem.Task;
+import com.mpitaskframework.TaskSystem.TaskSystem;
+import com.mpitaskframework.TaskSystem.Messages.IntMessage;
+
+/**
+ * A reactive source feeding a slow task, and the output of the task read by a reactive consumer. The
+ * source is a SubmissionPublisher, its items are sent to the worker by a MailboxSubscriber with a small
+ * window : the worker mailbox never hold more than the window and the source block in submit instead of
+ * buffering. The worker send its results to a MailboxPublisher, read by a subscriber that request 16
+ * messages at a time.
+ *
+ * Usage : FlowBridge [items] [window] [worker us]
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class FlowBridge {
+
+	public enum FlowMessages { ITEM, END };
+
+	/**
+	 * Main.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int items = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int window = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		long work = args.length > 2 ? Long.parseLong(args[2]) : 20;
+
+		if (System.getProperty("mpitaskframework.queueSize") == null) {
+			System.setProperty("mpitaskframework.queueSize", Long.toString(64L * items + (1L << 20)));
+		}
+		TaskSystem.activateSystem(true);
+
+		FlowBridge sample = new FlowBridge();
+		MailboxPublisher output = new MailboxPublisher();
+		int outputId = Task.createTask(output);
+		output.subscribe(sample.new Consumer(items));
+
+		int workerId = Task.createTask(sample.new Worker(outputId, output, work));
+		MailboxSubscriber input = new MailboxSubscriber(workerId, window, new IntMessage(FlowMessages.END.ordinal(), 0));
+
+		try (SubmissionPublisher<Message> source = new SubmissionPublisher<Message>()) {
+			source.subscribe(input);
+			long start = System.nanoTime();
+			long maxOutstanding = 0;
+			for (int i = 0; i < items; i++) {
+				source.submit(new IntMessage(FlowMessages.ITEM.ordinal(), i)); // Block when the source buffer is full
+				maxOutstanding = Math.max(maxOutstanding, input.getOutstanding());
+			}
+			System.out.format("Source : %d items submitted in %d ms, at most %d outstanding for a window of %d%n", items,
+					(System.nanoTime() - start) / 1000000, maxOutstanding, window);
+		}
+	}
+
+	/**
+	 * Slow processing, the result is the item doubled.
+	 */
+	public class Worker extends Task {
+
+		private final int m_output;
+		private final MailboxPublisher m_publisher;
+		private final long m_work;
+
+		public Worker(int pOutput, MailboxPublisher pPublisher, long pWork) {
+			m_output = pOutput;
+			m_publisher = pPublisher;
+			m_work = pWork * 1000;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			long maxDepth = 0;
+			while (true) {
+				maxDepth = Math.max(maxDepth, TaskSystem.getInstance().getMailboxDepth(getTaskId()));
+				IntMessage msg = (IntMessage)this.getNextMessage();
+				if (msg.getTag() == FlowMessages.END.ordinal()) {
+					System.out.println("Worker : mailbox depth at most " + maxDepth);
+					m_publisher.complete();
+					return;
+				}
+
+				long end = System.nanoTime() + m_work;
+				while (System.nanoTime() < end) {
+					// Work
+				}
+				send(new IntMessage(FlowMessages.ITEM.ordinal(), msg.value * 2), m_output);
+			}
+		}
+
+		@Override
+		public void receive() { }
+	}
+
+	/**
+	 * Read the results 16 at a time and check them.
+	 */
+	public class Consumer implements Flow.Subscriber<Message> {
+
+		private static final int BATCH = 16;
+
+		private final int m_items;
+		private Flow.Subscription m_subscription;
+		private long m_count = 0;
+		private long m_left = 0;
+		private long m_errors = 0;
+
+		public Consumer(int pItems) {
+			m_items = pItems;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription pSubscription) {
+			m_subscription = pSubscription;
+			m_left = BATCH;
+			pSubscription.request(BATCH);
+		}
+
+		@Override
+		public void onNext(Message pItem) {
+			if (((IntMessage)pItem).value != 2 * m_count) {
+				m_errors++;
+			}
+			m_count++;
+			if (--m_left == 0) {
+				m_left = BATCH;
+				m_subscription.request(BATCH);
+			}
+		}
+
+		@Override
+		public void onError(Throwable pError) {
+			System.err.println("Consumer : " + pError);
+			System.exit(-1);
+		}
+
+		@Override
+		public void onComplete() {
+			System.out.println("Consumer : " + m_count + " of " + m_items + " results, " + m_errors + " errors : "
+					+ (m_count == m_items && m_errors == 0 ? "ok" : "FAILED"));
+			TaskSystem.getInstance().destroy();
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package com.mpitaskframework.TaskSystemExamples;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.mpitaskframework.TaskSystem.IOService;
+import com.mpitaskframework.TaskSystem.IOTask;
+import com.mpitaskframework.TaskSystem.Message;
+import com.mpitaskframework.TaskSystem.Task;
+import com.mpitaskframework.TaskSystem.TaskSystem;
+import com.mpitaskframework.TaskSystem.Messages.IntMessage;
+
+/**
+ * Echo server and client on the IOService : one server task serve every connection and one client task
+ * drive all of them, neither is ever blocked on a socket. The client save the echoed bytes in a file,
+ * then read the file back as a stream to check it.
+ *
+ * Usage : IOEcho [connections] [writes per connection] [bytes per write]
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class IOEcho {
+
+	public enum EchoMessages { DONE };
+
+	/**
+	 * Main.
+	 * @param args
+	 */
+	public static void main(String[] args) throws IOException {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int writes = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int size = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+		// The bytes are sent as array messages, the record must hold the fragment header
+		if (System.getProperty("mpitaskframework.recordSize") == null) {
+			System.setProperty("mpitaskframework.recordSize", "4096");
+		}
+		if (System.getProperty("mpitaskframework.queueSize") == null) {
+			System.setProperty("mpitaskframework.queueSize", Long.toString(8L * connections * writes * (size + 64) + (64L << 20)));
+		}
+		TaskSystem.activateSystem(true);
+
+		IOEcho sample = new IOEcho();
+		IOService service = TaskSystem.getInstance().getIOService();
+		int server = Task.createTask(sample.new EchoServer());
+		int listener = service.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), server);
+		if (listener < 0) {
+			TaskSystem.getInstance().destroy();
+			return;
+		}
+
+		InetSocketAddress address = (InetSocketAddress)service.getLocalAddress(listener);
+		Path file = File.createTempFile("IOEcho", ".bin").toPath();
+		Task.createTask(sample.new EchoClient(address, server, file, connections, writes, size));
+	}
+
+	/**
+	 * Send back every byte received.
+	 */
+	public class EchoServer extends IOTask {
+
+		private int m_accepted;
+
+		@Override
+		protected void initialize() {
+			m_accepted = 0;
+		}
+
+		@Override
+		protected void onAccept(int pChannel, int pListener) {
+			m_accepted++;
+		}
+
+		@Override
+		protected void onData(int pChannel, ByteBuffer pData) {
+			write(pChannel, pData);
+		}
+
+		@Override
+		protected void onMessage(Message pMsg) {
+			if (pMsg.getTag() == EchoMessages.DONE.ordinal()) {
+				System.out.println("Server : " + m_accepted + " connections served");
+				stop();
+			}
+		}
+	}
+
+	/**
+	 * Open the connections, write, count the echo and check the saved file.
+	 */
+	public class EchoClient extends IOTask {
+
+		private final InetSocketAddress m_address;
+		private final int m_server;
+		private final Path m_path;
+		private final int m_connections;
+		private final int m_writes;
+		private final int m_size;
+		private final long m_expected;
+
+		private long m_startTime;
+		private long m_received;
+		private long m_checksum;
+		private int m_closed;
+		private int[] m_channels;
+		private int m_file;
+		private boolean m_readingBack;
+		private long m_fileBytes;
+		private long m_fileChecksum;
+
+		public EchoClient(InetSocketAddress pAddress, int pServer, Path pPath, int pConnections, int pWrites, int pSize) {
+			m_address = pAddress;
+			m_server = pServer;
+			m_path = pPath;
+			m_connections = pConnections;
+			m_writes = pWrites;
+			m_size = pSize;
+			m_expected = (long)pConnections * pWrites * pSize;
+		}
+
+		@Override
+		protected void initialize() {
+			m_received = 0;
+			m_checksum = 0;
+			m_closed = 0;
+			m_fileBytes = 0;
+			m_fileChecksum = 0;
+			m_readingBack = false;
+		}
+
+		@Override
+		public void start() {
+			m_startTime = System.nanoTime();
+			m_file = writeFile(m_path);
+			m_channels = new int[m_connections];
+			for (int i = 0; i < m_connections; i++) {
+				m_channels[i] = connect(m_address);
+			}
+			super.start();
+		}
+
+		@Override
+		protected void onConnect(int pChannel) {
+			byte[] data = new byte[m_size];
+			for (int i = 0; i < m_writes; i++) {
+				for (int b = 0; b < m_size; b++) {
+					data[b] = (byte)(i + b);
+				}
+				write(pChannel, data.clone(), 0, m_size);
+			}
+		}
+
+		@Override
+		protected void onData(int pChannel, ByteBuffer pData) {
+			if (pChannel != m_file) {
+				ByteBuffer echo = pData.duplicate();
+				m_received += echo.remaining();
+				while (echo.hasRemaining()) {
+					m_checksum += echo.get() & 0xFF;
+				}
+				write(m_file, pData);
+				if (m_received == m_expected) {
+					long elapsed = System.nanoTime() - m_startTime;
+					System.out.format("Client : %d bytes echoed on %d connections in %d ms (%.1f MB/s)%n", m_received, m_connections,
+							elapsed / 1000000, m_received / (elapsed / 1e9) / 1e6);
+					for (int channel : m_channels) {
+						close(channel);
+					}
+					close(m_file);
+				}
+			} else {
+				// Reading the file back
+				m_fileBytes += pData.remaining();
+				while (pData.hasRemaining()) {
+					m_fileChecksum += pData.get() & 0xFF;
+				}
+			}
+		}
+
+		@Override
+		protected void onClose(int pChannel) {
+			if (pChannel != m_file) {
+				m_closed++;
+			} else if (!m_readingBack) {
+				// Saved, read it back as a stream
+				m_readingBack = true;
+				m_file = readFile(m_path);
+			} else {
+				System.out.println("Client : " + m_closed + " connections closed");
+				System.out.println("Client : file read back, " + m_fileBytes + " bytes, checksum "
+						+ (m_fileChecksum == m_checksum && m_fileBytes == m_expected ? "ok" : "failed"));
+				try {
+					Files.deleteIfExists(m_path);
+				} catch (IOException e) {
+					System.err.println("Failed to delete " + m_path);
+				}
+				send(new IntMessage(EchoMessages.DONE.ordinal(), 0), m_server);
+				stop();
+				TaskSystem.getInstance().destroy();
+			}
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.mpitaskframework.TaskSystemExamples;
 
+import com.mpitaskframework.TaskSystem.Launcher;
 import com.mpitaskframework.TaskSystem.Message;
 import com.mpitaskframework.TaskSystem.Task;
 import com.mpitaskframework.TaskSystem.TaskSystem;
@@ -7,7 +8,8 @@ import com.mpitaskframework.TaskSystem.Messages.IntMessage;
 import com.mpitaskframework.TaskSystemExamples.LocalRepReq.ReqResMessages;
 
 /**
- * Client for the echo sample in IPC mode.
+ * Client for the echo sample in IPC mode. Started by the Launcher, the server is the first task of
+ * rank 0 and the client exit after [requests] requests.
  * @see LocaRepReq for sample inter-thread.
  * @author Francois Gingras <bizzard4>
  *
@@ -20,14 +22,22 @@ public class IPCClient extends Task {
 	 */
 	public static void main(String[] args) {
 		TaskSystem.activateSystem(false); // The client is not responsible to create the system. It will acquire it.
-		Task.createTask(new IPCClient(1)); // Here server id will be 1, but we would need a way to know that.
 		
-		// In future work, there will be a repository feature.
+		if (!Launcher.isLaunched()) {
+			Task.createTask(new IPCClient(1, Long.MAX_VALUE)); // Started by hand, the server must be the first task.
+			return;
+		}
+		
+		long requests = args.length > 0 ? Long.parseLong(args[0]) : 1000000;
+		TaskSystem.getInstance().barrier(); // Wait for the server task
+		Task.createTask(new IPCClient(TaskSystem.getInstance().getRankTaskId(0, 0), requests));
 	}
 	
 	private int server_id;
-	public IPCClient(int pServerId) {
+	private final long m_requests;
+	public IPCClient(int pServerId, long pRequests) {
 		server_id = pServerId;
+		m_requests = pRequests;
 	}
 
 	@Override
@@ -41,7 +51,7 @@ public class IPCClient extends Task {
 		long count = 0;
 		
 		long startTime = System.currentTimeMillis();
-		while (true) {
+		while (count < m_requests) {
 			IntMessage request = new IntMessage(ReqResMessages.REQUEST_MSG.ordinal(), this.getTaskId());
 			send(request, server_id);
 			
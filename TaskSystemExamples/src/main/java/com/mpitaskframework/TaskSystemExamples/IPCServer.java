@@ -1,5 +1,6 @@
 package com.mpitaskframework.TaskSystemExamples;
 
+import com.mpitaskframework.TaskSystem.Launcher;
 import com.mpitaskframework.TaskSystem.Message;
 import com.mpitaskframework.TaskSystem.Task;
 import com.mpitaskframework.TaskSystem.TaskSystem;
@@ -8,6 +9,10 @@ import com.mpitaskframework.TaskSystemExamples.LocalRepReq.ReqResMessages;
 
 /**
  * Echo server working in IPC mode.
+ *
+ * Started alone, the server create the system and answer forever. Started by the Launcher as rank 0,
+ * the clients being the other ranks, it answer [requests] requests of each client then exit :
+ * Launcher -np 1 IPCServer 1000000 : -np 3 IPCClient 1000000
  * @see LocaRepReq for sample inter-thread.
  * @author Francois Gingras <bizzard4>
  *
@@ -19,11 +24,24 @@ public class IPCServer extends Task {
 	 * @param args
 	 */
 	public static void main(String[] args) {
-		TaskSystem.activateSystem(true);
-		Task.createTask(new IPCServer());
+		if (!Launcher.isLaunched()) {
+			TaskSystem.activateSystem(true);
+			Task.createTask(new IPCServer(Long.MAX_VALUE));
+			return;
+		}
+		
+		TaskSystem.activateSystem(false);
+		long requests = args.length > 0 ? Long.parseLong(args[0]) : 1000000;
+		Task.createTask(new IPCServer(requests * (TaskSystem.getInstance().getRankCount() - 1)));
+		TaskSystem.getInstance().barrier(); // Server created, the clients can send
 	}
 	
 	private int client_to_response;
+	private final long m_requests;
+	
+	public IPCServer(long pRequests) {
+		m_requests = pRequests;
+	}
 
 	@Override
 	protected void initialize() {
@@ -38,7 +56,7 @@ public class IPCServer extends Task {
 		long count = 0;
 		
 		long startTime = System.currentTimeMillis();
-		while (true) {
+		while (count < m_requests) {
 			receive();
 			
 			IntMessage response = new IntMessage(ReqResMessages.RESPONSE_MSG.ordinal(), 200);
@@ -0,0 +1,144 @@
+package com.mpitaskframework.TaskSystemExamples;
+
+import java.util.List;
+
+import com.mpitaskframework.TaskSystem.LoadGenerator;
+import com.mpitaskframework.TaskSystem.Message;
+import com.mpitaskframework.TaskSystem.MessageCodec;
+import com.mpitaskframework.TaskSystem.Task;
+import com.mpitaskframework.TaskSystem.TaskPool;
+import com.mpitaskframework.TaskSystem.TaskSystem;
+import com.mpitaskframework.TaskSystem.Messages.IntMessage;
+
+import io.mappedbus.MemoryMappedFile;
+
+/**
+ * Open-loop load on a server with a fixed service time, the offered rate is swept to find where it
+ * saturate. With one server of 50 us, the latencies stay flat up to about 20000 requests/s then grow
+ * with every step, while a closed-loop client would only see its own rate drop.
+ *
+ * The requests carry their sequence and the replies echo it, so the servers can be a pool.
+ *
+ * Usage : LoadTest [clients] [from rate] [to rate] [steps] [service us] [servers] [step ms]
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class LoadTest {
+
+	/**
+	 * Main.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		double from = args.length > 1 ? Double.parseDouble(args[1]) : 5000;
+		double to = args.length > 2 ? Double.parseDouble(args[2]) : 40000;
+		int steps = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+		long service = args.length > 4 ? Long.parseLong(args[4]) : 50;
+		int servers = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+		long duration = args.length > 6 ? Long.parseLong(args[6]) : 2000;
+
+		// The request is 12 bytes (LoadTest_LoadRequestCodec.SIZE)
+		if (System.getProperty("mpitaskframework.recordSize") == null) {
+			System.setProperty("mpitaskframework.recordSize", "16");
+		}
+		// The queues do not wrap, every step of the sweep append to them : sized for the sum of the step
+		// rates (the sweep is linear) over warmup, duration and the start delay
+		if (System.getProperty("mpitaskframework.queueSize") == null) {
+			double rates = steps > 1 ? steps * (from + to) / 2 : from;
+			System.setProperty("mpitaskframework.queueSize", Long.toString((long)(rates * (duration + 2000) / 1000 * 32) + (64L << 20)));
+		}
+		TaskSystem.activateSystem(true);
+		LoadTest_LoadRequestCodec.register();
+
+		LoadTest sample = new LoadTest();
+		int target = servers > 1 ? TaskPool.createPool(TaskPool.Mode.SHARED_QUEUE, servers, () -> sample.new Server(service))
+				: Task.createTask(sample.new Server(service));
+
+		List<LoadGenerator.Step> results = new LoadGenerator(target)
+				.clients(clients)
+				.request((client, sequence) -> new LoadRequest(client, (int)sequence))
+				.replySequence(reply -> ((IntMessage)reply).value)
+				.sweep(from, to, steps)
+				.warmup(500)
+				.duration(duration)
+				.drain(1000)
+				.run();
+
+		System.out.format("%d clients, %d server(s), %d us service time%n", clients, servers, service);
+		System.out.print(LoadGenerator.getReport(results));
+		System.exit(0); // The servers never end
+	}
+
+	/**
+	 * Request, the codec is generated from the fields.
+	 */
+	@MessageCodec(tid = 30)
+	public static class LoadRequest extends Message {
+		public int client;
+		public int sequence;
+
+		public LoadRequest() {
+			super(-1, LoadTest_LoadRequestCodec.TID);
+		}
+
+		public LoadRequest(int pClient, int pSequence) {
+			super(0, LoadTest_LoadRequestCodec.TID);
+			client = pClient;
+			sequence = pSequence;
+		}
+
+		@Override
+		public Message clone() {
+			return new LoadRequest(this.client, this.sequence);
+		}
+
+		@Override
+		public void write(MemoryMappedFile mem, long pos) {
+			LoadTest_LoadRequestCodec.write(this, mem, pos);
+		}
+
+		@Override
+		public void read(MemoryMappedFile mem, long pos) {
+			setTag(LoadTest_LoadRequestCodec.read(this, mem, pos));
+		}
+	}
+
+	/**
+	 * Spin for the service time and reply with the sequence.
+	 */
+	public class Server extends Task {
+
+		private final long m_service;
+
+		public Server(long pService) {
+			m_service = pService * 1000;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			while (true) {
+				receive();
+			}
+		}
+
+		@Override
+		public void receive() {
+			Message msg = this.getNextMessage();
+			if (!(msg instanceof LoadRequest)) {
+				System.out.println("Received unsuported message");
+				return;
+			}
+
+			long end = System.nanoTime() + m_service;
+			while (System.nanoTime() < end) {
+				// Service time
+			}
+			LoadRequest request = (LoadRequest)msg;
+			send(new IntMessage(0, request.sequence), request.client);
+		}
+	}
+}
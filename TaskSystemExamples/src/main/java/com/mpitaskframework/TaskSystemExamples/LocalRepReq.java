@@ -2,6 +2,7 @@ package com.mpitaskframework.TaskSystemExamples;
 
 import com.mpitaskframework.TaskSystem.Message;
 import com.mpitaskframework.TaskSystem.Task;
+import com.mpitaskframework.TaskSystem.TaskPool;
 import com.mpitaskframework.TaskSystem.TaskSystem;
 import com.mpitaskframework.TaskSystem.Messages.IntMessage;
 
@@ -15,10 +16,14 @@ public class LocalRepReq {
 	/**
 	 * This sample will start a server and a client. The client send request to the server and response
 	 * back to the client.
+	 * 
+	 * Optional arguments : number of server and pool mode (shared or jsq). With more than one server, the
+	 * servers are put in a pool and the clients only know the pool id. With one server, "fanin" give each
+	 * client its own lane in the server mailbox.
 	 */
 	public static void main(String[] args) {
-		if (args.length != 1) {
-			System.out.println("Missing program argument : number of client");
+		if (args.length < 1) {
+			System.out.println("Missing program argument : number of client [number of server] [shared|jsq|fanin]");
 			System.exit(-1);
 		}
 		
@@ -26,8 +31,19 @@ public class LocalRepReq {
 		
 		TaskSystem.activateSystem(true);
 		
-		int server_id = Task.createTask(sample.new ServerTask());
+		int nb_server = args.length > 1 ? Integer.parseInt(args[1]) : 1;
 		int nb_client = Integer.parseInt(args[0]);
+		int server_id;
+		if (nb_server > 1) {
+			TaskPool.Mode mode = (args.length > 2 && args[2].equals("shared")) ? 
+					TaskPool.Mode.SHARED_QUEUE : TaskPool.Mode.JOIN_SHORTEST_QUEUE;
+			server_id = TaskPool.createPool(mode, nb_server, () -> sample.new ServerTask());
+		} else if (args.length > 2 && args[2].equals("fanin")) {
+			server_id = Task.createFanInTask(sample.new ServerTask(), nb_client);
+		} else {
+			server_id = Task.createTask(sample.new ServerTask());
+		}
+		
 		for (int i = 0; i < nb_client; i++) {
 			Task.createTask(sample.new ClientTask(server_id));
 		}
@@ -66,7 +82,7 @@ public class LocalRepReq {
 					
 					double total_sec = totalTime/1000.0d;
 					long req_s = (long)(1000000/(total_sec));
-					System.out.println("Server : Request count=" + count + " at " + req_s + " req/s ");
+					System.out.println("Server("+this.getTaskId()+") : Request count=" + count + " at " + req_s + " req/s ");
 					
 					startTime = System.currentTimeMillis();
 				}
@@ -0,0 +1,305 @@
+package com.mpitaskframework.TaskSystemExamples;
+
+import java.nio.LongBuffer;
+
+import com.mpitaskframework.TaskSystem.Message;
+import com.mpitaskframework.TaskSystem.Task;
+import com.mpitaskframework.TaskSystem.TaskSystem;
+import com.mpitaskframework.TaskSystem.Messages.IntArrayMessage;
+import com.mpitaskframework.TaskSystem.Messages.IntMessage;
+import com.mpitaskframework.TaskSystem.Messages.LongArrayMessage;
+
+/**
+ * Small map-reduce driver, run as a scaling benchmark from 1 task to all cores.
+ *
+ * Each worker is both a mapper and a reducer. The map step read the block of the worker and emit
+ * (key, value) pairs, the shuffle send each pair to the worker owning the key (key % P) and the reduce
+ * step sum the values of each key. There is no combiner, so the whole input goes through the shuffle.
+ *
+ * Usage : MapReduce <number of elements> [max tasks] [number of keys] [seed]
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class MapReduce {
+
+	/**
+	 * Pairs per shuffle message.
+	 */
+	public static final int CHUNK_PAIRS = 1 << 16;
+
+	public enum MapReduceMessages { PEERS, READY, START, PAIRS, PAIRS_END, RESULT };
+
+	/**
+	 * Main.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Missing program argument : number of elements [max tasks] [number of keys] [seed]");
+			System.exit(-1);
+		}
+
+		long n = Long.parseLong(args[0]);
+		int maxTasks = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		int keys = args.length > 2 ? Integer.parseInt(args[2]) : 1 << 16;
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 42L;
+
+		// A pair is 2 longs, a worker reduce its own keys, its queue get at most the pairs of the other
+		// worker when 2 tasks are used
+		ScalingReport.configureQueues(2 * Long.BYTES * (n / 2 + 1));
+		TaskSystem.activateSystem(true);
+
+		MapReduce sample = new MapReduce();
+		Task.createTask(sample.new MapReduceCoordinator(n, ScalingReport.taskCounts(maxTasks), keys, seed));
+	}
+
+	/**
+	 * Map function : key and value of an element.
+	 * @param pElement Input element.
+	 * @param pKeys Number of keys.
+	 * @return Key.
+	 */
+	static long keyOf(long pElement, int pKeys) {
+		return Math.floorMod(pElement, (long)pKeys);
+	}
+
+	static long valueOf(long pElement) {
+		return pElement >>> 48;
+	}
+
+	/**
+	 * Run the job for each task count and print the report.
+	 */
+	public class MapReduceCoordinator extends Task {
+
+		private final long m_n;
+		private final int[] m_taskCounts;
+		private final int m_keys;
+		private final long m_seed;
+
+		private int m_ready;
+		private int m_done;
+		private long m_count;
+		private long m_sum;
+
+		public MapReduceCoordinator(long pN, int[] pTaskCounts, int pKeys, long pSeed) {
+			m_n = pN;
+			m_taskCounts = pTaskCounts;
+			m_keys = pKeys;
+			m_seed = pSeed;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			// Expected result, computed once
+			long expectedSum = 0;
+			for (long i = 0; i < m_n; i++) {
+				expectedSum += valueOf(ScalingReport.element(m_seed, i));
+			}
+
+			ScalingReport report = new ScalingReport("MapReduce", m_n);
+
+			for (int p : m_taskCounts) {
+				m_ready = 0;
+				m_done = 0;
+				m_count = 0;
+				m_sum = 0;
+
+				int[] workers = new int[p];
+				for (int i = 0; i < p; i++) {
+					workers[i] = Task.createTask(new MapReduceWorker(m_n, m_keys, m_seed));
+				}
+				for (int i = 0; i < p; i++) {
+					int[] peers = new int[p + 2];
+					peers[0] = this.getTaskId();
+					peers[1] = i;
+					System.arraycopy(workers, 0, peers, 2, p);
+					send(new IntArrayMessage(MapReduceMessages.PEERS.ordinal(), peers), workers[i]);
+				}
+				while (m_ready < p) {
+					receive();
+				}
+
+				long startTime = System.nanoTime();
+				for (int i = 0; i < p; i++) {
+					send(new IntMessage(MapReduceMessages.START.ordinal(), 0), workers[i]);
+				}
+				while (m_done < p) {
+					receive();
+				}
+				long time = System.nanoTime() - startTime;
+
+				if (m_count != m_n || m_sum != expectedSum) {
+					System.out.println("MapReduce failed with " + p + " tasks, count=" + m_count + " sum=" + m_sum);
+				}
+				report.record(p, time);
+
+				for (int i = 0; i < p; i++) {
+					TaskSystem.getInstance().deleteMessageQueue(workers[i]);
+				}
+			}
+
+			report.print();
+			TaskSystem.getInstance().destroy();
+		}
+
+		@Override
+		public void receive() {
+			Message msg = this.getNextMessage();
+
+			switch (MapReduceMessages.values()[msg.getTag()]) {
+			case READY:
+				m_ready++;
+				break;
+			case RESULT:
+				LongBuffer result = ((LongArrayMessage)msg).getValues();
+				m_count += result.get(0);
+				m_sum += result.get(1);
+				m_done++;
+				break;
+			default:
+				System.out.println("Received unsuported message");
+				break;
+			}
+		}
+	}
+
+	/**
+	 * One mapper and reducer task.
+	 */
+	public class MapReduceWorker extends Task {
+
+		private final long m_n;
+		private final int m_keys;
+		private final long m_seed;
+
+		private int m_coordinator;
+		private int m_rank;
+		private int[] m_peers;
+		private boolean m_started;
+		private int m_endCount;
+
+		/**
+		 * Reduce state : sum and count of each key owned by this worker (key / P).
+		 */
+		private long[] m_sums;
+		private long[] m_counts;
+
+		public MapReduceWorker(long pN, int pKeys, long pSeed) {
+			m_n = pN;
+			m_keys = pKeys;
+			m_seed = pSeed;
+		}
+
+		@Override
+		protected void initialize() {
+			m_peers = null;
+			m_started = false;
+			m_endCount = 0;
+		}
+
+		@Override
+		public void start() {
+			while (!m_started) {
+				receive();
+			}
+			int p = m_peers.length;
+
+			// Map and shuffle
+			long[][] buffers = new long[p][2 * CHUNK_PAIRS];
+			int[] fill = new int[p];
+			long from = m_n * m_rank / p;
+			long to = m_n * (m_rank + 1) / p;
+
+			for (long i = from; i < to; i++) {
+				long element = ScalingReport.element(m_seed, i);
+				long key = keyOf(element, m_keys);
+				long value = valueOf(element);
+				int owner = (int)(key % p);
+
+				if (owner == m_rank) {
+					reduce(key, value);
+					continue;
+				}
+
+				long[] buffer = buffers[owner];
+				buffer[fill[owner]++] = key;
+				buffer[fill[owner]++] = value;
+				if (fill[owner] == buffer.length) {
+					send(new LongArrayMessage(MapReduceMessages.PAIRS.ordinal(), buffer), m_peers[owner]);
+					fill[owner] = 0;
+				}
+			}
+			for (int j = 0; j < p; j++) {
+				if (j == m_rank) {
+					continue;
+				}
+				if (fill[j] > 0) {
+					send(new LongArrayMessage(MapReduceMessages.PAIRS.ordinal(), buffers[j], 0, fill[j]), m_peers[j]);
+				}
+				send(new IntMessage(MapReduceMessages.PAIRS_END.ordinal(), m_rank), m_peers[j]);
+			}
+
+			// Reduce what the other workers sent
+			while (m_endCount < p - 1) {
+				receive();
+			}
+
+			long count = 0;
+			long sum = 0;
+			for (int k = 0; k < m_sums.length; k++) {
+				count += m_counts[k];
+				sum += m_sums[k];
+			}
+			send(new LongArrayMessage(MapReduceMessages.RESULT.ordinal(), new long[] { count, sum }), m_coordinator);
+		}
+
+		/**
+		 * Reduce function.
+		 * @param pKey Key owned by this worker.
+		 * @param pValue Value.
+		 */
+		private void reduce(long pKey, long pValue) {
+			int slot = (int)(pKey / m_peers.length);
+			m_sums[slot] += pValue;
+			m_counts[slot]++;
+		}
+
+		@Override
+		public void receive() {
+			Message msg = this.getNextMessage();
+
+			switch (MapReduceMessages.values()[msg.getTag()]) {
+			case PEERS:
+				int[] peers = ((IntArrayMessage)msg).toArray();
+				m_coordinator = peers[0];
+				m_rank = peers[1];
+				m_peers = new int[peers.length - 2];
+				System.arraycopy(peers, 2, m_peers, 0, m_peers.length);
+				m_sums = new long[m_keys / m_peers.length + 1];
+				m_counts = new long[m_sums.length];
+				send(new IntMessage(MapReduceMessages.READY.ordinal(), m_rank), m_coordinator);
+				break;
+			case START:
+				m_started = true;
+				break;
+			case PAIRS:
+				// Read the pairs straight from the reassembled message
+				LongBuffer pairs = ((LongArrayMessage)msg).getValues();
+				for (int i = 0; i < pairs.limit(); i += 2) {
+					reduce(pairs.get(i), pairs.get(i + 1));
+				}
+				break;
+			case PAIRS_END:
+				m_endCount++;
+				break;
+			default:
+				System.out.println("Received unsuported message");
+				break;
+			}
+		}
+	}
+}
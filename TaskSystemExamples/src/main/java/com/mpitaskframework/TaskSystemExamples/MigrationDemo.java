@@ -0,0 +1,185 @@
+package com.mpitaskframework.TaskSystemExamples;
+
+import com.mpitaskframework.TaskSystem.Message;
+import com.mpitaskframework.TaskSystem.MigratableTask;
+import com.mpitaskframework.TaskSystem.MigrationAgent;
+import com.mpitaskframework.TaskSystem.Task;
+import com.mpitaskframework.TaskSystem.TaskRouter;
+import com.mpitaskframework.TaskSystem.TaskSystem;
+import com.mpitaskframework.TaskSystem.Messages.IntMessage;
+import com.mpitaskframework.TaskSystem.Messages.MigrationMessage;
+
+/**
+ * Move a task back and forth between two agents while a producer keep sending to it. The counter check
+ * that every message is received once and in order, whatever the number of moves.
+ *
+ * The two agents are in the same process here, an agent created in another process (acquiring the
+ * system) is used the same way.
+ *
+ * Usage : MigrationDemo [messages] [moves]
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class MigrationDemo {
+
+	public enum MigrationDemoMessages { VALUE, DONE };
+
+	/**
+	 * Main.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int moves = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		if (System.getProperty("mpitaskframework.queueSize") == null) {
+			System.setProperty("mpitaskframework.queueSize", Long.toString(64L * (messages + 1000)));
+		}
+		TaskSystem.activateSystem(true);
+
+		MigrationDemo sample = new MigrationDemo();
+		Task.createTask(sample.new Driver(messages, moves));
+	}
+
+	/**
+	 * Create the tasks and request the moves.
+	 */
+	public class Driver extends Task {
+
+		private final int m_messages;
+		private final int m_moves;
+
+		public Driver(int pMessages, int pMoves) {
+			m_messages = pMessages;
+			m_moves = pMoves;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			int[] agents = new int[] { Task.createTask(new MigrationAgent()), Task.createTask(new MigrationAgent()) };
+			int counter = Task.createTask(new Counter(m_messages, this.getTaskId()));
+			Task.createTask(new Producer(counter, m_messages));
+
+			for (int i = 0; i < m_moves; i++) {
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					break;
+				}
+				TaskSystem.getInstance().requestMigration(counter, agents[i % 2]);
+			}
+
+			receive();
+
+			TaskRouter router = TaskSystem.getInstance().getRouter();
+			System.out.println("Counter route : " + TaskRouter.toString(router.getRoute(counter)) + " ("
+					+ router.getKind(counter) + ")");
+			for (int agent : agents) {
+				send(new MigrationMessage(MigrationMessage.STOP, 0, 0), agent);
+			}
+			TaskSystem.getInstance().destroy();
+		}
+
+		@Override
+		public void receive() {
+			Message msg = this.getNextMessage();
+
+			switch (MigrationDemoMessages.values()[msg.getTag()]) {
+			case DONE:
+				break;
+			default:
+				System.out.println("Received unsuported message");
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Send the values 0 to N-1.
+	 */
+	public class Producer extends Task {
+
+		private final int m_counter;
+		private final int m_messages;
+
+		public Producer(int pCounter, int pMessages) {
+			m_counter = pCounter;
+			m_messages = pMessages;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			for (int i = 0; i < m_messages; i++) {
+				send(new IntMessage(MigrationDemoMessages.VALUE.ordinal(), i), m_counter);
+			}
+		}
+
+		@Override
+		public void receive() { }
+	}
+
+	/**
+	 * Count the values, the state move with the task. Static so only the counter is serialized.
+	 */
+	public static class Counter extends MigratableTask {
+
+		private static final long serialVersionUID = -2684127461536237043L;
+
+		private final int m_messages;
+		private final int m_driver;
+		private int m_expected;
+		private int m_errors;
+		private int m_moves;
+
+		public Counter(int pMessages, int pDriver) {
+			m_messages = pMessages;
+			m_driver = pDriver;
+		}
+
+		@Override
+		protected void initialize() {
+			m_expected = 0;
+			m_errors = 0;
+			m_moves = 0;
+		}
+
+		@Override
+		protected void moved() {
+			m_moves++;
+		}
+
+		@Override
+		public void start() {
+			// Called again after each move, resume from the fields
+			while (m_expected < m_messages) {
+				receive();
+			}
+
+			System.out.format("Counter : %d values received, %d out of order, %d moves%n", m_expected, m_errors, m_moves);
+			send(new IntMessage(MigrationDemoMessages.DONE.ordinal(), 0), m_driver);
+		}
+
+		@Override
+		public void receive() {
+			Message msg = this.getNextMessage();
+
+			switch (MigrationDemoMessages.values()[msg.getTag()]) {
+			case VALUE:
+				if (((IntMessage)msg).value != m_expected) {
+					m_errors++;
+				}
+				m_expected++;
+				break;
+			default:
+				System.out.println("Received unsuported message");
+				break;
+			}
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package com.mpitaskframework.TaskSystemExamples;
+
+import java.util.Arrays;
+
+import com.mpitaskframework.TaskSystem.Message;
+import com.mpitaskframework.TaskSystem.Task;
+import com.mpitaskframework.TaskSystem.TaskPlacement;
+import com.mpitaskframework.TaskSystem.TaskSystem;
+import com.mpitaskframework.TaskSystem.Messages.IntMessage;
+
+/**
+ * Compare the ping-pong latency of two tasks left to the scheduler and of the same two tasks pinned on
+ * two cores. Both tasks spin on their queue, so the difference show the cost of migrations and lost cache
+ * locality.
+ *
+ * Usage : PinnedPingPong [round trips] [ping core] [pong core]
+ * Use two cores of the same socket to measure the best case, two cores of different sockets to see the
+ * cost of crossing the interconnect.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class PinnedPingPong {
+
+	public enum PingPongMessages { PEER, PING, PONG, STOP, DONE };
+
+	/**
+	 * Main.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int roundTrips = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int pingCore = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		int pongCore = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+		// Each round trip write one message in each queue
+		if (System.getProperty("mpitaskframework.queueSize") == null) {
+			System.setProperty("mpitaskframework.queueSize", Long.toString(64L * (roundTrips + 1000)));
+		}
+		TaskSystem.activateSystem(true);
+
+		PinnedPingPong sample = new PinnedPingPong();
+		Task.createTask(sample.new Driver(roundTrips, pingCore, pongCore));
+	}
+
+	/**
+	 * Run the unpinned then the pinned ping-pong and print the result.
+	 */
+	public class Driver extends Task {
+
+		private final int m_roundTrips;
+		private final int m_pingCore;
+		private final int m_pongCore;
+
+		public Driver(int pRoundTrips, int pPingCore, int pPongCore) {
+			m_roundTrips = pRoundTrips;
+			m_pingCore = pPingCore;
+			m_pongCore = pPongCore;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			// Unpinned
+			int pong = Task.createTask(new Pong());
+			int ping = Task.createTask(new Ping("unpinned", m_roundTrips, this.getTaskId()));
+			send(new IntMessage(PingPongMessages.PEER.ordinal(), pong), ping);
+			receive();
+
+			// Pinned
+			pong = Task.createTask(new Pong(), TaskPlacement.exclusiveCore(m_pongCore));
+			ping = pong < 0 ? -1 : Task.createTask(new Ping("pinned(" + m_pingCore + "," + m_pongCore + ")", m_roundTrips,
+					this.getTaskId()), TaskPlacement.exclusiveCore(m_pingCore));
+			if (ping < 0) {
+				System.out.println("pinned         skipped, cores " + m_pingCore + " and " + m_pongCore + " can't be given exclusively");
+				if (pong >= 0) {
+					send(new IntMessage(PingPongMessages.STOP.ordinal(), 0), pong);
+				}
+			} else {
+				send(new IntMessage(PingPongMessages.PEER.ordinal(), pong), ping);
+				receive();
+			}
+
+			System.out.print(TaskPlacement.report());
+			TaskSystem.getInstance().destroy();
+		}
+
+		@Override
+		public void receive() {
+			Message msg = this.getNextMessage();
+
+			switch (PingPongMessages.values()[msg.getTag()]) {
+			case DONE:
+				break;
+			default:
+				System.out.println("Received unsuported message");
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Send the pings and measure the round trips.
+	 */
+	public class Ping extends Task {
+
+		private final String m_name;
+		private final int m_roundTrips;
+		private final int m_driver;
+		private int m_pong;
+
+		public Ping(String pName, int pRoundTrips, int pDriver) {
+			m_name = pName;
+			m_roundTrips = pRoundTrips;
+			m_driver = pDriver;
+		}
+
+		@Override
+		protected void initialize() {
+			m_pong = -1;
+		}
+
+		@Override
+		public void start() {
+			receive(); // Peer
+
+			// Warm-up, not measured
+			for (int i = 0; i < Math.min(10000, m_roundTrips); i++) {
+				send(new IntMessage(PingPongMessages.PING.ordinal(), this.getTaskId()), m_pong);
+				receive();
+			}
+
+			long[] latencies = new long[m_roundTrips];
+			for (int i = 0; i < m_roundTrips; i++) {
+				long start = System.nanoTime();
+				send(new IntMessage(PingPongMessages.PING.ordinal(), this.getTaskId()), m_pong);
+				receive();
+				latencies[i] = System.nanoTime() - start;
+			}
+
+			send(new IntMessage(PingPongMessages.STOP.ordinal(), 0), m_pong);
+			print(m_name, latencies);
+			send(new IntMessage(PingPongMessages.DONE.ordinal(), 0), m_driver);
+		}
+
+		/**
+		 * Print the round trip latency distribution.
+		 * @param pName Run name.
+		 * @param pLatencies Round trip latencies in nanoseconds.
+		 */
+		private void print(String pName, long[] pLatencies) {
+			Arrays.sort(pLatencies);
+			long sum = 0;
+			for (long l : pLatencies) {
+				sum += l;
+			}
+			int n = pLatencies.length;
+			System.out.format("%-14s round trips=%d avg=%d ns p50=%d ns p99=%d ns p99.9=%d ns max=%d ns%n", pName, n,
+					sum / n, pLatencies[n / 2], pLatencies[(int)(n * 0.99)], pLatencies[(int)(n * 0.999)], pLatencies[n - 1]);
+		}
+
+		@Override
+		public void receive() {
+			Message msg = this.getNextMessage();
+
+			switch (PingPongMessages.values()[msg.getTag()]) {
+			case PEER:
+				m_pong = ((IntMessage)msg).value;
+				break;
+			case PONG:
+				break;
+			default:
+				System.out.println("Received unsuported message");
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Answer every ping.
+	 */
+	public class Pong extends Task {
+
+		private boolean m_stop;
+
+		@Override
+		protected void initialize() {
+			m_stop = false;
+		}
+
+		@Override
+		public void start() {
+			while (!m_stop) {
+				receive();
+			}
+		}
+
+		@Override
+		public void receive() {
+			Message msg = this.getNextMessage();
+
+			switch (PingPongMessages.values()[msg.getTag()]) {
+			case PING:
+				send(new IntMessage(PingPongMessages.PONG.ordinal(), 0), ((IntMessage)msg).value);
+				break;
+			case STOP:
+				m_stop = true;
+				break;
+			default:
+				System.out.println("Received unsuported message");
+				break;
+			}
+		}
+	}
+}
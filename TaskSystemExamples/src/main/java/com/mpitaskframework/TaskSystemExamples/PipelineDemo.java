@@ -0,0 +1,155 @@
+package com.mpitaskframework.TaskSystemExamples;
+
+import com.mpitaskframework.TaskSystem.Message;
+import com.mpitaskframework.TaskSystem.Pipeline;
+import com.mpitaskframework.TaskSystem.Task;
+import com.mpitaskframework.TaskSystem.TaskSystem;
+import com.mpitaskframework.TaskSystem.Messages.IntMessage;
+
+/**
+ * A parse -> enrich -> aggregate chain declared with Pipeline. The three stages start fused on one task,
+ * enrich is the expensive one : when the task fall behind it is split and the report show enrich as the
+ * bottleneck. Run with "nofusion" to start with one task per stage, or with more enrich workers to run
+ * the stage on a pool.
+ *
+ * Usage : PipelineDemo [messages] [enrich work] [enrich workers] [fusion|nofusion]
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class PipelineDemo {
+
+	public enum PipelineMessages { RAW, PARSED, ENRICHED, TOTAL };
+
+	/**
+	 * Main.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int work = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int workers = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+		boolean fusion = args.length <= 3 || !args[3].equals("nofusion");
+
+		if (System.getProperty("mpitaskframework.queueSize") == null) {
+			System.setProperty("mpitaskframework.queueSize", Long.toString(32L * (messages + 1000)));
+		}
+		TaskSystem.activateSystem(true);
+
+		PipelineDemo sample = new PipelineDemo();
+		Collector collector = sample.new Collector(messages);
+		int collectorId = Task.createTask(collector);
+
+		Pipeline pipeline = new Pipeline("demo")
+				.stage("parse", msg -> new IntMessage(PipelineMessages.PARSED.ordinal(), ((IntMessage)msg).value * 2))
+				.stage("enrich", workers, () -> msg -> new IntMessage(PipelineMessages.ENRICHED.ordinal(), enrich(((IntMessage)msg).value, work)))
+				.stage("aggregate", new Aggregate(messages))
+				.fusion(fusion)
+				.to(collectorId);
+		collector.setPipeline(pipeline);
+
+		Task.createTask(sample.new Source(pipeline.start(), messages));
+	}
+
+	/**
+	 * Some hashing work.
+	 */
+	private static int enrich(int pValue, int pWork) {
+		int h = pValue;
+		for (int i = 0; i < pWork; i++) {
+			h = h * 31 + i;
+		}
+		return (h & 0xFF) + pValue;
+	}
+
+	/**
+	 * Sum the values, emit the total with the last one.
+	 */
+	private static class Aggregate implements Pipeline.Stage {
+
+		private final int m_messages;
+		private int m_received;
+		private long m_sum;
+
+		Aggregate(int pMessages) {
+			m_messages = pMessages;
+		}
+
+		@Override
+		public Message process(Message pMsg) {
+			m_sum += ((IntMessage)pMsg).value;
+			if (++m_received < m_messages) {
+				return null;
+			}
+			return new IntMessage(PipelineMessages.TOTAL.ordinal(), (int)m_sum);
+		}
+	}
+
+	/**
+	 * Send the raw values.
+	 */
+	public class Source extends Task {
+
+		private final int m_entry;
+		private final int m_messages;
+
+		public Source(int pEntry, int pMessages) {
+			m_entry = pEntry;
+			m_messages = pMessages;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			for (int i = 0; i < m_messages; i++) {
+				send(new IntMessage(PipelineMessages.RAW.ordinal(), i & 0xFFFF), m_entry);
+			}
+		}
+
+		@Override
+		public void receive() { }
+	}
+
+	/**
+	 * Wait for the total and print the report.
+	 */
+	public class Collector extends Task {
+
+		private final int m_messages;
+		private volatile Pipeline m_pipeline;
+
+		public Collector(int pMessages) {
+			m_messages = pMessages;
+		}
+
+		public void setPipeline(Pipeline pPipeline) {
+			m_pipeline = pPipeline;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			receive();
+		}
+
+		@Override
+		public void receive() {
+			Message msg = this.getNextMessage();
+
+			switch (PipelineMessages.values()[msg.getTag()]) {
+			case TOTAL:
+				System.out.println("Collector : " + m_messages + " messages, total=" + ((IntMessage)msg).value);
+				System.out.print(m_pipeline.getReport());
+				m_pipeline.stop();
+				TaskSystem.getInstance().destroy();
+				break;
+			default:
+				System.out.println("Received unsuported message");
+				break;
+			}
+		}
+	}
+}
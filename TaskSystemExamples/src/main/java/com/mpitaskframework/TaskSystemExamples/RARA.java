@@ -1,6 +1,8 @@
 package com.mpitaskframework.TaskSystemExamples;
 
 import com.mpitaskframework.TaskSystem.Message;
+import com.mpitaskframework.TaskSystem.MessageCodec;
+import com.mpitaskframework.TaskSystem.MessagePriority;
 import com.mpitaskframework.TaskSystem.Task;
 import com.mpitaskframework.TaskSystem.TaskSystem;
 
@@ -19,6 +21,15 @@ public class RARA {
 	 * @param args
 	 */
 	public static void main(String[] args) {
+		// The sum request is 16 bytes (RARA_SumRequestCodec.SIZE), registering it check the record size
+		if (System.getProperty("mpitaskframework.recordSize") == null) {
+			System.setProperty("mpitaskframework.recordSize", "16");
+		}
+		TaskSystem.activateSystem(true);
+		RARA_SumRequestCodec.register();
+		RARA_SumResponseCodec.register();
+		RARA_SumAckCodec.register();
+		
 		RARA sample = new RARA();
 		
 		Task.createTask(sample.new RequestTask()); // Create the main task
@@ -75,9 +86,9 @@ public class RARA {
 			// Get the response.
 			receive();
 			
-			// Send ACK
+			// Send ACK, acknowledges use the control lane so they never wait behind data messages
 			SumAck ack = new SumAck(RARAMessages.RES_ACK_TAG.ordinal(), true);
-			send(ack, response_task_id);
+			send(ack, response_task_id, MessagePriority.CONTROL);
 			
 			// <<Use the response to do some work>>
 		}
@@ -123,7 +134,7 @@ public class RARA {
 			
 			// Send request ACK
 			SumAck ack = new SumAck(RARAMessages.REQ_ACK_TAG.ordinal(), true);
-			send(ack, m_answer_to);
+			send(ack, m_answer_to, MessagePriority.CONTROL);
 			
 			// Compute the sum
 			int sum = 0;
@@ -168,15 +179,20 @@ public class RARA {
 	}
 	
 	/**
-	 * Sum request message.
+	 * Sum request message. The codec is generated from the fields, see MessageCodec.
 	 */
-	public class SumRequest extends Message {	
+	@MessageCodec(tid = 20)
+	public static class SumRequest extends Message {	
 		public int from;
 		public int to;
 		public int responseToId;
 
+		public SumRequest() {
+			super(-1, RARA_SumRequestCodec.TID);
+		}
+
 		protected SumRequest(int pTag, int pFrom, int pTo, int pResponseToId) {
-			super(pTag, 2);
+			super(pTag, RARA_SumRequestCodec.TID);
 			
 			from = pFrom;
 			to = pTo;
@@ -190,30 +206,28 @@ public class RARA {
 
 		@Override
 		public void write(MemoryMappedFile mem, long pos) {
-			mem.putInt(pos, this.getTag());
-			mem.putInt(pos + 4, from);
-			mem.putInt(pos + 8, to);
-			mem.putInt(pos + 12, responseToId);
+			RARA_SumRequestCodec.write(this, mem, pos);
 		}
 
 		@Override
 		public void read(MemoryMappedFile mem, long pos) {
-			setTid(2);
-			setTag(mem.getInt(pos));
-			from = mem.getInt(pos + 4);
-			to = mem.getInt(pos + 8);
-			responseToId = mem.getInt(pos + 12);
+			setTag(RARA_SumRequestCodec.read(this, mem, pos));
 		}
 	}
 	
 	/**
 	 * Sum response message.
 	 */
-	public class SumResponse extends Message {
+	@MessageCodec(tid = 21)
+	public static class SumResponse extends Message {
 		public int result;
+
+		public SumResponse() {
+			super(-1, RARA_SumResponseCodec.TID);
+		}
 		
 		protected SumResponse(int pTag, int pResult) {
-			super(pTag, 3);
+			super(pTag, RARA_SumResponseCodec.TID);
 			result = pResult;
 		}
 
@@ -224,15 +238,12 @@ public class RARA {
 
 		@Override
 		public void write(MemoryMappedFile mem, long pos) {
-			mem.putInt(pos, this.getTag());
-			mem.putInt(pos + 4, result);
+			RARA_SumResponseCodec.write(this, mem, pos);
 		}
 
 		@Override
 		public void read(MemoryMappedFile mem, long pos) {
-			setTid(3);
-			setTag(mem.getInt(pos));
-			result = mem.getInt(pos + 4);
+			setTag(RARA_SumResponseCodec.read(this, mem, pos));
 		}
 	}
 	
@@ -240,12 +251,17 @@ public class RARA {
 	 * Sum acknowledge. Using different tag we will difer from request to response acknowledge. 
 	 * But we will reuse this message.
 	 */
-	public class SumAck extends Message {
+	@MessageCodec(tid = 22)
+	public static class SumAck extends Message {
 		
 		public boolean isOk;
 
+		public SumAck() {
+			super(-1, RARA_SumAckCodec.TID);
+		}
+
 		protected SumAck(int pTag, boolean pIsOk) {
-			super(pTag, 4);
+			super(pTag, RARA_SumAckCodec.TID);
 			
 			isOk = pIsOk;
 		}
@@ -257,15 +273,12 @@ public class RARA {
 
 		@Override
 		public void write(MemoryMappedFile mem, long pos) {
-			mem.putInt(pos, this.getTag());
-			mem.putInt(pos + 4, isOk ? 1 : 0);
+			RARA_SumAckCodec.write(this, mem, pos);
 		}
 
 		@Override
 		public void read(MemoryMappedFile mem, long pos) {
-			setTid(4);
-			setTag(mem.getInt(pos));
-			isOk = mem.getInt(pos + 4) == 1 ? true : false;
+			setTag(RARA_SumAckCodec.read(this, mem, pos));
 		}
 	}
 
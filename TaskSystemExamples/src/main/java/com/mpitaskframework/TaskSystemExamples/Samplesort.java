@@ -0,0 +1,407 @@
+package com.mpitaskframework.TaskSystemExamples;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.mpitaskframework.TaskSystem.Message;
+import com.mpitaskframework.TaskSystem.Task;
+import com.mpitaskframework.TaskSystem.TaskSystem;
+import com.mpitaskframework.TaskSystem.Messages.IntArrayMessage;
+import com.mpitaskframework.TaskSystem.Messages.IntMessage;
+
+/**
+ * Parallel samplesort over P tasks, run as a scaling benchmark from 1 task to all cores.
+ *
+ * Each worker own a block of the input and the sort is done in 4 steps :
+ * 1) Sampling, every worker send a few random elements of its block to the worker 0
+ * 2) Splitters, the worker 0 sort the samples and broadcast P-1 splitters
+ * 3) Exchange, every worker split its block in P buckets and send bucket j to worker j (all-to-all)
+ * 4) Local sort, every worker sort what it received. Worker j then hold the j-th part of the sorted output.
+ *
+ * Usage : Samplesort <number of elements> [max tasks] [seed]
+ * For large inputs, give enough heap (about 12 bytes per element) : -Xmx.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class Samplesort {
+
+	/**
+	 * Samples sent by each worker.
+	 */
+	public static final int OVERSAMPLING = 64;
+
+	/**
+	 * Maximum number of elements per partition message.
+	 */
+	public static final int CHUNK_ELEMENTS = 1 << 20;
+
+	public enum SortMessages { PEERS, READY, START, SAMPLE, SPLITTERS, PARTITION, PARTITION_END, DONE };
+
+	/**
+	 * Main.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Missing program argument : number of elements [max tasks] [seed]");
+			System.exit(-1);
+		}
+
+		long n = Long.parseLong(args[0]);
+		int maxTasks = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 42L;
+
+		// A worker keep its own bucket, its queue get at most the block of the other worker when 2 tasks are used
+		ScalingReport.configureQueues(Integer.BYTES * (n / 2 + 1));
+		TaskSystem.activateSystem(true);
+
+		Samplesort sample = new Samplesort();
+		Task.createTask(sample.new SortCoordinator(n, ScalingReport.taskCounts(maxTasks), seed));
+	}
+
+	/**
+	 * Run the sort for each task count and print the report.
+	 */
+	public class SortCoordinator extends Task {
+
+		private final long m_n;
+		private final int[] m_taskCounts;
+		private final long m_seed;
+
+		private int m_ready;
+		private int m_done;
+		private long m_sorted;
+		private boolean m_failed;
+
+		public SortCoordinator(long pN, int[] pTaskCounts, long pSeed) {
+			m_n = pN;
+			m_taskCounts = pTaskCounts;
+			m_seed = pSeed;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			ScalingReport report = new ScalingReport("Samplesort", m_n);
+
+			for (int p : m_taskCounts) {
+				m_ready = 0;
+				m_done = 0;
+				m_sorted = 0;
+				m_failed = false;
+
+				int[] workers = new int[p];
+				for (int i = 0; i < p; i++) {
+					workers[i] = Task.createTask(new SortWorker(m_n, m_seed));
+				}
+
+				// Peers : coordinator, rank, worker ids
+				for (int i = 0; i < p; i++) {
+					int[] peers = new int[p + 2];
+					peers[0] = this.getTaskId();
+					peers[1] = i;
+					System.arraycopy(workers, 0, peers, 2, p);
+					send(new IntArrayMessage(SortMessages.PEERS.ordinal(), peers), workers[i]);
+				}
+
+				// Input generation is not measured
+				while (m_ready < p) {
+					receive();
+				}
+
+				long startTime = System.nanoTime();
+				for (int i = 0; i < p; i++) {
+					send(new IntMessage(SortMessages.START.ordinal(), 0), workers[i]);
+				}
+				while (m_done < p) {
+					receive();
+				}
+				long time = System.nanoTime() - startTime;
+
+				if (m_failed || m_sorted != m_n) {
+					System.out.println("Samplesort failed with " + p + " tasks, sorted=" + m_sorted);
+				}
+				report.record(p, time);
+
+				for (int i = 0; i < p; i++) {
+					TaskSystem.getInstance().deleteMessageQueue(workers[i]);
+				}
+			}
+
+			report.print();
+			TaskSystem.getInstance().destroy();
+		}
+
+		@Override
+		public void receive() {
+			Message msg = this.getNextMessage();
+
+			switch (SortMessages.values()[msg.getTag()]) {
+			case READY:
+				m_ready++;
+				break;
+			case DONE:
+				IntMessage realMsg = (IntMessage)msg;
+				m_done++;
+				if (realMsg.value < 0) {
+					m_failed = true;
+				} else {
+					m_sorted += realMsg.value;
+				}
+				break;
+			default:
+				System.out.println("Received unsuported message");
+				break;
+			}
+		}
+	}
+
+	/**
+	 * One sorting task.
+	 */
+	public class SortWorker extends Task {
+
+		private final long m_n;
+		private final long m_seed;
+
+		private int m_coordinator;
+		private int m_rank;
+		private int[] m_peers;
+
+		private int[] m_block;
+		private boolean m_started;
+
+		private final List<int[]> m_samples = new ArrayList<int[]>();
+		private int[] m_splitters;
+
+		private final List<IntBuffer> m_received = new ArrayList<IntBuffer>();
+		private int m_endCount;
+
+		public SortWorker(long pN, long pSeed) {
+			m_n = pN;
+			m_seed = pSeed;
+		}
+
+		@Override
+		protected void initialize() {
+			m_peers = null;
+			m_block = null;
+			m_started = false;
+			m_splitters = null;
+			m_endCount = 0;
+		}
+
+		@Override
+		public void start() {
+			while (!m_started) {
+				receive();
+			}
+			int p = m_peers.length;
+
+			// 1) Sampling
+			int[] samples = new int[Math.min(OVERSAMPLING, m_block.length)];
+			for (int i = 0; i < samples.length; i++) {
+				int index = (int)Math.floorMod(ScalingReport.element(m_seed ^ m_rank, i), (long)m_block.length);
+				samples[i] = m_block[index];
+			}
+			if (m_rank == 0) {
+				m_samples.add(samples);
+			} else {
+				send(new IntArrayMessage(SortMessages.SAMPLE.ordinal(), samples), m_peers[0]);
+			}
+
+			// 2) Splitters
+			if (m_rank == 0) {
+				while (m_samples.size() < p) {
+					receive();
+				}
+				m_splitters = selectSplitters(p);
+				for (int i = 1; i < p; i++) {
+					send(new IntArrayMessage(SortMessages.SPLITTERS.ordinal(), m_splitters), m_peers[i]);
+				}
+			}
+			while (m_splitters == null) {
+				receive();
+			}
+
+			// 3) Exchange. The block is reordered by bucket and each bucket is sent from the block itself.
+			int[] bucketStart = partition();
+			for (int j = 0; j < p; j++) {
+				if (j == m_rank) {
+					m_received.add(IntBuffer.wrap(m_block, bucketStart[j], bucketStart[j + 1] - bucketStart[j]));
+					continue;
+				}
+				for (int from = bucketStart[j]; from < bucketStart[j + 1]; from += CHUNK_ELEMENTS) {
+					int length = Math.min(CHUNK_ELEMENTS, bucketStart[j + 1] - from);
+					send(new IntArrayMessage(SortMessages.PARTITION.ordinal(), m_block, from, length), m_peers[j]);
+				}
+				send(new IntMessage(SortMessages.PARTITION_END.ordinal(), m_rank), m_peers[j]);
+			}
+			while (m_endCount < p - 1) {
+				receive();
+			}
+
+			// 4) Local sort
+			int total = 0;
+			for (IntBuffer part : m_received) {
+				total += part.remaining();
+			}
+			int[] sorted = new int[total];
+			int offset = 0;
+			for (IntBuffer part : m_received) {
+				int length = part.remaining();
+				part.get(sorted, offset, length);
+				offset += length;
+			}
+			m_received.clear();
+			m_block = null;
+			Arrays.sort(sorted);
+
+			send(new IntMessage(SortMessages.DONE.ordinal(), verify(sorted) ? total : -1), m_coordinator);
+		}
+
+		/**
+		 * Sort the samples of every worker and pick P-1 evenly spaced splitters.
+		 * @param p Number of workers.
+		 * @return Splitters.
+		 */
+		private int[] selectSplitters(int p) {
+			int count = 0;
+			for (int[] s : m_samples) {
+				count += s.length;
+			}
+			int[] all = new int[count];
+			int offset = 0;
+			for (int[] s : m_samples) {
+				System.arraycopy(s, 0, all, offset, s.length);
+				offset += s.length;
+			}
+			Arrays.sort(all);
+
+			int[] splitters = new int[p - 1];
+			for (int i = 1; i < p; i++) {
+				splitters[i - 1] = all[(int)((long)i * count / p)];
+			}
+			return splitters;
+		}
+
+		/**
+		 * Reorder the block by bucket. Bucket j hold the values v with splitters[j-1] < v <= splitters[j].
+		 * @return Start of each bucket, plus the end of the block.
+		 */
+		private int[] partition() {
+			int p = m_splitters.length + 1;
+			int[] buckets = new int[m_block.length];
+			int[] bucketStart = new int[p + 1];
+
+			for (int i = 0; i < m_block.length; i++) {
+				int b = bucketOf(m_block[i]);
+				buckets[i] = b;
+				bucketStart[b + 1]++;
+			}
+			for (int j = 0; j < p; j++) {
+				bucketStart[j + 1] += bucketStart[j];
+			}
+
+			int[] next = Arrays.copyOf(bucketStart, p);
+			int[] reordered = new int[m_block.length];
+			for (int i = 0; i < m_block.length; i++) {
+				reordered[next[buckets[i]]++] = m_block[i];
+			}
+			m_block = reordered;
+			return bucketStart;
+		}
+
+		/**
+		 * @param pValue Value.
+		 * @return Index of the first splitter greater or equal to the value.
+		 */
+		private int bucketOf(int pValue) {
+			int low = 0;
+			int high = m_splitters.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (m_splitters[mid] < pValue) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Check that the local result is sorted and inside the bucket of this worker.
+		 * @param pSorted Local result.
+		 * @return True if valid.
+		 */
+		private boolean verify(int[] pSorted) {
+			for (int i = 1; i < pSorted.length; i++) {
+				if (pSorted[i - 1] > pSorted[i]) {
+					return false;
+				}
+			}
+			if (pSorted.length > 0) {
+				if (m_rank > 0 && pSorted[0] <= m_splitters[m_rank - 1]) {
+					return false;
+				}
+				if (m_rank < m_splitters.length && pSorted[pSorted.length - 1] > m_splitters[m_rank]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Generate the block of this worker. Element i of the input only depend on the seed and i.
+		 */
+		private void generateBlock() {
+			int p = m_peers.length;
+			long from = m_n * m_rank / p;
+			long to = m_n * (m_rank + 1) / p;
+			m_block = new int[(int)(to - from)];
+			for (int i = 0; i < m_block.length; i++) {
+				m_block[i] = (int)ScalingReport.element(m_seed, from + i);
+			}
+		}
+
+		@Override
+		public void receive() {
+			Message msg = this.getNextMessage();
+
+			switch (SortMessages.values()[msg.getTag()]) {
+			case PEERS:
+				int[] peers = ((IntArrayMessage)msg).toArray();
+				m_coordinator = peers[0];
+				m_rank = peers[1];
+				m_peers = Arrays.copyOfRange(peers, 2, peers.length);
+				generateBlock();
+				send(new IntMessage(SortMessages.READY.ordinal(), m_rank), m_coordinator);
+				break;
+			case START:
+				m_started = true;
+				break;
+			case SAMPLE:
+				m_samples.add(((IntArrayMessage)msg).toArray());
+				break;
+			case SPLITTERS:
+				m_splitters = ((IntArrayMessage)msg).toArray();
+				break;
+			case PARTITION:
+				// Keep the view over the reassembled message, no copy until the local sort
+				m_received.add(((IntArrayMessage)msg).getValues());
+				break;
+			case PARTITION_END:
+				m_endCount++;
+				break;
+			default:
+				System.out.println("Received unsuported message");
+				break;
+			}
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.mpitaskframework.TaskSystemExamples;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Small helper shared by the scaling benchmarks. Give the task counts to run (1, 2, 4, ... up to all cores)
+ * and print the speed-up of each run against the single task run.
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class ScalingReport {
+
+	private final String m_name;
+	private final long m_elementCount;
+	private final List<Integer> m_taskCounts = new ArrayList<Integer>();
+	private final List<Long> m_times = new ArrayList<Long>();
+
+	/**
+	 * Constructor.
+	 * @param pName Benchmark name.
+	 * @param pElementCount Input size.
+	 */
+	public ScalingReport(String pName, long pElementCount) {
+		m_name = pName;
+		m_elementCount = pElementCount;
+	}
+
+	/**
+	 * Task counts to run : powers of two up to the maximum, plus the maximum itself.
+	 * @param pMaxTasks Maximum task count, all cores when 0 or less.
+	 * @return Task counts in increasing order.
+	 */
+	public static int[] taskCounts(int pMaxTasks) {
+		int max = pMaxTasks > 0 ? pMaxTasks : Runtime.getRuntime().availableProcessors();
+		List<Integer> counts = new ArrayList<Integer>();
+		for (int p = 1; p < max; p *= 2) {
+			counts.add(p);
+		}
+		counts.add(max);
+
+		int[] toRet = new int[counts.size()];
+		for (int i = 0; i < toRet.length; i++) {
+			toRet[i] = counts.get(i);
+		}
+		return toRet;
+	}
+
+	/**
+	 * Record a run.
+	 * @param pTaskCount Number of tasks.
+	 * @param pNanos Run time in nanoseconds.
+	 */
+	public void record(int pTaskCount, long pNanos) {
+		m_taskCounts.add(pTaskCount);
+		m_times.add(pNanos);
+		System.out.format("%s : tasks=%d elements=%d time=%.3f s%n", m_name, pTaskCount, m_elementCount, pNanos / 1e9);
+	}
+
+	/**
+	 * Print the speed-up table.
+	 */
+	public void print() {
+		if (m_times.isEmpty()) {
+			return;
+		}
+
+		double base = m_times.get(0);
+		System.out.println();
+		System.out.format("%s, %d elements%n", m_name, m_elementCount);
+		System.out.format("%8s %12s %14s %10s %10s%n", "tasks", "time (s)", "Melem/s", "speed-up", "efficiency");
+		for (int i = 0; i < m_times.size(); i++) {
+			int tasks = m_taskCounts.get(i);
+			double nanos = m_times.get(i);
+			double speedup = base / nanos;
+			System.out.format("%8d %12.3f %14.2f %10.2f %10.2f%n", tasks, nanos / 1e9, m_elementCount / (nanos / 1e3),
+					speedup, speedup / tasks);
+		}
+	}
+
+	/**
+	 * Deterministic pseudo-random value of an element (splitmix64). The input only depend on the seed
+	 * and the element index, so every run sort the same data whatever the task count.
+	 * @param pSeed Seed.
+	 * @param pIndex Element index.
+	 * @return Value.
+	 */
+	public static long element(long pSeed, long pIndex) {
+		long z = pSeed + (pIndex + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Size the queues for a benchmark, unless the user already did. Each queue must hold all the bytes
+	 * it will receive, the pre-touch is disabled because the files are sized for the worst case.
+	 * @param pBytesPerQueue Worst case payload received by one queue.
+	 */
+	public static void configureQueues(long pBytesPerQueue) {
+		if (System.getProperty("mpitaskframework.recordSize") == null) {
+			System.setProperty("mpitaskframework.recordSize", Integer.toString(64 * 1024));
+		}
+		if (System.getProperty("mpitaskframework.queueSize") == null) {
+			// Payload, fragment headers and room for the small control messages
+			long size = pBytesPerQueue + pBytesPerQueue / 8 + 64L * 1024 * 1024;
+			System.setProperty("mpitaskframework.queueSize", Long.toString(size));
+		}
+		if (System.getProperty("mpitaskframework.pretouch") == null) {
+			System.setProperty("mpitaskframework.pretouch", "false");
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package com.mpitaskframework.TaskSystemExamples;
+
+import java.util.Map;
+import java.util.Random;
+
+import com.mpitaskframework.TaskSystem.ShardTask;
+import com.mpitaskframework.TaskSystem.ShardedGroup;
+import com.mpitaskframework.TaskSystem.Task;
+import com.mpitaskframework.TaskSystem.TaskSystem;
+import com.mpitaskframework.TaskSystem.Messages.IntMessage;
+
+/**
+ * Per-account aggregation on a sharded group. A feeder deposit on random accounts while the group is
+ * resized from 4 to 6 shards, then to 3. Each account count its deposits and check their sequence, so
+ * a deposit lost or reordered by a handoff would be seen. At the end, each shard report its accounts.
+ *
+ * A deposit carry the account in the low 8 bits and the sequence of the account in the high bits.
+ *
+ * Usage : ShardedAccounts [deposits]
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class ShardedAccounts {
+
+	public enum AccountMessages { DEPOSIT, REPORT, KEYS, TOTAL, ERRORS };
+
+	private static final int ACCOUNTS = 256;
+
+	/**
+	 * Main.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int deposits = args.length > 0 ? Integer.parseInt(args[0]) : 300000;
+
+		if (System.getProperty("mpitaskframework.queueSize") == null) {
+			System.setProperty("mpitaskframework.queueSize", Long.toString(32L * deposits + (1L << 20)));
+		}
+		TaskSystem.activateSystem(true);
+
+		ShardedAccounts sample = new ShardedAccounts();
+		int groupId = ShardedGroup.createGroup(4, () -> sample.new AccountShard());
+		ShardedGroup group = TaskSystem.getInstance().getGroup(groupId);
+
+		Thread feeder = new Thread(() -> {
+			int[] sequences = new int[ACCOUNTS];
+			Random random = new Random(42);
+			for (int i = 0; i < deposits; i++) {
+				int account = random.nextInt(ACCOUNTS);
+				int value = (++sequences[account] << 8) | account;
+				TaskSystem.getInstance().send(account, new IntMessage(AccountMessages.DEPOSIT.ordinal(), value), groupId);
+			}
+		});
+		feeder.start();
+
+		for (int shards : new int[] { 6, 3 }) {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				return;
+			}
+			long start = System.nanoTime();
+			long moved = group.resize(shards);
+			System.out.format("Resized to %d shards in %.1f ms, %d of %d accounts moved%n", shards,
+					(System.nanoTime() - start) / 1e6, moved, ACCOUNTS);
+		}
+
+		try {
+			feeder.join();
+		} catch (InterruptedException e) {
+			return;
+		}
+
+		Task.createTask(sample.new Auditor(group, deposits));
+	}
+
+	/**
+	 * Count the deposits of each account owned by the shard.
+	 */
+	public class AccountShard extends ShardTask<int[]> {
+
+		/**
+		 * Deposits received with a sequence gap.
+		 */
+		private int m_errors;
+
+		@Override
+		protected void initialize() {
+			m_errors = 0;
+		}
+
+		@Override
+		public void start() {
+			while (true) {
+				receive();
+			}
+		}
+
+		@Override
+		public void receive() {
+			IntMessage msg = (IntMessage)this.getNextMessage();
+
+			switch (AccountMessages.values()[msg.getTag()]) {
+			case DEPOSIT:
+				int account = msg.value & 0xFF;
+				int sequence = msg.value >>> 8;
+				int[] state = getState(account); // { last sequence, deposits }
+				if (state == null) {
+					state = new int[2];
+					putState(account, state);
+				}
+				if (sequence != state[0] + 1) {
+					m_errors++;
+				}
+				state[0] = sequence;
+				state[1]++;
+				break;
+			case REPORT:
+				int total = 0;
+				int misplaced = 0;
+				for (Map.Entry<Long, int[]> entry : getStates().entrySet()) {
+					total += entry.getValue()[1];
+					if (getGroup().getShard(entry.getKey()) != getShardIndex()) {
+						misplaced++;
+					}
+				}
+				send(new IntMessage(AccountMessages.KEYS.ordinal(), getStates().size()), msg.value);
+				send(new IntMessage(AccountMessages.TOTAL.ordinal(), total), msg.value);
+				send(new IntMessage(AccountMessages.ERRORS.ordinal(), m_errors + misplaced), msg.value);
+				break;
+			default:
+				System.out.println("Received unsuported message");
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Ask every shard for its accounts and check the totals.
+	 */
+	public class Auditor extends Task {
+
+		private final ShardedGroup m_group;
+		private final int m_deposits;
+
+		public Auditor(ShardedGroup pGroup, int pDeposits) {
+			m_group = pGroup;
+			m_deposits = pDeposits;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			int[] shards = m_group.getShardIds();
+			long keys = 0;
+			long total = 0;
+			long errors = 0;
+			for (int i = 0; i < shards.length; i++) {
+				send(new IntMessage(AccountMessages.REPORT.ordinal(), getTaskId()), shards[i]);
+				int shardKeys = ((IntMessage)this.getNextMessage()).value;
+				int shardTotal = ((IntMessage)this.getNextMessage()).value;
+				errors += ((IntMessage)this.getNextMessage()).value;
+				System.out.println("Shard " + i + " : " + shardKeys + " accounts, " + shardTotal + " deposits");
+				keys += shardKeys;
+				total += shardTotal;
+			}
+
+			System.out.println(keys + " accounts, " + total + " of " + m_deposits + " deposits, " + errors + " errors : "
+					+ (keys == ACCOUNTS && total == m_deposits && errors == 0 ? "ok" : "FAILED"));
+			System.exit(0); // The shards never end
+		}
+
+		@Override
+		public void receive() { }
+	}
+}
@@ -0,0 +1,166 @@
+package com.mpitaskframework.TaskSystemExamples;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import com.mpitaskframework.TaskSystem.LatencyHistogram;
+import com.mpitaskframework.TaskSystem.Message;
+import com.mpitaskframework.TaskSystem.SharedMemoryConfig;
+import com.mpitaskframework.TaskSystem.Task;
+import com.mpitaskframework.TaskSystem.TaskSystem;
+import com.mpitaskframework.TaskSystem.UnixSocketTransport;
+import com.mpitaskframework.TaskSystem.Messages.IntMessage;
+
+/**
+ * Two processes that do not share their files, talking over Unix domain sockets. Each one create its
+ * own system in its own shared root, with disjoint task ids, listen on a socket and route the ids of the
+ * other process to the socket of the other. The client measure the round trip latency, then stream
+ * messages one way to show the batched writes.
+ *
+ * Usage : UnixSocketPingPong server <socket dir>
+ *         UnixSocketPingPong client <socket dir> [round trips] [streamed messages]
+ * @author Francois Gingras <bizzard4>
+ *
+ */
+public class UnixSocketPingPong {
+
+	public enum PingPongMessages { PING, PONG, DATA, COUNT, STOP };
+
+	/**
+	 * Task ids of the server start after 0, the ones of the client after CLIENT_FIRST_ID.
+	 */
+	private static final int CLIENT_FIRST_ID = 500;
+	private static final int SERVER_ID = 1;
+
+	/**
+	 * Main.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Missing program argument : server|client <socket dir> [round trips] [streamed messages]");
+			System.exit(-1);
+		}
+		boolean server = args[0].equals("server");
+		Path dir = Paths.get(args[1]);
+		int roundTrips = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+		int streamed = args.length > 3 ? Integer.parseInt(args[3]) : 1000000;
+
+		// A private shared root for each process, nothing is shared but the sockets
+		File root = dir.resolve(server ? "server" : "client").toFile();
+		root.mkdirs();
+		System.setProperty(SharedMemoryConfig.ROOT_PROPERTY, root.getPath());
+		System.setProperty(SharedMemoryConfig.FIRST_TASK_ID_PROPERTY, server ? "0" : Integer.toString(CLIENT_FIRST_ID));
+		if (System.getProperty(SharedMemoryConfig.QUEUE_SIZE_PROPERTY) == null) {
+			System.setProperty(SharedMemoryConfig.QUEUE_SIZE_PROPERTY, Long.toString(32L * (roundTrips + streamed) + (1L << 20)));
+		}
+		TaskSystem.activateSystem(true);
+
+		UnixSocketPingPong sample = new UnixSocketPingPong();
+		UnixSocketTransport transport = UnixSocketTransport.install();
+		if (server) {
+			int id = Task.createTask(sample.new EchoServer());
+			if (id != SERVER_ID) {
+				System.err.println("Server task id is " + id + ", expected " + SERVER_ID);
+			}
+			transport.route(CLIENT_FIRST_ID, TaskSystem.MAX_TASK_COUNT - 1, dir.resolve("client.sock"));
+			transport.listen(dir.resolve("server.sock"));
+		} else {
+			transport.route(0, CLIENT_FIRST_ID - 1, dir.resolve("server.sock"));
+			Pinger pinger = sample.new Pinger(roundTrips, streamed);
+			transport.listen(dir.resolve("client.sock"));
+			Task.createTask(pinger);
+		}
+	}
+
+	/**
+	 * Answer the pings, count the streamed messages.
+	 */
+	public class EchoServer extends Task {
+
+		private long m_data;
+
+		@Override
+		protected void initialize() {
+			m_data = 0;
+		}
+
+		@Override
+		public void start() {
+			while (true) {
+				Message msg = this.getNextMessage();
+				IntMessage request = (IntMessage)msg;
+
+				switch (PingPongMessages.values()[msg.getTag()]) {
+				case PING:
+					send(new IntMessage(PingPongMessages.PONG.ordinal(), 0), request.value);
+					break;
+				case DATA:
+					m_data++;
+					break;
+				case COUNT:
+					send(new IntMessage(PingPongMessages.COUNT.ordinal(), (int)m_data), request.value);
+					break;
+				case STOP:
+					System.out.println("Server : " + m_data + " streamed messages received, stopping");
+					TaskSystem.getInstance().destroy();
+					return;
+				default:
+					System.out.println("Received unsuported message");
+					break;
+				}
+			}
+		}
+
+		@Override
+		public void receive() { }
+	}
+
+	/**
+	 * Round trips, then a one way stream.
+	 */
+	public class Pinger extends Task {
+
+		private final int m_roundTrips;
+		private final int m_streamed;
+
+		public Pinger(int pRoundTrips, int pStreamed) {
+			m_roundTrips = pRoundTrips;
+			m_streamed = pStreamed;
+		}
+
+		@Override
+		protected void initialize() { }
+
+		@Override
+		public void start() {
+			LatencyHistogram histogram = new LatencyHistogram();
+			for (int i = 0; i < m_roundTrips; i++) {
+				long start = System.nanoTime();
+				send(new IntMessage(PingPongMessages.PING.ordinal(), getTaskId()), SERVER_ID);
+				this.getNextMessage();
+				histogram.record(System.nanoTime() - start);
+			}
+			System.out.format("Client : %d round trips, mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us%n", histogram.getCount(),
+					histogram.getMean() / 1e3, histogram.getValueAtPercentile(50) / 1e3, histogram.getValueAtPercentile(99) / 1e3,
+					histogram.getMax() / 1e3);
+
+			long start = System.nanoTime();
+			for (int i = 0; i < m_streamed; i++) {
+				send(new IntMessage(PingPongMessages.DATA.ordinal(), i), SERVER_ID);
+			}
+			send(new IntMessage(PingPongMessages.COUNT.ordinal(), getTaskId()), SERVER_ID);
+			int received = ((IntMessage)this.getNextMessage()).value;
+			long elapsed = System.nanoTime() - start;
+			System.out.format("Client : %d messages streamed in %d ms (%.0f msg/s), server received %d%n", m_streamed,
+					elapsed / 1000000, m_streamed / (elapsed / 1e9), received);
+
+			send(new IntMessage(PingPongMessages.STOP.ordinal(), 0), SERVER_ID);
+			TaskSystem.getInstance().destroy();
+		}
+
+		@Override
+		public void receive() { }
+	}
+}